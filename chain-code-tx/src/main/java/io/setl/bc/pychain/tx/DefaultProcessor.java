@@ -29,14 +29,17 @@ import static io.setl.common.CommonPy.VersionConstants.VERSION_SET_ADDRESS_TIME;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -50,6 +53,7 @@ import io.setl.bc.pychain.msgpack.MPWrappedArray;
 import io.setl.bc.pychain.state.MutableMerkle;
 import io.setl.bc.pychain.state.State;
 import io.setl.bc.pychain.state.StateSnapshot;
+import io.setl.bc.pychain.state.StateSnapshotFork;
 import io.setl.bc.pychain.state.entry.AddressEntry;
 import io.setl.bc.pychain.state.entry.ContractEntry;
 import io.setl.bc.pychain.state.entry.EventData;
@@ -66,13 +70,32 @@ import io.setl.common.CommonPy.SuccessType;
 import io.setl.common.CommonPy.TxType;
 import io.setl.common.MutableLong;
 import io.setl.common.MutableObject;
+import io.setl.util.ParallelTask;
+import io.setl.util.Priorities;
 import io.setl.util.PriorityExecutor;
+import io.setl.util.PriorityExecutor.TaskContext;
 
 /**
  * Created by nicholaspennington on 10/07/2017.
  */
 public class DefaultProcessor implements TransactionProcessor {
 
+  /**
+   * Transaction types which only affect the entries of the addresses they name, and hence may be processed concurrently with transactions on other
+   * addresses. Assets, namespaces and asset locks are only read by these types.
+   */
+  private static final Set<TxType> CONCURRENT_TX_TYPES = EnumSet.of(
+      TxType.CREATE_MEMO,
+      TxType.DO_NOTHING,
+      TxType.REGISTER_ADDRESS,
+      TxType.TRANSFER_ASSET,
+      TxType.TRANSFER_ASSET_FROM_MANY,
+      TxType.TRANSFER_ASSET_TO_MANY
+  );
+
+  /** The smallest run of transactions that will be processed concurrently. */
+  private static final int CONCURRENT_RUN_LIMIT = 20;
+
   private static final Logger logger = LoggerFactory.getLogger(DefaultProcessor.class);
 
   private static DefaultProcessor theInstance = null;
@@ -91,6 +114,68 @@ public class DefaultProcessor implements TransactionProcessor {
   }
 
 
+  private static int findGroup(int[] groups, int index) {
+    while (groups[index] != index) {
+      // path halving
+      groups[index] = groups[groups[index]];
+      index = groups[index];
+    }
+    return index;
+  }
+
+
+  /**
+   * Can the transaction be processed concurrently with other transactions that do not share any addresses with it?.
+   *
+   * @param tfp the transaction
+   *
+   * @return true if it can
+   */
+  private static boolean isConcurrent(TransactionForProcessing tfp) {
+    Txi txi = tfp.getWrapped();
+    return CONCURRENT_TX_TYPES.contains(txi.getTxType()) && !txi.isPOA();
+  }
+
+
+  /**
+   * Partition transactions into groups which share no addresses. The groups retain the processing order of the transactions.
+   *
+   * @param transactions the transactions to partition
+   *
+   * @return the groups, as indices into the transactions list
+   */
+  private static List<List<Integer>> partition(List<TransactionForProcessing> transactions) {
+    int size = transactions.size();
+    int[] groups = new int[size];
+    HashMap<String, Integer> owners = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      groups[i] = i;
+      Txi txi = transactions.get(i).getWrapped();
+      ArrayList<String> addresses = new ArrayList<>(txi.addresses());
+      addresses.add(txi.getNonceAddress());
+      for (String address : addresses) {
+        Integer owner = owners.putIfAbsent(address, i);
+        if (owner != null) {
+          // Union the two groups, always keeping the lowest index as the root.
+          int root1 = findGroup(groups, owner);
+          int root2 = findGroup(groups, i);
+          groups[Math.max(root1, root2)] = Math.min(root1, root2);
+        }
+      }
+    }
+
+    LinkedHashMap<Integer, List<Integer>> partition = new LinkedHashMap<>();
+    for (int i = 0; i < size; i++) {
+      partition.computeIfAbsent(findGroup(groups, i), k -> new ArrayList<>()).add(i);
+    }
+    return new ArrayList<>(partition.values());
+  }
+
+
+  /** Should transactions be processed concurrently when an executor is available?. */
+  private boolean concurrentProcessing = false;
+
+
   /**
    * Check a nonce is not too old, not too new, but just right. Log appropriately and signal processing abort if validating.
    *
@@ -253,7 +338,7 @@ public class DefaultProcessor implements TransactionProcessor {
    */
   @Override
   public boolean checkValidatedTransactionForPool(AbstractTx tx, State state) {
-    //TODO Provide information to storage manager to allow prefetch of required data. This can be achieved by accessing any required merkle entries.
+    // Prefetching is left to the proposal, which loads the entries for all its transactions in parallel as soon as it arrives.
     AddressEntry asset = state.getAssetBalances().find(tx.getNonceAddress());
     long nonce = (asset != null) ? asset.getNonce() : -1L;
     return (tx.getNonce() >= nonce);
@@ -424,6 +509,125 @@ public class DefaultProcessor implements TransactionProcessor {
   }
 
 
+  /**
+   * Apply transactions in processing order, running each maximal run of transactions that only affect their own addresses concurrently. The outcome is
+   * identical to applying the transactions one at a time.
+   *
+   * @param taskContext   the context for concurrent tasks
+   * @param stateSnapshot the snapshot to update
+   * @param transactions  the transactions, in processing order
+   * @param updateTime    the block time
+   * @param validateMode  the processing mode
+   *
+   * @return true if all OK
+   */
+  private boolean processConcurrently(
+      TaskContext taskContext, StateSnapshot stateSnapshot, List<TransactionForProcessing> transactions, long updateTime, boolean validateMode
+  ) {
+    MutableMerkle<AddressEntry> assetList = stateSnapshot.getAssetBalances();
+    MutableObject<ReturnTuple> txResult = new MutableObject<>();
+    int size = transactions.size();
+    int start = 0;
+    while (start < size) {
+      int end = start;
+      while (end < size && isConcurrent(transactions.get(end))) {
+        end++;
+      }
+
+      if (end - start >= CONCURRENT_RUN_LIMIT) {
+        if (!processRun(taskContext, stateSnapshot, transactions, start, end, updateTime, validateMode)) {
+          return false;
+        }
+        start = end;
+      } else {
+        // Run is too short to be worth forking, so process it and the following transaction directly.
+        end = Math.min(size, end + 1);
+        for (int i = start; i < end; i++) {
+          if (!processTransaction(stateSnapshot, assetList, transactions.get(i), updateTime, txResult, validateMode)) {
+            return false;
+          }
+        }
+        start = end;
+      }
+    }
+
+    // Success
+    return true;
+  }
+
+
+  /**
+   * Apply a run of transactions which only affect their own addresses. The run is partitioned into groups that share no addresses, and each group is
+   * applied to its own fork of the snapshot. If the forks cannot be merged deterministically, the run is applied directly instead.
+   *
+   * @param taskContext   the context for concurrent tasks
+   * @param stateSnapshot the snapshot to update
+   * @param transactions  all the transactions, in processing order
+   * @param start         the first transaction in the run
+   * @param end           the end of the run (exclusive)
+   * @param updateTime    the block time
+   * @param validateMode  the processing mode
+   *
+   * @return true if all OK
+   */
+  private boolean processRun(
+      TaskContext taskContext, StateSnapshot stateSnapshot, List<TransactionForProcessing> transactions, int start, int end, long updateTime,
+      boolean validateMode
+  ) {
+    List<TransactionForProcessing> run = transactions.subList(start, end);
+    List<List<Integer>> groups = partition(run);
+    String failure;
+    if (groups.size() > 1) {
+      StateSnapshotFork[] forks = new StateSnapshotFork[groups.size()];
+      for (int i = 0; i < forks.length; i++) {
+        forks[i] = StateSnapshotFork.fork(stateSnapshot);
+      }
+
+      AtomicBoolean allOk = new AtomicBoolean(true);
+      ParallelTask.process(taskContext, 1, forks.length, index -> {
+        StateSnapshotFork fork = forks[index];
+        MutableMerkle<AddressEntry> forkAssetList = fork.getAssetBalances();
+        MutableObject<ReturnTuple> forkResult = new MutableObject<>();
+        try {
+          for (Integer i : groups.get(index)) {
+            // The ordinal is the transaction's position in the processing order, which the merge uses to sequence the changes.
+            fork.startTransaction(start + i);
+            if (!processTransaction(fork, forkAssetList, run.get(i), updateTime, forkResult, validateMode)) {
+              allOk.set(false);
+              return true;
+            }
+          }
+        } catch (RuntimeException e) {
+          logger.error("Concurrent processing of transaction group failed", e);
+          allOk.set(false);
+          return true;
+        }
+        return !allOk.get();
+      });
+
+      failure = allOk.get() ? StateSnapshotFork.merge(stateSnapshot, Arrays.asList(forks)) : "A transaction could not be applied to its fork";
+    } else {
+      failure = "Transactions could not be partitioned";
+    }
+
+    if (failure == null) {
+      logger.debug("Processed {} transactions concurrently in {} groups", run.size(), groups.size());
+      return true;
+    }
+
+    // Forks were discarded, so apply the run directly. This also reports any failure exactly as serial processing does.
+    logger.debug("Concurrent processing of {} transactions abandoned: {}", run.size(), failure);
+    MutableMerkle<AddressEntry> assetList = stateSnapshot.getAssetBalances();
+    MutableObject<ReturnTuple> txResult = new MutableObject<>();
+    for (TransactionForProcessing tfp : run) {
+      if (!processTransaction(stateSnapshot, assetList, tfp, updateTime, txResult, validateMode)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
   /**
    * processTransactions() Apply a list of transactions (e.g. from a block) to a given state snapshot.
    *
@@ -436,7 +640,7 @@ public class DefaultProcessor implements TransactionProcessor {
    * @return : Success / Failure
    */
   public boolean processTransactions(StateSnapshot stateSnapshot, Txi[] txiList, long updateTime, boolean validateMode) {
-    return processTransactions(stateSnapshot, TransactionForProcessing.wrap(txiList), null, updateTime, validateMode);
+    return processTransactions(stateSnapshot, TransactionForProcessing.wrap(txiList), null, null, updateTime, validateMode);
   }
 
 
@@ -445,6 +649,7 @@ public class DefaultProcessor implements TransactionProcessor {
    *
    * @param stateSnapshot : State to apply changes to.
    * @param transactions  : List of Transactions
+   * @param taskContext   : If not null, the context in which transactions may be processed concurrently.
    * @param updateTime    : UpdateState Time (Block Time) relevant for certain TX Types (Contracts).
    * @param validateMode  : If true, validation mode is selected. Transactions marked as valid must be valid, and those marked as invalid must be invalid.
    *                      If false, transactions will be marked as valid or invalid depending on ability to be processed.
@@ -455,6 +660,7 @@ public class DefaultProcessor implements TransactionProcessor {
       StateSnapshot stateSnapshot,
       TransactionForProcessing[] transactions,
       List<ReturnTuple> results,
+      TaskContext taskContext,
       long updateTime,
       boolean validateMode
   ) {
@@ -474,6 +680,10 @@ public class DefaultProcessor implements TransactionProcessor {
     List<TransactionForProcessing> priorityOrderTransactions = Stream.of(transactions).filter(not(TransactionForProcessing::isFlawed))
         .sorted(SORT_PROCESSING_ORDER).collect(Collectors.toList());
 
+    if (taskContext != null && results == null && StateSnapshotFork.canFork(stateSnapshot)) {
+      return processConcurrently(taskContext, stateSnapshot, priorityOrderTransactions, updateTime, validateMode);
+    }
+
     MutableMerkle<AddressEntry> assetList = stateSnapshot.getAssetBalances();
     MutableObject<ReturnTuple> txResult = new MutableObject<>();
     for (TransactionForProcessing tfp : priorityOrderTransactions) {
@@ -497,8 +707,8 @@ public class DefaultProcessor implements TransactionProcessor {
       int blockVersion, PriorityExecutor priorityExecutor, StateSnapshot stateSnapshot, ProposedTxList transactions,
       final long updateTime
   ) {
-    // In theory we could support concurrent transaction processing here. This is a future enhancement.
-    return processTransactions(stateSnapshot, transactions.getAllTx(), null, updateTime, false);
+    TaskContext taskContext = (concurrentProcessing && priorityExecutor != null) ? priorityExecutor.getTaskContext(Priorities.PROPOSAL) : null;
+    return processTransactions(stateSnapshot, transactions.getAllTx(), null, taskContext, updateTime, false);
   }
 
 
@@ -518,6 +728,17 @@ public class DefaultProcessor implements TransactionProcessor {
   }
 
 
+  /**
+   * Set whether transactions should be processed concurrently when an executor is available. Concurrent processing produces exactly the same state as
+   * processing transactions one at a time.
+   *
+   * @param concurrentProcessing true to allow concurrent processing
+   */
+  public void setConcurrentProcessing(boolean concurrentProcessing) {
+    this.concurrentProcessing = concurrentProcessing;
+  }
+
+
   /**
    * Test the result of processing the transactions.
    *
@@ -529,7 +750,7 @@ public class DefaultProcessor implements TransactionProcessor {
    * @return : Success / Failure
    */
   public boolean testTransactions(StateSnapshot stateSnapshot, Txi[] txiList, List<ReturnTuple> results, long updateTime) {
-    return processTransactions(stateSnapshot, TransactionForProcessing.wrap(txiList), results, updateTime, false);
+    return processTransactions(stateSnapshot, TransactionForProcessing.wrap(txiList), results, null, updateTime, false);
   }
 
 
@@ -18,25 +18,63 @@
 </notice> */
 package io.setl.bc.pychain.tx;
 
-import io.setl.bc.pychain.state.StateMutator;
-import io.setl.bc.pychain.state.tx.AbstractTx;
+import io.setl.bc.pychain.block.TransactionForProcessing;
+import io.setl.bc.pychain.state.State;
 import io.setl.bc.pychain.tx.prefetchdata.DefaultPrefetch;
+import io.setl.util.ParallelTask;
+import io.setl.util.PriorityExecutor;
+import io.setl.util.PriorityExecutor.TaskContext;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
 
 /**
- * PrefetchData.
+ * Warm the state caches with the entries that transactions will read before the transactions are processed.
  */
 public class PrefetchData {
-  
+
+  /** Number of transactions each prefetch task handles. Loads are I/O bound, so the sections are small. */
+  private static final int SEQUENTIAL_LIMIT = 16;
+
+
   /**
-   * prefetch.
+   * Prefetch the entries read by a set of transactions in parallel. Only the committed state is read, so this is safe to run concurrently with other readers
+   * of the state.
    *
-   * @param thisTX       :
-   * @param stateMutator :
-   * @return :
+   * @param taskContext  the context to run the prefetch tasks in
+   * @param state        the committed state the transactions will be applied to
+   * @param transactions the transactions
    */
-  public static boolean prefetch(AbstractTx thisTX, StateMutator stateMutator) {
-    
-    return DefaultPrefetch.prefetch(thisTX, stateMutator);
-    
+  public static void prefetch(TaskContext taskContext, State state, TransactionForProcessing[] transactions) {
+    ParallelTask.process(taskContext, SEQUENTIAL_LIMIT, transactions.length, (IntConsumer) i -> {
+      // Transactions that have not yet arrived are null
+      if (transactions[i] != null) {
+        DefaultPrefetch.prefetch(transactions[i].getWrapped(), state);
+      }
+    });
   }
+
+
+  /**
+   * Start prefetching the entries read by a set of transactions in the background, so the loads overlap with whatever the caller does next.
+   *
+   * @param executor     the executor to run the prefetch on
+   * @param priority     the priority to run the prefetch at
+   * @param state        the committed state the transactions will be applied to
+   * @param transactions the transactions
+   *
+   * @return a future which completes when the prefetch has finished
+   */
+  public static CompletableFuture<Void> submit(PriorityExecutor executor, int priority, State state, TransactionForProcessing[] transactions) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    executor.submit(priority, (TaskContext taskContext) -> {
+      try {
+        prefetch(taskContext, state, transactions);
+        future.complete(null);
+      } catch (RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
 }
@@ -18,26 +18,42 @@
 </notice> */
 package io.setl.bc.pychain.tx.prefetchdata;
 
-import io.setl.bc.pychain.state.StateMutator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.setl.bc.pychain.state.State;
 import io.setl.bc.pychain.state.tx.AbstractTx;
+import io.setl.bc.pychain.state.tx.Txi;
 
 /**
- * defaultPrefetch.
+ * Load the state entries a transaction is likely to read, so that they are already cached when the transaction is processed. Prefetching is best effort and
+ * never modifies state: a failure to load an entry is left for the transaction processing to report.
  */
 public class DefaultPrefetch {
-  
+
+  private static final Logger logger = LoggerFactory.getLogger(DefaultPrefetch.class);
+
+
   /**
-   * prefetch().
+   * Prefetch the entries read by a transaction. The address, encumbrance and contract entries of every address involved in the transaction are loaded, as is
+   * the power of attorney entry for POA transactions.
    *
-   * @param thisTX       :
-   * @param stateMutator :
-   * @return :
+   * @param thisTX the transaction
+   * @param state  the committed state the transaction will be applied to
    */
-  public static boolean prefetch(AbstractTx thisTX, StateMutator stateMutator) {
-    
-    // TODO ?
-    
-    return true;
-    
+  public static void prefetch(Txi thisTX, State state) {
+    try {
+      for (String address : thisTX.addresses()) {
+        state.getAssetBalances().find(address);
+        state.getEncumbrances().find(address);
+        state.getContracts().find(address);
+      }
+      if (thisTX.isPOA() && thisTX instanceof AbstractTx) {
+        state.getPowerOfAttorneys().find(((AbstractTx) thisTX).getPoaAddress());
+      }
+    } catch (RuntimeException e) {
+      logger.debug("Prefetch failed for transaction {}", thisTX.getHash(), e);
+    }
   }
+
 }
@@ -26,6 +26,9 @@ import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
 import java.text.MessageFormat;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,6 +49,24 @@ public class StockSplit {
   private static final Logger logger = LoggerFactory.getLogger(StockSplit.class);
 
 
+  /**
+   * Get the address entries which may hold an asset. If the snapshot can identify the holders, only they are loaded. Otherwise every address must be checked.
+   *
+   * @param snapshot         the snapshot
+   * @param assetBalanceTree the snapshot's address entries
+   * @param fullAssetID      the asset
+   *
+   * @return the candidate holders
+   */
+  private static Iterable<AddressEntry> candidateHolders(StateSnapshot snapshot, MutableMerkle<AddressEntry> assetBalanceTree, String fullAssetID) {
+    Set<String> holders = snapshot.getAssetHolders(fullAssetID);
+    if (holders == null) {
+      return assetBalanceTree;
+    }
+    return holders.stream().sorted().map(assetBalanceTree::find).filter(Objects::nonNull).collect(Collectors.toList());
+  }
+
+
   /**
    * updatestate.
    * Process Stoc Split / Consolidation : Demo use only !
@@ -143,7 +164,7 @@ public class StockSplit {
           BigDecimal newDoubleBalance;
           Balance newLongBalance;
 
-          for (AddressEntry toAddressEntry : assetBalanceTree) {
+          for (AddressEntry toAddressEntry : candidateHolders(snapshotWrap, assetBalanceTree, fullAssetID)) {
             if (!toAddressEntry.getAddress().equalsIgnoreCase(fromAddress)) {
               if (!toAddressEntry.getAssetBalance(fullAssetID).equalZero()) {
                 toAddressEntry = assetBalanceTree.findAndMarkUpdated(toAddressEntry.getAddress());
@@ -28,6 +28,7 @@ import io.setl.bc.pychain.state.tx.AbstractTx;
 import io.setl.bc.pychain.state.tx.TxFromList;
 import io.setl.bc.pychain.state.tx.Txi;
 import io.setl.bc.pychain.state.tx.XChainTxPackageTx;
+import io.setl.crypto.BatchSignatureVerifier;
 import io.setl.crypto.MessageVerifierFactory;
 import io.setl.util.PairSerializer;
 import io.setl.utils.Base64;
@@ -41,6 +42,38 @@ public class DefaultTxVerifier implements TxVerifier {
 
   DefaultHashableHashComputer defaultHashableHashComputer = new DefaultHashableHashComputer();
 
+
+  /**
+   * Add the signature of a transaction's current hash to a batch. Cross-chain packages and dividends have their own rules and are not added.
+   *
+   * @param thisTX : Transaction
+   * @param batch  : the batch
+   * @return :       the index in the batch, or -1
+   */
+  @Override
+  public int addSignature(Txi thisTX, BatchSignatureVerifier batch) {
+    if (thisTX.getSignature() == null) {
+      return -1;
+    }
+    switch (thisTX.getTxType()) {
+      case X_CHAIN_TX_PACKAGE:
+      case DO_DIVIDEND:
+        return -1;
+      default:
+        break;
+    }
+
+    byte[] signature;
+    try {
+      signature = Base64.decode(thisTX.getSignature());
+    } catch (IOException e) {
+      // Leave it to verifySignature to report the bad encoding.
+      return -1;
+    }
+    return batch.add(thisTX.getHash().getBytes(StandardCharsets.UTF_8), thisTX.getFromPublicKey(), signature);
+  }
+
+
   /**
    * Verify that the signature of the transactions current hash is valid for its public key. Does not recompute hash
    *
@@ -19,6 +19,7 @@
 package io.setl.bc.pychain.tx.verifier;
 
 import io.setl.bc.pychain.state.tx.Txi;
+import io.setl.crypto.BatchSignatureVerifier;
 
 
 /**Transaction hashing, signing and verification
@@ -39,5 +40,17 @@ public interface TxVerifier {
    * @return    : true/false verification result
    */
   boolean verifySignature(Txi tx);
-  
+
+
+  /**
+   *  Add the signature of the transaction's current hash to a batch of signatures that will be verified together. Transactions whose signatures cannot be
+   *  expressed as a single batch entry must be checked with verifySignature instead.
+   * @param tx    : Transaction
+   * @param batch : the batch to add to
+   * @return      : the index of the signature in the batch, or -1 if the transaction was not added
+   */
+  default int addSignature(Txi tx, BatchSignatureVerifier batch) {
+    return -1;
+  }
+
 }
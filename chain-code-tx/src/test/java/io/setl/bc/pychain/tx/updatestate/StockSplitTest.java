@@ -23,6 +23,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import io.setl.bc.pychain.state.AssetHolderIndex;
 import io.setl.bc.pychain.state.MutableMerkle;
 import io.setl.bc.pychain.state.StateSnapshot;
 import io.setl.bc.pychain.state.entry.AddressEntry;
@@ -46,6 +47,17 @@ public class StockSplitTest extends BaseTestClass {
 
   @Test
   public void updatestate() throws Exception {
+    split(false);
+  }
+
+
+  @Test
+  public void updatestateWithHolderIndex() throws Exception {
+    split(true);
+  }
+
+
+  private void split(boolean useIndex) throws Exception {
 
     String stateFile = "src/test/resources/test-states/genesis/16/a4aa9a8fa4a8b07848bc5e9635c7b39d8f9692687d354fc03d7d403bdcdba6c0";
     String namespace = "NS1";
@@ -66,6 +78,11 @@ public class StockSplitTest extends BaseTestClass {
     final String toAddress3 = getRandomAddress();
 
     ObjectEncodedState state1 = fileStateLoaded.loadStateFromFile(stateFile);
+    if (useIndex) {
+      AssetHolderIndex index = new AssetHolderIndex();
+      index.rebuild(state1);
+      state1.setAssetHolderIndex(index);
+    }
 
     StateSnapshot s0 = state1.createSnapshot();
 
@@ -43,7 +43,8 @@ public class CommonPy {
   public enum ItemType {
     PROPOSAL("proposal"),
     PROPVOTES("propvotes"),
-    TRANSACTIONS("transactions");
+    TRANSACTIONS("transactions"),
+    MERKLE_NODES("merklenodes");
 
     static final Map<String, ItemType> lookup = new HashMap<>();
 
@@ -134,6 +135,7 @@ public class CommonPy {
     TX_PACKAGE_ORIGINAL(0xFFA2),
     TX_PACKAGE_FORWARD(0xFFA3),
     TX_PACKAGE_RESPONSE(0xFFA7),
+    MERKLE_NODES(0xFFA8), // Response to ITEM_REQUEST for Merkle store nodes
     NAMESPACE_LIST(0xFFA4), // Unused
     CLASSES_LIST(0xFFA5), // Unused
     NONCE_DETAILS(0xFFA6), // Unused
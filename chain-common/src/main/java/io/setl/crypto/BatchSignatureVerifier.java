@@ -0,0 +1,199 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.crypto;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+import org.bouncycastle.asn1.edec.EdECObjectIdentifiers;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.math.ec.rfc8032.Ed25519;
+import io.setl.crypto.provider.EdDsaPublicKey;
+import io.setl.crypto.provider.SetlProvider;
+import io.setl.ed25519.DonnaJNI;
+import io.setl.util.ParallelTask;
+import io.setl.util.PriorityExecutor.TaskContext;
+
+/**
+ * Verify a collection of signatures together. The signatures are checked in parallel and Ed25519 signatures go straight to the curve implementation rather
+ * than through a JCE <code>Signature</code> instance, which saves the provider look-up, key conversion and buffering for every message.
+ *
+ * <p>Neither the native library nor Bouncy Castle offer a true batch equation for Ed25519, so each signature is still checked individually and the outcome
+ * of every item is reported.</p>
+ */
+public class BatchSignatureVerifier {
+
+  /** The native library, if available. */
+  private static final DonnaJNI JNI = SetlProvider.isNativeMode() ? new DonnaJNI() : null;
+
+
+
+  /** A signature to verify. */
+  private static class Item {
+
+    final byte[] message;
+
+    final PublicKey publicKey;
+
+    final byte[] signature;
+
+
+    Item(byte[] message, PublicKey publicKey, byte[] signature) {
+      this.message = message;
+      this.publicKey = publicKey;
+      this.signature = signature;
+    }
+
+  }
+
+
+
+  /**
+   * Get the 32 bytes of an Ed25519 public key.
+   *
+   * @param publicKey the key
+   *
+   * @return the bytes, or null if the key is not an X.509 encoded Ed25519 key
+   */
+  private static byte[] ed25519Bytes(PublicKey publicKey) {
+    if (!"X.509".equals(publicKey.getFormat())) {
+      return null;
+    }
+    String algorithm = publicKey.getAlgorithm();
+    if (!(SetlProvider.ALGORITHM_1.equals(algorithm) || SetlProvider.ALGORITHM_2.equals(algorithm))) {
+      return null;
+    }
+    SubjectPublicKeyInfo info = SubjectPublicKeyInfo.getInstance(publicKey.getEncoded());
+    if (!EdECObjectIdentifiers.id_Ed25519.equals(info.getAlgorithm().getAlgorithm())) {
+      return null;
+    }
+    byte[] bytes = info.getPublicKeyData().getOctets();
+    return bytes.length == Ed25519.PUBLIC_KEY_SIZE ? bytes : null;
+  }
+
+
+  private final MessageVerifier fallback;
+
+  private final List<Item> items = new ArrayList<>();
+
+
+  /**
+   * New instance which uses the default verifier for non-Ed25519 keys.
+   */
+  public BatchSignatureVerifier() {
+    this(MessageVerifierFactory.get());
+  }
+
+
+  /**
+   * New instance.
+   *
+   * @param fallback the verifier to use for keys which are not Ed25519
+   */
+  public BatchSignatureVerifier(MessageVerifier fallback) {
+    this.fallback = fallback;
+  }
+
+
+  /**
+   * Add a signature to the batch.
+   *
+   * @param message      the message
+   * @param hexPublicKey the binary representation of the public key in hex
+   * @param signature    the signature
+   *
+   * @return the index of the signature in the batch
+   */
+  public int add(byte[] message, String hexPublicKey, byte[] signature) {
+    PublicKey publicKey;
+    try {
+      publicKey = KeyGen.getPublicKey(hexPublicKey);
+    } catch (IllegalArgumentException e) {
+      // an invalid key cannot verify anything
+      publicKey = null;
+    }
+    return add(message, publicKey, signature);
+  }
+
+
+  /**
+   * Add a signature to the batch.
+   *
+   * @param message   the message
+   * @param publicKey the signer's public key
+   * @param signature the signature
+   *
+   * @return the index of the signature in the batch
+   */
+  public synchronized int add(byte[] message, PublicKey publicKey, byte[] signature) {
+    items.add(new Item(message, publicKey, signature));
+    return items.size() - 1;
+  }
+
+
+  /**
+   * Get the number of signatures in this batch.
+   *
+   * @return the number of signatures
+   */
+  public synchronized int size() {
+    return items.size();
+  }
+
+
+  /**
+   * Verify all the signatures in this batch.
+   *
+   * @param taskContext the context for parallel processing
+   *
+   * @return the outcome for each signature, in the order they were added
+   */
+  public boolean[] verify(TaskContext taskContext) {
+    Item[] toVerify;
+    synchronized (this) {
+      toVerify = items.toArray(new Item[0]);
+    }
+    boolean[] results = new boolean[toVerify.length];
+    ParallelTask.process(taskContext, toVerify.length, (IntConsumer) i -> results[i] = verify(toVerify[i]));
+    return results;
+  }
+
+
+  private boolean verify(Item item) {
+    PublicKey publicKey = item.publicKey;
+    byte[] signature = item.signature;
+    if (publicKey == null || signature == null || item.message == null) {
+      return false;
+    }
+
+    if (JNI != null && publicKey instanceof EdDsaPublicKey) {
+      byte[] preparedKey = ((EdDsaPublicKey) publicKey).getPreparedKey(JNI);
+      return preparedKey != null && JNI.verifyWithPreparedKey(item.message, preparedKey, signature);
+    }
+
+    byte[] keyBytes = ed25519Bytes(publicKey);
+    if (keyBytes != null) {
+      return signature.length == Ed25519.SIGNATURE_SIZE && Ed25519.verify(signature, 0, keyBytes, 0, item.message, 0, item.message.length);
+    }
+
+    return fallback.verifySignature(item.message, publicKey, signature);
+  }
+
+}
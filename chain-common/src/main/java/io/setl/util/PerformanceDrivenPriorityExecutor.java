@@ -20,6 +20,7 @@ package io.setl.util;
 
 import static io.setl.bc.logging.LoggingConstants.MARKER_PERFORMANCE;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
@@ -67,6 +68,27 @@ public class PerformanceDrivenPriorityExecutor extends PriorityExecutor implemen
   }
 
 
+  /**
+   * Constructor.
+   *
+   * @param minThreadPoolSize  the number of threads to keep in the pool
+   * @param maxThreadPoolSize  the maximum number of threads allowed in the pool
+   * @param minWorkQueueSize   the minimum number of jobs in the Work queue, below which we resume adding them
+   * @param maxWorkQueueSize   the maximum number of jobs in the Work queue, above which we pause adding them
+   * @param mode               how tasks are scheduled onto threads
+   * @param blockingPriorities priorities whose tasks are expected to block on I/O, and so run on their own pool
+   * @param blockingThreads    the maximum number of threads in the pool for blocking priorities
+   */
+  public PerformanceDrivenPriorityExecutor(
+      int minThreadPoolSize, int maxThreadPoolSize, int minWorkQueueSize, int maxWorkQueueSize,
+      Mode mode, Collection<Integer> blockingPriorities, int blockingThreads
+  ) {
+    super(minThreadPoolSize, maxThreadPoolSize, mode, blockingPriorities, blockingThreads);
+    this.minWorkQueueSize = minWorkQueueSize;
+    this.maxWorkQueueSize = maxWorkQueueSize;
+  }
+
+
   @Override
   public void submit(int priority, Consumer<TaskContext> job) {
     super.submit(priority, job);
@@ -89,7 +111,7 @@ public class PerformanceDrivenPriorityExecutor extends PriorityExecutor implemen
 
   @Override
   public void notifyListeners() {
-    int queueSize = executor.getQueue().size();
+    int queueSize = getQueueSize();
 
     if (queueSize < minWorkQueueSize && !notifyBelow) {
       if (logger.isWarnEnabled(MARKER_PERFORMANCE)) {
@@ -50,6 +50,9 @@ public interface Priorities {
   /** Completing a proposal is the most important task. */
   int PROPOSAL = 2_000_000_000;
 
+  /** Reading state from the Merkle store ahead of a scan. */
+  int STATE_READ = 2700;
+
   /** Updating state. */
   int STATE_UPDATE = 2750;
 
@@ -20,12 +20,15 @@ package io.setl.util;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -40,6 +43,10 @@ import org.slf4j.LoggerFactory;
 /**
  * An executor which will allows prioritisation of tasks.
  *
+ * <p>By default all tasks share a single priority queue. In {@link Mode#WORK_STEALING} mode each worker has its own queue and steals higher priority work
+ * from the others. Priorities whose tasks are expected to block on I/O may be given their own pool, so they never occupy the workers that do the computation.
+ * </p>
+ *
  * @author Simon Greatrix on 2019-03-18.
  */
 public class PriorityExecutor implements Executor {
@@ -53,6 +60,17 @@ public class PriorityExecutor implements Executor {
 
 
 
+  /** How queued tasks are scheduled onto threads. */
+  public enum Mode {
+    /** A thread pool where all threads take work from one shared priority queue. */
+    SHARED_QUEUE,
+
+    /** A fixed set of workers, each with its own priority queue, which steal work from each other. */
+    WORK_STEALING
+  }
+
+
+
   /**
    * A counter for logging. Records the number of tasks running and queued for a priority level.
    */
@@ -111,6 +129,28 @@ public class PriorityExecutor implements Executor {
   }
 
 
+  /**
+   * Get the priority for a name from {@link Priorities}, or a numeric priority.
+   *
+   * @param name the priority name or number
+   *
+   * @return the priority
+   */
+  public static int priorityForName(String name) {
+    String trimmed = name.trim();
+    for (Map.Entry<Integer, String> e : NAMED_PRIORITIES.entrySet()) {
+      if (e.getValue().equalsIgnoreCase(trimmed)) {
+        return e.getKey();
+      }
+    }
+    try {
+      return Integer.parseInt(trimmed);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Unknown priority: \"" + trimmed + "\"", e);
+    }
+  }
+
+
 
   class Task implements Comparable<Task>, Runnable {
 
@@ -151,6 +191,11 @@ public class PriorityExecutor implements Executor {
     }
 
 
+    int getPriority() {
+      return taskContext.priority;
+    }
+
+
     @Override
     public int hashCode() {
       return taskContext.hashCode();
@@ -269,7 +314,7 @@ public class PriorityExecutor implements Executor {
     public void fork(Consumer<TaskContext> job) {
       TaskContext newContext = new TaskContext(this);
       Task task = new Task(newContext, () -> job.accept(newContext));
-      executor.execute(task);
+      dispatch(task);
     }
 
 
@@ -281,7 +326,7 @@ public class PriorityExecutor implements Executor {
     public void fork(Runnable job) {
       TaskContext newContext = new TaskContext(this);
       Task task = new Task(newContext, job);
-      executor.execute(task);
+      dispatch(task);
     }
 
 
@@ -320,7 +365,13 @@ public class PriorityExecutor implements Executor {
 
   private final Map<Integer, LogCounter> countersForLogging = new CopyOnWriteMap<Integer,LogCounter>(i -> new TreeMap<>(Comparator.reverseOrder()));
 
-  protected final ThreadPoolExecutor executor;
+  protected final ExecutorService executor;
+
+  /** The executor for blocking priorities, or null if there are none. */
+  private final ThreadPoolExecutor blockingExecutor;
+
+  /** The priorities which run on the blocking executor, in ascending order. */
+  private final int[] blockingPriorities;
 
 
   /**
@@ -330,15 +381,42 @@ public class PriorityExecutor implements Executor {
    * @param maxPoolSize  the maximum number of threads allowed in the pool
    */
   public PriorityExecutor(int corePoolSize, int maxPoolSize) {
+    this(corePoolSize, maxPoolSize, Mode.SHARED_QUEUE, Collections.emptySet(), 0);
+  }
+
+
+  /**
+   * Create a new thread pool.
+   *
+   * @param corePoolSize       the number of threads to keep in the pool. In work-stealing mode, this is the number of workers.
+   * @param maxPoolSize        the maximum number of threads allowed in the pool. Ignored in work-stealing mode.
+   * @param mode               how tasks are scheduled onto threads
+   * @param blockingPriorities priorities whose tasks are expected to block on I/O, and so run on their own pool
+   * @param blockingThreads    the maximum number of threads in the pool for blocking priorities. Zero or negative uses twice the number of processors.
+   */
+  public PriorityExecutor(int corePoolSize, int maxPoolSize, Mode mode, Collection<Integer> blockingPriorities, int blockingThreads) {
     if (corePoolSize < 0 || maxPoolSize <= 0) {
       corePoolSize = 2 * Runtime.getRuntime().availableProcessors();
       maxPoolSize = corePoolSize;
     }
 
-    PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
     ThreadFactory threadFactory = TaskRunner::new;
-    executor = new ThreadPoolExecutor(corePoolSize, maxPoolSize, 1, TimeUnit.SECONDS, queue, threadFactory);
-    executor.allowCoreThreadTimeOut(true);
+    if (mode == Mode.WORK_STEALING) {
+      executor = new WorkStealingExecutor(Math.max(1, corePoolSize));
+    } else {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(corePoolSize, maxPoolSize, 1, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), threadFactory);
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    }
+
+    this.blockingPriorities = blockingPriorities.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+    if (this.blockingPriorities.length > 0) {
+      int threads = (blockingThreads > 0) ? blockingThreads : 2 * Runtime.getRuntime().availableProcessors();
+      blockingExecutor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), threadFactory);
+      blockingExecutor.allowCoreThreadTimeOut(true);
+    } else {
+      blockingExecutor = null;
+    }
   }
 
 
@@ -357,12 +435,34 @@ public class PriorityExecutor implements Executor {
   }
 
 
+  private void dispatch(Task task) {
+    if (blockingExecutor != null && Arrays.binarySearch(blockingPriorities, task.getPriority()) >= 0) {
+      blockingExecutor.execute(task);
+    } else {
+      executor.execute(task);
+    }
+  }
+
+
   @Override
   public void execute(Runnable command) {
     submit(Priorities.DEFAULT, command);
   }
 
 
+  /**
+   * Get the number of tasks waiting to run, excluding those at blocking priorities.
+   *
+   * @return the number of tasks
+   */
+  public int getQueueSize() {
+    if (executor instanceof WorkStealingExecutor) {
+      return ((WorkStealingExecutor) executor).getQueueSize();
+    }
+    return ((ThreadPoolExecutor) executor).getQueue().size();
+  }
+
+
   /**
    * Get a task context that executes at the specified priority. If called from a task that is running at the specified priority, returns the task's context.
    *
@@ -393,6 +493,9 @@ public class PriorityExecutor implements Executor {
   public void shutdown() {
     logger.info("Shutting down priorities executor.");
     executor.shutdown();
+    if (blockingExecutor != null) {
+      blockingExecutor.shutdown();
+    }
   }
 
 
@@ -409,7 +512,7 @@ public class PriorityExecutor implements Executor {
     }
     TaskContext context = new TaskContext(priority, counter.getAndIncrement());
     Task task = new Task(context, () -> job.accept(context));
-    executor.execute(task);
+    dispatch(task);
   }
 
 
@@ -425,7 +528,7 @@ public class PriorityExecutor implements Executor {
       logger.trace("Task at priority {} enqueued: {}", priority, countersForLogging);
     }
     Task task = new Task(counter.getAndIncrement(), priority, job);
-    executor.execute(task);
+    dispatch(task);
   }
 
 }
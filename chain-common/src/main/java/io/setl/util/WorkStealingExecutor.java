@@ -0,0 +1,274 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.setl.util.PriorityExecutor.Task;
+import io.setl.util.PriorityExecutor.TaskRunner;
+
+/**
+ * An executor for prioritised tasks where every worker has its own priority queue. Tasks submitted from a worker go on that worker's queue, and other tasks
+ * are spread across the workers. A worker runs the head of its own queue unless another worker's queue holds higher priority work, in which case it steals
+ * that instead. Idle workers steal anything available. This keeps the priority ordering of the shared-queue executor without every submission contending on
+ * a single lock.
+ *
+ * <p>Only tasks created by a PriorityExecutor may be submitted.</p>
+ */
+class WorkStealingExecutor extends AbstractExecutorService {
+
+  /** Priority advertised by a worker with an empty queue. */
+  private static final int EMPTY = Integer.MIN_VALUE;
+
+  /** Maximum time an idle worker sleeps before re-checking the queues. Submissions wake idle workers, so this is only a safety net. */
+  private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private static final Logger logger = LoggerFactory.getLogger(WorkStealingExecutor.class);
+
+
+
+  class Worker extends TaskRunner {
+
+    /** Lock protecting the queue. We do not lock on the thread itself as Thread.join() uses its monitor. */
+    private final Object lock = new Object();
+
+    private final PriorityQueue<Task> queue = new PriorityQueue<>();
+
+    /** The priority at the head of this worker's queue. Read without locking by other workers deciding where to take work from. */
+    private volatile int headPriority = EMPTY;
+
+
+    Worker() {
+      super(null);
+      setName("SETL-prioritised-thread-" + getId());
+      setDaemon(true);
+    }
+
+
+    private Task findTask() {
+      // Prefer our own queue unless another worker holds strictly higher priority work. Start the scan at a random worker so that thieves spread out.
+      Worker best = this;
+      int bestPriority = headPriority;
+      int length = workers.length;
+      int start = ThreadLocalRandom.current().nextInt(length);
+      for (int i = 0; i < length; i++) {
+        Worker worker = workers[(start + i) % length];
+        int priority = worker.headPriority;
+        if (priority > bestPriority) {
+          best = worker;
+          bestPriority = priority;
+        }
+      }
+
+      if (bestPriority == EMPTY) {
+        return null;
+      }
+      Task task = best.poll();
+      if (task == null && best != this) {
+        // Lost a race with another thief.
+        task = poll();
+      }
+      return task;
+    }
+
+
+    WorkStealingExecutor getOwner() {
+      return WorkStealingExecutor.this;
+    }
+
+
+    Task poll() {
+      synchronized (lock) {
+        Task task = queue.poll();
+        Task next = queue.peek();
+        headPriority = (next != null) ? next.getPriority() : EMPTY;
+        return task;
+      }
+    }
+
+
+    void push(Task task) {
+      synchronized (lock) {
+        queue.add(task);
+        headPriority = queue.peek().getPriority();
+      }
+    }
+
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Task task = findTask();
+          if (task == null) {
+            // Advertise as idle and then look again, so a task submitted concurrently is either seen here or its submitter sees us and wakes us.
+            idle.add(this);
+            task = findTask();
+            if (task == null) {
+              if (isShutdown) {
+                return;
+              }
+              LockSupport.parkNanos(this, MAX_IDLE_NANOS);
+            }
+            idle.remove(this);
+          }
+
+          if (task != null) {
+            queued.decrementAndGet();
+            task.run();
+          }
+        }
+      } finally {
+        logger.trace("Worker {} terminated", getName());
+        terminated.countDown();
+      }
+    }
+
+  }
+
+
+
+  /** Workers that may be parked waiting for work. */
+  private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<>();
+
+  /** Used to spread submissions from outside the pool across the workers. */
+  private final AtomicInteger nextWorker = new AtomicInteger(0);
+
+  /** Number of tasks waiting in all the queues. */
+  private final AtomicInteger queued = new AtomicInteger(0);
+
+  private final CountDownLatch terminated;
+
+  private final Worker[] workers;
+
+  private volatile boolean isShutdown = false;
+
+
+  /**
+   * New instance.
+   *
+   * @param threads the number of worker threads
+   */
+  WorkStealingExecutor(int threads) {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Thread count must be positive, not " + threads);
+    }
+    terminated = new CountDownLatch(threads);
+    workers = new Worker[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Worker();
+    }
+    for (Worker worker : workers) {
+      worker.start();
+    }
+  }
+
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return terminated.await(timeout, unit);
+  }
+
+
+  @Override
+  public void execute(Runnable command) {
+    if (isShutdown) {
+      throw new RejectedExecutionException("Executor has been shut down");
+    }
+    Task task = (Task) command;
+
+    // Work forked by a worker stays with that worker unless someone steals it.
+    Thread me = Thread.currentThread();
+    Worker target;
+    if (me instanceof Worker && ((Worker) me).getOwner() == this) {
+      target = (Worker) me;
+    } else {
+      target = workers[(nextWorker.getAndIncrement() & 0x7fff_ffff) % workers.length];
+    }
+
+    queued.incrementAndGet();
+    target.push(task);
+
+    Worker sleeper = idle.poll();
+    if (sleeper != null) {
+      LockSupport.unpark(sleeper);
+    }
+  }
+
+
+  /**
+   * Get the number of tasks waiting to run.
+   *
+   * @return the number of tasks
+   */
+  int getQueueSize() {
+    return queued.get();
+  }
+
+
+  @Override
+  public boolean isShutdown() {
+    return isShutdown;
+  }
+
+
+  @Override
+  public boolean isTerminated() {
+    return terminated.getCount() == 0;
+  }
+
+
+  @Override
+  public void shutdown() {
+    isShutdown = true;
+    for (Worker worker : workers) {
+      LockSupport.unpark(worker);
+    }
+  }
+
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown();
+    ArrayList<Runnable> list = new ArrayList<>();
+    for (Worker worker : workers) {
+      Task task;
+      while ((task = worker.poll()) != null) {
+        queued.decrementAndGet();
+        list.add(task);
+      }
+      worker.interrupt();
+    }
+    return list;
+  }
+
+}
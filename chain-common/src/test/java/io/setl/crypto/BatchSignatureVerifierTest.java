@@ -0,0 +1,105 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.setl.common.Hex;
+import io.setl.crypto.KeyGen.Type;
+import io.setl.util.PriorityExecutor;
+import io.setl.util.Priorities;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchSignatureVerifierTest {
+
+  private final MessageSignerVerifier signer = MessageVerifierFactory.get();
+
+  private PriorityExecutor executor;
+
+
+  @Before
+  public void before() {
+    executor = new PriorityExecutor(4, 4);
+  }
+
+
+  @After
+  public void after() {
+    executor.shutdown();
+  }
+
+
+  @Test
+  public void verify() {
+    KeyPair edKeys = Type.ED25519.generate();
+    KeyPair ecKeys = Type.EC_NIST_P256.generate();
+    String edHex = Hex.encode(edKeys.getPublic().getEncoded());
+    String ecHex = Hex.encode(ecKeys.getPublic().getEncoded());
+
+    BatchSignatureVerifier batch = new BatchSignatureVerifier();
+    boolean[] expected = new boolean[1000];
+    for (int i = 0; i < expected.length; i++) {
+      byte[] message = ("Message " + i).getBytes(StandardCharsets.UTF_8);
+      boolean isEd = (i % 3) != 0;
+      byte[] signature = signer.createSignature(message, isEd ? edKeys.getPrivate() : ecKeys.getPrivate());
+
+      // corrupt one in every seven signatures
+      if ((i % 7) == 0) {
+        signature[signature.length / 2] ^= 1;
+      }
+      expected[i] = (i % 7) != 0;
+      assertEquals(i, batch.add(message, isEd ? edHex : ecHex, signature));
+    }
+    assertEquals(expected.length, batch.size());
+
+    boolean[] actual = batch.verify(executor.newTaskContext(Priorities.TX_VERIFY));
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals("Signature " + i, expected[i], actual[i]);
+    }
+  }
+
+
+  @Test
+  public void verifyBadInputs() {
+    KeyPair edKeys = Type.ED25519.generate();
+    String edHex = Hex.encode(edKeys.getPublic().getEncoded());
+    byte[] message = "Hello".getBytes(StandardCharsets.UTF_8);
+    byte[] signature = signer.createSignature(message, edKeys.getPrivate());
+
+    BatchSignatureVerifier batch = new BatchSignatureVerifier();
+    batch.add(message, edHex, signature);
+    batch.add(message, "not a key", signature);
+    batch.add(message, edHex, null);
+    batch.add(message, edHex, new byte[10]);
+
+    boolean[] actual = batch.verify(executor.newTaskContext(Priorities.TX_VERIFY));
+    assertTrue(actual[0]);
+    assertFalse(actual[1]);
+    assertFalse(actual[2]);
+    assertFalse(actual[3]);
+  }
+
+}
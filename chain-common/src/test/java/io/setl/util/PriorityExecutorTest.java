@@ -0,0 +1,137 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.setl.util.PriorityExecutor.Mode;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import org.junit.After;
+import org.junit.Test;
+
+public class PriorityExecutorTest {
+
+  private PriorityExecutor executor;
+
+
+  @Test
+  public void blockingPriorityHasOwnPool() throws InterruptedException {
+    executor = new PriorityExecutor(1, 1, Mode.WORK_STEALING, Collections.singleton(Priorities.NETWORK_WRITE), 1);
+
+    // Occupy the only worker until the blocking task has run. If the blocking task needed the worker, this would never finish.
+    CountDownLatch written = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    executor.submit(Priorities.DEFAULT, () -> {
+      try {
+        written.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      done.countDown();
+    });
+    executor.submit(Priorities.NETWORK_WRITE, written::countDown);
+
+    assertTrue(written.await(5, TimeUnit.SECONDS));
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+
+  @Test
+  public void parallelTask() {
+    executor = new PriorityExecutor(4, 4, Mode.WORK_STEALING, Collections.emptySet(), 0);
+    AtomicLong total = new AtomicLong();
+    ParallelTask.process(executor.newTaskContext(Priorities.PROPOSAL), 10_000, (IntConsumer) total::addAndGet);
+    assertEquals(49_995_000L, total.get());
+  }
+
+
+  @Test
+  public void priorityForName() {
+    assertEquals(Priorities.NETWORK_WRITE, PriorityExecutor.priorityForName(" network_write "));
+    assertEquals(1234, PriorityExecutor.priorityForName("1234"));
+  }
+
+
+  @Test(expected = IllegalArgumentException.class)
+  public void priorityForNameUnknown() {
+    PriorityExecutor.priorityForName("NOT_A_PRIORITY");
+  }
+
+
+  @Test
+  public void priorityOrder() throws InterruptedException {
+    executor = new PriorityExecutor(1, 1, Mode.WORK_STEALING, Collections.emptySet(), 0);
+
+    CountDownLatch release = new CountDownLatch(1);
+    executor.submit(Priorities.DEFAULT, () -> {
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    List<Integer> order = new CopyOnWriteArrayList<>();
+    CountDownLatch done = new CountDownLatch(3);
+    for (int priority : new int[]{Priorities.NETWORK_READ, Priorities.PROPOSAL, Priorities.DEFAULT}) {
+      executor.submit(priority, () -> {
+        order.add(priority);
+        done.countDown();
+      });
+    }
+    release.countDown();
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(List.of(Priorities.PROPOSAL, Priorities.DEFAULT, Priorities.NETWORK_READ), order);
+  }
+
+
+  @After
+  public void tearDown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+
+  @Test
+  public void workStealingRunsEverything() throws InterruptedException {
+    executor = new PriorityExecutor(4, 4, Mode.WORK_STEALING, Collections.emptySet(), 0);
+    AtomicInteger count = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(10_000);
+    for (int i = 0; i < 10_000; i++) {
+      executor.submit(i % 7, () -> {
+        count.incrementAndGet();
+        done.countDown();
+      });
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(10_000, count.get());
+    assertEquals(0, executor.getQueueSize());
+  }
+}
@@ -29,7 +29,7 @@ import io.setl.common.TypeSafeMap;
  *
  * @author aanten
  */
-public abstract class AbstractTx implements Txi {
+public abstract class AbstractTx implements Cloneable, Txi {
 
   protected static final int REQUIRED_ENCODED_FIELDS = 11;
 
@@ -343,4 +343,26 @@ public abstract class AbstractTx implements Txi {
     return getTxType().getLongName() + ":" + isGood();
   }
 
+
+  /**
+   * Get this transaction with the given processing status. If the status differs, the result is a shallow copy which shares this transaction's field
+   * values, so neither instance may be otherwise modified.
+   *
+   * @param isGood true if the transaction has been applied to state
+   *
+   * @return this transaction, or a copy with the requested status
+   */
+  public AbstractTx withGood(boolean isGood) {
+    if (updated == isGood) {
+      return this;
+    }
+    try {
+      AbstractTx copy = (AbstractTx) clone();
+      copy.updated = isGood;
+      return copy;
+    } catch (CloneNotSupportedException e) {
+      throw new InternalError("AbstractTx is Cloneable", e);
+    }
+  }
+
 }
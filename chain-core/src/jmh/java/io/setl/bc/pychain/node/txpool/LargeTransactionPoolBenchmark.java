@@ -0,0 +1,218 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.node.txpool;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.block.Block;
+import io.setl.bc.pychain.block.ProposedTxList;
+import io.setl.bc.pychain.block.TxView;
+import io.setl.bc.pychain.node.StateManager;
+import io.setl.bc.pychain.node.TransactionPool.HasResult;
+import io.setl.bc.pychain.state.Merkle;
+import io.setl.bc.pychain.state.entry.AddressEntry;
+import io.setl.bc.pychain.state.tx.Txi;
+import io.setl.bc.pychain.tx.create.NullTX;
+import io.setl.util.PriorityExecutor;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Add, lookup, propose and remove against a pool holding a large number of transactions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class LargeTransactionPoolBenchmark {
+
+  /** Nonce every address starts at in the mocked state. */
+  private static final long STATE_NONCE = 10L;
+
+
+  /**
+   * A block of transactions for addresses which have never been seen before, recreated for every invocation as removed transactions cannot be re-added.
+   */
+  @State(Scope.Thread)
+  public static class FreshBlock {
+
+    Block block;
+
+    int round;
+
+    Txi[] transactions;
+
+
+    /**
+     * Create the next block.
+     *
+     * @param benchmark the benchmark state
+     */
+    @Setup(Level.Invocation)
+    public void setUp(LargeTransactionPoolBenchmark benchmark) {
+      round++;
+      int txPerAddress = benchmark.txPerAddress;
+      Txi[] txs = new Txi[benchmark.blockSize];
+      for (int i = 0; i < txs.length; i++) {
+        txs[i] = makeTx("B" + round + "_" + (i / txPerAddress), STATE_NONCE + (i % txPerAddress));
+      }
+      transactions = txs;
+      if (block == null) {
+        block = mock(Block.class);
+        when(block.getTransactionView()).thenAnswer(invocation -> new TxView(transactions));
+      }
+    }
+
+  }
+
+
+  private static Txi makeTx(String address, long nonce) {
+    NullTX creator = new NullTX();
+    creator.setAddress(address);
+    creator.setNonce(nonce);
+    creator.setTimestamp(nonce);
+    return creator.create();
+  }
+
+
+  @Param({"10000"})
+  private int blockSize;
+
+  private Hash[] pooledHashes;
+
+  private Txi[] pooledTxs;
+
+  @Param({"1000000"})
+  private int poolSize;
+
+  private LargeTransactionPool pool;
+
+  private PriorityExecutor priorityExecutor;
+
+  @Param({"10"})
+  private int txPerAddress;
+
+
+  /**
+   * Add a block's worth of transactions for new addresses, then remove them as if they had been committed.
+   *
+   * @param freshBlock the transactions to add and remove
+   *
+   * @return the pool size, to defeat dead code elimination
+   */
+  @Benchmark
+  public int addAndRemove(FreshBlock freshBlock) {
+    for (Txi txi : freshBlock.transactions) {
+      pool.addTx(txi);
+    }
+    pool.bulkRemove(freshBlock.block);
+    return pool.getAvailableTransactionCount();
+  }
+
+
+  /**
+   * Look up a pooled transaction.
+   *
+   * @return the lookup result
+   */
+  @Benchmark
+  public HasResult lookup() {
+    int i = ThreadLocalRandom.current().nextInt(pooledTxs.length);
+    Txi txi = pooledTxs[i];
+    return pool.hasTx(txi.getNonceAddress(), txi.getNonce(), pooledHashes[i]);
+  }
+
+
+  /**
+   * Look up an address with nothing in the pool.
+   *
+   * @return the lookup result
+   */
+  @Benchmark
+  public HasResult lookupMissing() {
+    return pool.hasTx("Z" + ThreadLocalRandom.current().nextInt(), STATE_NONCE, pooledHashes[0]);
+  }
+
+
+  /**
+   * Create a full proposal.
+   *
+   * @return the proposal
+   */
+  @Benchmark
+  public ProposedTxList propose() {
+    return pool.createProposal(blockSize);
+  }
+
+
+  /**
+   * Create the pool and the transactions.
+   */
+  @Setup(Level.Trial)
+  public void setUp() {
+    StateManager stateManager = mock(StateManager.class);
+    io.setl.bc.pychain.state.State state = mock(io.setl.bc.pychain.state.State.class);
+    Merkle<AddressEntry> merkle = mock(Merkle.class);
+    AddressEntry addressEntry = mock(AddressEntry.class);
+    when(addressEntry.getNonce()).thenReturn(STATE_NONCE);
+    when(merkle.find(any())).thenReturn(addressEntry);
+    when(state.getAssetBalances()).thenReturn(merkle);
+    when(stateManager.getState()).thenReturn(state);
+
+    priorityExecutor = new PriorityExecutor(Runtime.getRuntime().availableProcessors());
+    pool = new LargeTransactionPool(stateManager, priorityExecutor, new SecureRandom(), new SimpleMeterRegistry());
+    pool.setMaxLevel(Integer.MAX_VALUE);
+
+    pooledTxs = new Txi[poolSize];
+    pooledHashes = new Hash[poolSize];
+    for (int i = 0; i < poolSize; i++) {
+      Txi txi = makeTx("A" + (i / txPerAddress), STATE_NONCE + (i % txPerAddress));
+      pooledTxs[i] = txi;
+      pooledHashes[i] = Hash.fromHex(txi.getHash());
+      pool.addTx(txi);
+    }
+  }
+
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    priorityExecutor.shutdown();
+  }
+}
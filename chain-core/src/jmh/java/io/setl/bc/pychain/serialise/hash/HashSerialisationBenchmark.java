@@ -0,0 +1,103 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.serialise.hash;
+
+import io.setl.bc.pychain.state.entry.AddressEntry;
+import io.setl.bc.pychain.state.tx.MemoTx;
+import io.setl.common.Balance;
+import io.setl.common.Sha256Hash;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare hashing via an intermediate packed byte array with packing directly into the digest. Run with "-prof gc" to see the allocation difference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class HashSerialisationBenchmark {
+
+  /** Number of asset balances held by the address. */
+  @Param({"1", "50"})
+  private int balanceCount;
+
+  private Object[] encodedAddress;
+
+  private Object[] encodedTx;
+
+  private final HashSerialisation serialisation = HashSerialisation.getInstance();
+
+
+  @Benchmark
+  public byte[] addressEntryByteArray() {
+    return Sha256Hash.newDigest().digest(serialisation.serialise(encodedAddress));
+  }
+
+
+  @Benchmark
+  public byte[] addressEntryStreaming() {
+    return serialisation.digest(encodedAddress);
+  }
+
+
+  /**
+   * Create the objects to hash.
+   */
+  @Setup
+  public void setup() {
+    AddressEntry addressEntry = new AddressEntry("AKbm1qR6pWZLmoyKsr1wmAE5sXjWh4QNWw", 17, 3, 5);
+    for (int i = 0; i < balanceCount; i++) {
+      addressEntry.setAssetBalance("Namespace|Asset" + i, new Balance(1_000_000L * i + 1));
+    }
+    encodedAddress = addressEntry.encode(-1);
+
+    char[] metadata = new char[500];
+    Arrays.fill(metadata, 'm');
+    MemoTx memoTx = new MemoTx(16, 4, 1, false, "fromPubKey", "AKbm1qR6pWZLmoyKsr1wmAE5sXjWh4QNWw", new String(metadata), "", 1_600_000_000L);
+    encodedTx = memoTx.encodeTx();
+  }
+
+
+  @Benchmark
+  public byte[] transactionByteArray() {
+    return Sha256Hash.newDigest().digest(serialisation.serialise(encodedTx));
+  }
+
+
+  @Benchmark
+  public byte[] transactionStreaming() {
+    return serialisation.digest(encodedTx);
+  }
+
+}
@@ -19,8 +19,6 @@
 package io.setl.bc.pychain;
 
 import io.setl.bc.pychain.serialise.hash.HashSerialisation;
-import io.setl.common.Sha256Hash;
-import java.security.MessageDigest;
 
 public class DefaultHashableHashComputer {
 
@@ -32,11 +30,7 @@ public class DefaultHashableHashComputer {
    * @return the hash
    */
   public Hash computeHash(HashableObjectArray hashableObjectArray) {
-    Object[] objectList = hashableObjectArray.getHashableObject();
-    byte[] bytes = HashSerialisation.getInstance().serialise(objectList);
-    MessageDigest digest = Sha256Hash.newDigest();
-    byte[] hash = digest.digest(bytes);
-    return new Hash(hash);
+    return HashSerialisation.getInstance().hash(hashableObjectArray);
   }
 
 
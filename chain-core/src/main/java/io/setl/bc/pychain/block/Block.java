@@ -22,6 +22,7 @@ import io.setl.bc.pychain.Hash;
 import io.setl.bc.pychain.HashableObjectArray;
 import io.setl.bc.pychain.msgpack.MPWrappedArray;
 import io.setl.bc.pychain.msgpack.MPWrappedArrayImpl;
+import io.setl.bc.pychain.node.VerifiedTxCache;
 import io.setl.bc.pychain.p2p.message.TxPackage;
 import io.setl.bc.pychain.state.tx.TxFromList;
 import io.setl.bc.pychain.state.tx.Txi;
@@ -84,10 +85,10 @@ public class Block implements HashableObjectArray {
 
   private MPWrappedArray contractEvents;
 
-  private Txi[] effectiveTxArray = null;
-
   private MPWrappedArray effectiveTxList;
 
+  private TxView effectiveTxView = null;
+
   private boolean extendedHack = false;
 
   private MPWrappedArray forFutureUse;
@@ -108,14 +109,17 @@ public class Block implements HashableObjectArray {
 
   private long timeStamp;
 
-  /**
-   * The TXs as represented in the txList.
-   */
-  private Txi[] txArray = null;
+  /** The set of transaction hashes, built on first request. */
+  private Set<String> txHashes;
 
   /** The specification of the TXs. */
   private List<MPWrappedArray> txList;
 
+  /**
+   * The TXs as represented in the txList.
+   */
+  private TxView txView = null;
+
   private List<Pair<String, Integer>> xChainTxs;
 
   private MPWrappedArray xcHeights;
@@ -331,19 +335,22 @@ public class Block implements HashableObjectArray {
    * @return : List of effective transactions in this Block.
    */
   public Txi[] getEffectiveTransactions() {
-    synchronized (effectiveTxLock) {
-      if (effectiveTxArray != null) {
-        return effectiveTxArray.clone();
-      }
+    return getEffectiveTransactionView().toTxArray();
+  }
 
-      effectiveTxArray = new Txi[effectiveTxList.size()];
 
-      for (int i = 0, l = effectiveTxList.size(); i < l; i++) {
-        MPWrappedArray vat = effectiveTxList.asWrapped(i);
-        effectiveTxArray[i] = TxFromList.txFromList(vat);
+  /**
+   * Get a shared read-only view of the effective transactions. The transactions are decoded as they are accessed.
+   *
+   * @return the effective transactions in this block
+   */
+  public TxView getEffectiveTransactionView() {
+    synchronized (effectiveTxLock) {
+      if (effectiveTxView == null) {
+        final MPWrappedArray encoded = effectiveTxList;
+        effectiveTxView = new TxView(encoded.size(), i -> TxFromList.txFromList(encoded.asWrapped(i)));
       }
-
-      return effectiveTxArray.clone();
+      return effectiveTxView;
     }
   }
 
@@ -471,7 +478,7 @@ public class Block implements HashableObjectArray {
   public int getTransactionCount() {
     synchronized (txLock) {
       if (txList == null) {
-        return txArray == null ? 0 : txArray.length;
+        return txView == null ? 0 : txView.size();
       }
       return txList.size();
     }
@@ -486,21 +493,24 @@ public class Block implements HashableObjectArray {
    * @return : List of transactions in this Block.
    */
   public Txi[] getTransactions() {
-    synchronized (txLock) {
-      if (txArray != null) {
-        return txArray.clone();
-      }
+    return getTransactionView().toTxArray();
+  }
 
-      List<MPWrappedArray> myTxList = getTxList();
-      txArray = new Txi[myTxList.size()];
 
-      for (int i = 0, l = myTxList.size(); i < l; i++) {
-        MPWrappedArray vat = myTxList.get(i);
-        Txi txi = TxFromList.txFromList(vat);
-        txArray[i] = txi;
+  /**
+   * Get a shared read-only view of the transactions in this block. The transactions are decoded as they are accessed, or all at once with
+   * <code>TxView.decodeAll</code>, and every caller sees the same decoded instances. Prefer this to <code>getTransactions()</code>, which copies.
+   *
+   * @return the transactions in this block
+   */
+  public TxView getTransactionView() {
+    synchronized (txLock) {
+      if (txView == null) {
+        // Transactions which passed through our pool have already been decoded.
+        final List<MPWrappedArray> encoded = getTxList();
+        txView = new TxView(encoded.size(), i -> VerifiedTxCache.getInstance().decode(encoded.get(i)));
       }
-
-      return txArray.clone();
+      return txView;
     }
   }
 
@@ -508,23 +518,27 @@ public class Block implements HashableObjectArray {
   /**
    * Get the hashes of the transactions in this hash.
    *
-   * @return the transactions' hashes
+   * @return the transactions' hashes (unmodifiable)
    */
   public Set<String> getTxHashes() {
-    Set<String> hashes = new HashSet<>();
     synchronized (txLock) {
+      if (txHashes != null) {
+        return txHashes;
+      }
+      Set<String> hashes = new HashSet<>();
       if (txList != null) {
         for (MPWrappedArray tx : txList) {
           hashes.add(tx.asString(TxGeneralFields.TX_HASH));
         }
-      } else {
-        // Use tx array
-        for (Txi tx : txArray) {
+      } else if (txView != null) {
+        // Use tx view
+        for (Txi tx : txView) {
           hashes.add(tx.getHash());
         }
       }
+      txHashes = Collections.unmodifiableSet(hashes);
+      return txHashes;
     }
-    return hashes;
   }
 
 
@@ -537,9 +551,11 @@ public class Block implements HashableObjectArray {
     synchronized (txLock) {
       // If this block was dehydrated, we may not have this.
       if (txList == null) {
-        int l = txArray.length;
-        ArrayList<MPWrappedArray> encoded = new ArrayList<>(l);
-        for (Txi tx : txArray) {
+        if (txView == null) {
+          return Collections.emptyList();
+        }
+        ArrayList<MPWrappedArray> encoded = new ArrayList<>(txView.size());
+        for (Txi tx : txView) {
           if (tx != null) {
             encoded.add(new MPWrappedArrayImpl(tx.encodeTx()));
           }
@@ -643,7 +659,7 @@ public class Block implements HashableObjectArray {
 
     synchronized (effectiveTxLock) {
       this.effectiveTxList = new MPWrappedArrayImpl(newEncodedTx);
-      this.effectiveTxArray = newEffectiveArray;
+      this.effectiveTxView = new TxView(newEffectiveArray);
     }
   }
 
@@ -674,6 +690,10 @@ public class Block implements HashableObjectArray {
    * @param txList the list of transactions in this block
    */
   public void setTxList(List<MPWrappedArray> txList) {
-    this.txList = txList;
+    synchronized (txLock) {
+      this.txList = txList;
+      txView = null;
+      txHashes = null;
+    }
   }
 }
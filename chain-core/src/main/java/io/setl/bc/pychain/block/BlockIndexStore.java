@@ -0,0 +1,336 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.block;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.state.tx.Txi;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * H2 (MVStore) backed secondary index of persisted blocks. It records where each transaction is, the latest transactions involving each address, and a
+ * summary of each block, so that explorer queries can be answered without searching or decoding blocks.
+ */
+public class BlockIndexStore implements Closeable {
+
+  /** Number of transactions remembered for each address. */
+  public static final int ADDRESS_HISTORY = 100;
+
+  private static final String ADDRESS_MAP = "address";
+
+  private static final String BLOCK_MAP = "block";
+
+  private static final String TX_MAP = "tx";
+
+  private static final Logger logger = LoggerFactory.getLogger(BlockIndexStore.class);
+
+
+
+  /**
+   * Summary of a persisted block.
+   */
+  public static class BlockSummary {
+
+    private final String blockHash;
+
+    private final int height;
+
+    private final String nodeName;
+
+    private final long timestamp;
+
+    private final int txCount;
+
+
+    BlockSummary(int height, Object[] value) {
+      this.height = height;
+      blockHash = (String) value[0];
+      timestamp = ((Number) value[1]).longValue();
+      txCount = ((Number) value[2]).intValue();
+      nodeName = (String) value[3];
+    }
+
+
+    public String getBlockHash() {
+      return blockHash;
+    }
+
+
+    public int getHeight() {
+      return height;
+    }
+
+
+    public String getNodeName() {
+      return nodeName;
+    }
+
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+
+    public int getTxCount() {
+      return txCount;
+    }
+
+  }
+
+
+
+  /**
+   * Where a transaction is in the chain.
+   */
+  public static class TxLocation {
+
+    private final String blockHash;
+
+    private final int height;
+
+    private final int position;
+
+
+    TxLocation(Object[] value) {
+      height = ((Number) value[0]).intValue();
+      blockHash = (String) value[1];
+      position = ((Number) value[2]).intValue();
+    }
+
+
+    public String getBlockHash() {
+      return blockHash;
+    }
+
+
+    public int getHeight() {
+      return height;
+    }
+
+
+    /**
+     * Get the transaction's position in the block's transaction list.
+     *
+     * @return the position
+     */
+    public int getPosition() {
+      return position;
+    }
+
+  }
+
+
+
+  private static String normalise(String hash) {
+    return Hash.fromHex(hash).toHexString();
+  }
+
+
+  /** Address to the hashes of its latest transactions, newest first. */
+  private final MVMap<String, String[]> addresses;
+
+  /** Height to block hash, timestamp, transaction count, node name, transaction hashes and addresses. */
+  private final MVMap<Integer, Object[]> blocks;
+
+  private final MVStore store;
+
+  /** Transaction hash to block height, block hash and position. */
+  private final MVMap<String, Object[]> transactions;
+
+
+  /**
+   * New instance.
+   *
+   * @param fileName the file which holds the index
+   */
+  public BlockIndexStore(String fileName) {
+    store = new MVStore.Builder().fileName(fileName).autoCommitDisabled().open();
+    addresses = store.openMap(ADDRESS_MAP);
+    blocks = store.openMap(BLOCK_MAP);
+    transactions = store.openMap(TX_MAP);
+  }
+
+
+  @Override
+  public synchronized void close() {
+    store.close();
+  }
+
+
+  /**
+   * Get the hashes of the latest transactions involving an address.
+   *
+   * @param address the address
+   *
+   * @return the transaction hashes, newest first. At most <code>ADDRESS_HISTORY</code> are returned.
+   */
+  public List<String> getAddressTransactions(String address) {
+    String[] hashes = addresses.get(address);
+    return hashes != null ? Collections.unmodifiableList(Arrays.asList(hashes)) : Collections.emptyList();
+  }
+
+
+  /**
+   * Get the summary of the block at a height.
+   *
+   * @param height the height
+   *
+   * @return the summary, or null if the block has not been indexed
+   */
+  public BlockSummary getBlock(int height) {
+    Object[] value = blocks.get(height);
+    return value != null ? new BlockSummary(height, value) : null;
+  }
+
+
+  /**
+   * Get the height of the last block indexed.
+   *
+   * @return the height, or -1 if nothing has been indexed
+   */
+  public int getHeight() {
+    Integer last = blocks.lastKey();
+    return last != null ? last : -1;
+  }
+
+
+  /**
+   * Find a transaction.
+   *
+   * @param txHash the transaction's hash
+   *
+   * @return where the transaction is, or null if it has not been indexed
+   */
+  public TxLocation getTransaction(String txHash) {
+    Object[] value = transactions.get(normalise(txHash));
+    return value != null ? new TxLocation(value) : null;
+  }
+
+
+  /**
+   * Add a block to the index. Indexing a block again has no effect. If a different block was indexed at the same height, its transactions are removed from
+   * the index first.
+   *
+   * @param block     the block
+   * @param blockHash the block's hash
+   */
+  public synchronized void index(Block block, Hash blockHash) {
+    int height = block.getHeight();
+    String hashHex = blockHash.toHexString();
+    Object[] existing = blocks.get(height);
+    if (existing != null) {
+      if (hashHex.equals(existing[0])) {
+        return;
+      }
+      remove(existing);
+    }
+
+    Map<String, List<String>> byAddress = new LinkedHashMap<>();
+    TxView txView = block.getTransactionView();
+    List<String> txHashes = new ArrayList<>(txView.size());
+    for (int i = 0; i < txView.size(); i++) {
+      Txi txi = txView.get(i);
+      if (txi == null) {
+        continue;
+      }
+      String txHash = normalise(txi.getHash());
+      txHashes.add(txHash);
+      transactions.put(txHash, new Object[]{height, hashHex, i});
+      for (String address : txi.addresses()) {
+        byAddress.computeIfAbsent(address, a -> new ArrayList<>()).add(txHash);
+      }
+    }
+
+    byAddress.forEach((address, added) -> {
+      String[] previous = addresses.get(address);
+      List<String> latest = new ArrayList<>(ADDRESS_HISTORY);
+      for (int i = added.size() - 1; i >= 0 && latest.size() < ADDRESS_HISTORY; i--) {
+        latest.add(added.get(i));
+      }
+      if (previous != null) {
+        for (int i = 0; i < previous.length && latest.size() < ADDRESS_HISTORY; i++) {
+          latest.add(previous[i]);
+        }
+      }
+      addresses.put(address, latest.toArray(new String[0]));
+    });
+
+    blocks.put(height, new Object[]{
+        hashHex, block.getTimeStamp(), block.getTransactionCount(), block.getNodeName(),
+        txHashes.toArray(new String[0]), byAddress.keySet().toArray(new String[0])
+    });
+    store.commit();
+    logger.debug("Indexed block {} with {} transactions", height, txView.size());
+  }
+
+
+  /**
+   * Remove the transactions of a replaced block from the transaction and address maps. Entries written before the block's transactions and addresses were
+   * recorded cannot be removed.
+   *
+   * @param existing the replaced block's entry in the block map
+   */
+  private void remove(Object[] existing) {
+    if (existing.length < 6) {
+      logger.warn("Cannot remove transactions of replaced block {} as they were not recorded", existing[0]);
+      return;
+    }
+    String oldHash = (String) existing[0];
+    Set<String> removed = new HashSet<>();
+    for (Object o : (Object[]) existing[4]) {
+      String txHash = (String) o;
+      Object[] location = transactions.get(txHash);
+      if (location != null && oldHash.equals(location[1])) {
+        transactions.remove(txHash);
+        removed.add(txHash);
+      }
+    }
+    for (Object o : (Object[]) existing[5]) {
+      String address = (String) o;
+      String[] previous = addresses.get(address);
+      if (previous == null) {
+        continue;
+      }
+      List<String> kept = new ArrayList<>(previous.length);
+      for (String txHash : previous) {
+        if (!removed.contains(txHash)) {
+          kept.add(txHash);
+        }
+      }
+      if (kept.isEmpty()) {
+        addresses.remove(address);
+      } else if (kept.size() != previous.length) {
+        addresses.put(address, kept.toArray(new String[0]));
+      }
+    }
+    logger.info("Removed {} transactions of replaced block {}", removed.size(), oldHash);
+  }
+
+}
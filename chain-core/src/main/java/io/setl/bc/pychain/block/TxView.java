@@ -0,0 +1,127 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.block;
+
+import io.setl.bc.pychain.state.tx.Txi;
+import io.setl.util.ParallelTask;
+import io.setl.util.PriorityExecutor.TaskContext;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * A read-only view of the transactions in a block. Each transaction is decoded the first time it is accessed and the decoded instance is then shared by
+ * every user of the view, so the view may be passed around without copying. All the transactions can be decoded in parallel ahead of use with
+ * <code>decodeAll</code>.
+ *
+ * <p>If two threads access an undecoded transaction at the same time, both may decode it but only one decoded instance is ever returned.</p>
+ */
+public class TxView extends AbstractList<Txi> implements RandomAccess {
+
+  private final IntFunction<? extends Txi> decoder;
+
+  private final AtomicReferenceArray<Txi> transactions;
+
+  private volatile boolean isComplete = false;
+
+
+  /**
+   * New instance over transactions that have already been decoded.
+   *
+   * @param decoded the decoded transactions
+   */
+  public TxView(Txi[] decoded) {
+    this(decoded.length, i -> decoded[i]);
+    isComplete = true;
+  }
+
+
+  /**
+   * New instance.
+   *
+   * @param size    the number of transactions
+   * @param decoder decoder for the transaction at a given index
+   */
+  public TxView(int size, IntFunction<? extends Txi> decoder) {
+    this.decoder = decoder;
+    transactions = new AtomicReferenceArray<>(size);
+  }
+
+
+  /**
+   * Decode every transaction that has not yet been decoded, in parallel.
+   *
+   * @param taskContext the context to run the decoding in
+   *
+   * @return this
+   */
+  public TxView decodeAll(TaskContext taskContext) {
+    if (!isComplete) {
+      ParallelTask.process(taskContext, size(), (IntConsumer) this::get);
+      isComplete = true;
+    }
+    return this;
+  }
+
+
+  @Override
+  public Txi get(int index) {
+    Txi txi = transactions.get(index);
+    if (txi == null) {
+      txi = decoder.apply(index);
+      if (txi != null && !transactions.compareAndSet(index, null, txi)) {
+        txi = transactions.get(index);
+      }
+    }
+    return txi;
+  }
+
+
+  /**
+   * Have all the transactions in this view been decoded?.
+   *
+   * @return true if no further decoding is required
+   */
+  public boolean isComplete() {
+    return isComplete;
+  }
+
+
+  @Override
+  public int size() {
+    return transactions.length();
+  }
+
+
+  /**
+   * Copy the transactions into a new array, decoding them as necessary.
+   *
+   * @return the transactions
+   */
+  public Txi[] toTxArray() {
+    Txi[] array = new Txi[size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = get(i);
+    }
+    return array;
+  }
+
+}
@@ -61,6 +61,7 @@ public class FileStateWriter implements StateWriter {
       } catch (IOException ioe) {
         throw new DBStoreException(ioe);
       }
+      oes.saveHashTrees();
       return;
     }
     throw new NotImplementedException();
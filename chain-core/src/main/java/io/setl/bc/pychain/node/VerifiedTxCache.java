@@ -0,0 +1,200 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.node;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import io.setl.bc.pychain.msgpack.MPWrappedArray;
+import io.setl.bc.pychain.serialise.hash.HashSerialisation;
+import io.setl.bc.pychain.state.tx.AbstractTx;
+import io.setl.bc.pychain.state.tx.TxFromList;
+import io.setl.common.CommonPy.TxGeneralFields;
+import java.util.Arrays;
+
+/**
+ * A bounded cache of transactions whose hash and signature have been verified, keyed by the transaction hash. A transaction that has been admitted to the
+ * pool does not need to be decoded or verified again when it arrives in another node's proposal, a transaction package, or a block.
+ *
+ * <p>The hash in an encoded transaction is supplied by the sender, so a cached transaction is only used if the whole encoded form matches the form it was
+ * verified in. Otherwise the encoded form is decoded and verified as normal. The one exception is the processing status, which is not covered by the
+ * signature and is set when a transaction is put into a block.</p>
+ */
+public class VerifiedTxCache implements MeterBinder {
+
+  /** Default limit on the number of cached transactions. */
+  public static final long DEFAULT_MAXIMUM_SIZE = 100_000;
+
+  private static volatile VerifiedTxCache instance = new VerifiedTxCache();
+
+
+
+  /** A verified transaction and the digest of its encoded form. */
+  private static class Verified {
+
+    final byte[] digest;
+
+    final AbstractTx tx;
+
+
+    Verified(AbstractTx tx) {
+      this.tx = tx;
+      digest = bodyDigest(tx.encodeTx());
+    }
+
+  }
+
+
+
+  /**
+   * Digest an encoded transaction, ignoring its processing status.
+   *
+   * @param encoded the encoded transaction, which is not modified
+   *
+   * @return the digest
+   */
+  private static byte[] bodyDigest(Object[] encoded) {
+    Object[] body = encoded.clone();
+    body[TxGeneralFields.TX_UPDATED] = Boolean.FALSE;
+    return HashSerialisation.getInstance().digest(body);
+  }
+
+
+
+  public static VerifiedTxCache getInstance() {
+    return instance;
+  }
+
+
+  /**
+   * Replace the shared cache, for example with one that has been configured and bound to the node's metrics.
+   *
+   * @param cache the new shared cache
+   */
+  public static void setInstance(VerifiedTxCache cache) {
+    instance = cache;
+  }
+
+
+  private final Cache<String, Verified> cache;
+
+
+  /**
+   * New instance with the default maximum size.
+   */
+  public VerifiedTxCache() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+
+  /**
+   * New instance.
+   *
+   * @param maximumSize the maximum number of transactions to hold
+   */
+  public VerifiedTxCache(long maximumSize) {
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .recordStats()
+        .build();
+  }
+
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    GuavaCacheMetrics.monitor(registry, cache, "verifiedTxCache");
+  }
+
+
+  /**
+   * Decode a transaction, using the verified instance if one is cached. A transaction decoded by this method is not itself added to the cache.
+   *
+   * @param encoded the encoded transaction
+   *
+   * @return the transaction
+   */
+  public AbstractTx decode(MPWrappedArray encoded) {
+    AbstractTx tx = get(encoded);
+    return tx != null ? tx : TxFromList.txFromList(encoded);
+  }
+
+
+  /**
+   * Get the verified transaction which matches an encoded transaction.
+   *
+   * @param encoded the encoded transaction
+   *
+   * @return the verified transaction with the encoded processing status, or null if there is no match
+   */
+  public AbstractTx get(MPWrappedArray encoded) {
+    String hash = encoded.asString(TxGeneralFields.TX_HASH);
+    if (hash == null) {
+      return null;
+    }
+    Verified verified = cache.getIfPresent(hash);
+    if (verified == null) {
+      return null;
+    }
+
+    // The hash is supplied by the sender, so the body must be exactly the one which was verified. Message Pack uses the smallest encoding for each value, so
+    // the digest does not depend on how the values are represented in memory.
+    if (!Arrays.equals(verified.digest, bodyDigest(encoded.unwrap()))) {
+      return null;
+    }
+
+    // A block records whether each transaction was applied. The cached instance is shared, so the block's status is applied to a copy.
+    return verified.tx.withGood(encoded.asBoolean(TxGeneralFields.TX_UPDATED));
+  }
+
+
+  /**
+   * Get the verified transaction with the given hash.
+   *
+   * @param hash the transaction's hash
+   *
+   * @return the transaction, or null
+   */
+  public AbstractTx get(String hash) {
+    Verified verified = cache.getIfPresent(hash);
+    return verified != null ? verified.tx : null;
+  }
+
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+
+  /**
+   * Record a transaction whose hash and signature have been verified.
+   *
+   * @param tx the transaction
+   */
+  public void put(AbstractTx tx) {
+    cache.put(tx.getHash(), new Verified(tx));
+  }
+
+
+  public long size() {
+    return cache.size();
+  }
+
+}
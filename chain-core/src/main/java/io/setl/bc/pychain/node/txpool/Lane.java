@@ -18,8 +18,9 @@
 </notice> */
 package io.setl.bc.pychain.node.txpool;
 
-import io.setl.bc.pychain.block.ProposedTxList.Builder;
 import io.setl.bc.pychain.node.StateManager;
+import io.setl.bc.pychain.state.tx.Txi;
+import java.util.List;
 
 /**
  * A lane within the pool. The lane contains a hash-table which uses linear-probing and a load factor from 0.25 to 0.5. For each address we hold a series
@@ -37,25 +38,42 @@ class Lane {
   private int mask = 3;
 
 
-  synchronized void bulkRemove(String address, long max) {
-    int hc = address.hashCode();
-    int l = buckets.length;
-
-    for (int i = 0; i < l; i++) {
-      int j = (hc + i) & mask;
-      Series b = buckets[j];
-      if (b == null) {
-        // definitely not found
-        return;
-      }
-      if (b.getAddressCode() == hc && b.getAddress().equals(address)) {
-        // Found the series
-        b.bulkRemove(max);
-      }
+  /**
+   * Add a transaction to the series for its address. A series created for a transaction which is rejected is removed again, as nothing else would clean it
+   * up.
+   *
+   * @param stateManager the state manager, for the nonce of a new series
+   * @param txi          the transaction
+   *
+   * @return true if the transaction was added
+   */
+  synchronized boolean addTx(StateManager stateManager, Txi txi) {
+    Series series = findOrCreate(stateManager, txi.getNonceAddress());
+    if (series.addTx(txi)) {
+      return true;
     }
+    if (series.isEmpty()) {
+      cleanUp();
+    }
+    return false;
+  }
 
-    // We will never get here, as there will always be a null bucket.
-    throw new IllegalStateException("No gaps in hash table");
+
+  /**
+   * Remove all transactions for the address up to and including the specified nonce.
+   *
+   * @param address the nonce address
+   * @param max     the highest nonce to remove
+   *
+   * @return true if the address had a series in this lane
+   */
+  synchronized boolean bulkRemove(String address, long max) {
+    Series b = find(address);
+    if (b == null) {
+      return false;
+    }
+    b.bulkRemove(max);
+    return true;
   }
 
 
@@ -81,6 +99,33 @@ class Lane {
   }
 
 
+  /**
+   * Find the series for an address without creating one if it does not exist.
+   *
+   * @param address the nonce address
+   *
+   * @return the series, or null
+   */
+  synchronized Series find(String address) {
+    int hc = address.hashCode();
+    int l = buckets.length;
+
+    for (int i = 0; i < l; i++) {
+      Series b = buckets[(hc + i) & mask];
+      if (b == null) {
+        // definitely not found
+        return null;
+      }
+      if (b.getAddressCode() == hc && b.getAddress().equals(address)) {
+        return b;
+      }
+    }
+
+    // We will never get here, as there will always be a null bucket.
+    throw new IllegalStateException("No gaps in hash table");
+  }
+
+
   synchronized Series findOrCreate(StateManager stateManager, String address) {
     int hc = address.hashCode();
     int l = buckets.length;
@@ -108,18 +153,27 @@ class Lane {
   }
 
 
-  synchronized int propose(Builder builder, int maxTxPerBlock) {
-    for (int i = buckets.length - 1; i >= 0 && maxTxPerBlock > 0; i--) {
+  /**
+   * Add the proposable transactions in this lane to a list. Each series contributes a run of transactions starting at its next nonce.
+   *
+   * @param output        the list to add to
+   * @param maxTxPerBlock the maximum number of transactions to add
+   *
+   * @return the number of transactions added
+   */
+  synchronized int propose(List<Txi> output, int maxTxPerBlock) {
+    int remaining = maxTxPerBlock;
+    for (int i = buckets.length - 1; i >= 0 && remaining > 0; i--) {
       Series s = buckets[i];
       if (s != null) {
-        TxIterator iterator = s.iterate(maxTxPerBlock);
+        TxIterator iterator = s.iterate(remaining);
         while (iterator.hasNext()) {
-          builder.add(iterator.next());
+          output.add(iterator.next());
         }
-        maxTxPerBlock = iterator.getRemaining();
+        remaining = iterator.getRemaining();
       }
     }
-    return maxTxPerBlock;
+    return maxTxPerBlock - remaining;
   }
 
 
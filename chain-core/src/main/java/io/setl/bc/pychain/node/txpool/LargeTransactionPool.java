@@ -22,10 +22,10 @@ import static io.setl.bc.logging.LoggingConstants.MARKER_PERFORMANCE;
 
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Spliterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -42,10 +42,10 @@ import io.setl.bc.pychain.block.Block;
 import io.setl.bc.pychain.block.MissingTxIds.NonceAndHash;
 import io.setl.bc.pychain.block.ProposedTxList;
 import io.setl.bc.pychain.block.TxIdList;
+import io.setl.bc.pychain.block.TxView;
 import io.setl.bc.pychain.node.StateManager;
 import io.setl.bc.pychain.node.TransactionPool;
 import io.setl.bc.pychain.state.tx.Txi;
-import io.setl.common.MutableLong;
 import io.setl.util.ParallelTask;
 import io.setl.util.Priorities;
 import io.setl.util.PriorityExecutor;
@@ -60,6 +60,9 @@ import io.micrometer.core.instrument.MeterRegistry;
  * <p>The pool is composed of 65521 lanes (65521 = 2^16 - 15 is a prime number). An address is assigned to a lane by its Java hash code. As addresses are
  * derived using a SHA, they are expected to be uniformly distributed. Operations within a lane are single-threaded.</p>
  *
+ * <p>Lookups never create a series for an address which has no pooled transactions, and nor does a rejected addition. Removing a block's transactions only
+ * cleans up the lanes the block touched, and proposals are gathered in parallel across contiguous ranges of lanes.</p>
+ *
  * @author Simon Greatrix on 2019-04-12.
  */
 public class LargeTransactionPool implements TransactionPool {
@@ -67,8 +70,17 @@ public class LargeTransactionPool implements TransactionPool {
   /** The number of lanes we break addresses into. This is a prime number. */
   private static final int LANE_COUNT = 65521;
 
+  /** The number of lane ranges a proposal is gathered from in parallel. */
+  private static final int PROPOSAL_RANGES = 64;
+
   private static final Logger logger = LoggerFactory.getLogger(LargeTransactionPool.class);
 
+
+  private static int laneFor(String nonceAddress) {
+    return (nonceAddress.hashCode() & 0x7fff_ffff) % LANE_COUNT;
+  }
+
+
   private final Lane[] lanes;
 
   private final PriorityExecutor priorityExecutor;
@@ -138,10 +150,7 @@ public class LargeTransactionPool implements TransactionPool {
       return;
     }
 
-    int laneChoice = (nonceAddress.hashCode() & 0x7fff_ffff) % LANE_COUNT;
-    Lane myLane = lanes[laneChoice];
-    Series series = myLane.findOrCreate(stateManager, nonceAddress);
-    if (series.addTx(va)) {
+    if (lanes[laneFor(nonceAddress)].addTx(stateManager, va)) {
       size.incrementAndGet();
       notifyListeners();
     }
@@ -152,37 +161,34 @@ public class LargeTransactionPool implements TransactionPool {
   public void bulkRemove(Block block) {
     TaskContext taskContext = priorityExecutor.newTaskContext(Priorities.PROPOSAL);
 
-    // Find the maximum nonce for each address in the block.
-    Txi[] transactions = block.getTransactions();
-    ConcurrentHashMap<String, MutableLong> nonceUsage = new ConcurrentHashMap<>();
+    // Series removal is cumulative, so each transaction can be applied directly without first finding the maximum nonce for each address. We record the
+    // lane each transaction touched so only those lanes need cleaning up.
+    TxView transactions = block.getTransactionView();
+    int[] touched = new int[transactions.size()];
 
-    ParallelTask.process(taskContext, transactions.length, i -> {
-      Txi txi = transactions[i];
+    ParallelTask.process(taskContext, touched.length, (IntConsumer) i -> {
+      Txi txi = transactions.get(i);
       String a = txi.getNonceAddress();
       if (a.equals("")) {
         xChainTx.remove(Hash.fromHex(txi.getHash()));
+        touched[i] = -1;
         return;
       }
 
-      long n = txi.getNonce();
-      MutableLong minMax = nonceUsage.computeIfAbsent(a, x -> new MutableLong());
-      synchronized (minMax) {
-        minMax.max(n);
-      }
+      int laneChoice = laneFor(a);
+      touched[i] = lanes[laneChoice].bulkRemove(a, txi.getNonce()) ? laneChoice : -1;
     });
 
-    Spliterator<Entry<String, MutableLong>> spliterator = nonceUsage.entrySet().spliterator();
-    ParallelTask.process(taskContext, spliterator, e -> {
-      String nonceAddress = e.getKey();
-      MutableLong nonce = e.getValue();
-      int laneChoice = (nonceAddress.hashCode() & 0x7fff_ffff) % LANE_COUNT;
-      Lane myLane = lanes[laneChoice];
-      logger.debug("Clearing TXs for {} up to {}", nonceAddress, nonce);
-      myLane.bulkRemove(nonceAddress, nonce.longValue());
-      return false;
-    });
+    Arrays.sort(touched);
+    int count = 0;
+    for (int lane : touched) {
+      if (lane >= 0 && (count == 0 || touched[count - 1] != lane)) {
+        touched[count++] = lane;
+      }
+    }
+    logger.debug("Block {} touched {} lanes", block.getHeight(), count);
 
-    ParallelTask.process(taskContext, LANE_COUNT, (IntConsumer) index -> lanes[index].cleanUp());
+    ParallelTask.process(taskContext, count, (IntConsumer) index -> lanes[touched[index]].cleanUp());
 
     size.addAndGet(-transactions.length);
     notifyListeners();
@@ -205,10 +211,39 @@ public class LargeTransactionPool implements TransactionPool {
     ProposedTxList.Builder builder = ProposedTxList.build();
 
     xChainTx.values().forEach(builder::add);
+    if (maxTxPerBlock <= 0) {
+      return builder.build();
+    }
 
-    for (int i = LANE_COUNT; i > 0 && maxTxPerBlock > 0; i--) {
-      Lane myLane = lanes[(i + startLane) % LANE_COUNT];
-      maxTxPerBlock = myLane.propose(builder, maxTxPerBlock);
+    // Each range of lanes is gathered independently. A series lives in exactly one lane, so each range's output contains whole runs of nonces per address
+    // and any prefix of the concatenated ranges is a valid proposal. Ranges stop early once enough transactions have been claimed across all ranges.
+    TaskContext taskContext = priorityExecutor.newTaskContext(Priorities.PROPOSAL);
+    AtomicInteger claimed = new AtomicInteger(0);
+    @SuppressWarnings("unchecked")
+    List<Txi>[] gathered = new List[PROPOSAL_RANGES];
+
+    ParallelTask.process(taskContext, 1, PROPOSAL_RANGES, (IntConsumer) r -> {
+      int from = (int) ((long) LANE_COUNT * r / PROPOSAL_RANGES);
+      int to = (int) ((long) LANE_COUNT * (r + 1) / PROPOSAL_RANGES);
+      List<Txi> output = new ArrayList<>();
+      for (int i = from; i < to; i++) {
+        int remaining = maxTxPerBlock - claimed.get();
+        if (remaining <= 0) {
+          break;
+        }
+        claimed.addAndGet(lanes[(i + startLane) % LANE_COUNT].propose(output, remaining));
+      }
+      gathered[r] = output;
+    });
+
+    int remaining = maxTxPerBlock;
+    for (int r = 0; r < PROPOSAL_RANGES && remaining > 0; r++) {
+      List<Txi> output = gathered[r];
+      int limit = Math.min(remaining, output.size());
+      for (int i = 0; i < limit; i++) {
+        builder.add(output.get(i));
+      }
+      remaining -= limit;
     }
     return builder.build();
   }
@@ -220,10 +255,8 @@ public class LargeTransactionPool implements TransactionPool {
       return new ArrayList<>(xChainTx.values());
     }
 
-    int laneChoice = (nonceAddress.hashCode() & 0x7fff_ffff) % LANE_COUNT;
-    Lane myLane = lanes[laneChoice];
-    Series series = myLane.findOrCreate(stateManager, nonceAddress);
-    return series.getAllTXs();
+    Series series = lanes[laneFor(nonceAddress)].find(nonceAddress);
+    return (series != null) ? series.getAllTXs() : Collections.emptyList();
   }
 
 
@@ -239,10 +272,8 @@ public class LargeTransactionPool implements TransactionPool {
       return xChainTx.get(hash);
     }
 
-    int laneChoice = (nonceAddress.hashCode() & 0x7fff_ffff) % LANE_COUNT;
-    Lane myLane = lanes[laneChoice];
-    Series series = myLane.findOrCreate(stateManager, nonceAddress);
-    return series.getTx(nonce, hash);
+    Series series = lanes[laneFor(nonceAddress)].find(nonceAddress);
+    return (series != null) ? series.getTx(nonce, hash) : null;
   }
 
 
@@ -257,10 +288,11 @@ public class LargeTransactionPool implements TransactionPool {
     if (nonceAddress.equals("")) {
       return xChainTx.containsKey(hash) ? HasResult.PRESENT : HasResult.NOT_PRESENT;
     }
-    int laneChoice = (nonceAddress.hashCode() & 0x7fff_ffff) % LANE_COUNT;
-    Lane myLane = lanes[laneChoice];
-    Series series = myLane.findOrCreate(stateManager, nonceAddress);
-    return series.hasTx(nonce, hash);
+    Series series = lanes[laneFor(nonceAddress)].find(nonceAddress);
+    if (series != null) {
+      return series.hasTx(nonce, hash);
+    }
+    return (nonce < Series.stateNonce(stateManager, nonceAddress)) ? HasResult.REPLAY : HasResult.NOT_PRESENT;
   }
 
 
@@ -279,10 +311,18 @@ public class LargeTransactionPool implements TransactionPool {
       return;
     }
 
-    int laneChoice = (nonceAddress.hashCode() & 0x7fff_ffff) % LANE_COUNT;
-    Lane myLane = lanes[laneChoice];
-    Series series = myLane.findOrCreate(stateManager, nonceAddress);
-    series.matchTxs(transactions, unmatched, txIds);
+    Series series = lanes[laneFor(nonceAddress)].find(nonceAddress);
+    if (series != null) {
+      series.matchTxs(transactions, unmatched, txIds);
+      return;
+    }
+
+    // Nothing pooled for this address, so every transaction is unmatched.
+    long nonce = txIds.getFirstNonce();
+    for (Hash hash : txIds.getHashes()) {
+      unmatched.add(new NonceAndHash(nonce++, hash));
+      transactions.add(null);
+    }
   }
 
 
@@ -36,6 +36,21 @@ import java.util.Set;
  */
 class Series {
 
+  /**
+   * Get the next nonce the current state will accept for an address.
+   *
+   * @param stateManager the state manager
+   * @param address      the nonce address
+   *
+   * @return the next nonce, or zero for an unknown address
+   */
+  static long stateNonce(StateManager stateManager, String address) {
+    Merkle<AddressEntry> addresses = stateManager.getState().getAssetBalances();
+    AddressEntry entry = addresses.find(address);
+    return (entry != null) ? entry.getNonce() : 0;
+  }
+
+
   private final String address;
 
   private final int addressCode;
@@ -48,14 +63,7 @@ class Series {
   Series(StateManager stateManager, String address) {
     this.address = address;
     this.addressCode = address.hashCode();
-
-    Merkle<AddressEntry> addresses = stateManager.getState().getAssetBalances();
-    AddressEntry entry = addresses.find(address);
-    if (entry == null) {
-      this.minNonce = 0;
-    } else {
-      this.minNonce = entry.getNonce();
-    }
+    this.minNonce = stateNonce(stateManager, address);
   }
 
 
@@ -22,6 +22,7 @@ import io.setl.bc.pychain.p2p.message.BlockIndexMessage;
 import io.setl.bc.pychain.p2p.message.FragmentMessage;
 import java.security.PrivateKey;
 import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 import io.setl.bc.pychain.Hash;
@@ -36,6 +37,7 @@ import io.setl.bc.pychain.p2p.message.EmptyProposal;
 import io.setl.bc.pychain.p2p.message.Encodable;
 import io.setl.bc.pychain.p2p.message.ItemRequest;
 import io.setl.bc.pychain.p2p.message.ListenPort;
+import io.setl.bc.pychain.p2p.message.MerkleNodes;
 import io.setl.bc.pychain.p2p.message.Message;
 import io.setl.bc.pychain.p2p.message.PeerRecord;
 import io.setl.bc.pychain.p2p.message.PeerRecord.Record;
@@ -121,6 +123,22 @@ public class MsgFactory {
   }
 
 
+  /**
+   * Create a CHECK_ORIGIN message which advertises this node's transport capabilities.
+   *
+   * @param chainId              the chain's ID
+   * @param uniqueNodeIdentifier the unique node identifier
+   * @param nodeType             the node's type
+   * @param capabilities         the node's transport capabilities
+   *
+   * @return the message
+   */
+  public Object[] checkOrigin(int chainId, String uniqueNodeIdentifier, CommonPy.NodeType nodeType, List<String> capabilities) {
+    Message msg = new CheckOrigin(chainId, uniqueNodeIdentifier, nodeType, capabilities);
+    return msg.encode();
+  }
+
+
   /**
    * Create a message instance from an encoded message.
    *
@@ -157,6 +175,8 @@ public class MsgFactory {
         return new ItemRequest(message);
       case LISTEN_PORT:
         return new ListenPort(message);
+      case MERKLE_NODES:
+        return new MerkleNodes(message);
       case PEER_REQUEST:
         return new PeerRequest(message);
       case PEER_RECORD:
@@ -241,6 +261,21 @@ public class MsgFactory {
   }
 
 
+  /**
+   * Create a MERKLE_NODES message.
+   *
+   * @param chainId the chain's ID
+   * @param hashes  the hashes of the requested nodes
+   * @param values  the content of each node, or null where the node is not held
+   *
+   * @return the message
+   */
+  public Object[] merkleNodes(int chainId, List<Hash> hashes, List<Object> values) {
+    Message msg = new MerkleNodes(chainId, hashes, values);
+    return msg.encode();
+  }
+
+
   /**
    * Create a PEER_REQUEST message.
    *
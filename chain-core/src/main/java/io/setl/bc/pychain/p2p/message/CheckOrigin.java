@@ -18,6 +18,10 @@
 </notice> */
 package io.setl.bc.pychain.p2p.message;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import io.setl.bc.pychain.msgpack.MPWrappedArray;
 import io.setl.bc.pychain.msgpack.MPWrappedArrayImpl;
 import io.setl.common.CommonPy.NodeType;
@@ -41,12 +45,44 @@ public class CheckOrigin implements Message {
   }
 
 
+  /**
+   * New instance which also advertises this node's transport capabilities, such as the compression codecs it can decode. Peers which do not understand
+   * capabilities ignore them.
+   *
+   * @param chainId              the chain ID
+   * @param uniqueNodeIdentifier this node's unique identifier
+   * @param nodeType             this node's type
+   * @param capabilities         this node's capabilities
+   */
+  public CheckOrigin(int chainId, String uniqueNodeIdentifier, NodeType nodeType, List<String> capabilities) {
+    message = new MPWrappedArrayImpl(new Object[]{chainId, P2PType.CHECK_ORIGIN.getId(), uniqueNodeIdentifier, nodeType.id, capabilities.toArray()});
+  }
+
+
   @Override
   public Object[] encode() {
     return message.unwrap();
   }
 
 
+  /**
+   * Get the transport capabilities advertised by the sender.
+   *
+   * @return the capabilities, which will be empty if the sender did not advertise any
+   */
+  public List<String> getCapabilities() {
+    if (message.size() < 5) {
+      return Collections.emptyList();
+    }
+    MPWrappedArray array = message.asWrapped(4);
+    List<String> capabilities = new ArrayList<>(array.size());
+    for (int i = 0; i < array.size(); i++) {
+      capabilities.add(array.asString(i));
+    }
+    return capabilities;
+  }
+
+
   @Override
   public int getChainId() {
     return message.asInt(0);
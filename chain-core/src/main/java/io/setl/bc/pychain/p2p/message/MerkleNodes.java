@@ -0,0 +1,131 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.p2p.message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.msgpack.MPWrappedArray;
+import io.setl.bc.pychain.msgpack.MPWrappedArrayImpl;
+import io.setl.common.CommonPy.P2PType;
+
+/**
+ * Response to an ITEM_REQUEST for nodes of the Merkle store. Each requested hash is returned with the node's content, or null if the node is not held.
+ */
+public class MerkleNodes implements Message {
+
+  /**
+   * Restore a node's content after transmission. Message pack does not distinguish a byte[][] from an array of byte[], so branch nodes are converted back
+   * in the same way as when they are read from a store.
+   */
+  private static Object restore(Object value) {
+    if (value instanceof Object[]) {
+      Object[] array = (Object[]) value;
+      if (array.length >= 1 && (array[0] instanceof byte[])) {
+        byte[][] branch = new byte[array.length][];
+        for (int i = 0; i < branch.length; i++) {
+          branch[i] = (byte[]) array[i];
+        }
+        return branch;
+      }
+    }
+    return value;
+  }
+
+
+  private final MPWrappedArray message;
+
+
+  public MerkleNodes(MPWrappedArray message) {
+    this.message = message;
+  }
+
+
+  /**
+   * New instance.
+   *
+   * @param chainId the chain's ID
+   * @param hashes  the hashes of the requested nodes
+   * @param values  the content of each node, or null where the node is not held
+   */
+  public MerkleNodes(int chainId, List<Hash> hashes, List<Object> values) {
+    Object[] encodedHashes = new Object[hashes.size()];
+    for (int i = 0; i < encodedHashes.length; i++) {
+      encodedHashes[i] = hashes.get(i).get();
+    }
+    message = new MPWrappedArrayImpl(new Object[]{chainId, P2PType.MERKLE_NODES.getId(), encodedHashes, values.toArray()});
+  }
+
+
+  @Override
+  public Object[] encode() {
+    return message.unwrap();
+  }
+
+
+  @Override
+  public int getChainId() {
+    return message.asInt(0);
+  }
+
+
+  /**
+   * Get the hashes of the nodes in this message.
+   *
+   * @return the hashes
+   */
+  public List<Hash> getHashes() {
+    Object[] encoded = message.asObjectArray(2);
+    if (encoded == null) {
+      return Collections.emptyList();
+    }
+    List<Hash> hashes = new ArrayList<>(encoded.length);
+    for (Object o : encoded) {
+      hashes.add(new Hash((byte[]) o));
+    }
+    return hashes;
+  }
+
+
+  @Override
+  public P2PType getType() {
+    return P2PType.MERKLE_NODES;
+  }
+
+
+  /**
+   * Get the content of the nodes in this message, in the same order as the hashes. A node which the sender does not hold is null.
+   *
+   * @return the node contents
+   */
+  public List<Object> getValues() {
+    Object[] encoded = message.asObjectArray(3);
+    if (encoded == null) {
+      return Collections.emptyList();
+    }
+    List<Object> values = new ArrayList<>(encoded.length);
+    for (Object o : encoded) {
+      values.add(restore(o));
+    }
+    return values;
+  }
+
+}
@@ -0,0 +1,182 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.serialise.hash;
+
+import io.setl.bc.pychain.msgpack.MsgPackable;
+import io.setl.bc.pychain.util.MsgPackUtil;
+import io.setl.common.Sha256Hash;
+import java.io.IOException;
+import java.security.MessageDigest;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.buffer.MessageBuffer;
+import org.msgpack.core.buffer.MessageBufferOutput;
+
+/**
+ * Computes the SHA-256 digest of an object's Message Pack form without building the packed form in memory. The packer writes directly into the digest
+ * through a fixed buffer, and one packer is kept per thread so hashing a value allocates nothing but the resulting hash.
+ *
+ * <p>The output is identical to digesting the bytes produced by {@link MsgPackUtil#pack(Object)}.</p>
+ */
+class DigestPacker {
+
+  /** Size of the packer's working buffer. Larger values are passed straight to the digest. */
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final ThreadLocal<DigestPacker> INSTANCE = ThreadLocal.withInitial(DigestPacker::new);
+
+
+
+  /** Passes everything the packer writes into the digest. */
+  static class DigestOutput implements MessageBufferOutput {
+
+    private final MessageDigest digest;
+
+    private MessageBuffer buffer = MessageBuffer.allocate(BUFFER_SIZE);
+
+
+    DigestOutput(MessageDigest digest) {
+      this.digest = digest;
+    }
+
+
+    @Override
+    public void add(byte[] bytes, int offset, int length) {
+      digest.update(bytes, offset, length);
+    }
+
+
+    @Override
+    public void close() {
+      // do nothing
+    }
+
+
+    @Override
+    public void flush() {
+      // do nothing
+    }
+
+
+    @Override
+    public MessageBuffer next(int minimumSize) {
+      if (buffer.size() < minimumSize) {
+        buffer = MessageBuffer.allocate(minimumSize);
+      }
+      return buffer;
+    }
+
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      digest.update(bytes, offset, length);
+    }
+
+
+    @Override
+    public void writeBuffer(int length) {
+      digest.update(buffer.array(), buffer.arrayOffset(), length);
+    }
+
+  }
+
+
+
+  /** Functional interface for the packing operation. */
+  private interface Packing {
+
+    void pack(MessagePacker packer) throws IOException;
+
+  }
+
+
+
+  /**
+   * Get the digest of an object's Message Pack form.
+   *
+   * @param object the object
+   *
+   * @return the SHA-256 digest
+   */
+  static byte[] digest(Object object) {
+    return INSTANCE.get().run(packer -> MsgPackUtil.packAnything(packer, object));
+  }
+
+
+  /**
+   * Get the digest of a message packable object.
+   *
+   * @param packable the object
+   *
+   * @return the SHA-256 digest
+   */
+  static byte[] digest(MsgPackable packable) {
+    return INSTANCE.get().run(packer -> {
+      try {
+        packable.pack(packer);
+      } catch (IOException | RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        // MsgPackable.pack is declared to throw any exception, so anything else is wrapped here rather than in every packing operation.
+        throw new IllegalStateException("Failed to pack " + packable.getClass().getName(), e);
+      }
+    });
+  }
+
+
+  private final MessageDigest digest;
+
+  private final MessagePacker packer;
+
+  /** Set whilst this instance is packing, so a nested hash request does not corrupt the outer one. */
+  private boolean inUse = false;
+
+
+  DigestPacker() {
+    digest = Sha256Hash.newDigest();
+    packer = MessagePack.newDefaultPacker(new DigestOutput(digest));
+  }
+
+
+  private byte[] run(Packing packing) {
+    if (inUse) {
+      return new DigestPacker().run(packing);
+    }
+
+    inUse = true;
+    boolean success = false;
+    try {
+      digest.reset();
+      packing.pack(packer);
+      packer.flush();
+      success = true;
+      return digest.digest();
+    } catch (IOException ioe) {
+      // Should never happen as we are not doing any real I/O
+      throw new AssertionError("Unexpected I/O exception occurred", ioe);
+    } finally {
+      inUse = false;
+      if (!success && INSTANCE.get() == this) {
+        // The packer may hold a partial value, so it cannot be reused.
+        INSTANCE.remove();
+      }
+    }
+  }
+
+}
@@ -33,7 +33,6 @@ import io.setl.bc.pychain.util.MsgPackUtil;
 import io.setl.bc.serialise.SerialiseToByte;
 import io.setl.common.Sha256Hash;
 import java.io.IOException;
-import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Base64;
 import org.msgpack.core.MessageBufferPacker;
@@ -68,6 +67,10 @@ public class HashSerialisation implements SerialiseToByte {
    * @return the hash of the object
    */
   public Hash hash(MsgPackable packable) {
+    if (!logger.isTraceEnabled()) {
+      return new Hash(DigestPacker.digest(packable));
+    }
+
     MessageBufferPacker packer = MsgPackUtil.newBufferPacker();
     try {
       packable.pack(packer);
@@ -93,12 +96,24 @@ public class HashSerialisation implements SerialiseToByte {
    * @return the hash of the array
    */
   public Hash hash(HashableObjectArray array) {
-    Object[] objects = array.getHashableObject();
-    byte[] bytes = serialise(objects);
+    return new Hash(digest(array.getHashableObject()));
+  }
 
-    MessageDigest digest = Sha256Hash.newDigest();
-    byte[] hash = digest.digest(bytes);
-    return new Hash(hash);
+
+  /**
+   * Get the SHA-256 digest of an object's serialised form. Unless trace logging of the serialised form is required, the form is written directly into the
+   * digest.
+   *
+   * @param o the object
+   *
+   * @return the digest
+   */
+  @Override
+  public byte[] digest(Object o) {
+    if (logger.isTraceEnabled()) {
+      return Sha256Hash.newDigest().digest(serialise(o));
+    }
+    return DigestPacker.digest(o);
   }
 
 
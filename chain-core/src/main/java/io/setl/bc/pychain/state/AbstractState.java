@@ -144,6 +144,9 @@ public abstract class AbstractState implements State {
 
   protected HashedMap<Long, XChainDetails> xChainSignNodes;
 
+  /** Optional index of asset holders, shared by all states derived from this one. */
+  private AssetHolderIndex assetHolderIndex = null;
+
   private Hash blockHash;
 
   private int height;
@@ -229,6 +232,7 @@ public abstract class AbstractState implements State {
     timestamp = source.getTimestamp();
     version = source.getVersion();
     stateChangeListener = source.stateChangeListener;
+    assetHolderIndex = source.assetHolderIndex;
 
     // Initialise the complex properties one at a time. Having a separate initialiser for each one allows sub-classes to specify the implementations they want
     // to use.
@@ -275,7 +279,8 @@ public abstract class AbstractState implements State {
 
   @Override
   public StateSnapshot createSnapshot() {
-    return new StateSnapshotImplementation(getMutableCopy(), stateChangeListener);
+    StateChangeListener listener = assetHolderIndex != null ? new CompositeChangeListener(stateChangeListener, assetHolderIndex) : stateChangeListener;
+    return new StateSnapshotImplementation(getMutableCopy(), listener);
   }
 
 
@@ -313,6 +318,12 @@ public abstract class AbstractState implements State {
   }
 
 
+  @Override
+  public AssetHolderIndex getAssetHolderIndex() {
+    return assetHolderIndex;
+  }
+
+
   @Override
   public Hash getBlockHash() {
     return blockHash;
@@ -641,6 +652,12 @@ public abstract class AbstractState implements State {
   protected abstract void saveNamedData();
 
 
+  @Override
+  public void setAssetHolderIndex(AssetHolderIndex newIndex) {
+    assetHolderIndex = newIndex;
+  }
+
+
   /**
    * setConfigMap(). <p>configMap should ALWAYS be updated using this method in order to ensure that this.config is cleared. If this.config is not cleared, then
    * config Hash or Encoded methods could be out of date! </p>
@@ -0,0 +1,266 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.state.entry.AddressEntry;
+import io.setl.bc.pychain.state.entry.MEntry;
+import io.setl.bc.pychain.state.exceptions.StateSnapshotCorruptedException;
+import io.setl.common.Balance;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index from each asset to the addresses which hold it, and from each namespace to the assets in it which are held. The index is derived from state and
+ * is kept up to date by listening to the changes applied as each block is finalised. It answers queries only for the state it was derived from, identified by
+ * that state's hash, so callers must fall back to scanning state if it cannot answer.
+ *
+ * <p>An address "holds" an asset if its class balances contain an entry for the asset.</p>
+ */
+public class AssetHolderIndex implements StateChangeListener {
+
+  private static final Logger logger = LoggerFactory.getLogger(AssetHolderIndex.class);
+
+
+  private static String namespaceOf(String fullAssetId) {
+    int p = fullAssetId.indexOf('|');
+    return p != -1 ? fullAssetId.substring(0, p) : fullAssetId;
+  }
+
+
+  /** Address to the assets it holds. Required to remove an address from the holders of assets it no longer holds. */
+  private final Map<String, Set<String>> assetsByAddress = new HashMap<>();
+
+  /** Namespace to the held assets within it. */
+  private final Map<String, Set<String>> assetsByNamespace = new HashMap<>();
+
+  /** Asset to the addresses holding it. */
+  private final Map<String, Set<String>> holdersByAsset = new HashMap<>();
+
+  /** The thread applying a block's changes, if any. */
+  private Thread committer = null;
+
+  /** Hash of the state this index matches, or null if it does not match any state. */
+  private Hash stateHash = null;
+
+
+  @Override
+  public synchronized <T extends MEntry> void add(T entry) {
+    update(entry);
+  }
+
+
+  private void addHolding(String address, String fullAssetId) {
+    holdersByAsset.computeIfAbsent(fullAssetId, k -> {
+      assetsByNamespace.computeIfAbsent(namespaceOf(fullAssetId), n -> new HashSet<>()).add(fullAssetId);
+      return new HashSet<>();
+    }).add(address);
+  }
+
+
+  /**
+   * Verify the current thread is applying a block. Changes from any other thread mean concurrent updates, which this index cannot follow.
+   *
+   * @return true if the change should be applied
+   */
+  private boolean checkCommitter() {
+    if (committer == Thread.currentThread()) {
+      return true;
+    }
+    if (stateHash != null || committer != null) {
+      logger.warn("State changed outside of a tracked update. Asset holder index will be rebuilt.");
+      stateHash = null;
+      committer = null;
+    }
+    return false;
+  }
+
+
+  @Override
+  public synchronized void complete(State newState) {
+    if (committer == Thread.currentThread()) {
+      stateHash = newState.getLoadedHash();
+      committer = null;
+    }
+  }
+
+
+  @Override
+  public synchronized void fail(StateSnapshotCorruptedException e) {
+    if (committer == Thread.currentThread()) {
+      // Some changes may have been applied, so the index no longer matches any state.
+      stateHash = null;
+      committer = null;
+    }
+  }
+
+
+  /**
+   * Get the assets in a namespace which are held by at least one address.
+   *
+   * @param namespace the namespace
+   * @param state     the hash of the state being queried
+   *
+   * @return the full IDs of the held assets, or null if this index does not match the state
+   */
+  public synchronized Set<String> getAssets(String namespace, Hash state) {
+    if (stateHash == null || !stateHash.equals(state)) {
+      return null;
+    }
+    return new TreeSet<>(assetsByNamespace.getOrDefault(namespace, Collections.emptySet()));
+  }
+
+
+  /**
+   * Get the addresses which hold an asset.
+   *
+   * @param fullAssetId the asset's full ID
+   * @param state       the hash of the state being queried
+   *
+   * @return the holders, or null if this index does not match the state. The caller may modify the returned set.
+   */
+  public synchronized Set<String> getHolders(String fullAssetId, Hash state) {
+    if (stateHash == null || !stateHash.equals(state)) {
+      return null;
+    }
+    return new TreeSet<>(holdersByAsset.getOrDefault(fullAssetId, Collections.emptySet()));
+  }
+
+
+  public synchronized Hash getStateHash() {
+    return stateHash;
+  }
+
+
+  @Override
+  public synchronized void initialise(State state) {
+    if (committer != null) {
+      logger.warn("Concurrent state updates. Asset holder index will be rebuilt.");
+      stateHash = null;
+      committer = null;
+      return;
+    }
+    if (stateHash == null || !stateHash.equals(state.getLoadedHash())) {
+      rebuild(state);
+    }
+
+    // The index matches no state until the update is complete.
+    stateHash = null;
+    committer = Thread.currentThread();
+  }
+
+
+  /**
+   * Rebuild this index from the address balances in state.
+   *
+   * @param state the state
+   */
+  public synchronized void rebuild(State state) {
+    logger.info("Building asset holder index for state {}", state.getHeight());
+    assetsByAddress.clear();
+    assetsByNamespace.clear();
+    holdersByAsset.clear();
+    committer = null;
+    for (AddressEntry entry : state.getAssetBalances()) {
+      setHoldings(entry);
+    }
+    stateHash = state.getLoadedHash();
+  }
+
+
+  @Override
+  public synchronized <T extends MEntry> void remove(String key, Class<T> type) {
+    if (AddressEntry.class.isAssignableFrom(type) && checkCommitter()) {
+      removeAddress(key);
+    }
+  }
+
+
+  private void removeAddress(String address) {
+    Set<String> held = assetsByAddress.remove(address);
+    if (held != null) {
+      held.forEach(fullAssetId -> removeHolding(address, fullAssetId));
+    }
+  }
+
+
+  private void removeHolding(String address, String fullAssetId) {
+    Set<String> holders = holdersByAsset.get(fullAssetId);
+    if (holders != null && holders.remove(address) && holders.isEmpty()) {
+      holdersByAsset.remove(fullAssetId);
+      String namespace = namespaceOf(fullAssetId);
+      Set<String> assets = assetsByNamespace.get(namespace);
+      assets.remove(fullAssetId);
+      if (assets.isEmpty()) {
+        assetsByNamespace.remove(namespace);
+      }
+    }
+  }
+
+
+  private void setHoldings(AddressEntry entry) {
+    String address = entry.getKey();
+    Map<String, Balance> balances = entry.getClassBalance();
+    Set<String> now = (balances != null && !balances.isEmpty()) ? new HashSet<>(balances.keySet()) : null;
+    Set<String> before = assetsByAddress.get(address);
+    if (Objects.equals(before, now)) {
+      return;
+    }
+
+    if (before != null) {
+      for (String fullAssetId : before) {
+        if (now == null || !now.contains(fullAssetId)) {
+          removeHolding(address, fullAssetId);
+        }
+      }
+    }
+    if (now != null) {
+      for (String fullAssetId : now) {
+        if (before == null || !before.contains(fullAssetId)) {
+          addHolding(address, fullAssetId);
+        }
+      }
+      assetsByAddress.put(address, now);
+    } else {
+      assetsByAddress.remove(address);
+    }
+  }
+
+
+  @Override
+  public void start(int version, int height) {
+    // do nothing
+  }
+
+
+  @Override
+  public synchronized <T extends MEntry> void update(T entry) {
+    if (entry instanceof AddressEntry && checkCommitter()) {
+      setHoldings((AddressEntry) entry);
+    }
+  }
+
+}
@@ -0,0 +1,92 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state;
+
+import io.setl.bc.pychain.state.entry.MEntry;
+import io.setl.bc.pychain.state.exceptions.StateSnapshotCorruptedException;
+
+/**
+ * A state change listener that passes every change on to several listeners, in order.
+ */
+public class CompositeChangeListener implements StateChangeListener {
+
+  private final StateChangeListener[] listeners;
+
+
+  public CompositeChangeListener(StateChangeListener... listeners) {
+    this.listeners = listeners.clone();
+  }
+
+
+  @Override
+  public <T extends MEntry> void add(T entry) {
+    for (StateChangeListener listener : listeners) {
+      listener.add(entry);
+    }
+  }
+
+
+  @Override
+  public void complete(State newState) {
+    for (StateChangeListener listener : listeners) {
+      listener.complete(newState);
+    }
+  }
+
+
+  @Override
+  public void fail(StateSnapshotCorruptedException e) {
+    for (StateChangeListener listener : listeners) {
+      listener.fail(e);
+    }
+  }
+
+
+  @Override
+  public void initialise(State state) {
+    for (StateChangeListener listener : listeners) {
+      listener.initialise(state);
+    }
+  }
+
+
+  @Override
+  public <T extends MEntry> void remove(String key, Class<T> type) {
+    for (StateChangeListener listener : listeners) {
+      listener.remove(key, type);
+    }
+  }
+
+
+  @Override
+  public void start(int version, int height) {
+    for (StateChangeListener listener : listeners) {
+      listener.start(version, height);
+    }
+  }
+
+
+  @Override
+  public <T extends MEntry> void update(T entry) {
+    for (StateChangeListener listener : listeners) {
+      listener.update(entry);
+    }
+  }
+
+}
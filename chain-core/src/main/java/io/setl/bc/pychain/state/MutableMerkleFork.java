@@ -0,0 +1,149 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import io.setl.bc.pychain.state.entry.MEntry;
+
+/**
+ * A mutable Merkle that belongs to a forked snapshot. All access to the wrapped Merkle is serialised through the fork's lock, as sibling forks may be reading
+ * it concurrently. Every key read from the wrapped Merkle is recorded so that conflicts between sibling forks can be detected before their changes are merged.
+ */
+class MutableMerkleFork<ValueType extends MEntry> extends AbstractMutableMerkle<ValueType> {
+
+  /** Every key this fork has looked up in the wrapped Merkle. */
+  private final Set<String> accessedKeys = new HashSet<>();
+
+  /** The sequence each entry was given when it was first copied into this fork's changes. */
+  private final Map<String, Integer> copySequences = new HashMap<>();
+
+  /** The fork that owns this. */
+  private final StateSnapshotFork fork;
+
+  /** The Merkle shared by all the sibling forks. */
+  private final AbstractMutableMerkle<ValueType> wrapped;
+
+
+  MutableMerkleFork(StateSnapshotFork fork, MutableMerkle<ValueType> wrapped) {
+    this.fork = fork;
+    this.wrapped = (AbstractMutableMerkle<ValueType>) wrapped;
+  }
+
+
+  @Override
+  public void commit(int version, long blockHeight, StateChangeListener changeListener) {
+    // Forks are merged as a group so that the outcome is independent of the order in which they completed.
+    throw new IllegalStateException("Forked Merkles cannot be committed directly");
+  }
+
+
+  @Override
+  protected NamedObject<ValueType> findEntry(String key, boolean forUpdate) {
+    boolean wasChanged = changes.containsKey(key);
+    NamedObject<ValueType> entry = super.findEntry(key, forUpdate);
+    if (!wasChanged && entry != null && changes.get(key) == entry) {
+      copySequences.put(key, entry.sequence);
+    }
+    return entry;
+  }
+
+
+  @Override
+  protected NamedObject<ValueType> findEntryInState(String key) {
+    accessedKeys.add(key);
+    synchronized (fork.lock) {
+      return wrapped.findEntry(key, false);
+    }
+  }
+
+
+  Set<String> getAccessedKeys() {
+    return accessedKeys;
+  }
+
+
+  Iterable<NamedObject<ValueType>> getChanges() {
+    return changes.values();
+  }
+
+
+  StateSnapshotFork getFork() {
+    return fork;
+  }
+
+
+  @Override
+  public Class<ValueType> getLeafType() {
+    return wrapped.getLeafType();
+  }
+
+
+  AbstractMutableMerkle<ValueType> getWrapped() {
+    return wrapped;
+  }
+
+
+  /**
+   * Test if a change is a copy of an entry made for update, with no later deletion or re-addition giving it a new place in the change order.
+   *
+   * @param change the change
+   *
+   * @return true if the change only updates the entry's value
+   */
+  boolean isUpdateOnly(NamedObject<?> change) {
+    Integer sequence = copySequences.get(change.name);
+    return sequence != null && sequence == change.sequence;
+  }
+
+
+  @Override
+  protected boolean itemExistsInState(String key) {
+    accessedKeys.add(key);
+    synchronized (fork.lock) {
+      return wrapped.itemExists(key);
+    }
+  }
+
+
+  @Override
+  int nextSequence() {
+    return fork.nextSequence();
+  }
+
+
+  @Override
+  public Stream<ValueType> stream() {
+    // A full scan cannot be checked for conflicts, so the fork can no longer be merged.
+    fork.markUnmergeable("Merkle " + getLeafType().getSimpleName() + " was streamed");
+    List<ValueType> parentValues;
+    synchronized (fork.lock) {
+      parentValues = wrapped.stream().filter(value -> !changes.containsKey(value.getKey())).collect(Collectors.toList());
+    }
+    Stream<ValueType> changedStream = changes.values().stream().filter(io -> !io.isDeleted).map(io -> io.object);
+    return Stream.concat(changedStream, parentValues.stream());
+  }
+
+}
@@ -57,6 +57,15 @@ public interface State extends StateBase {
 
   Merkle<AddressEntry> getAssetBalances();
 
+  /**
+   * Get the index of asset holders which is kept up to date as blocks are applied to this state.
+   *
+   * @return the index, or null if this state does not have one
+   */
+  default AssetHolderIndex getAssetHolderIndex() {
+    return null;
+  }
+
   ContractTimeEvents getContractTimeEvents();
 
   Merkle<ContractEntry> getContracts();
@@ -95,6 +104,16 @@ public interface State extends StateBase {
 
   SortedSet<String> pendingEventTimeAddresses(long eventTime);
 
+  /**
+   * Set the asset holder index which will be kept up to date as blocks are applied to this state and states derived from it. States which cannot maintain
+   * an index ignore it.
+   *
+   * @param newIndex the index, or null for none
+   */
+  default void setAssetHolderIndex(AssetHolderIndex newIndex) {
+    // do nothing
+  }
+
   /**
    * Verify all the top level hashes of a state are correct. Does not verify the internal hashes of the Merkle structures.
    *
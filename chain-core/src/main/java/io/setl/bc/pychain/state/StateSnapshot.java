@@ -92,6 +92,19 @@ public interface StateSnapshot extends StateBase {
     return getMerkle(AddressEntry.class);
   }
 
+
+  /**
+   * Get the addresses which may hold an asset, if they can be found without scanning every address. The result contains every holder, but may also contain
+   * addresses which are not holders, or which no longer exist.
+   *
+   * @param fullAssetId the asset's full ID
+   *
+   * @return the candidate holders, which the caller may modify, or null if a scan is required
+   */
+  default Set<String> getAssetHolders(String fullAssetId) {
+    return null;
+  }
+
   Collection<EventData> getContractEvents();
 
   Object[] getContractEventsEncoded();
@@ -0,0 +1,381 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+
+import io.setl.bc.pychain.ConfigMap.Setting;
+import io.setl.bc.pychain.state.entry.DataName;
+import io.setl.bc.pychain.state.entry.EventData;
+import io.setl.bc.pychain.state.entry.MEntry;
+import io.setl.bc.pychain.state.entry.NamedDatum;
+import io.setl.bc.pychain.state.entry.PrivilegedKey;
+import io.setl.bc.pychain.state.entry.XChainDetails;
+
+/**
+ * A snapshot which can be updated concurrently with its sibling forks of the same parent. The parent must not be modified whilst any forks are active.
+ *
+ * <p>Forks are not committed individually. Instead all the sibling forks are merged into the parent together. Each change a fork makes is tagged with the
+ * ordinal of the transaction that made it, and the merge re-sequences the changes by transaction ordinal. The parent therefore ends up exactly as if the
+ * transactions had been applied to it one at a time in ordinal order, which preserves the index order of new Merkle entries and hence the state hash.</p>
+ *
+ * <p>The merge is refused if two forks touched the same Merkle entry where at least one of them changed it, or if any fork made a change that cannot be
+ * attributed to a single Merkle entry (configuration, contract events, effective transactions and so on). In that case the parent is left untouched and the
+ * caller must fall back to processing the transactions directly.</p>
+ */
+public class StateSnapshotFork extends StateSnapshotWrapper {
+
+  /** A change made by a fork, tagged with the transaction that made it. */
+  private static class ForkChange<V extends MEntry> implements Comparable<ForkChange<?>> {
+
+    final NamedObject<V> change;
+
+    /** Does the change only update an entry's value, and hence leave its position in the change order alone?. */
+    final boolean isUpdateOnly;
+
+    final int ordinal;
+
+    final int sequence;
+
+
+    ForkChange(int ordinal, NamedObject<V> change, boolean isUpdateOnly) {
+      this.ordinal = ordinal;
+      this.change = change;
+      this.isUpdateOnly = isUpdateOnly;
+      sequence = change.sequence;
+    }
+
+
+    @Override
+    public int compareTo(ForkChange<?> o) {
+      int c = Integer.compare(ordinal, o.ordinal);
+      return (c != 0) ? c : Integer.compare(sequence, o.sequence);
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ForkChange)) {
+        return false;
+      }
+      ForkChange<?> that = (ForkChange<?>) o;
+      return ordinal == that.ordinal && sequence == that.sequence;
+    }
+
+
+    @Override
+    public int hashCode() {
+      return 31 * ordinal + sequence;
+    }
+
+  }
+
+
+  /**
+   * Can the specified snapshot be forked?.
+   *
+   * @param snapshot the snapshot
+   *
+   * @return true if it can be forked
+   */
+  public static boolean canFork(StateSnapshot snapshot) {
+    return snapshot instanceof AbstractStateSnapshot;
+  }
+
+
+  @SuppressWarnings("unchecked")
+  private static <V extends MEntry> void applyChanges(AbstractMutableMerkle<V> target, List<MutableMerkleFork<?>> forked) {
+    ArrayList<ForkChange<V>> allChanges = new ArrayList<>();
+    for (MutableMerkleFork<?> merkle : forked) {
+      StateSnapshotFork fork = merkle.getFork();
+      for (NamedObject<?> change : merkle.getChanges()) {
+        allChanges.add(new ForkChange<>(fork.getOrdinal(change.sequence), (NamedObject<V>) change, merkle.isUpdateOnly(change)));
+      }
+    }
+
+    // Re-sequence the changes in the order they would have been made had the transactions been applied one at a time. Updating an entry the parent has
+    // already changed does not move it in the change order, so such an entry keeps the parent's sequence, exactly as when the update is made directly.
+    Collections.sort(allChanges);
+    HashMap<String, NamedObject<V>> merged = new HashMap<>();
+    for (ForkChange<V> forkChange : allChanges) {
+      NamedObject<V> change = forkChange.change;
+      NamedObject<V> parentChange = target.changes.get(change.name);
+      change.sequence = (forkChange.isUpdateOnly && parentChange != null) ? parentChange.sequence : target.nextSequence();
+      merged.put(change.name, change);
+    }
+    target.bulkChange(merged);
+  }
+
+
+  private static String findConflict(List<MutableMerkleFork<?>> forked) {
+    HashMap<String, StateSnapshotFork> writers = new HashMap<>();
+    for (MutableMerkleFork<?> merkle : forked) {
+      for (NamedObject<?> change : merkle.getChanges()) {
+        StateSnapshotFork other = writers.putIfAbsent(change.name, merkle.getFork());
+        if (other != null && other != merkle.getFork()) {
+          return "Entry \"" + change.name + "\" of " + merkle.getLeafType().getSimpleName() + " was changed by two forks";
+        }
+      }
+    }
+
+    for (MutableMerkleFork<?> merkle : forked) {
+      for (String key : merkle.getAccessedKeys()) {
+        StateSnapshotFork writer = writers.get(key);
+        if (writer != null && writer != merkle.getFork()) {
+          return "Entry \"" + key + "\" of " + merkle.getLeafType().getSimpleName() + " was read by one fork and changed by another";
+        }
+      }
+    }
+
+    return null;
+  }
+
+
+  /**
+   * Create a new fork of the specified snapshot. The snapshot must not be modified until all its forks have been merged or discarded.
+   *
+   * @param parent the snapshot to fork
+   *
+   * @return the new fork
+   */
+  public static StateSnapshotFork fork(StateSnapshot parent) {
+    if (!canFork(parent)) {
+      throw new IllegalArgumentException("Cannot fork snapshot of type " + parent.getClass());
+    }
+    return new StateSnapshotFork((AbstractStateSnapshot) parent);
+  }
+
+
+  /**
+   * Merge sibling forks into their parent. The changes are applied in transaction ordinal order. If the forks cannot be merged, the parent is not modified.
+   *
+   * @param parent the parent of the forks
+   * @param forks  all the forks of the parent
+   *
+   * @return null on success, the reason the forks could not be merged on failure.
+   */
+  @Nullable
+  public static String merge(StateSnapshot parent, Collection<StateSnapshotFork> forks) {
+    // Group the forked Merkles by the Merkle they fork.
+    Map<AbstractMutableMerkle<?>, List<MutableMerkleFork<?>>> byTarget = new IdentityHashMap<>();
+    for (StateSnapshotFork fork : forks) {
+      if (fork.wrapped != parent) {
+        throw new IllegalArgumentException("Fork does not belong to the specified parent");
+      }
+      String reason = fork.checkMergeable();
+      if (reason != null) {
+        return reason;
+      }
+
+      byTarget.computeIfAbsent(fork.getSignNodeFork().getWrapped(), k -> new ArrayList<>()).add(fork.getSignNodeFork());
+      for (AbstractMutableMerkle<?> merkle : fork.merkles.values()) {
+        if (merkle instanceof MutableMerkleFork) {
+          MutableMerkleFork<?> merkleFork = (MutableMerkleFork<?>) merkle;
+          byTarget.computeIfAbsent(merkleFork.getWrapped(), k -> new ArrayList<>()).add(merkleFork);
+        }
+      }
+    }
+
+    // Check every Merkle before changing any of them.
+    for (List<MutableMerkleFork<?>> forked : byTarget.values()) {
+      String reason = findConflict(forked);
+      if (reason != null) {
+        return reason;
+      }
+    }
+
+    for (Entry<AbstractMutableMerkle<?>, List<MutableMerkleFork<?>>> e : byTarget.entrySet()) {
+      applyChanges(e.getKey(), e.getValue());
+    }
+    for (StateSnapshotFork fork : forks) {
+      fork.reset();
+    }
+    return null;
+  }
+
+
+  /** Lock shared by all forks of the same parent. All access to the parent happens whilst holding this lock. */
+  final Object lock;
+
+  /** Map of first change sequence to the ordinal of the transaction that made the change. */
+  private final TreeMap<Integer, Integer> ordinals = new TreeMap<>();
+
+  /** Sequence number for changes. */
+  private int changeSequence = 0;
+
+  /** If set, the reason why this fork cannot be merged. */
+  private String unmergeableReason = null;
+
+
+  private StateSnapshotFork(AbstractStateSnapshot parent) {
+    super(parent);
+    lock = parent;
+    signNodeList = new MutableMerkleFork<>(this, parent.signNodeList);
+  }
+
+
+  String checkMergeable() {
+    if (unmergeableReason != null) {
+      return unmergeableReason;
+    }
+    if (isCorrupted) {
+      return "Fork is corrupted: " + corruptedMessage;
+    }
+    if (!(configMap.isEmpty() && xChainSignNodesMap.isEmpty() && removedXChainSignNodesMap.isEmpty())) {
+      return "Fork changed configuration or cross-chain details";
+    }
+    if (!(privilegedKeys.isEmpty() && removedPrivilegedKeys.isEmpty())) {
+      return "Fork changed privileged keys";
+    }
+    if (!(effectiveTXList.isEmpty() && contractEvents.isEmpty() && contractLifecycleEvents.isEmpty() && contractUsers.isEmpty())) {
+      return "Fork created contract events or effective transactions";
+    }
+    for (AbstractMutableMerkle<?> merkle : merkles.values()) {
+      if (!(merkle instanceof MutableMerkleFork) && merkle.getChangedEntriesCount() > 0) {
+        return "Fork created new Merkle " + merkle.getLeafType().getSimpleName();
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * Forks cannot be committed directly. Use <code>merge</code>.
+   */
+  @Override
+  public void commit() {
+    throw new IllegalStateException("Forked snapshots must be merged with their siblings");
+  }
+
+
+  @Override
+  protected <X extends MEntry> AbstractMutableMerkle<X> createMerkle(Class<X> leafType) {
+    synchronized (lock) {
+      if (wrapped.merkleExists(leafType)) {
+        return new MutableMerkleFork<>(this, wrapped.getMerkle(leafType));
+      }
+    }
+    return new MutableMerkleInitial<>(leafType);
+  }
+
+
+  @Override
+  public <Q> Q getConfigValue(Setting<Q> keyName) {
+    synchronized (lock) {
+      return super.getConfigValue(keyName);
+    }
+  }
+
+
+  @Override
+  public Collection<EventData> getContractEvents() {
+    synchronized (lock) {
+      return super.getContractEvents();
+    }
+  }
+
+
+  @Override
+  public <N extends NamedDatum<N>> N getDatum(DataName<N> name) {
+    // Named data is not keyed, so conflicting access cannot be detected.
+    markUnmergeable("Named datum " + name + " was accessed");
+    synchronized (lock) {
+      return super.getDatum(name);
+    }
+  }
+
+
+  private int getOrdinal(int sequence) {
+    Entry<Integer, Integer> entry = ordinals.floorEntry(sequence);
+    return (entry != null) ? entry.getValue() : -1;
+  }
+
+
+  @Override
+  public PrivilegedKey getPrivilegedKey(String keyName) {
+    synchronized (lock) {
+      return super.getPrivilegedKey(keyName);
+    }
+  }
+
+
+  private MutableMerkleFork<?> getSignNodeFork() {
+    return (MutableMerkleFork<?>) signNodeList;
+  }
+
+
+  @Nullable
+  @Override
+  public XChainDetails getXChainSignNodesValue(Number number) {
+    synchronized (lock) {
+      return super.getXChainSignNodesValue(number);
+    }
+  }
+
+
+  /**
+   * Prevent this fork from being merged.
+   *
+   * @param reason the reason it cannot be merged
+   */
+  void markUnmergeable(String reason) {
+    if (unmergeableReason == null) {
+      unmergeableReason = reason;
+    }
+  }
+
+
+  @Override
+  public boolean merkleExists(Class<? extends MEntry> leafType) {
+    if (merkles.containsKey(leafType)) {
+      return true;
+    }
+    synchronized (lock) {
+      return wrapped.merkleExists(leafType);
+    }
+  }
+
+
+  int nextSequence() {
+    return changeSequence++;
+  }
+
+
+  /**
+   * Indicate that the changes which follow are made by the transaction with the specified ordinal. Ordinals must be supplied in increasing order.
+   *
+   * @param ordinal the transaction's position in the processing order
+   */
+  public void startTransaction(int ordinal) {
+    ordinals.put(changeSequence, ordinal);
+  }
+
+}
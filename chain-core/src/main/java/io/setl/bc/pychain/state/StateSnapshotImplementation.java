@@ -140,6 +140,22 @@ class StateSnapshotImplementation extends AbstractStateSnapshot {
   }
 
 
+  @Override
+  public Set<String> getAssetHolders(String fullAssetId) {
+    AssetHolderIndex index = wrapped.getAssetHolderIndex();
+    if (index == null) {
+      return null;
+    }
+
+    // The index describes the state this snapshot started from, so add the addresses changed since.
+    Set<String> holders = index.getHolders(fullAssetId, wrapped.getLoadedHash());
+    if (holders != null) {
+      holders.addAll(getAssetBalances().getUpdatedKeys());
+    }
+    return holders;
+  }
+
+
   @Override
   public Hash getBlockHash() {
     return wrapped.getBlockHash();
@@ -151,6 +151,16 @@ public class StateSnapshotWrapper extends AbstractStateSnapshot {
   }
 
 
+  @Override
+  public Set<String> getAssetHolders(String fullAssetId) {
+    Set<String> holders = wrapped.getAssetHolders(fullAssetId);
+    if (holders != null) {
+      holders.addAll(getAssetBalances().getUpdatedKeys());
+    }
+    return holders;
+  }
+
+
   @Override
   public Hash getBlockHash() {
     return wrapped.getBlockHash();
@@ -64,10 +64,7 @@ public class FullFastMerkleHashCalculator {
         for (int j = 0; j < hashCount; j++) {
           try {
             Object[] he = ke.getHashableEntry(j);
-            byte[] bytes = hashSerialiser.serialise(he);
-            byte[] hash = digest.digest(bytes);
-            newHashList[i][j] = hash;
-            digest.reset();
+            newHashList[i][j] = hashSerialiser.digest(he);
           } catch (Exception e) {
             logger.error("compHashes exception", e);
           }
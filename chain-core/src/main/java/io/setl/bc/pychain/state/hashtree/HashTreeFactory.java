@@ -0,0 +1,52 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.hashtree;
+
+import io.setl.bc.pychain.Hash;
+
+/**
+ * Source of the hash trees of lists which are loaded from, and saved to, storage as part of a state.
+ */
+public interface HashTreeFactory {
+
+  /**
+   * Get the hash tree for a list which has been loaded as part of a state. If a tree saved with the same state is available, it is returned, and the list
+   * need not compute its tree. Otherwise an empty tree is returned.
+   *
+   * @param owner     the list which will use the tree
+   * @param name      the name of the list, which identifies its type within a state
+   * @param stateHash the hash of the state
+   *
+   * @return the tree
+   */
+  HashTree open(Object owner, String name, Hash stateHash);
+
+
+  /**
+   * Save a list's hash tree, as the list is saved as part of a state.
+   *
+   * @param owner      the list which uses the tree
+   * @param name       the name of the list, which identifies its type within a state
+   * @param stateHash  the hash of the state
+   * @param tree       the list's complete hash tree
+   * @param entryCount the number of entries in the list
+   */
+  void save(Object owner, String name, Hash stateHash, HashTree tree, long entryCount);
+
+}
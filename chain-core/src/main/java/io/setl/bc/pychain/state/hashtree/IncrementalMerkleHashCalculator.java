@@ -22,23 +22,88 @@ import io.setl.bc.pychain.Hash;
 import io.setl.bc.pychain.state.IndexedList;
 import io.setl.bc.serialise.SerialiseToByte;
 import io.setl.common.Sha256Hash;
+import io.setl.util.ParallelTask;
+import io.setl.util.Priorities;
+import io.setl.util.PriorityExecutor;
 import io.setl.utils.ByteUtil;
 import java.security.MessageDigest;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Set;
+import java.util.function.IntConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Calculator of existing merkle hash tree using set of changed indexes.
  *
+ * <p>The tree is updated a level at a time. Within a level the node inputs are read and the results are written on the calling thread, as neither the hash
+ * tree nor the change consumer are thread safe, but the digests themselves are computed in parallel.</p>
+ *
  * @author aanten
  */
 public class IncrementalMerkleHashCalculator {
 
+  /** One digest per thread, as the level hashing is shared across the executor's threads. */
+  private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(Sha256Hash::newDigest);
+
+  /** Number of nodes in a level each hashing task handles. Smaller levels are hashed on the calling thread. */
+  private static final int SEQUENTIAL_LIMIT = 256;
+
   private static final Logger logger = LoggerFactory.getLogger(IncrementalMerkleHashCalculator.class);
 
 
+  /**
+   * Get the distinct parent indices of a sorted array of indices.
+   *
+   * @param indices the sorted indices
+   *
+   * @return the sorted parent indices
+   */
+  private static long[] parents(long[] indices) {
+    long[] parents = new long[indices.length];
+    int count = 0;
+    for (long index : indices) {
+      long parent = index / 2;
+      if (count == 0 || parents[count - 1] != parent) {
+        parents[count++] = parent;
+      }
+    }
+    return Arrays.copyOf(parents, count);
+  }
+
+
+  /**
+   * Get the number of leading indices in a sorted array that are less than the item count.
+   *
+   * @param indices   the sorted indices
+   * @param itemCount the number of items in the level
+   *
+   * @return the number of indices that refer to existing items
+   */
+  private static int present(long[] indices, long itemCount) {
+    int position = Arrays.binarySearch(indices, itemCount);
+    return (position >= 0) ? position : -(position + 1);
+  }
+
+
+  /**
+   * Convert the changed indices into a sorted array of distinct primitive values.
+   *
+   * @param indices the changed indices
+   *
+   * @return the sorted array
+   */
+  private static long[] sorted(Set<Long> indices) {
+    long[] sorted = new long[indices.size()];
+    int i = 0;
+    for (Long index : indices) {
+      sorted[i++] = index;
+    }
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+
   // For future, non binary implementation
   static double log(int x, int base) {
 
@@ -46,6 +111,27 @@ public class IncrementalMerkleHashCalculator {
   }
 
 
+  private final PriorityExecutor executor;
+
+
+  /**
+   * New instance which uses the shared executor.
+   */
+  public IncrementalMerkleHashCalculator() {
+    this(PriorityExecutor.INSTANCE);
+  }
+
+
+  /**
+   * New instance.
+   *
+   * @param executor the executor used to hash large levels in parallel
+   */
+  public IncrementalMerkleHashCalculator(PriorityExecutor executor) {
+    this.executor = executor;
+  }
+
+
   /**
    * Update a Merkle hash tree from the base list and a set of changed indices.
    *
@@ -73,104 +159,108 @@ public class IncrementalMerkleHashCalculator {
     long itemCount = indexedList.getEntryCount();
     int hashedCount = 0;
 
-    MessageDigest digest = Sha256Hash.newDigest();
-
-    // Start at the base (level zero) where we hash the data items.
-    Set<Long> changedIndices = new HashSet<>();
-    for (long thisIndex : initialChangedIndices) {
-
-      byte[] bytes;
-      Object[] thisEntry;
+    // Start at the base (level zero) where we hash the data items. As the indices are sorted, those that refer to existing items come first.
+    long[] changedIndices = sorted(initialChangedIndices);
+    int present = present(changedIndices, itemCount);
 
-      if (thisIndex < itemCount) {
-        thisEntry = indexedList.getHashableEntry(thisIndex);
-        bytes = hashSerialiser.serialise(thisEntry);
+    Object[][] entries = new Object[present][];
+    for (int i = 0; i < present; i++) {
+      entries[i] = indexedList.getHashableEntry(changedIndices[i]);
+    }
 
-        byte[] hash = digest.digest(bytes);
+    byte[][] hashes = new byte[present][];
+    hashLevel(present, i -> hashes[i] = hashSerialiser.digest(entries[i]));
 
-        if (cc != null) {
-          cc.accept(thisIndex, new Hash(hash), thisEntry, true);
-        }
+    for (int i = 0; i < present; i++) {
+      long thisIndex = changedIndices[i];
+      byte[] hash = hashes[i];
+      if (cc != null) {
+        cc.accept(thisIndex, new Hash(hash), entries[i], true);
+      }
 
-        hashedCount++;
-        hashTree.setHash(0, thisIndex, hash);
+      hashedCount++;
+      hashTree.setHash(0, thisIndex, hash);
 
-        if (logger.isTraceEnabled()) {
-          logger.info("Setting hash {},{}={}", 0, thisIndex, ByteUtil.bytesToHex(hash));
-        }
-
-      } else {
-        hashTree.removeHash(0, thisIndex);
+      if (logger.isTraceEnabled()) {
+        logger.trace("Setting hash {},{}={}", 0, thisIndex, ByteUtil.bytesToHex(hash));
       }
-
-      // Trim this entry.
-      changedIndices.add(thisIndex / 2);
     }
+    for (int i = present; i < changedIndices.length; i++) {
+      hashTree.removeHash(0, changedIndices[i]);
+    }
+
+    // Trim these entries. The hashes just set are kept, so the next level need not read them back from the tree.
+    long[] lowerIndices = changedIndices;
+    byte[][] lowerHashes = hashes;
+    int lowerPresent = present;
+    changedIndices = parents(changedIndices);
     itemCount = ((itemCount + 1) / 2);
 
     // For each subsequent level
     for (int thisLevel = 1; thisLevel < levels; thisLevel++) {
+      present = present(changedIndices, itemCount);
+
+      // Above base, hash the hashes. Missing lower hashes are empty, which is OK. As both sets of indices are sorted, the lower hashes which have just been
+      // set are found by a single pass. Only the unchanged siblings are read from the tree.
+      byte[][] lower = new byte[2 * present][];
+      int p = 0;
+      for (int i = 0; i < 2 * present; i++) {
+        long lowerIndex = changedIndices[i / 2] * 2 + (i & 1);
+        while (p < lowerPresent && lowerIndices[p] < lowerIndex) {
+          p++;
+        }
+        lower[i] = (p < lowerPresent && lowerIndices[p] == lowerIndex) ? lowerHashes[p] : hashTree.getHashEntry(thisLevel - 1, lowerIndex);
+      }
 
-      Set<Long> nextChanges = new HashSet<>();
-
-      // Above base, hash the hashes.
-
-      for (long thisIndex : changedIndices) {
-
-        if (thisIndex < itemCount) {
-          long lowerIndex = thisIndex * 2;
-
-          // Hash concatenated lower hashes (Allows for missing items OK).
-
-          byte[] t0 = hashTree.getHashEntry(thisLevel - 1, lowerIndex++);
-
-          digest.update(t0);
-
-          byte[] t1 = hashTree.getHashEntry(thisLevel - 1, lowerIndex);
-
-          digest.update(t1);
+      byte[][] levelHashes = new byte[present][];
+      hashLevel(present, i -> {
+        MessageDigest digest = DIGEST.get();
+        digest.update(lower[2 * i]);
+        digest.update(lower[2 * i + 1]);
+        levelHashes[i] = digest.digest();
+      });
 
-          // Hash previous hashes
+      for (int i = 0; i < present; i++) {
+        long thisIndex = changedIndices[i];
+        byte[] hash = levelHashes[i];
+        byte[] t0 = lower[2 * i];
+        byte[] t1 = lower[2 * i + 1];
 
-          byte[] hash = digest.digest();
+        if (cc != null) {
+          cc.accept(-1, new Hash(hash), t1.length > 1 ? new byte[][]{t0, t1} : new byte[][]{t0}, false);
+        }
+        if (thisLevel == levels - 1) {
+          //Last level
+          returnHash = hash;
+        }
 
-          //
-          if (cc != null) {
-            cc.accept(-1, new Hash(hash), t1.length > 1 ? new byte[][]{t0, t1} : new byte[][]{t0},
-                false);
-          }
-          if (thisLevel == levels - 1) {
-            //Last level
-            returnHash = hash;
-          }
+        hashedCount += 2;
 
-          hashedCount += 2;
+        // Set hash in tree
+        hashTree.setHash(thisLevel, thisIndex, hash);
 
-          // Set hash in tree
-          hashTree.setHash(thisLevel, thisIndex, hash);
+        if (logger.isTraceEnabled()) {
+          logger.trace("Setting hash {},{}={}", thisLevel, thisIndex, ByteUtil.bytesToHex(hash));
+        }
+      }
 
+      for (int i = present; i < changedIndices.length; i++) {
+        hashTree.removeHash(thisLevel, changedIndices[i]);
+        if (thisLevel == levels - 1) {
+          //Last level
+          returnHash = hashTree.getHashEntry(thisLevel, 0);
           if (logger.isTraceEnabled()) {
-            logger.trace("Setting hash {},{}={}", thisLevel, thisIndex, ByteUtil.bytesToHex(hash));
-          }
-
-        } else {
-          hashTree.removeHash(thisLevel, thisIndex);
-          if (thisLevel == levels - 1) {
-            //Last level
-            returnHash = hashTree.getHashEntry(thisLevel, 0);
-            if (logger.isTraceEnabled()) {
-              logger.trace("New tophash:{}", ByteUtil.bytesToHex(returnHash));
-            }
+            logger.trace("New tophash:{}", ByteUtil.bytesToHex(returnHash));
           }
         }
+      }
 
-        // Trim this entry.
-        nextChanges.add(thisIndex / 2);
-      } // For
-
-      changedIndices = nextChanges;
+      // Trim these entries.
+      lowerIndices = changedIndices;
+      lowerHashes = levelHashes;
+      lowerPresent = present;
+      changedIndices = parents(changedIndices);
       itemCount = ((itemCount + 1) / 2);
-
     }
 
     // Trim excess layers
@@ -178,10 +268,27 @@ public class IncrementalMerkleHashCalculator {
     hashTree.trimTree(levels);
 
     if (logger.isTraceEnabled()) {
-      logger.info("Hashed:{}/{}", hashedCount, entryCount);
+      logger.trace("Hashed:{}/{}", hashedCount, entryCount);
     }
 
     return returnHash;
   }
 
+
+  /**
+   * Hash the nodes of a level. Small levels are hashed on the calling thread, large levels are shared with the executor.
+   *
+   * @param length the number of nodes to hash
+   * @param hasher the hashing operation for a node
+   */
+  private void hashLevel(int length, IntConsumer hasher) {
+    if (length <= SEQUENTIAL_LIMIT) {
+      for (int i = 0; i < length; i++) {
+        hasher.accept(i);
+      }
+    } else {
+      ParallelTask.process(executor.getTaskContext(Priorities.PROPOSAL), SEQUENTIAL_LIMIT, length, hasher);
+    }
+  }
+
 }
@@ -0,0 +1,328 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.hashtree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * A hash tree held in memory-mapped files outside of the Java heap. Each level of the tree is a file of fixed size 32-byte slots, one per node, so the
+ * location of a node's hash is given directly by its index.
+ *
+ * <p>An all-zero slot is an absent node. As the tree is persistent, a restarted node can reopen it rather than recompute it. To know which data a reopened
+ * tree describes, a tag can be recorded against the tree once it is complete. The tag is removed before the tree is next changed, so a tree with a tag always
+ * matches it, even if the node stopped part way through an update.</p>
+ *
+ * <p>Like the other hash tree implementations, this class is not thread safe.</p>
+ */
+public class MappedHashTree implements HashTree, Closeable {
+
+  /** Size of a SHA-256 hash. */
+  public static final int HASH_SIZE = 32;
+
+  private static final byte[] EMPTY_ARRAY = new byte[0];
+
+  /** Each level is mapped in segments of 2^16 slots (2MB). */
+  private static final int SEGMENT_SHIFT = 16;
+
+  private static final long SEGMENT_BYTES = (1L << SEGMENT_SHIFT) * HASH_SIZE;
+
+  private static final int SLOT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+  private static final String TAG_FILE = "tag";
+
+
+
+  /** The mapped file for one level of the tree. */
+  private static class Level {
+
+    final FileChannel channel;
+
+    final List<MappedByteBuffer> segments = new ArrayList<>();
+
+
+    Level(Path path) throws IOException {
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      long segmentCount = channel.size() / SEGMENT_BYTES;
+      for (long i = 0; i < segmentCount; i++) {
+        segments.add(channel.map(MapMode.READ_WRITE, i * SEGMENT_BYTES, SEGMENT_BYTES));
+      }
+    }
+
+
+    void close() throws IOException {
+      force();
+      segments.clear();
+      channel.close();
+    }
+
+
+    void force() {
+      for (MappedByteBuffer segment : segments) {
+        segment.force();
+      }
+    }
+
+
+    /**
+     * Get the segment holding an index.
+     *
+     * @param index  the index
+     * @param create if true, the file is extended to include the segment if needed
+     *
+     * @return the segment, or null if it does not exist and was not created
+     */
+    @Nullable
+    MappedByteBuffer segment(long index, boolean create) throws IOException {
+      long segmentIndex = index >>> SEGMENT_SHIFT;
+      if (segmentIndex < segments.size()) {
+        return segments.get((int) segmentIndex);
+      }
+      if (!create) {
+        return null;
+      }
+
+      // New segments are zero filled, so every slot in them is absent.
+      while (segments.size() <= segmentIndex) {
+        segments.add(channel.map(MapMode.READ_WRITE, segments.size() * SEGMENT_BYTES, SEGMENT_BYTES));
+      }
+      return segments.get((int) segmentIndex);
+    }
+  }
+
+
+  private static int offset(long index) {
+    return ((int) index & SLOT_MASK) * HASH_SIZE;
+  }
+
+
+  private static void putLong(byte[] bytes, int offset, long value) {
+    for (int i = 7; i >= 0; i--) {
+      bytes[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+
+
+  private final Path directory;
+
+  private final List<Level> levels = new ArrayList<>();
+
+  private byte[] tag;
+
+
+  /**
+   * Open the hash tree stored in a directory. Any levels already in the directory are reopened.
+   *
+   * @param directory the directory holding the level files
+   *
+   * @throws IOException if the directory or level files cannot be opened
+   */
+  public MappedHashTree(Path directory) throws IOException {
+    this.directory = directory;
+    Files.createDirectories(directory);
+    for (int i = 0; Files.exists(levelPath(i)); i++) {
+      levels.add(new Level(levelPath(i)));
+    }
+    Path tagPath = directory.resolve(TAG_FILE);
+    if (Files.exists(tagPath)) {
+      tag = Files.readAllBytes(tagPath);
+    }
+  }
+
+
+  @Override
+  public void close() throws IOException {
+    for (Level level : levels) {
+      level.close();
+    }
+    levels.clear();
+  }
+
+
+  /**
+   * Write all changes to the backing files.
+   */
+  public void force() {
+    for (Level level : levels) {
+      level.force();
+    }
+  }
+
+
+  @Override
+  public byte[] getHashEntry(int level, long i) {
+    if (level >= levels.size()) {
+      return EMPTY_ARRAY;
+    }
+    MappedByteBuffer segment;
+    try {
+      segment = levels.get(level).segment(i, false);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (segment == null) {
+      return EMPTY_ARRAY;
+    }
+
+    // Read the slot as four longs. An absent slot is all zeros and needs no array.
+    int offset = offset(i);
+    long l0 = segment.getLong(offset);
+    long l1 = segment.getLong(offset + 8);
+    long l2 = segment.getLong(offset + 16);
+    long l3 = segment.getLong(offset + 24);
+    if ((l0 | l1 | l2 | l3) == 0) {
+      return EMPTY_ARRAY;
+    }
+
+    byte[] hash = new byte[HASH_SIZE];
+    putLong(hash, 0, l0);
+    putLong(hash, 8, l1);
+    putLong(hash, 16, l2);
+    putLong(hash, 24, l3);
+    return hash;
+  }
+
+
+  /**
+   * Get the tag recorded against this tree.
+   *
+   * @return the tag, or null if the tree has changed since a tag was last recorded
+   */
+  @Nullable
+  public byte[] getTag() {
+    return tag != null ? tag.clone() : null;
+  }
+
+
+  @Override
+  @Nullable
+  public byte[] getTopHashEntry() {
+    if (levels.isEmpty()) {
+      return null;
+    }
+    return getHashEntry(levels.size() - 1, 0);
+  }
+
+
+  /** Remove the tag before the tree is changed. */
+  private void invalidateTag() throws IOException {
+    if (tag != null) {
+      Files.deleteIfExists(directory.resolve(TAG_FILE));
+      tag = null;
+    }
+  }
+
+
+  private Path levelPath(int level) {
+    return directory.resolve("level-" + level + ".hash");
+  }
+
+
+  @Override
+  public void removeHash(int level, long entry) {
+    if (level >= levels.size()) {
+      return;
+    }
+    try {
+      MappedByteBuffer segment = levels.get(level).segment(entry, false);
+      if (segment != null) {
+        invalidateTag();
+        int offset = offset(entry);
+        for (int j = 0; j < HASH_SIZE; j += 8) {
+          segment.putLong(offset + j, 0);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+
+  @Override
+  public void setHash(int level, long index, byte[] hash) {
+    if (hash.length == 0) {
+      removeHash(level, index);
+      return;
+    }
+    if (hash.length != HASH_SIZE) {
+      throw new IllegalArgumentException("Hash must be " + HASH_SIZE + " bytes, not " + hash.length);
+    }
+
+    try {
+      invalidateTag();
+      while (levels.size() <= level) {
+        levels.add(new Level(levelPath(levels.size())));
+      }
+      MappedByteBuffer segment = levels.get(level).segment(index, true);
+      int offset = offset(index);
+      for (int j = 0; j < HASH_SIZE; j++) {
+        segment.put(offset + j, hash[j]);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+
+  /**
+   * Write all changes to the backing files, and then record a tag which identifies the data the tree now describes.
+   *
+   * @param newTag the tag
+   */
+  public void setTag(byte[] newTag) {
+    force();
+    Path tagPath = directory.resolve(TAG_FILE);
+    Path tempPath = directory.resolve(TAG_FILE + ".tmp");
+    try {
+      Files.write(tempPath, newTag);
+      Files.move(tempPath, tagPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    tag = newTag.clone();
+  }
+
+
+  @Override
+  public void trimTree(long fromIndex) {
+    try {
+      while (levels.size() > fromIndex) {
+        invalidateTag();
+        int level = levels.size() - 1;
+        levels.remove(level).close();
+        Files.delete(levelPath(level));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+}
@@ -0,0 +1,198 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.hashtree;
+
+import io.setl.bc.pychain.Hash;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the hash tree of each type of list in a {@link MappedHashTree}, tagged with the hash of the state it was saved with. When a node restarts and loads
+ * that state, the lists reopen their trees rather than computing them again.
+ *
+ * <p>A reopened tree belongs to the list which opened it. While that list is still in use, its tree is not overwritten by saves from other lists, which
+ * continue to use trees on the heap.</p>
+ *
+ * <p>Saving a heap tree only writes the nodes which differ from the saved tree. The trees are compared from the top down and a sub-tree whose root matches
+ * is skipped, so a save costs in proportion to the entries that changed since the last save, not to the size of the list.</p>
+ */
+public class MappedHashTreeStore implements HashTreeFactory, Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(MappedHashTreeStore.class);
+
+
+
+  /** The durable tree for one type of list, and the list which is using it, if any. */
+  private static class Slot {
+
+    final MappedHashTree tree;
+
+    WeakReference<Object> owner = new WeakReference<>(null);
+
+
+    Slot(MappedHashTree tree) {
+      this.tree = tree;
+    }
+
+  }
+
+
+
+  /**
+   * Get the number of levels in the hash tree of a list. This matches {@link IncrementalMerkleHashCalculator}, which always has at least two levels.
+   *
+   * @param entryCount the number of entries in the list
+   *
+   * @return the number of levels
+   */
+  static int levelCount(long entryCount) {
+    if (entryCount == 0) {
+      return 0;
+    }
+    return entryCount == 1 ? 2 : (65 - Long.numberOfLeadingZeros(entryCount - 1));
+  }
+
+
+  private final Path directory;
+
+  private final Map<String, Slot> slots = new HashMap<>();
+
+
+  /**
+   * New instance.
+   *
+   * @param directory the directory holding a sub-directory for each list's tree
+   */
+  public MappedHashTreeStore(Path directory) {
+    this.directory = directory;
+  }
+
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (Slot slot : slots.values()) {
+      slot.tree.close();
+    }
+    slots.clear();
+  }
+
+
+  /**
+   * Update a tree to match another, writing only the nodes which differ.
+   *
+   * <p>A node covers the same entries whatever the size of the tree, so if a node matches, so does everything beneath it. The differing nodes are found from
+   * the top down, but written from the bottom up. A node is therefore never written before its children, and a save that is interrupted part way leaves no
+   * node that matches while its children do not.</p>
+   */
+  private void copy(HashTree source, MappedHashTree target, long entryCount) {
+    int levels = levelCount(entryCount);
+    long[] sizes = new long[levels];
+    long size = entryCount;
+    for (int level = 0; level < levels; level++) {
+      sizes[level] = size;
+      size = (size + 1) / 2;
+    }
+
+    // Find the differing nodes, starting from the root.
+    long[][] changed = new long[levels][];
+    long[] candidates = levels > 0 ? new long[]{0} : new long[0];
+    for (int level = levels - 1; level >= 0; level--) {
+      long[] differ = new long[candidates.length];
+      int count = 0;
+      for (long i : candidates) {
+        if (!Arrays.equals(source.getHashEntry(level, i), target.getHashEntry(level, i))) {
+          differ[count++] = i;
+        }
+      }
+      differ = Arrays.copyOf(differ, count);
+      changed[level] = differ;
+
+      if (level > 0) {
+        long lowerSize = sizes[level - 1];
+        candidates = new long[2 * count];
+        int next = 0;
+        for (long i : differ) {
+          for (long child = 2 * i; child <= 2 * i + 1 && child < lowerSize; child++) {
+            candidates[next++] = child;
+          }
+        }
+        candidates = Arrays.copyOf(candidates, next);
+      }
+    }
+
+    // Write them from the bottom up, removing any nodes left over from a larger tree.
+    for (int level = 0; level < levels; level++) {
+      for (long i : changed[level]) {
+        target.setHash(level, i, source.getHashEntry(level, i));
+      }
+      for (long i = sizes[level]; target.getHashEntry(level, i).length != 0; i++) {
+        target.removeHash(level, i);
+      }
+    }
+    target.trimTree(levels);
+  }
+
+
+  @Override
+  public synchronized HashTree open(Object owner, String name, Hash stateHash) {
+    Slot slot = slot(name);
+    Object current = slot.owner.get();
+    if ((current == null || current == owner) && Arrays.equals(slot.tree.getTag(), stateHash.get())) {
+      logger.info("Reopened hash tree of {} for state {}", name, stateHash);
+      slot.owner = new WeakReference<>(owner);
+      return slot.tree;
+    }
+    return new MemoryBackedHashTree();
+  }
+
+
+  @Override
+  public synchronized void save(Object owner, String name, Hash stateHash, HashTree tree, long entryCount) {
+    Slot slot = slot(name);
+    if (tree != slot.tree) {
+      Object current = slot.owner.get();
+      if (current != null && current != owner) {
+        logger.debug("Hash tree of {} is in use and was not saved for state {}", name, stateHash);
+        return;
+      }
+      copy(tree, slot.tree, entryCount);
+    }
+    slot.tree.setTag(stateHash.get());
+  }
+
+
+  private Slot slot(String name) {
+    return slots.computeIfAbsent(name, n -> {
+      try {
+        return new Slot(new MappedHashTree(directory.resolve(n)));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
+}
@@ -19,18 +19,16 @@
 package io.setl.bc.pychain.state.ipfs;
 
 import io.setl.bc.pychain.Hash;
-import io.setl.util.LRUCache;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 /**
+ * Access to the node's shared hash cache for code which is not given a cache instance directly.
+ *
  * @author Simon Greatrix on 2019-03-07.
  */
 public class GlobalHashCache {
 
-  private static final ConcurrentHashMap<Hash, Object> LAST_BLOCK = new ConcurrentHashMap<>();
-
-  private static final LRUCache<Hash, Object> LRU_CACHE = new LRUCache<>(20_000, null);
+  private static volatile HashCache instance = new HashCache();
 
 
   /**
@@ -43,22 +41,31 @@ public class GlobalHashCache {
    * @return the datum
    */
   public static <V> V get(Hash hash, Function<Hash, ? extends V> source) {
-    @SuppressWarnings("unchecked")
-    V v = (V) LAST_BLOCK.get(hash);
-    if (v != null) {
-      LRU_CACHE.put(hash, v);
-      return v;
-    }
-    return LRU_CACHE.get(hash, source);
+    return instance.get(hash, source);
+  }
+
+
+  public static HashCache getInstance() {
+    return instance;
   }
 
 
   public static void put(Hash hash, Object value) {
-    LAST_BLOCK.put(hash, value);
+    instance.put(hash, value);
   }
 
 
   public static void reset() {
-    LAST_BLOCK.clear();
+    instance.reset();
+  }
+
+
+  /**
+   * Replace the shared cache, for example with one that has been configured and bound to the node's metrics.
+   *
+   * @param cache the new shared cache
+   */
+  public static void setInstance(HashCache cache) {
+    instance = cache;
   }
 }
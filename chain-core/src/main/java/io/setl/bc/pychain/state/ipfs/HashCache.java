@@ -0,0 +1,254 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.ipfs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.state.entry.MEntry;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A two tier cache of objects identified by their hash. The first tier holds the objects written by the most recent block, which are certain to be needed.
+ * The second tier is limited by the estimated memory used by the cached objects rather than by their number.
+ *
+ * <p>When a new block is committed, the first tier's contents are moved into the second tier rather than discarded.</p>
+ *
+ * <p>An object's weight is fixed when it is added. Callers which hold the object's encoded form should supply it, as weighing the encoding is cheap, whereas
+ * encoding a state entry just to weigh it is not.</p>
+ */
+public class HashCache implements MeterBinder {
+
+  /** Default limit on the estimated size of the second tier: 256MB. */
+  public static final long DEFAULT_MAXIMUM_WEIGHT = 256L * 1024 * 1024;
+
+  /** Estimated size of a state entry whose encoding is not known. */
+  private static final int ENTRY_SIZE = 512;
+
+  /** Estimated overhead of an object header plus a reference to it. */
+  private static final int OBJECT_OVERHEAD = 24;
+
+  /** Estimated size of a Hash key: the Hash, its byte array, and a SHA-256 value. */
+  private static final int KEY_SIZE = 2 * OBJECT_OVERHEAD + 32;
+
+
+
+  /** A cached object and its weight. */
+  private static class Weighted {
+
+    final Object value;
+
+    final int weight;
+
+
+    Weighted(Object value, int weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+
+  }
+
+
+
+  /**
+   * Estimate the memory used by a cached object. The estimate only needs to be good enough to compare entries with each other. State entries are not
+   * encoded to weigh them, so they are given a fixed estimate.
+   *
+   * @param value the object
+   *
+   * @return the estimated size in bytes
+   */
+  static int estimateSize(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof MEntry) {
+      return ENTRY_SIZE;
+    }
+    if (value instanceof byte[]) {
+      return OBJECT_OVERHEAD + ((byte[]) value).length;
+    }
+    if (value instanceof CharSequence) {
+      return 2 * OBJECT_OVERHEAD + ((CharSequence) value).length();
+    }
+    if (value instanceof Object[]) {
+      int size = OBJECT_OVERHEAD;
+      for (Object o : (Object[]) value) {
+        size += 8 + estimateSize(o);
+      }
+      return size;
+    }
+    if (value instanceof Collection<?>) {
+      int size = 2 * OBJECT_OVERHEAD;
+      for (Object o : (Collection<?>) value) {
+        size += OBJECT_OVERHEAD + estimateSize(o);
+      }
+      return size;
+    }
+    if (value instanceof Map<?, ?>) {
+      int size = 2 * OBJECT_OVERHEAD;
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+        size += 2 * OBJECT_OVERHEAD + estimateSize(e.getKey()) + estimateSize(e.getValue());
+      }
+      return size;
+    }
+    return OBJECT_OVERHEAD;
+  }
+
+
+  private final Cache<Hash, Weighted> cache;
+
+  private final ConcurrentHashMap<Hash, Weighted> lastBlock = new ConcurrentHashMap<>();
+
+
+  /**
+   * New instance with the default maximum weight.
+   */
+  public HashCache() {
+    this(DEFAULT_MAXIMUM_WEIGHT);
+  }
+
+
+  /**
+   * New instance.
+   *
+   * @param maximumWeight the maximum estimated size in bytes of the objects held in the second tier
+   */
+  public HashCache(long maximumWeight) {
+    cache = CacheBuilder.newBuilder()
+        .maximumWeight(maximumWeight)
+        .weigher((Hash k, Weighted v) -> KEY_SIZE + v.weight)
+        .recordStats()
+        .build();
+  }
+
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    GuavaCacheMetrics.monitor(registry, cache, "hashCache");
+    Gauge.builder("hashCache.lastBlock.size", lastBlock, Map::size)
+        .description("Number of objects held for the most recent block")
+        .register(registry);
+  }
+
+
+  /**
+   * Get the object identified by the given Hash, loading it from the source if it is not cached.
+   *
+   * @param hash   the hash
+   * @param source mapping of hashes to values
+   * @param <V>    the required data type
+   *
+   * @return the datum
+   */
+  public <V> V get(Hash hash, Function<Hash, ? extends V> source) {
+    V v = getIfPresent(hash);
+    if (v != null) {
+      return v;
+    }
+
+    // Two threads may load the same value concurrently, but as the value is identified by its hash, it does not matter which one is cached.
+    v = source.apply(hash);
+    if (v != null) {
+      cache.put(hash, new Weighted(v, estimateSize(v)));
+    }
+    return v;
+  }
+
+
+  /**
+   * Get the object identified by the given Hash, loading and decoding it if it is not cached. The object is weighed by its encoded form.
+   *
+   * @param hash    the hash
+   * @param loader  mapping of hashes to encoded values
+   * @param decoder decoder of loaded values
+   * @param <E>     the encoded data type
+   * @param <V>     the required data type
+   *
+   * @return the datum
+   */
+  public <E, V> V get(Hash hash, Function<Hash, ? extends E> loader, Function<? super E, ? extends V> decoder) {
+    V v = getIfPresent(hash);
+    if (v != null) {
+      return v;
+    }
+
+    E encoded = loader.apply(hash);
+    if (encoded == null) {
+      return null;
+    }
+    v = decoder.apply(encoded);
+    if (v != null) {
+      cache.put(hash, new Weighted(v, estimateSize(encoded)));
+    }
+    return v;
+  }
+
+
+  @SuppressWarnings("unchecked")
+  private <V> V getIfPresent(Hash hash) {
+    Weighted w = lastBlock.get(hash);
+    if (w == null) {
+      w = cache.getIfPresent(hash);
+    }
+    return (w != null) ? (V) w.value : null;
+  }
+
+
+  /**
+   * Add an object written by the current block.
+   *
+   * @param hash  the object's hash
+   * @param value the object
+   */
+  public void put(Hash hash, Object value) {
+    lastBlock.put(hash, new Weighted(value, estimateSize(value)));
+  }
+
+
+  /**
+   * Add an object written by the current block, weighing it by its encoded form.
+   *
+   * @param hash    the object's hash
+   * @param value   the object
+   * @param encoded the object's encoded form
+   */
+  public void put(Hash hash, Object value, Object encoded) {
+    lastBlock.put(hash, new Weighted(value, estimateSize(encoded)));
+  }
+
+
+  /**
+   * Start a new block. The objects written by the previous block move to the weight limited tier.
+   */
+  public void reset() {
+    for (Map.Entry<Hash, Weighted> e : lastBlock.entrySet()) {
+      cache.put(e.getKey(), e.getValue());
+      lastBlock.remove(e.getKey(), e.getValue());
+    }
+  }
+
+}
@@ -18,6 +18,10 @@
 </notice> */
 package io.setl.bc.pychain.state.ipfs;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -142,6 +146,26 @@ public class IpfsBasedState extends AbstractEncodedState {
   }
 
 
+  /**
+   * Get the hashes of the objects in the store which are referenced directly by a state's root array, such as the roots of its Merkle lists.
+   *
+   * @param v the state's root array, as created by <code>encodeRootForIPFsStorage</code>
+   *
+   * @return the referenced hashes, excluding any for empty lists
+   */
+  public static List<Hash> getReferencedHashes(MPWrappedArray v) {
+    List<Hash> hashes = new ArrayList<>(8);
+    for (int i = 6; i <= 12; i++) {
+      hashes.add(asHash(v, i));
+    }
+    if (v.asInt(1) >= VersionConstants.VERSION_LOCKED_ASSET_AS_MERKLE) {
+      hashes.add(asHash(v, 14));
+    }
+    hashes.removeIf(h -> h.isNull() || h.get().length == 0);
+    return hashes;
+  }
+
+
   private IpfsList<AddressEntry> assetBalanceList;
 
   private IpfsList<ContractEntry> contractsList;
@@ -281,6 +305,16 @@ public class IpfsBasedState extends AbstractEncodedState {
   }
 
 
+  /**
+   * Persist the indices of this state's lists, as the state has been finalised and written. Until then, their changes are only held in memory.
+   */
+  public void persistIndices() {
+    for (IpfsList<?> list : Arrays.asList(signNodeList, namespaceList, assetBalanceList, contractsList, encumbrancesList, poaList, lockedAssetsList)) {
+      list.persistIndex();
+    }
+  }
+
+
   private void setEncodedLockedAssets(MerkleStore<Object> store, MPWrappedMap<Object, Object> map) {
     LockedAssetsList tmpList = new LockedAssetsList();
     map.iterate((k, v) -> {
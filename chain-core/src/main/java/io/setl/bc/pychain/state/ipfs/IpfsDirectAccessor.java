@@ -39,6 +39,19 @@ public class IpfsDirectAccessor<T> implements IndexedList<T> {
 
   private static final byte[] emptyArray = new byte[0];
 
+
+  /**
+   * Get the number of levels in the Merkle tree of a list. The root is at level zero and the entries are all at the bottom level.
+   *
+   * @param entryCount the number of entries in the list, which must be positive
+   *
+   * @return the number of levels
+   */
+  public static int levelsFor(long entryCount) {
+    // for compatibility with python - always hash 2 or more levels
+    return entryCount == 1 ? 2 : (65 - Long.numberOfLeadingZeros(entryCount - 1));
+  }
+
   private final MerkleStoreReader<Object> ms;
 
   private long entryCount;
@@ -62,7 +75,7 @@ public class IpfsDirectAccessor<T> implements IndexedList<T> {
     if (entryCount == 0) {
       return;
     }
-    levels = entryCount == 1 ? 2 : (65 - Long.numberOfLeadingZeros(entryCount - 1));
+    levels = levelsFor(entryCount);
   }
 
 
@@ -231,7 +244,7 @@ public class IpfsDirectAccessor<T> implements IndexedList<T> {
    */
   public void setEntryCount(long l, Hash hash) {
     this.entryCount = l;
-    levels = l == 1 ? 2 : (65 - Long.numberOfLeadingZeros(l - 1));
+    levels = levelsFor(l);
     this.rootHash = hash;
   }
 
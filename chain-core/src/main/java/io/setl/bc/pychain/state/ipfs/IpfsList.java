@@ -53,6 +53,8 @@ public class IpfsList<V extends MEntry> implements Merkle<V>, SnapshotMerkle<V>
 
   private static final SerialiseToByte hashSerialiser = HashSerialisation.getInstance();
 
+  private static volatile KeyToHashIndexFactory indexFactory = (name, hash, ms) -> new MemoryKeyToHashIndex<>(hash, ms);
+
 
 
   public static class OverridingHashTree implements HashTree {
@@ -109,10 +111,22 @@ public class IpfsList<V extends MEntry> implements Merkle<V>, SnapshotMerkle<V>
 
 
 
+  /**
+   * Set the source of indices for lists which are not given one explicitly. By default, each index is built in memory by walking the list.
+   *
+   * @param factory the new source of indices
+   */
+  public static void setIndexFactory(KeyToHashIndexFactory factory) {
+    indexFactory = factory;
+  }
+
+
   private final IpfsDirectAccessor<Object[]> accessor;
 
   private final EntryDecoder<V> decoder;
 
+  private final HashCache hashCache;
+
   private final Class<V> leafType;
 
   private final MerkleStore<Object> ms;
@@ -136,12 +150,26 @@ public class IpfsList<V extends MEntry> implements Merkle<V>, SnapshotMerkle<V>
    * @param ms   : Store from which to retrieve data
    */
   public IpfsList(Hash hash, MerkleStore<Object> ms, EntryDecoder<V> decoder, KeyToHashIndex<String> theIndex, Class<V> leafType) {
+    this(hash, ms, decoder, theIndex, leafType, GlobalHashCache.getInstance());
+  }
+
+
+  /**
+   * IPFS implementation of Merkle.java interface.
+   *
+   * @param hash      : Root hash of merkle
+   * @param ms        : Store from which to retrieve data
+   * @param hashCache : Cache of decoded entries
+   */
+  public IpfsList(
+      Hash hash, MerkleStore<Object> ms, EntryDecoder<V> decoder, KeyToHashIndex<String> theIndex, Class<V> leafType, HashCache hashCache
+  ) {
+    this.hashCache = hashCache;
     this.leafType = leafType;
     // Note Hash maybe null when merkle size is zero (blank hash in python!)
 
-    // TODO - Inject the implementations of theIndex
     if (theIndex == null) {
-      this.theIndex = new MemoryKeyToHashIndex<>(hash, ms);
+      this.theIndex = indexFactory.create(leafType.getSimpleName(), hash, ms);
     } else {
       this.theIndex = theIndex;
     }
@@ -173,7 +201,7 @@ public class IpfsList<V extends MEntry> implements Merkle<V>, SnapshotMerkle<V>
         theIndex.set((String) payload[1], contentHash);
         V v = unhashedChanges.get(index);
         if (v != null) {
-          GlobalHashCache.put(contentHash, v);
+          hashCache.put(contentHash, v, payload);
         }
       }
     };
@@ -206,6 +234,7 @@ public class IpfsList<V extends MEntry> implements Merkle<V>, SnapshotMerkle<V>
 
     this.hash = new Hash(returnHash);
     accessor.setEntryCount(indexEntryCount, hash);
+    theIndex.commit(hash);
 
     unhashedChanges.clear();
   }
@@ -222,7 +251,7 @@ public class IpfsList<V extends MEntry> implements Merkle<V>, SnapshotMerkle<V>
 
 
   public IpfsList<V> copy() {
-    return new IpfsList<>(hash, ms, decoder, theIndex.copy(), leafType);
+    return new IpfsList<>(hash, ms, decoder, theIndex.copy(), leafType, hashCache);
   }
 
 
@@ -251,7 +280,11 @@ public class IpfsList<V extends MEntry> implements Merkle<V>, SnapshotMerkle<V>
     if (hashAndIndex == null) {
       return null;
     }
-    return GlobalHashCache.get(hashAndIndex.getHash(), h -> get(hashAndIndex.getIndex()));
+    long index = hashAndIndex.getIndex();
+    if (index < 0) {
+      return null;
+    }
+    return hashCache.get(hashAndIndex.getHash(), h -> getHashableEntry(index), e -> decoder.decode(new MPWrappedArrayImpl(e)));
   }
 
 
@@ -365,6 +398,15 @@ public class IpfsList<V extends MEntry> implements Merkle<V>, SnapshotMerkle<V>
   }
 
 
+  /**
+   * Persist this list's index as at its current root hash, as the list is part of a state which has been finalised and written.
+   */
+  public void persistIndex() {
+    applyChanges();
+    theIndex.persist();
+  }
+
+
   /**
    * Remove an entry from this list.
    *
@@ -384,7 +426,7 @@ public class IpfsList<V extends MEntry> implements Merkle<V>, SnapshotMerkle<V>
       applyChanges();
       // If not removing the last item, move the last item over the one being deleted
       V item = get(lastIndex);
-      theIndex.set(key, index);
+      theIndex.set(item.getKey(), index);
       unhashedChanges.put(index, item);
     }
     // Delete the key to the deleted item
@@ -404,7 +446,7 @@ public class IpfsList<V extends MEntry> implements Merkle<V>, SnapshotMerkle<V>
 
   @Override
   public Stream<V> stream() {
-    return StreamSupport.stream(new IpfsWalker<V>(ms, hash, decoder), false);
+    return StreamSupport.stream(new IpfsWalker<V>(ms, hash, getEntryCount(), decoder, true), false);
   }
 
 
@@ -448,7 +490,7 @@ public class IpfsList<V extends MEntry> implements Merkle<V>, SnapshotMerkle<V>
    */
   public long walk() {
     long[] r = new long[1];
-    IpfsWalker.walk(hash, ms, t -> r[0]++);
+    IpfsWalker.walk(hash, ms, (h, t) -> r[0]++, false);
     return r[0];
   }
 }
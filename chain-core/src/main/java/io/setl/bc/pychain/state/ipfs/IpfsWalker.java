@@ -24,19 +24,95 @@ import io.setl.bc.pychain.Hash;
 import io.setl.bc.pychain.msgpack.MPWrappedArrayImpl;
 import io.setl.bc.pychain.state.entry.EntryDecoder;
 import io.setl.bc.pychain.state.entry.MEntry;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
 import java.util.Spliterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 /**
  * Walk a Content-addressable storage structure.
  *
+ * <p>If a read-ahead executor has been set, the walker keeps up to a fixed number of reads outstanding for the nodes it will visit next, and a branch whose
+ * read completes is replaced by its children, so the reads reach down to the leaves ahead of the consumer. A walker that knows the number of entries in the
+ * list reports exact sizes for itself and its splits. Entries are delivered either in list order, or in whatever order their reads complete.</p>
+ *
  * @author aanten
  */
 public class IpfsWalker<T extends MEntry> implements Spliterator<T> {
 
+  /** Default number of reads which may be outstanding ahead of a walk. */
+  public static final int DEFAULT_READ_AHEAD = 32;
+
+  private static volatile Executor readAheadExecutor = null;
+
+  private static volatile int readAheadLimit = DEFAULT_READ_AHEAD;
+
+
+
+  /**
+   * A node of the tree which has not yet been visited.
+   */
+  private static class Node {
+
+    /** The depth of this node. The root is at depth zero. */
+    final int depth;
+
+    /** The index of the first leaf below this node. */
+    final long first;
+
+    final Hash hash;
+
+    /** The read of this node's content, or null if the read has not been issued. */
+    FutureTask<Object> content;
+
+
+    Node(Hash hash, int depth, long first) {
+      this.hash = hash;
+      this.depth = depth;
+      this.first = first;
+    }
+
+
+    /**
+     * Is this node's content known to be a branch?.
+     *
+     * @return true if the read has completed successfully and found a branch
+     */
+    boolean isLoadedBranch() {
+      if (content == null || !content.isDone()) {
+        return false;
+      }
+      try {
+        return content.get() instanceof byte[][];
+      } catch (ExecutionException | InterruptedException e) {
+        // The failure is reported when the node is visited.
+        return false;
+      }
+    }
+
+  }
+
+
+
+  /**
+   * Set the executor used to read nodes ahead of a walk, and the number of reads each walk may have outstanding. If the executor is null, walks read each
+   * node as they visit it.
+   *
+   * @param executor the executor
+   * @param limit    the maximum number of outstanding reads per walk
+   */
+  public static void setReadAhead(Executor executor, int limit) {
+    readAheadExecutor = executor;
+    readAheadLimit = Math.max(1, limit);
+  }
+
+
   /**
    * Walk a Content addressable storage structure from the given root hash.
    *
@@ -50,34 +126,32 @@ public class IpfsWalker<T extends MEntry> implements Spliterator<T> {
 
 
   /**
-   * Walk a Content addressable storage structure from the given root hash.
+   * Walk a Content addressable storage structure from the given root hash, visiting the leaves in order.
    *
    * @param hash Root hash of merkle
    * @param ms   Store from which to retrieve data
    * @param tgt  Leaf node consumer
    */
   public static <T> void walk(Hash hash, MerkleStoreReader<Object> ms, BiConsumer<Hash, T> tgt) {
-    // Hash maybe null when merkle size is zero (blank hash in python!)
-    if (hash.get() != null) {
-      walkHashesAndBuildLeaf(ms, hash, tgt);
-    }
+    walk(hash, ms, tgt, true);
   }
 
 
-  private static <T> void walkHashesAndBuildLeaf(MerkleStoreReader<Object> ms, Hash hash, BiConsumer<Hash, T> tgt) {
-    Object o = ms.get(hash);
-    verifyNotNull(o, "No item found: %s", hash);
-
-    if (o instanceof byte[][]) {
-      byte[][] oo = (byte[][]) o;
-      // Merkle node
-      walkHashesAndBuildLeaf(ms, new Hash(oo[0]), tgt);
-      if (oo.length > 1) {
-        walkHashesAndBuildLeaf(ms, new Hash(oo[1]), tgt);
-      }
-    } else {
-      // Leaf node
-      tgt.accept(hash, (T) o);
+  /**
+   * Walk a Content addressable storage structure from the given root hash.
+   *
+   * @param hash    Root hash of merkle
+   * @param ms      Store from which to retrieve data
+   * @param tgt     Leaf node consumer
+   * @param ordered if true, leaves are visited in order. Otherwise they are visited as they are read.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> void walk(Hash hash, MerkleStoreReader<Object> ms, BiConsumer<Hash, T> tgt, boolean ordered) {
+    // Hash maybe null when merkle size is zero (blank hash in python!)
+    IpfsWalker<MEntry> walker = new IpfsWalker<>(ms, hash, -1, null, ordered);
+    Node leaf;
+    while ((leaf = walker.nextLeaf()) != null) {
+      tgt.accept(leaf.hash, (T) walker.read(leaf));
     }
   }
 
@@ -86,85 +160,310 @@ public class IpfsWalker<T extends MEntry> implements Spliterator<T> {
 
   final MerkleStoreReader<Object> storeReader;
 
-  final Deque<Hash> toVisit = new ArrayDeque<>();
+  /** Number of entries in the whole list, or -1 if not known. */
+  private final long entryCount;
+
+  private final Executor executor;
 
-  T nextValue = null;
+  /** Depth of the leaves, if known. */
+  private final int leafDepth;
+
+  private final boolean ordered;
+
+  /** Nodes yet to be visited, in order. */
+  private final LinkedList<Node> pending = new LinkedList<>();
+
+  private final int readAhead;
+
+  /** Number of pending nodes whose reads have been issued. */
+  private int readsIssued = 0;
+
+  /** Number of entries yet to be delivered, or -1 if not known. */
+  private long remaining;
 
 
   /**
-   * New instance.
+   * New instance which delivers entries in order, without knowing how many there are.
    *
    * @param storeReader the Merkle store which stores the IPFS tree
    * @param root        the root of the tree
    * @param decoder     the decoder for leaf entries
    */
   public IpfsWalker(MerkleStoreReader<Object> storeReader, Hash root, EntryDecoder<T> decoder) {
+    this(storeReader, root, -1, decoder, true);
+  }
+
+
+  /**
+   * New instance.
+   *
+   * @param storeReader the Merkle store which stores the IPFS tree
+   * @param root        the root of the tree
+   * @param entryCount  the number of entries in the list, or -1 if not known
+   * @param decoder     the decoder for leaf entries
+   * @param ordered     if true, entries are delivered in list order. Otherwise they are delivered as they are read.
+   */
+  public IpfsWalker(MerkleStoreReader<Object> storeReader, Hash root, long entryCount, EntryDecoder<T> decoder, boolean ordered) {
     this.storeReader = storeReader;
     this.decoder = decoder;
-    toVisit.push(root);
+    this.ordered = ordered;
+    this.entryCount = entryCount;
+    executor = readAheadExecutor;
+    readAhead = readAheadLimit;
+    if (root == null || root.isNull()) {
+      leafDepth = 0;
+      remaining = entryCount < 0 ? -1 : 0;
+      return;
+    }
+
+    leafDepth = entryCount < 0 ? -1 : IpfsDirectAccessor.levelsFor(entryCount) - 1;
+    remaining = entryCount;
+    pending.add(new Node(root, 0, 0));
+  }
+
+
+  /**
+   * Create a walker which will take over part of another's walk.
+   *
+   * @param original the walker being split
+   */
+  private IpfsWalker(IpfsWalker<T> original) {
+    storeReader = original.storeReader;
+    decoder = original.decoder;
+    ordered = original.ordered;
+    entryCount = original.entryCount;
+    executor = original.executor;
+    readAhead = original.readAhead;
+    leafDepth = original.leafDepth;
+  }
+
+
+  /**
+   * Replace a branch with its children, inserting them at the iterator's position so they will be returned next.
+   */
+  private void addChildren(ListIterator<Node> iterator, Node branch, byte[][] children) {
+    int depth = branch.depth + 1;
+    iterator.add(new Node(new Hash(children[0]), depth, branch.first));
+    if (children.length > 1) {
+      long span = leafDepth > depth ? 1L << (leafDepth - depth) : 1;
+      iterator.add(new Node(new Hash(children[1]), depth, branch.first + span));
+      iterator.previous();
+    }
+    iterator.previous();
   }
 
 
   @Override
   public int characteristics() {
-    return NONNULL | IMMUTABLE;
+    int c = NONNULL | IMMUTABLE;
+    if (ordered) {
+      c |= ORDERED;
+    }
+    if (remaining >= 0) {
+      c |= SIZED | SUBSIZED;
+    }
+    return c;
   }
 
 
   @Override
   public long estimateSize() {
-    // Size is unknown
-    return Long.MAX_VALUE;
+    return remaining >= 0 ? remaining : Long.MAX_VALUE;
+  }
+
+
+  /**
+   * Issue reads for the nodes that will be visited next, up to the read-ahead limit. Branches which have already been read are replaced by their children,
+   * so the reads can go further down the tree.
+   */
+  private void issueReads() {
+    if (executor == null) {
+      return;
+    }
+    ListIterator<Node> iterator = pending.listIterator();
+    while (iterator.hasNext()) {
+      Node node = iterator.next();
+      if (node.content == null) {
+        if (readsIssued >= readAhead) {
+          return;
+        }
+        node.content = newRead(node);
+        readsIssued++;
+        try {
+          executor.execute(node.content);
+        } catch (RejectedExecutionException e) {
+          // The node will be read when it is visited.
+        }
+      } else if (node.isLoadedBranch()) {
+        iterator.remove();
+        readsIssued--;
+        addChildren(iterator, node, (byte[][]) read(node));
+      }
+    }
+  }
+
+
+  private FutureTask<Object> newRead(Node node) {
+    return new FutureTask<>(() -> {
+      Object o = storeReader.get(node.hash);
+      verifyNotNull(o, "No item found: %s", node.hash);
+      return o;
+    });
+  }
+
+
+  /**
+   * Find the next leaf to deliver, visiting branches as required.
+   *
+   * @return the leaf's node, or null if the walk is complete
+   */
+  private Node nextLeaf() {
+    while (!pending.isEmpty()) {
+      issueReads();
+
+      ListIterator<Node> iterator = ordered ? pending.listIterator() : selectRead();
+      Node node = iterator.next();
+      iterator.remove();
+      if (node.content != null) {
+        readsIssued--;
+      }
+
+      Object value = read(node);
+      if (!(value instanceof byte[][])) {
+        if (remaining > 0) {
+          remaining--;
+        }
+        return node;
+      }
+      addChildren(iterator, node, (byte[][]) value);
+    }
+    return null;
+  }
+
+
+  /**
+   * Get a node's content, reading it in this thread unless a read-ahead thread has already started to.
+   */
+  private Object read(Node node) {
+    if (node.content == null) {
+      node.content = newRead(node);
+    }
+    node.content.run();
+    try {
+      return node.content.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException("Failed to read " + node.hash, cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted whilst reading " + node.hash, e);
+    }
+  }
+
+
+  /**
+   * Select the first pending node whose read has completed, or the first node if none have.
+   *
+   * @return an iterator which will return the selected node next
+   */
+  private ListIterator<Node> selectRead() {
+    ListIterator<Node> iterator = pending.listIterator();
+    int seen = 0;
+    while (seen < readsIssued && iterator.hasNext()) {
+      FutureTask<Object> content = iterator.next().content;
+      if (content != null) {
+        if (content.isDone()) {
+          iterator.previous();
+          return iterator;
+        }
+        seen++;
+      }
+    }
+    return pending.listIterator();
+  }
+
+
+  /**
+   * The number of entries below a node.
+   */
+  private long size(Node node) {
+    long end = leafDepth > node.depth ? node.first + (1L << (leafDepth - node.depth)) : node.first + 1;
+    return Math.min(end, entryCount) - node.first;
   }
 
 
   @Override
   public boolean tryAdvance(Consumer<? super T> action) {
-    while (nextValue == null && !toVisit.isEmpty()) {
-      visitNode();
-    }
-    if (nextValue == null) {
+    Node leaf = nextLeaf();
+    if (leaf == null) {
       // no more entries
       return false;
     }
 
     // found an entry, visit it
-    action.accept(nextValue);
-    nextValue = null;
+    action.accept(decoder.decode(new MPWrappedArrayImpl((Object[]) read(leaf))));
     return true;
   }
 
 
   @Override
   public Spliterator<T> trySplit() {
-    if (nextValue != null || toVisit.isEmpty()) {
-      return null;
+    // Make sure there are at least two nodes to divide between the walkers
+    while (pending.size() == 1) {
+      Node node = pending.getFirst();
+      boolean wasIssued = node.content != null;
+      Object value = read(node);
+      if (!(value instanceof byte[][])) {
+        if (!wasIssued) {
+          readsIssued++;
+        }
+        return null;
+      }
+      ListIterator<Node> iterator = pending.listIterator();
+      iterator.next();
+      iterator.remove();
+      if (wasIssued) {
+        readsIssued--;
+      }
+      addChildren(iterator, node, (byte[][]) value);
     }
-
-    visitNode();
-
-    if (nextValue != null) {
-      // this was a leaf, so cannot split
+    if (pending.isEmpty()) {
       return null;
     }
 
-    return new IpfsWalker<>(storeReader, toVisit.pop(), decoder);
-  }
-
-
-  private void visitNode() {
-    Hash hash = toVisit.pop();
-    Object o = storeReader.get(hash);
-    verifyNotNull(o, "No item found: %s", hash);
-
-    if (o instanceof byte[][]) {
-      byte[][] ba = (byte[][]) o;
-      toVisit.push(new Hash(ba[0]));
-      if (ba.length > 1) {
-        toVisit.push(new Hash(ba[1]));
+    // The new walker takes a prefix of the nodes, holding about half the remaining entries if that is known.
+    IpfsWalker<T> prefix = new IpfsWalker<>(this);
+    Iterator<Node> iterator = pending.iterator();
+    int count = 0;
+    int limit = pending.size() - 1;
+    long moved = 0;
+    while (count < limit && (remaining >= 0 ? moved < remaining / 2 : count < limit / 2 + 1)) {
+      Node node = iterator.next();
+      if (remaining >= 0) {
+        moved += size(node);
       }
+      if (node.content != null) {
+        prefix.readsIssued++;
+        readsIssued--;
+      }
+      prefix.pending.add(node);
+      iterator.remove();
+      count++;
+    }
+
+    if (remaining >= 0) {
+      prefix.remaining = moved;
+      remaining -= moved;
     } else {
-      nextValue = decoder.decode(new MPWrappedArrayImpl((Object[]) o));
+      prefix.remaining = -1;
     }
+    return prefix;
   }
+
 }
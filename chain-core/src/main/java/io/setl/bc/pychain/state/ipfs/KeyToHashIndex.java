@@ -34,10 +34,29 @@ public interface KeyToHashIndex<K> extends KeyToIndex<K> {
 
   }
 
+  /**
+   * Notification that the list's root hash is now the given hash, and all the changes made to this index since the previous notification are reflected in it.
+   * The list may still be speculative, so durable implementations keep the changes in memory until they are persisted.
+   *
+   * @param rootHash the list's new root hash
+   */
+  default void commit(Hash rootHash) {
+    // Nothing
+  }
+
   KeyToHashIndex<K> copy();
 
   HashAndIndex get(K key);
 
+
+  /**
+   * Notification that the list is part of a state which has been finalised and written. Durable implementations persist the index as at the last commit, so
+   * that it can be used as it is when the state is next loaded.
+   */
+  default void persist() {
+    // Nothing
+  }
+
   void set(K key, Hash hash);
 
   void set(K key, long index);
@@ -0,0 +1,40 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.ipfs;
+
+import io.setl.bc.pychain.Hash;
+
+/**
+ * Source of the key to hash and index mappings used by Merkle lists.
+ */
+@FunctionalInterface
+public interface KeyToHashIndexFactory {
+
+  /**
+   * Get the index for a Merkle list.
+   *
+   * @param name the name of the list, which identifies its type within a state
+   * @param hash the root hash of the list
+   * @param ms   the store holding the list's nodes
+   *
+   * @return the index
+   */
+  KeyToHashIndex<String> create(String name, Hash hash, MerkleStore<Object> ms);
+
+}
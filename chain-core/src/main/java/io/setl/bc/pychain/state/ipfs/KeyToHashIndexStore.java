@@ -0,0 +1,383 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.ipfs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.state.ipfs.KeyToHashIndex.HashAndIndex;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * H2 (MVStore) backed store of the key to hash and index mappings of Merkle lists. Each list type has one durable map which holds the mapping for a single
+ * root hash, the "tip", and that root hash is recorded alongside it. When a node restarts on the state it last wrote, the indices are used as they are,
+ * and the Merkle trees do not need to be walked.
+ *
+ * <p>Every other version of a list's index that is in use is held as a layer: the changes which turn its parent layer into it. The layers form a tree with
+ * the durable map at the root. When a changed index is committed with a new root hash, its changes become a new layer in memory. Only when the index is
+ * persisted, because its state has been finalised and written, is the durable map moved to the index's layer, swapping each layer's changes for their
+ * inverse on the way. Following the chain from one written state to the next therefore only ever writes each block's changes once, and an index copied for
+ * a proposal that is later discarded never touches the disk.</p>
+ */
+public class KeyToHashIndexStore implements KeyToHashIndexFactory, Closeable {
+
+  /** Marks a key as removed in a layer's changes. */
+  static final IndexEntry TOMBSTONE = new IndexEntry(null, -1);
+
+  /** Name of the map which records each list's root hash. */
+  private static final String ROOTS_MAP = "roots";
+
+  private static final Logger logger = LoggerFactory.getLogger(KeyToHashIndexStore.class);
+
+
+
+  /**
+   * A key's hash and index.
+   */
+  static class IndexEntry implements HashAndIndex {
+
+    Hash hash;
+
+    long index;
+
+
+    IndexEntry(Hash hash, long index) {
+      this.hash = hash;
+      this.index = index;
+    }
+
+
+    @Override
+    public Hash getHash() {
+      return hash;
+    }
+
+
+    @Override
+    public long getIndex() {
+      return index;
+    }
+
+  }
+
+
+
+  /**
+   * One version of a list's index. The tip layer's content is the durable map. Every other layer's content is its parent's content with its changes applied.
+   */
+  static class Layer {
+
+    final Hash rootHash;
+
+    /** Changes from the parent layer. Always empty for the tip. */
+    Map<String, IndexEntry> changes = new HashMap<>();
+
+    /** Number of entries. Only maintained when this is not the tip. */
+    long count;
+
+    Layer parent;
+
+
+    Layer(Hash rootHash) {
+      this.rootHash = rootHash;
+    }
+
+  }
+
+
+
+  /**
+   * All the versions of one list's index.
+   */
+  class Tree {
+
+    /** The layers which are still in use, by root hash. */
+    final Cache<Hash, Layer> layers = CacheBuilder.newBuilder().weakValues().build();
+
+    final MVMap<String, Object[]> live;
+
+    final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    final String name;
+
+    Layer tip;
+
+
+    Tree(String name, MVMap<String, Object[]> live, Hash rootHash) {
+      this.name = name;
+      this.live = live;
+      tip = new Layer(rootHash);
+      layers.put(rootHash, tip);
+    }
+
+
+    /**
+     * Apply a set of changes to the durable map, recording the changes which would reverse them.
+     *
+     * @param changes the changes to apply
+     * @param inverse receives the reversing changes
+     */
+    private void apply(Map<String, IndexEntry> changes, Map<String, IndexEntry> inverse) {
+      for (Entry<String, IndexEntry> e : changes.entrySet()) {
+        IndexEntry value = e.getValue();
+        Object[] old = (value == TOMBSTONE) ? live.remove(e.getKey()) : live.put(e.getKey(), encode(value));
+        inverse.put(e.getKey(), old != null ? decode(old) : TOMBSTONE);
+      }
+    }
+
+
+    /**
+     * Create a layer for a root hash which is not related to any existing layer, by walking the Merkle tree.
+     *
+     * @param rootHash the root hash
+     * @param ms       the store holding the list
+     *
+     * @return the new layer
+     */
+    Layer detached(Hash rootHash, MerkleStore<Object> ms) {
+      logger.info("Building index {} for root {} by walking the Merkle tree", name, rootHash);
+      Map<String, IndexEntry> content = new HashMap<>();
+      walk(rootHash, ms, (k, e) -> content.put(k, e));
+
+      Layer layer = new Layer(rootHash);
+      layer.count = content.size();
+      lock.writeLock().lock();
+      try {
+        // Remove everything in the tip which is not in the new layer
+        for (String key : live.keySet()) {
+          content.putIfAbsent(key, TOMBSTONE);
+        }
+        layer.changes = content;
+        layer.parent = tip;
+        layers.put(rootHash, layer);
+      } finally {
+        lock.writeLock().unlock();
+      }
+      return layer;
+    }
+
+
+    long getCount(Layer layer) {
+      lock.readLock().lock();
+      try {
+        return layer.parent == null ? live.sizeAsLong() : layer.count;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+
+    /**
+     * Make a layer the tip, and record it as the durable version of the index.
+     *
+     * @param layer the layer
+     */
+    void persist(Layer layer) {
+      synchronized (KeyToHashIndexStore.this) {
+        lock.writeLock().lock();
+        try {
+          if (layer == tip) {
+            return;
+          }
+          reroot(layer);
+          roots.put(name, toKey(layer.rootHash));
+          store.commit();
+        } finally {
+          lock.writeLock().unlock();
+        }
+      }
+    }
+
+
+    /**
+     * Create a layer in memory from changes made on top of another layer.
+     *
+     * @param base     the layer the changes were made to
+     * @param changes  the changes, which are copied
+     * @param rootHash the root hash of the list with the changes applied
+     * @param count    the number of entries with the changes applied
+     *
+     * @return the new layer
+     */
+    Layer push(Layer base, Map<String, IndexEntry> changes, Hash rootHash, long count) {
+      Layer next = new Layer(rootHash);
+      next.changes = new HashMap<>(changes);
+      next.count = count;
+      lock.writeLock().lock();
+      try {
+        next.parent = base;
+        layers.put(rootHash, next);
+      } finally {
+        lock.writeLock().unlock();
+      }
+      return next;
+    }
+
+
+    IndexEntry read(Layer layer, String key) {
+      lock.readLock().lock();
+      try {
+        for (Layer l = layer; l.parent != null; l = l.parent) {
+          IndexEntry e = l.changes.get(key);
+          if (e != null) {
+            return e == TOMBSTONE ? null : e;
+          }
+        }
+        Object[] value = live.get(key);
+        return value != null ? decode(value) : null;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+
+    /**
+     * Move the durable map to the given layer. The write lock must be held.
+     *
+     * @param target the layer to become the tip
+     */
+    private void reroot(Layer target) {
+      ArrayDeque<Layer> path = new ArrayDeque<>();
+      for (Layer l = target; l.parent != null; l = l.parent) {
+        path.push(l);
+      }
+      if (!path.isEmpty()) {
+        logger.debug("Moving index {} back {} versions to {}", name, path.size(), target.rootHash);
+      }
+
+      // Start with the layer next to the tip, so each step makes its child the new tip.
+      while (!path.isEmpty()) {
+        Layer layer = path.pop();
+        Layer oldTip = layer.parent;
+        oldTip.count = live.sizeAsLong();
+        apply(layer.changes, oldTip.changes);
+        layer.changes = new HashMap<>();
+        oldTip.parent = layer;
+        layer.parent = null;
+        tip = layer;
+      }
+    }
+
+  }
+
+
+
+  private static IndexEntry decode(Object[] value) {
+    byte[] hash = (byte[]) value[0];
+    return new IndexEntry(hash != null ? new Hash(hash) : null, ((Number) value[1]).longValue());
+  }
+
+
+  private static Object[] encode(IndexEntry entry) {
+    return new Object[]{entry.hash != null ? entry.hash.get() : null, entry.index};
+  }
+
+
+  private static String toKey(Hash hash) {
+    return hash.isNull() ? "" : hash.toHexString();
+  }
+
+
+  /**
+   * Walk a Merkle list, passing each key's entry to the consumer.
+   */
+  private static void walk(Hash hash, MerkleStore<Object> ms, BiConsumer<String, IndexEntry> consumer) {
+    IpfsWalker.walk(hash, ms, new BiConsumer<Hash, Object[]>() {
+      long index = 0;
+
+
+      @Override
+      public void accept(Hash hash, Object[] value) {
+        consumer.accept((String) value[1], new IndexEntry(hash, index++));
+      }
+    });
+  }
+
+
+  private final MVMap<String, String> roots;
+
+  private final MVStore store;
+
+  private final Map<String, Tree> trees = new HashMap<>();
+
+
+  /**
+   * New instance.
+   *
+   * @param fileName the file holding the durable maps
+   */
+  public KeyToHashIndexStore(String fileName) {
+    store = new MVStore.Builder().fileName(fileName).autoCommitDisabled().open();
+    roots = store.openMap(ROOTS_MAP);
+  }
+
+
+  @Override
+  public synchronized void close() {
+    store.close();
+  }
+
+
+  @Override
+  public synchronized KeyToHashIndex<String> create(String name, Hash hash, MerkleStore<Object> ms) {
+    Hash rootHash = hash != null ? hash : Hash.NULL_HASH;
+    Tree tree = trees.get(name);
+    if (tree == null) {
+      tree = open(name, rootHash, ms);
+      trees.put(name, tree);
+    }
+
+    Layer layer = tree.layers.getIfPresent(rootHash);
+    if (layer == null) {
+      layer = tree.detached(rootHash, ms);
+    }
+    return new PersistentKeyToHashIndex(tree, layer);
+  }
+
+
+  /**
+   * Open the durable map for a list, rebuilding it if it does not hold the required root hash.
+   */
+  private Tree open(String name, Hash rootHash, MerkleStore<Object> ms) {
+    MVMap<String, Object[]> live = store.openMap(name);
+    String key = toKey(rootHash);
+    if (!key.equals(roots.get(name))) {
+      logger.info("Index {} is not at root {}. Rebuilding.", name, rootHash);
+      live.clear();
+      walk(rootHash, ms, (k, e) -> live.put(k, encode(e)));
+      roots.put(name, key);
+      store.commit();
+    } else {
+      logger.info("Index {} is up to date at root {}", name, rootHash);
+    }
+    return new Tree(name, live, rootHash);
+  }
+
+}
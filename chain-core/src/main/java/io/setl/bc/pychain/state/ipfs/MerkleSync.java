@@ -0,0 +1,593 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.ipfs;
+
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.setl.bc.exception.NoStateFoundException;
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.msgpack.MPWrappedArrayImpl;
+import io.setl.bc.pychain.serialise.hash.HashSerialisation;
+import io.setl.common.Sha256Hash;
+
+/**
+ * Copy a state into a Merkle store from other nodes, fetching only the parts of the state's trees which the store does not already hold.
+ *
+ * <p>The trees are walked from the state's root. As the store is content addressed, a node that is already held locally is the root of a complete sub-tree,
+ * so only the nodes which are missing are requested. Requests are made in batches, with a limited number of batches outstanding at once. Every node received
+ * is checked against its hash, and is held in memory until every node below it is in the store. Nodes are therefore written bottom up, and an abandoned
+ * synchronisation never leaves an incomplete sub-tree in the store.</p>
+ *
+ * <p>The state's root, and the configuration it refers to, cannot be checked against their hashes in the same way. Once everything else is held, the root is
+ * checked by loading the state and verifying its hash. Only then are the root and configuration written.</p>
+ */
+public class MerkleSync {
+
+  private static final Logger logger = LoggerFactory.getLogger(MerkleSync.class);
+
+
+
+  /** Checks a state's root once all the nodes it refers to are available. */
+  public interface RootVerifier {
+
+    /**
+     * Verify a state's root.
+     *
+     * @param root  the state's hash
+     * @param value the state's root
+     * @param nodes the nodes the root refers to, which have been received but not written to the store
+     *
+     * @return true if the root matches the state's hash
+     */
+    boolean verify(Hash root, Object[] value, MerkleStore<Object> nodes);
+
+  }
+
+
+
+  /** Sends a request for a batch of nodes to another node. */
+  public interface NodeRequester {
+
+    /**
+     * Request nodes.
+     *
+     * @param hashes the hashes of the nodes
+     */
+    void request(List<Hash> hashes);
+
+  }
+
+
+
+  /** An outstanding request. */
+  private static class Batch {
+
+    final Set<Hash> remaining;
+
+    final long time;
+
+
+    Batch(List<Hash> hashes, long time) {
+      this.remaining = new HashSet<>(hashes);
+      this.time = time;
+    }
+
+  }
+
+
+
+  /** A received node which is held until every node below it is in the store. */
+  private static class Staged {
+
+    final Object value;
+
+    /** Number of children not yet in the store. */
+    int pending = 0;
+
+
+    Staged(Object value) {
+      this.value = value;
+    }
+
+  }
+
+
+
+  /**
+   * Get the hashes of the child nodes of a tree node.
+   *
+   * @param value the node
+   *
+   * @return the child hashes
+   */
+  static List<Hash> children(Object value) {
+    if (!(value instanceof byte[][])) {
+      // A leaf
+      return Collections.emptyList();
+    }
+    byte[][] branch = (byte[][]) value;
+    List<Hash> children = new ArrayList<>(branch.length);
+    for (byte[] b : branch) {
+      if (b != null && b.length > 0) {
+        children.add(new Hash(b));
+      }
+    }
+    return children;
+  }
+
+
+  /**
+   * Check that a tree node matches its hash. Branches hash the concatenation of their children's hashes, and leaves hash their serialised form.
+   *
+   * @param hash  the expected hash
+   * @param value the node
+   *
+   * @return true if the node matches the hash
+   */
+  static boolean isValidNode(Hash hash, Object value) {
+    if (value instanceof byte[][]) {
+      MessageDigest digest = Sha256Hash.newDigest();
+      for (byte[] b : (byte[][]) value) {
+        digest.update(b);
+      }
+      return Arrays.equals(digest.digest(), hash.get());
+    }
+    if (value instanceof Object[]) {
+      return Arrays.equals(HashSerialisation.getInstance().digest(value), hash.get());
+    }
+    return false;
+  }
+
+
+  /**
+   * Verify a state's root by loading the state from it and checking the state's hash.
+   *
+   * @param root  the state's hash
+   * @param value the state's root
+   * @param nodes the nodes the root refers to
+   *
+   * @return true if the state matches its hash
+   */
+  static boolean isValidStateRoot(Hash root, Object[] value, MerkleStore<Object> nodes) {
+    try {
+      IpfsBasedState state = IpfsBasedState.decodeRootFromIPFsStorage(new MPWrappedArrayImpl(value), nodes);
+      return root.equals(state.getLoadedHash()) && state.verifyAll();
+    } catch (RuntimeException e) {
+      logger.warn("Received state root {} is malformed", root, e);
+      return false;
+    }
+  }
+
+
+  /** Number of times each node has been requested. */
+  private final Map<Hash, Integer> attempts = new HashMap<>();
+
+  private final int batchSize;
+
+  private final Set<Batch> batches = new LinkedHashSet<>();
+
+  /** Every node which has been queued, requested or received, so that shared sub-trees are only fetched once. */
+  private final Set<Hash> known = new HashSet<>();
+
+  private final int maxAttempts;
+
+  private final int maxBatches;
+
+  /** Outstanding requests, by node hash. */
+  private final Map<Hash, Batch> outstanding = new HashMap<>();
+
+  private final NodeRequester requester;
+
+  private final long requestTimeout;
+
+  private final CompletableFuture<Hash> result = new CompletableFuture<>();
+
+  private final Hash root;
+
+  /** Nodes referenced directly by the state's root, which are checked with the state rather than individually. */
+  private final Set<Hash> rootReferences = new HashSet<>();
+
+  private final RootVerifier rootVerifier;
+
+  /** Received nodes which cannot be written until the nodes below them are. */
+  private final Map<Hash, Staged> staged = new HashMap<>();
+
+  private final MerkleStore<Object> store;
+
+  /** Nodes waiting to be requested. Used as a stack so the walk is depth first and the queue stays small. */
+  private final Deque<Hash> toFetch = new ArrayDeque<>();
+
+  /** Received nodes which can only be written once the state's root has been verified. */
+  private final Map<Hash, Object> unverified = new HashMap<>();
+
+  /** The store as seen by the root verifier: the store, plus the nodes received but not yet written. */
+  private final MerkleStore<Object> verifierView = new MerkleStore<Object>() {
+    @Override
+    public Object get(@Nonnull Hash hash) {
+      Object value = unverified.get(hash);
+      return value != null ? value : store.get(hash);
+    }
+
+
+    @Override
+    public void put(@Nonnull Hash hash, Object data) {
+      unverified.put(hash, data);
+    }
+  };
+
+  /** For each node not yet in the store, the staged nodes which refer to it. */
+  private final Map<Hash, List<Hash>> waiting = new HashMap<>();
+
+  private long fetchedCount = 0;
+
+  private long heldCount = 0;
+
+
+  /**
+   * New instance.
+   *
+   * @param store          the store to copy the state into
+   * @param root           the hash of the state
+   * @param batchSize      the most nodes to request at once
+   * @param maxBatches     the most requests to have outstanding at once
+   * @param requestTimeout milliseconds to wait for a request to be answered before asking again
+   * @param maxAttempts    the most times to request a node before giving up
+   * @param requester      sends requests for nodes
+   */
+  public MerkleSync(
+      MerkleStore<Object> store, Hash root, int batchSize, int maxBatches, long requestTimeout, int maxAttempts, NodeRequester requester
+  ) {
+    this(store, root, batchSize, maxBatches, requestTimeout, maxAttempts, requester, MerkleSync::isValidStateRoot);
+  }
+
+
+  /**
+   * New instance.
+   *
+   * @param store          the store to copy the state into
+   * @param root           the hash of the state
+   * @param batchSize      the most nodes to request at once
+   * @param maxBatches     the most requests to have outstanding at once
+   * @param requestTimeout milliseconds to wait for a request to be answered before asking again
+   * @param maxAttempts    the most times to request a node before giving up
+   * @param requester      sends requests for nodes
+   * @param rootVerifier   checks the state's root before it is written
+   */
+  @SuppressWarnings("squid:S00107") // Params > 7
+  public MerkleSync(
+      MerkleStore<Object> store, Hash root, int batchSize, int maxBatches, long requestTimeout, int maxAttempts, NodeRequester requester,
+      RootVerifier rootVerifier
+  ) {
+    this.store = store;
+    this.rootVerifier = rootVerifier;
+    this.root = root;
+    this.batchSize = Math.max(1, batchSize);
+    this.maxBatches = Math.max(1, maxBatches);
+    this.requestTimeout = requestTimeout;
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.requester = requester;
+  }
+
+
+  private void accept(Hash hash, Object value, List<Hash> children) {
+    fetchedCount++;
+    Staged node = new Staged(value);
+    staged.put(hash, node);
+
+    for (Hash child : children) {
+      boolean isNew = known.add(child);
+      if (store.get(child) != null) {
+        // Already held, and so is everything below it.
+        if (isNew) {
+          heldCount++;
+        }
+        continue;
+      }
+
+      // The child is missing, or has been received but is waiting on its own children.
+      node.pending++;
+      waiting.computeIfAbsent(child, c -> new ArrayList<>()).add(hash);
+      if (isNew) {
+        toFetch.push(child);
+      }
+    }
+
+    if (node.pending == 0) {
+      complete(hash);
+    }
+  }
+
+
+  /**
+   * Check a received node and find the nodes it refers to.
+   *
+   * @param hash  the node's hash
+   * @param value the node
+   *
+   * @return the hashes of the nodes it refers to, or null if the node is not acceptable
+   */
+  private List<Hash> check(Hash hash, Object value) {
+    if (hash.equals(root)) {
+      if (!(value instanceof Object[])) {
+        return null;
+      }
+      try {
+        List<Hash> references = IpfsBasedState.getReferencedHashes(new MPWrappedArrayImpl((Object[]) value));
+        rootReferences.addAll(references);
+        return references;
+      } catch (RuntimeException e) {
+        logger.warn("Received state root {} is malformed", hash, e);
+        return null;
+      }
+    }
+
+    if (isValidNode(hash, value)) {
+      return children(value);
+    }
+
+    // The state's configuration is not a tree node, but it is covered by the state's hash.
+    if (rootReferences.contains(hash) && !(value instanceof Object[]) && !(value instanceof byte[][])) {
+      return Collections.emptyList();
+    }
+    return null;
+  }
+
+
+  /**
+   * Re-request any nodes whose requests have not been answered in time. This should be called periodically while the synchronisation is in progress.
+   */
+  public void checkTimeouts() {
+    synchronized (this) {
+      long expired = System.currentTimeMillis() - requestTimeout;
+      Iterator<Batch> iterator = batches.iterator();
+      while (iterator.hasNext()) {
+        Batch batch = iterator.next();
+        if (batch.time < expired) {
+          iterator.remove();
+          logger.warn("Request for {} Merkle nodes timed out", batch.remaining.size());
+          for (Hash hash : batch.remaining) {
+            outstanding.remove(hash);
+            retry(hash);
+          }
+        }
+      }
+    }
+    pump();
+  }
+
+
+  /**
+   * A staged node's sub-tree is complete, so write it and then any nodes which were waiting for it.
+   *
+   * @param first the node
+   */
+  private void complete(Hash first) {
+    Deque<Hash> completed = new ArrayDeque<>();
+    completed.push(first);
+    while (!completed.isEmpty()) {
+      Hash hash = completed.pop();
+      if (hash.equals(root)) {
+        completeRoot();
+        continue;
+      }
+
+      Staged node = staged.remove(hash);
+      if (rootReferences.contains(hash) && !isValidNode(hash, node.value)) {
+        // The configuration is only checked with the root
+        unverified.put(hash, node.value);
+      } else {
+        store.put(hash, node.value);
+      }
+
+      List<Hash> parents = waiting.remove(hash);
+      if (parents != null) {
+        for (Hash parent : parents) {
+          Staged parentNode = staged.get(parent);
+          parentNode.pending--;
+          if (parentNode.pending == 0) {
+            completed.push(parent);
+          }
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Everything the root refers to has been received, so verify the root and write it with the nodes which depend on it.
+   */
+  private void completeRoot() {
+    Staged node = staged.remove(root);
+    if (rootVerifier.verify(root, (Object[]) node.value, verifierView)) {
+      unverified.forEach(store::put);
+      unverified.clear();
+      store.put(root, node.value);
+      return;
+    }
+
+    // Forget everything which was only checked with the root, and ask for the root again.
+    logger.warn("Received state root {} does not match the state's hash", root);
+    known.removeAll(unverified.keySet());
+    unverified.clear();
+    rootReferences.clear();
+    retry(root);
+  }
+
+
+  private void fail(Hash hash) {
+    logger.error("Unable to obtain Merkle node {} after {} attempts", hash, maxAttempts);
+    result.completeExceptionally(new NoStateFoundException("Merkle node " + hash + " for state " + root + " is not available"));
+  }
+
+
+  /**
+   * Get the number of nodes fetched from other nodes.
+   *
+   * @return the number of nodes
+   */
+  public synchronized long getFetchedCount() {
+    return fetchedCount;
+  }
+
+
+  /**
+   * Get the number of sub-trees which did not need to be fetched as they were already held locally.
+   *
+   * @return the number of sub-trees
+   */
+  public synchronized long getHeldCount() {
+    return heldCount;
+  }
+
+
+  public Hash getRoot() {
+    return root;
+  }
+
+
+  public boolean isDone() {
+    return result.isDone();
+  }
+
+
+  /**
+   * Accept nodes sent by another node. Nodes which were not requested are ignored. Nodes which the sender did not have, or which do not match their hashes,
+   * are requested again.
+   *
+   * @param hashes the hashes of the nodes
+   * @param values the nodes, in the same order as the hashes
+   */
+  public void nodesReceived(@Nonnull List<Hash> hashes, @Nonnull List<Object> values) {
+    synchronized (this) {
+      if (result.isDone()) {
+        return;
+      }
+      for (int i = 0; i < hashes.size(); i++) {
+        Hash hash = hashes.get(i);
+        Batch batch = outstanding.remove(hash);
+        if (batch == null) {
+          // Not requested, or already answered
+          continue;
+        }
+        batch.remaining.remove(hash);
+        if (batch.remaining.isEmpty()) {
+          batches.remove(batch);
+        }
+
+        Object value = i < values.size() ? values.get(i) : null;
+        List<Hash> children = value != null ? check(hash, value) : null;
+        if (children != null) {
+          accept(hash, value, children);
+        } else {
+          if (value != null) {
+            logger.warn("Received Merkle node {} does not match its hash", hash);
+          }
+          retry(hash);
+        }
+      }
+    }
+    pump();
+  }
+
+
+  /**
+   * Send requests while there is capacity, or complete the synchronisation if there is nothing left to fetch.
+   */
+  private void pump() {
+    List<List<Hash>> toSend = new ArrayList<>();
+    boolean complete = false;
+    synchronized (this) {
+      if (result.isDone()) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      while (batches.size() < maxBatches && !toFetch.isEmpty()) {
+        List<Hash> hashes = new ArrayList<>(Math.min(batchSize, toFetch.size()));
+        while (hashes.size() < batchSize && !toFetch.isEmpty()) {
+          Hash hash = toFetch.pop();
+          attempts.merge(hash, 1, Integer::sum);
+          hashes.add(hash);
+        }
+        Batch batch = new Batch(hashes, now);
+        batches.add(batch);
+        for (Hash hash : hashes) {
+          outstanding.put(hash, batch);
+        }
+        toSend.add(hashes);
+      }
+      if (toSend.isEmpty() && outstanding.isEmpty() && toFetch.isEmpty()) {
+        complete = true;
+      }
+    }
+
+    if (complete) {
+      store.flush();
+      logger.info("State {} synchronised. Fetched {} nodes, {} sub-trees already held.", root, getFetchedCount(), getHeldCount());
+      result.complete(root);
+      return;
+    }
+
+    for (List<Hash> hashes : toSend) {
+      requester.request(hashes);
+    }
+  }
+
+
+  private void retry(Hash hash) {
+    if (attempts.getOrDefault(hash, 0) >= maxAttempts) {
+      fail(hash);
+      return;
+    }
+    toFetch.push(hash);
+  }
+
+
+  /**
+   * Start the synchronisation. If the state is already held, it completes immediately.
+   *
+   * @return a future which completes with the state's hash when all of the state is held in the store
+   */
+  public CompletableFuture<Hash> start() {
+    synchronized (this) {
+      if (known.add(root) && store.get(root) == null) {
+        toFetch.push(root);
+      }
+    }
+    pump();
+    return result;
+  }
+
+}
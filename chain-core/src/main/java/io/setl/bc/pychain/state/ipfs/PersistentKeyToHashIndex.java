@@ -0,0 +1,164 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.ipfs;
+
+import static io.setl.bc.pychain.state.ipfs.KeyToHashIndexStore.TOMBSTONE;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.state.ipfs.KeyToHashIndexStore.IndexEntry;
+import io.setl.bc.pychain.state.ipfs.KeyToHashIndexStore.Layer;
+import io.setl.bc.pychain.state.ipfs.KeyToHashIndexStore.Tree;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A list index held in a <code>KeyToHashIndexStore</code>. Committing the list's new root hash turns the changes into an in-memory layer, which is only
+ * written to the durable map when the index is persisted as part of a written state. Copies share everything except their uncommitted changes.
+ */
+public class PersistentKeyToHashIndex implements KeyToHashIndex<String> {
+
+  /** Changes since the base layer. Removed keys map to the tombstone. */
+  private final Map<String, IndexEntry> changes;
+
+  private final Tree tree;
+
+  private Layer base;
+
+  private long entryCount;
+
+
+  PersistentKeyToHashIndex(Tree tree, Layer base) {
+    this.tree = tree;
+    this.base = base;
+    changes = new HashMap<>();
+    entryCount = tree.getCount(base);
+  }
+
+
+  private PersistentKeyToHashIndex(PersistentKeyToHashIndex original) {
+    tree = original.tree;
+    base = original.base;
+    entryCount = original.entryCount;
+    changes = new HashMap<>(original.changes.size() * 4 / 3 + 1);
+    for (Entry<String, IndexEntry> e : original.changes.entrySet()) {
+      IndexEntry value = e.getValue();
+      changes.put(e.getKey(), value == TOMBSTONE ? TOMBSTONE : new IndexEntry(value.hash, value.index));
+    }
+  }
+
+
+  @Override
+  public void commit(Hash rootHash) {
+    if (changes.isEmpty()) {
+      return;
+    }
+    base = tree.push(base, changes, rootHash, entryCount);
+    changes.clear();
+  }
+
+
+  @Override
+  public PersistentKeyToHashIndex copy() {
+    return new PersistentKeyToHashIndex(this);
+  }
+
+
+  @Override
+  public long find(String key) {
+    HashAndIndex hai = get(key);
+    return (hai != null) ? hai.getIndex() : -1;
+  }
+
+
+  @Override
+  public HashAndIndex get(String key) {
+    IndexEntry entry = changes.get(key);
+    if (entry != null) {
+      return entry == TOMBSTONE ? null : entry;
+    }
+    return tree.read(base, key);
+  }
+
+
+  @Override
+  public long getEntryCount() {
+    return entryCount;
+  }
+
+
+  /**
+   * Get the entry for a key, as a change that can be modified.
+   */
+  private IndexEntry getForUpdate(String key) {
+    IndexEntry entry = changes.get(key);
+    if (entry == null) {
+      IndexEntry current = tree.read(base, key);
+      if (current != null) {
+        entry = new IndexEntry(current.hash, current.index);
+        changes.put(key, entry);
+      }
+    }
+    if (entry == null || entry == TOMBSTONE) {
+      throw new IllegalArgumentException("No index entry for " + key);
+    }
+    return entry;
+  }
+
+
+  @Override
+  public void persist() {
+    tree.persist(base);
+  }
+
+
+  @Override
+  public void put(String key, long value) {
+    if (get(key) == null) {
+      entryCount++;
+    }
+    changes.put(key, new IndexEntry(null, value));
+  }
+
+
+  @Override
+  public void remove(String key) {
+    if (get(key) != null) {
+      entryCount--;
+    }
+    if (tree.read(base, key) != null) {
+      changes.put(key, TOMBSTONE);
+    } else {
+      changes.remove(key);
+    }
+  }
+
+
+  @Override
+  public void set(String key, Hash hash) {
+    getForUpdate(key).hash = hash;
+  }
+
+
+  @Override
+  public void set(String key, long index) {
+    getForUpdate(key).index = index;
+  }
+
+}
@@ -27,6 +27,7 @@ import io.setl.bc.pychain.state.SnapshotMerkle;
 import io.setl.bc.pychain.state.entry.EntryDecoder;
 import io.setl.bc.pychain.state.entry.MEntry;
 import io.setl.bc.pychain.state.hashtree.HashTree;
+import io.setl.bc.pychain.state.hashtree.HashTreeFactory;
 import io.setl.bc.pychain.state.hashtree.IncrementalMerkleHashCalculator;
 import io.setl.bc.pychain.state.hashtree.MemoryBackedHashTree;
 import io.setl.bc.pychain.state.index.DefaultKeyToIndex;
@@ -52,13 +53,27 @@ public abstract class KeyedIndexedEntryList<ValueType extends MEntry>
 
   private static final Logger logger = LoggerFactory.getLogger(KeyedIndexedEntryList.class);
 
+  private static volatile HashTreeFactory hashTreeFactory = null;
+
+
+  /**
+   * Set the source of the hash trees of lists which are loaded as part of a state. By default, every tree is computed on the heap when it is first needed.
+   *
+   * @param factory the new source of hash trees, or null
+   */
+  public static void setHashTreeFactory(@Nullable HashTreeFactory factory) {
+    hashTreeFactory = factory;
+  }
+
+
   private final EntryDecoder<ValueType> decoder;
 
   private final Class<ValueType> leafType;
 
   protected List<ValueType> entriesList;
 
-  private HashTree hashTree = new MemoryBackedHashTree();
+  /** The hash tree, or null if it has not been needed yet. */
+  private HashTree hashTree = null;
 
   private DefaultKeyToIndex<String> keyToIndex = new DefaultKeyToIndex<>();
 
@@ -80,8 +95,6 @@ public abstract class KeyedIndexedEntryList<ValueType extends MEntry>
     this.leafType = leafType;
     entriesList = decodeToEntryList();
 
-    buildHashTree();
-
     for (long i = 0, l = getEntryCount(); i < l; i++) {
       keyToIndex.put(entriesList.get((int) i).getKey(), i);
     }
@@ -92,24 +105,19 @@ public abstract class KeyedIndexedEntryList<ValueType extends MEntry>
     this.decoder = decoder;
     this.leafType = leafType;
     entriesList = decodeToEntryList();
-    buildHashTree();
   }
 
 
   private void buildHashTree() {
+    hashTree = new MemoryBackedHashTree();
+    unhashedChanges = new HashSet<>();
     Set<Long> changes = new HashSet<>();
 
     for (long i = 0, l = getEntryCount(); i < l; i++) {
       changes.add(i);
     }
 
-    new IncrementalMerkleHashCalculator().computeHashesFromChanges(hashTree, this, hashSerialiser,
-        changes, (i, a, b, c) -> {
-          if (msw != null) {
-            msw.put(a, b);
-          }
-        }
-    );
+    new IncrementalMerkleHashCalculator().computeHashesFromChanges(hashTree, this, hashSerialiser, changes, null);
   }
 
 
@@ -119,7 +127,7 @@ public abstract class KeyedIndexedEntryList<ValueType extends MEntry>
     if (getEntryCount() == 0) {
       return "";
     }
-    return Hex.encode(hashTree.getTopHashEntry());
+    return Hex.encode(getHashTree().getTopHashEntry());
   }
 
 
@@ -236,6 +244,7 @@ public abstract class KeyedIndexedEntryList<ValueType extends MEntry>
    * @return the SHA
    */
   public Hash getHash() {
+    getHashTree();
     if (!unhashedChanges.isEmpty()) {
       Set<Long> changedIndices = unhashedChanges;
       IndexedList<Object[]> indexedList = this;
@@ -246,6 +255,14 @@ public abstract class KeyedIndexedEntryList<ValueType extends MEntry>
   }
 
 
+  private HashTree getHashTree() {
+    if (hashTree == null) {
+      buildHashTree();
+    }
+    return hashTree;
+  }
+
+
   @Override
   public Object[] getHashableEntry(long i) {
     if (!unhashedChanges.isEmpty()) {
@@ -280,6 +297,9 @@ public abstract class KeyedIndexedEntryList<ValueType extends MEntry>
    * @param msw a Merkle store writer instance (optional)
    */
   public void iterate(MerkleStoreWriter<Object[]> msw) {
+    if (!unhashedChanges.isEmpty()) {
+      throw new IllegalStateException("Unhashed changes - access blocked");
+    }
     Set<Long> changes = new HashSet<>();
 
     for (long i = 0, l = getEntryCount(); i < l; i++) {
@@ -290,7 +310,7 @@ public abstract class KeyedIndexedEntryList<ValueType extends MEntry>
       logger.trace("{} Changed entities {}/{}", this.getClass().getName(), changes.size(), getEntryCount());
     }
 
-    new IncrementalMerkleHashCalculator().computeHashesFromChanges(hashTree, this, hashSerialiser,
+    new IncrementalMerkleHashCalculator().computeHashesFromChanges(getHashTree(), this, hashSerialiser,
         changes, (i, a, b, c) -> {
           if (msw != null) {
             msw.put(a, b);
@@ -302,6 +322,23 @@ public abstract class KeyedIndexedEntryList<ValueType extends MEntry>
   }
 
 
+  /**
+   * Use the hash tree saved with the state this list has been loaded from, if there is one, rather than compute the tree.
+   *
+   * @param stateHash the hash of the state
+   */
+  public void openHashTree(Hash stateHash) {
+    HashTreeFactory factory = hashTreeFactory;
+    if (factory == null || hashTree != null || !unhashedChanges.isEmpty()) {
+      return;
+    }
+    HashTree opened = factory.open(this, getClass().getSimpleName(), stateHash);
+    if (opened.getTopHashEntry() != null) {
+      hashTree = opened;
+    }
+  }
+
+
   @Override
   public boolean remove(String key) {
     return remove(-1, key) != -1;
@@ -357,6 +394,20 @@ public abstract class KeyedIndexedEntryList<ValueType extends MEntry>
   }
 
 
+  /**
+   * Save this list's hash tree, as the list is saved as part of a state.
+   *
+   * @param stateHash the hash of the state
+   */
+  public void saveHashTree(Hash stateHash) {
+    HashTreeFactory factory = hashTreeFactory;
+    if (factory != null) {
+      getHash();
+      factory.save(this, getClass().getSimpleName(), stateHash, hashTree, getEntryCount());
+    }
+  }
+
+
   public void setMerkleStoreWriter(MerkleStoreWriter<Object[]> msw) {
     this.msw = msw;
   }
@@ -20,6 +20,7 @@ package io.setl.bc.pychain.state.monolithic;
 
 import static io.setl.common.CommonPy.VersionConstants.VERSION_LOCKED_ASSET_AS_MERKLE;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -92,6 +93,7 @@ public class ObjectEncodedState extends AbstractEncodedState {
       stateObject.lockedAssetsList = new LockedAssetsList();
 
       stateObject.setLoadedHash(Hash.fromHex(v.asString(3)));
+      stateObject.openHashTrees();
       stateObject.isInitialised = true;
       stateObject.initMerkleNames();
       return stateObject;
@@ -142,6 +144,7 @@ public class ObjectEncodedState extends AbstractEncodedState {
     }
 
     stateObject.setLoadedHash(Hash.fromHex(v.asString(3)));
+    stateObject.openHashTrees();
     stateObject.isInitialised = true;
     stateObject.initMerkleNames();
     return stateObject;
@@ -282,6 +285,11 @@ public class ObjectEncodedState extends AbstractEncodedState {
   }
 
 
+  private List<KeyedIndexedEntryList<?>> hashedLists() {
+    return Arrays.asList(signNodeList, namespaceList, assetBalanceList, contractsList, encumbrancesList, poaList, lockedAssetsList);
+  }
+
+
   /**
    * Initialise the by-name lookup of the fixed Merkles.
    */
@@ -334,6 +342,26 @@ public class ObjectEncodedState extends AbstractEncodedState {
   }
 
 
+  /**
+   * Use the hash trees saved with this state, if there are any, rather than compute them.
+   */
+  private void openHashTrees() {
+    for (KeyedIndexedEntryList<?> list : hashedLists()) {
+      list.openHashTree(getLoadedHash());
+    }
+  }
+
+
+  /**
+   * Save the hash trees of this state's lists, so they can be reopened when this state is next loaded.
+   */
+  public void saveHashTrees() {
+    for (KeyedIndexedEntryList<?> list : hashedLists()) {
+      list.saveHashTree(getLoadedHash());
+    }
+  }
+
+
   private void setEncodedLockedAssets(MPWrappedMap<Object, Object> map) {
     lockedAssetsList = new LockedAssetsList();
     map.iterate((k, v) -> {
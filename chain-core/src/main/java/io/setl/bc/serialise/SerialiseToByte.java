@@ -18,7 +18,21 @@
 </notice> */
 package io.setl.bc.serialise;
 
+import io.setl.common.Sha256Hash;
+
 public interface SerialiseToByte {
 
+  /**
+   * Get the SHA-256 digest of an object's serialised form. Implementations may override this to avoid creating the serialised form.
+   *
+   * @param o the object
+   *
+   * @return the digest
+   */
+  default byte[] digest(Object o) {
+    return Sha256Hash.newDigest().digest(serialise(o));
+  }
+
+
   byte[] serialise(Object o);
 }
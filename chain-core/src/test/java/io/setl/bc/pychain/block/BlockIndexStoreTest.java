@@ -0,0 +1,161 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.block;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.when;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.block.BlockIndexStore.BlockSummary;
+import io.setl.bc.pychain.block.BlockIndexStore.TxLocation;
+import io.setl.bc.pychain.state.tx.MemoTx;
+import io.setl.bc.pychain.state.tx.Txi;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class BlockIndexStoreTest {
+
+  private static Block makeBlock(int height, Txi... txs) {
+    Block block = Mockito.mock(Block.class);
+    when(block.getHeight()).thenReturn(height);
+    when(block.getNodeName()).thenReturn("node" + height);
+    when(block.getTimeStamp()).thenReturn(1000L + height);
+    when(block.getTransactionCount()).thenReturn(txs.length);
+    when(block.getTransactionView()).thenReturn(new TxView(txs));
+    return block;
+  }
+
+
+  private static Txi makeTx(int nonce, String fromAddress) {
+    String hash = String.format("%064x", nonce);
+    return new MemoTx(20, 1, hash, nonce, false, "fromPubKey", fromAddress, null, null, -1, "", 0);
+  }
+
+
+  private static Hash blockHash(int height) {
+    return Hash.fromHex(String.format("%064x", 0x1000 + height));
+  }
+
+
+  private Path directory;
+
+  private BlockIndexStore store;
+
+
+  @Test
+  public void addressHistoryIsBounded() {
+    for (int height = 0; height < 3; height++) {
+      Txi[] txs = new Txi[BlockIndexStore.ADDRESS_HISTORY / 2];
+      for (int i = 0; i < txs.length; i++) {
+        txs[i] = makeTx(height * txs.length + i, "addr");
+      }
+      store.index(makeBlock(height, txs), blockHash(height));
+    }
+
+    List<String> latest = store.getAddressTransactions("addr");
+    assertEquals(BlockIndexStore.ADDRESS_HISTORY, latest.size());
+    assertEquals(makeTx(149, "addr").getHash(), latest.get(0));
+    assertEquals(makeTx(50, "addr").getHash(), latest.get(latest.size() - 1));
+  }
+
+
+  @Test
+  public void indexesBlock() {
+    store.index(makeBlock(0, makeTx(1, "a1")), blockHash(0));
+    store.index(makeBlock(1, makeTx(2, "a1"), makeTx(3, "a2")), blockHash(1));
+    assertEquals(1, store.getHeight());
+
+    TxLocation location = store.getTransaction(makeTx(3, "a2").getHash());
+    assertEquals(1, location.getHeight());
+    assertEquals(1, location.getPosition());
+    assertEquals(blockHash(1).toHexString(), location.getBlockHash());
+    assertNull(store.getTransaction(makeTx(4, "a2").getHash()));
+
+    BlockSummary summary = store.getBlock(1);
+    assertEquals(blockHash(1).toHexString(), summary.getBlockHash());
+    assertEquals(2, summary.getTxCount());
+    assertEquals(1001L, summary.getTimestamp());
+    assertEquals("node1", summary.getNodeName());
+    assertNull(store.getBlock(2));
+
+    assertEquals(Arrays.asList(makeTx(2, "a1").getHash(), makeTx(1, "a1").getHash()), store.getAddressTransactions("a1"));
+    assertEquals(Arrays.asList(makeTx(3, "a2").getHash()), store.getAddressTransactions("a2"));
+    assertEquals(0, store.getAddressTransactions("a3").size());
+  }
+
+
+  @Test
+  public void reindexingIsIgnored() {
+    Block block = makeBlock(0, makeTx(1, "a1"));
+    store.index(block, blockHash(0));
+    store.index(block, blockHash(0));
+    assertEquals(1, store.getAddressTransactions("a1").size());
+
+    // Survives a restart
+    store.close();
+    store = new BlockIndexStore(directory.resolve("index").toString());
+    assertEquals(0, store.getHeight());
+    assertEquals(0, store.getTransaction(makeTx(1, "a1").getHash()).getPosition());
+  }
+
+
+  @Test
+  public void replacedBlockIsRemoved() {
+    store.index(makeBlock(0, makeTx(1, "a1")), blockHash(0));
+    store.index(makeBlock(1, makeTx(2, "a1"), makeTx(3, "a2")), blockHash(1));
+    store.index(makeBlock(1, makeTx(3, "a2"), makeTx(4, "a3")), blockHash(2));
+
+    assertNull(store.getTransaction(makeTx(2, "a1").getHash()));
+    TxLocation location = store.getTransaction(makeTx(3, "a2").getHash());
+    assertEquals(blockHash(2).toHexString(), location.getBlockHash());
+    assertEquals(0, location.getPosition());
+    assertEquals(blockHash(2).toHexString(), store.getBlock(1).getBlockHash());
+
+    assertEquals(Arrays.asList(makeTx(1, "a1").getHash()), store.getAddressTransactions("a1"));
+    assertEquals(Arrays.asList(makeTx(3, "a2").getHash()), store.getAddressTransactions("a2"));
+    assertEquals(Arrays.asList(makeTx(4, "a3").getHash()), store.getAddressTransactions("a3"));
+  }
+
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("blockindex");
+    store = new BlockIndexStore(directory.resolve("index").toString());
+  }
+
+
+  @After
+  public void tearDown() throws IOException {
+    store.close();
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+
+}
@@ -0,0 +1,99 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.block;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.setl.bc.pychain.state.tx.MemoTx;
+import io.setl.bc.pychain.state.tx.Txi;
+import io.setl.util.Priorities;
+import io.setl.util.PriorityExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+public class TxViewTest {
+
+  private static Txi makeTx(int nonce) {
+    return new MemoTx(20, 1, nonce, false, "fromPubKey", "fromAddress", null, "", 0);
+  }
+
+
+  @Test
+  public void decodeAll() {
+    AtomicInteger decodes = new AtomicInteger();
+    TxView view = new TxView(100, i -> {
+      decodes.incrementAndGet();
+      return makeTx(i);
+    });
+    assertFalse(view.isComplete());
+
+    PriorityExecutor executor = new PriorityExecutor(4);
+    try {
+      view.decodeAll(executor.newTaskContext(Priorities.STATE_UPDATE));
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(view.isComplete());
+    assertEquals(100, decodes.get());
+
+    // Already decoded, so nothing more to do
+    view.decodeAll(null);
+    assertEquals(100, view.stream().map(Txi::getNonce).distinct().count());
+    assertEquals(100, decodes.get());
+  }
+
+
+  @Test
+  public void decodesLazily() {
+    AtomicInteger decodes = new AtomicInteger();
+    TxView view = new TxView(10, i -> {
+      decodes.incrementAndGet();
+      return makeTx(i);
+    });
+    assertEquals(10, view.size());
+    assertEquals(0, decodes.get());
+
+    Txi txi = view.get(3);
+    assertEquals(3, txi.getNonce());
+    assertSame(txi, view.get(3));
+    assertEquals(1, decodes.get());
+  }
+
+
+  @Test
+  public void fromArray() {
+    Txi[] txs = new Txi[]{makeTx(1), makeTx(2)};
+    TxView view = new TxView(txs);
+    assertTrue(view.isComplete());
+    assertArrayEquals(txs, view.toTxArray());
+    assertEquals("1,2", view.stream().map(t -> Long.toString(t.getNonce())).collect(Collectors.joining(",")));
+  }
+
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void isReadOnly() {
+    new TxView(new Txi[]{makeTx(1)}).set(0, makeTx(2));
+  }
+
+}
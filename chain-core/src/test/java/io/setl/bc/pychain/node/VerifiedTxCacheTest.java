@@ -0,0 +1,136 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.node;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.block.Block;
+import io.setl.bc.pychain.msgpack.MPWrappedArray;
+import io.setl.bc.pychain.msgpack.MPWrappedArrayImpl;
+import io.setl.bc.pychain.state.tx.AbstractTx;
+import io.setl.bc.pychain.state.tx.MemoTx;
+import io.setl.bc.pychain.state.tx.Txi;
+import io.setl.common.CommonPy.TxGeneralFields;
+import java.util.Collections;
+import org.junit.Test;
+
+public class VerifiedTxCacheTest {
+
+  private static MemoTx memo(String hash, long nonce) {
+    return new MemoTx(16, 1, hash, nonce, false, "fromPubKey", "fromAddress", "metadata", "signature", -1, "", 1000L);
+  }
+
+
+  @Test
+  public void blockEncodingIsHit() {
+    VerifiedTxCache cache = new VerifiedTxCache();
+    MemoTx tx = memo("hash1", 1);
+    cache.put(tx);
+
+    // The block records that the transaction was applied, as the processor does.
+    MemoTx applied = memo("hash1", 1);
+    applied.setGood(true);
+    MPWrappedArray encoded = new MPWrappedArrayImpl(applied.encodeTx());
+    assertNotNull(cache.get(encoded));
+    Block block = new Block(16, 5, Hash.fromHex("0123"), Hash.fromHex("4567"), Collections.singletonList(encoded), 1000L, "node", Collections.emptyList(),
+        new Object[0], null, null);
+
+    VerifiedTxCache previous = VerifiedTxCache.getInstance();
+    VerifiedTxCache.setInstance(cache);
+    try {
+      Txi decoded = block.getTransactionView().get(0);
+      assertTrue(decoded.isGood());
+      assertArrayEquals(applied.encodeTx(), ((AbstractTx) decoded).encodeTx());
+    } finally {
+      VerifiedTxCache.setInstance(previous);
+    }
+
+    // The shared instance keeps the status it was verified with.
+    assertFalse(tx.isGood());
+    assertSame(tx, cache.get(new MPWrappedArrayImpl(tx.encodeTx())));
+  }
+
+
+  @Test
+  public void decode() {
+    VerifiedTxCache cache = new VerifiedTxCache();
+    MemoTx tx = memo("hash1", 1);
+    MPWrappedArrayImpl encoded = new MPWrappedArrayImpl(tx.encodeTx());
+
+    // Not cached, so decoded afresh
+    AbstractTx decoded = cache.decode(encoded);
+    assertNotSame(tx, decoded);
+    assertArrayEquals(tx.encodeTx(), decoded.encodeTx());
+    assertEquals(0, cache.size());
+
+    cache.put(tx);
+    assertSame(tx, cache.decode(encoded));
+  }
+
+
+  @Test
+  public void getRequiresMatch() {
+    VerifiedTxCache cache = new VerifiedTxCache();
+    MemoTx tx = memo("hash1", 1);
+    cache.put(tx);
+    assertSame(tx, cache.get("hash1"));
+    assertSame(tx, cache.get(new MPWrappedArrayImpl(tx.encodeTx())));
+
+    // Same hash, different nonce
+    assertNull(cache.get(new MPWrappedArrayImpl(memo("hash1", 2).encodeTx())));
+
+    // Same hash, different public key
+    Object[] encoded = tx.encodeTx();
+    encoded[TxGeneralFields.TX_FROM_PUB] = "otherKey";
+    assertNull(cache.get(new MPWrappedArrayImpl(encoded)));
+
+    // Processing status differs, so a copy is returned
+    encoded = tx.encodeTx();
+    encoded[TxGeneralFields.TX_UPDATED] = Boolean.TRUE;
+    AbstractTx applied = cache.get(new MPWrappedArrayImpl(encoded));
+    assertNotSame(tx, applied);
+    assertArrayEquals(encoded, applied.encodeTx());
+
+    // Same hash, nonce and key, but a different body
+    MemoTx other = new MemoTx(16, 1, "hash1", 1, false, "fromPubKey", "fromAddress", "other metadata", "signature", -1, "", 1000L);
+    assertNull(cache.get(new MPWrappedArrayImpl(other.encodeTx())));
+
+    cache.invalidateAll();
+    assertNull(cache.get("hash1"));
+  }
+
+
+  @Test
+  public void isBounded() {
+    VerifiedTxCache cache = new VerifiedTxCache(10);
+    for (int i = 0; i < 100; i++) {
+      cache.put(memo("hash" + i, i));
+    }
+    assertEquals(10, cache.size());
+  }
+
+}
@@ -19,8 +19,11 @@
 package io.setl.bc.pychain.node.txpool;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -45,8 +48,7 @@ public class LaneTest {
   private static final long NONCE = 10L;
 
 
-  @Test
-  public void rehash() {
+  private static StateManager mockStateManager() {
     StateManager stateManager = mock(StateManager.class);
     State state = mock(State.class);
     Merkle<AddressEntry> merkle = mock(Merkle.class);
@@ -56,6 +58,13 @@ public class LaneTest {
     when(merkle.find(any())).thenReturn(addressEntry);
     when(state.getAssetBalances()).thenReturn(merkle);
     when(stateManager.getState()).thenReturn(state);
+    return stateManager;
+  }
+
+
+  @Test
+  public void rehash() {
+    StateManager stateManager = mockStateManager();
 
     Random random = new Random(0x7e57ab1e);
     HashMap<String, Series> map = new HashMap<>();
@@ -96,4 +105,24 @@ public class LaneTest {
 
 
   }
+
+
+  @Test
+  public void rejectedAddLeavesNoSeries() {
+    StateManager stateManager = mockStateManager();
+    Lane lane = new Lane();
+
+    // A replayed nonce is rejected, and must not leave an empty series behind.
+    assertFalse(lane.addTx(stateManager, SparseArrayTest.makeTx(NONCE - 1)));
+    assertEquals(0, lane.size);
+    assertNull(lane.find("myAddress"));
+
+    assertTrue(lane.addTx(stateManager, SparseArrayTest.makeTx(NONCE)));
+    assertEquals(1, lane.size);
+
+    // A rejected add to a series which holds transactions leaves it in place.
+    assertFalse(lane.addTx(stateManager, SparseArrayTest.makeTx(NONCE - 1)));
+    assertEquals(1, lane.size);
+    assertNotNull(lane.find("myAddress"));
+  }
 }
\ No newline at end of file
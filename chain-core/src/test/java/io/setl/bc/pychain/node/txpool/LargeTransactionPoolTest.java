@@ -34,8 +34,11 @@ import io.setl.bc.pychain.block.MissingTxIds.NonceAndHash;
 import io.setl.bc.pychain.block.ProposedTxIds;
 import io.setl.bc.pychain.block.ProposedTxList;
 import io.setl.bc.pychain.block.ProposedTxList.Builder;
+import io.setl.bc.pychain.block.TransactionForProcessing;
 import io.setl.bc.pychain.block.TxIdList;
+import io.setl.bc.pychain.block.TxView;
 import io.setl.bc.pychain.node.StateManager;
+import io.setl.bc.pychain.node.TransactionPool.HasResult;
 import io.setl.bc.pychain.state.Merkle;
 import io.setl.bc.pychain.state.State;
 import io.setl.bc.pychain.state.entry.AddressEntry;
@@ -45,6 +48,7 @@ import io.setl.bc.pychain.tx.create.NullTX;
 import io.setl.util.PriorityExecutor;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.UUID;
@@ -175,7 +179,7 @@ public class LargeTransactionPoolTest {
     transactions[transactions.length - 1] = xChainTxPackageTx1;
 
     Block block = Mockito.mock(Block.class);
-    when(block.getTransactions()).thenReturn(transactions);
+    when(block.getTransactionView()).thenReturn(new TxView(transactions));
 
     value.bulkRemove(block);
 
@@ -212,6 +216,30 @@ public class LargeTransactionPoolTest {
   }
 
 
+  @Test
+  public void createProposalManyAddresses() {
+    for (int i = 0; i < 500; i++) {
+      for (int j = 0; j < 5; j++) {
+        value.addTx(makeTx(1000 + i, 10 + j));
+      }
+    }
+
+    ProposedTxList txList = value.createProposal(1234);
+    assertEquals(1234, txList.size());
+
+    // Every address must contribute a contiguous run of nonces starting at the state nonce.
+    HashMap<String, Long> expected = new HashMap<>();
+    for (TransactionForProcessing tfp : txList.getAllTx()) {
+      Txi txi = tfp.getWrapped();
+      long next = expected.getOrDefault(txi.getNonceAddress(), 10L);
+      assertEquals(next, txi.getNonce());
+      expected.put(txi.getNonceAddress(), next + 1);
+    }
+
+    assertEquals(2500, value.createProposal(10_000).size());
+  }
+
+
   @Test
   public void getAllTx() {
     ArrayList<Txi> expected = new ArrayList<>();
@@ -242,6 +270,18 @@ public class LargeTransactionPoolTest {
   }
 
 
+  @Test
+  public void hasTx() {
+    Txi txi = makeTx(20, 200);
+    Hash hash = Hash.fromHex(txi.getHash());
+    assertEquals(HasResult.NOT_PRESENT, value.hasTx(txi.getNonceAddress(), 200, hash));
+    assertEquals(HasResult.REPLAY, value.hasTx(txi.getNonceAddress(), 5, hash));
+
+    value.addTx(txi);
+    assertEquals(HasResult.PRESENT, value.hasTx(txi.getNonceAddress(), 200, hash));
+  }
+
+
   @Test
   public void matchTxs() {
     bulkAdd();
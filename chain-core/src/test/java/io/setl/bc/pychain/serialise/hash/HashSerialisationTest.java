@@ -24,6 +24,10 @@ import io.setl.bc.pychain.Hash;
 import io.setl.bc.pychain.HashableObjectArray;
 import io.setl.common.Balance;
 import io.setl.common.Hex;
+import io.setl.common.Sha256Hash;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
 import org.junit.Test;
 
 /**
@@ -31,6 +35,31 @@ import org.junit.Test;
  */
 public class HashSerialisationTest {
 
+  @Test
+  public void digestMatchesSerialisedForm() {
+    HashSerialisation serialisation = HashSerialisation.getInstance();
+    byte[] large = new byte[100_000];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) i;
+    }
+    char[] chars = new char[20_000];
+    Arrays.fill(chars, '\u00e9');
+    Object[] values = new Object[]{
+        "Hello, World!",
+        new Object[]{1, -1L, Long.MAX_VALUE, 1.5, true, null, "text"},
+        new Balance(0x0123456789abcdefL),
+        new BigDecimal("1234.5678"),
+        large,
+        new String(chars),
+        new Object[]{new Object[]{new Object[]{"deep", large}}, Collections.singletonMap("key", "value")}
+    };
+    for (Object value : values) {
+      byte[] expected = Sha256Hash.newDigest().digest(serialisation.serialise(value));
+      assertArrayEquals(expected, serialisation.digest(value));
+    }
+  }
+
+
   @Test
   public void getInstance() {
     assertNotNull(HashSerialisation.getInstance());
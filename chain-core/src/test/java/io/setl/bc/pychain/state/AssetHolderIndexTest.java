@@ -0,0 +1,138 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.state.entry.AddressEntry;
+import io.setl.bc.pychain.state.entry.NamespaceEntry;
+import io.setl.common.Balance;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AssetHolderIndexTest {
+
+  private static final Hash HASH_0 = Hash.fromHex(String.format("%064x", 0));
+
+  private static final Hash HASH_1 = Hash.fromHex(String.format("%064x", 1));
+
+
+  private static AddressEntry entry(String address, String... assets) {
+    AddressEntry entry = new AddressEntry(address);
+    for (String asset : assets) {
+      entry.setAssetBalance(asset, new Balance(10L));
+    }
+    return entry;
+  }
+
+
+  @SuppressWarnings("unchecked")
+  private static State state(Hash hash, AddressEntry... entries) {
+    List<AddressEntry> list = Arrays.asList(entries);
+    Merkle<AddressEntry> merkle = mock(Merkle.class);
+    when(merkle.iterator()).thenAnswer(i -> list.iterator());
+    State state = mock(State.class);
+    when(state.getAssetBalances()).thenReturn(merkle);
+    when(state.getLoadedHash()).thenReturn(hash);
+    return state;
+  }
+
+
+  private static Set<String> setOf(String... values) {
+    return new TreeSet<>(Arrays.asList(values));
+  }
+
+
+  private AssetHolderIndex index;
+
+
+  @Test
+  public void changesOutsideUpdateInvalidate() {
+    index.update(entry("a2"));
+    assertNull(index.getStateHash());
+    assertNull(index.getHolders("NS|A", HASH_0));
+  }
+
+
+  @Test
+  public void failedUpdateInvalidates() {
+    index.initialise(state(HASH_0));
+    index.update(entry("a2"));
+    index.fail(null);
+    assertNull(index.getStateHash());
+
+    // Rebuilt on the next update
+    index.initialise(state(HASH_0, entry("a1", "NS|A")));
+    index.complete(state(HASH_1));
+    assertEquals(setOf("a1"), index.getHolders("NS|A", HASH_1));
+  }
+
+
+  @Test
+  public void rebuild() {
+    assertEquals(HASH_0, index.getStateHash());
+    assertEquals(setOf("a1", "a2"), index.getHolders("NS|A", HASH_0));
+    assertEquals(setOf("a1"), index.getHolders("NS|B", HASH_0));
+    assertEquals(Collections.emptySet(), index.getHolders("NS|C", HASH_0));
+    assertEquals(setOf("NS|A", "NS|B"), index.getAssets("NS", HASH_0));
+    assertEquals(setOf("OT|X"), index.getAssets("OT", HASH_0));
+
+    // Wrong state
+    assertNull(index.getHolders("NS|A", HASH_1));
+    assertNull(index.getAssets("NS", HASH_1));
+  }
+
+
+  @Before
+  public void setUp() {
+    index = new AssetHolderIndex();
+    index.rebuild(state(HASH_0, entry("a1", "NS|A", "NS|B"), entry("a2", "NS|A"), entry("a3", "OT|X")));
+  }
+
+
+  @Test
+  public void tracksChanges() {
+    index.initialise(state(HASH_0));
+    index.start(1, 1);
+    index.update(entry("a2", "NS|B"));
+    index.remove("a3", AddressEntry.class);
+    index.remove("a1", NamespaceEntry.class);
+    index.add(entry("a4", "NS|C"));
+
+    // Not available until complete
+    assertNull(index.getHolders("NS|A", HASH_0));
+    index.complete(state(HASH_1));
+
+    assertEquals(setOf("a1"), index.getHolders("NS|A", HASH_1));
+    assertEquals(setOf("a1", "a2"), index.getHolders("NS|B", HASH_1));
+    assertEquals(setOf("a4"), index.getHolders("NS|C", HASH_1));
+    assertEquals(setOf("NS|A", "NS|B", "NS|C"), index.getAssets("NS", HASH_1));
+    assertEquals(Collections.emptySet(), index.getAssets("OT", HASH_1));
+  }
+
+}
@@ -0,0 +1,177 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.setl.bc.pychain.Defaults;
+import io.setl.bc.pychain.file.FileStateLoader;
+import io.setl.bc.pychain.state.entry.NamespaceEntry;
+import io.setl.bc.pychain.state.monolithic.ObjectEncodedState;
+import io.setl.bc.pychain.state.test.BlockBuilder;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StateSnapshotForkTest {
+
+  private FileStateLoader fileStateLoader;
+
+
+  private ObjectEncodedState getGenesis20() throws Exception {
+    String stateFile = "src/test/resources/test-states/genesis/20/e00f2e0ddc1e76879ce56437a2d153c7f039a44a784e9c659a5c581971c33999";
+    return new ObjectEncodedState(fileStateLoader.loadStateFromFile(stateFile));
+  }
+
+
+  @Test
+  public void impureForkIsRefused() throws Exception {
+    StateSnapshot s0 = getGenesis20().createSnapshot();
+    StateSnapshotFork f1 = StateSnapshotFork.fork(s0);
+    StateSnapshotFork f2 = StateSnapshotFork.fork(s0);
+
+    f1.startTransaction(0);
+    f1.setConfigValue("forkTest", "value");
+    f2.startTransaction(1);
+    f2.getNamespaces().add(new NamespaceEntry("forkB", "addressB", ""));
+
+    assertNotNull(StateSnapshotFork.merge(s0, Arrays.asList(f1, f2)));
+    assertNull(s0.getNamespaces().find("forkB"));
+  }
+
+
+  @Test
+  public void mergeMatchesSerialOrder() throws Exception {
+    // Serial processing
+    State state = getGenesis20();
+    StateSnapshot serial = state.createSnapshot();
+    serial.getNamespaces().add(new NamespaceEntry("forkA", "addressA", ""));
+    serial.getNamespaces().add(new NamespaceEntry("forkB", "addressB", ""));
+    serial.getNamespaces().add(new NamespaceEntry("forkC", "addressC", ""));
+    State serialState = serial.finalizeBlock(new BlockBuilder().build());
+
+    // Forked processing, with the transactions split so the forks see them out of order
+    state = getGenesis20();
+    StateSnapshot parent = state.createSnapshot();
+    StateSnapshotFork f1 = StateSnapshotFork.fork(parent);
+    StateSnapshotFork f2 = StateSnapshotFork.fork(parent);
+
+    f2.startTransaction(1);
+    f2.getNamespaces().add(new NamespaceEntry("forkB", "addressB", ""));
+    f1.startTransaction(0);
+    f1.getNamespaces().add(new NamespaceEntry("forkA", "addressA", ""));
+    f1.startTransaction(2);
+    f1.getNamespaces().add(new NamespaceEntry("forkC", "addressC", ""));
+
+    assertNull(StateSnapshotFork.merge(parent, Arrays.asList(f1, f2)));
+    State forkedState = parent.finalizeBlock(new BlockBuilder().build());
+
+    assertTrue(forkedState.getNamespaces().itemExists("forkA"));
+    assertTrue(forkedState.getNamespaces().itemExists("forkB"));
+    assertTrue(forkedState.getNamespaces().itemExists("forkC"));
+    assertEquals(serialState.getLoadedHash(), forkedState.getLoadedHash());
+  }
+
+
+  @Test
+  public void mergedUpdateKeepsSerialOrder() throws Exception {
+    // Serial processing: an earlier transaction creates entries which a later transaction updates
+    State state = getGenesis20();
+    StateSnapshot serial = state.createSnapshot();
+    serial.getNamespaces().add(new NamespaceEntry("forkA", "addressA", ""));
+    serial.getNamespaces().add(new NamespaceEntry("forkB", "addressB", ""));
+    serial.getNamespaces().add(new NamespaceEntry("forkC", "addressC", ""));
+    serial.getNamespaces().findAndMarkUpdated("forkA").setAddress("changed");
+    State serialState = serial.finalizeBlock(new BlockBuilder().build());
+
+    // The creation is processed directly, then the later transactions are forked
+    state = getGenesis20();
+    StateSnapshot parent = state.createSnapshot();
+    parent.getNamespaces().add(new NamespaceEntry("forkA", "addressA", ""));
+    parent.getNamespaces().add(new NamespaceEntry("forkB", "addressB", ""));
+    StateSnapshotFork f1 = StateSnapshotFork.fork(parent);
+    StateSnapshotFork f2 = StateSnapshotFork.fork(parent);
+
+    f2.startTransaction(1);
+    f2.getNamespaces().findAndMarkUpdated("forkA").setAddress("changed");
+    f1.startTransaction(0);
+    f1.getNamespaces().add(new NamespaceEntry("forkC", "addressC", ""));
+
+    assertNull(StateSnapshotFork.merge(parent, Arrays.asList(f1, f2)));
+    State forkedState = parent.finalizeBlock(new BlockBuilder().build());
+
+    assertEquals("changed", forkedState.getNamespaces().find("forkA").getAddress());
+    assertEquals(serialState.getLoadedHash(), forkedState.getLoadedHash());
+  }
+
+
+  @Test
+  public void readWriteConflictIsRefused() throws Exception {
+    State state = getGenesis20();
+    String nsKey = state.getNamespaces().iterator().next().getKey();
+
+    StateSnapshot s0 = state.createSnapshot();
+    StateSnapshotFork f1 = StateSnapshotFork.fork(s0);
+    StateSnapshotFork f2 = StateSnapshotFork.fork(s0);
+
+    f1.startTransaction(0);
+    f1.getNamespaces().findAndMarkUpdated(nsKey).setAddress("changed");
+    f2.startTransaction(1);
+    assertNotNull(f2.getNamespaces().find(nsKey));
+
+    List<StateSnapshotFork> forks = Arrays.asList(f1, f2);
+    assertNotNull(StateSnapshotFork.merge(s0, forks));
+  }
+
+
+  @Before
+  public void setUp() {
+    Defaults.reset();
+    fileStateLoader = new FileStateLoader();
+  }
+
+
+  @After
+  public void tearDown() {
+    Defaults.reset();
+  }
+
+
+  @Test
+  public void writeWriteConflictIsRefused() throws Exception {
+    StateSnapshot s0 = getGenesis20().createSnapshot();
+    StateSnapshotFork f1 = StateSnapshotFork.fork(s0);
+    StateSnapshotFork f2 = StateSnapshotFork.fork(s0);
+
+    f1.startTransaction(0);
+    f1.getNamespaces().add(new NamespaceEntry("forkA", "address1", ""));
+    f2.startTransaction(1);
+    f2.getNamespaces().add(new NamespaceEntry("forkA", "address2", ""));
+
+    assertNotNull(StateSnapshotFork.merge(s0, Arrays.asList(f1, f2)));
+    assertNull(s0.getNamespaces().find("forkA"));
+  }
+
+}
@@ -0,0 +1,112 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.hashtree;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import io.setl.bc.pychain.serialise.hash.HashSerialisation;
+import io.setl.bc.pychain.state.IndexedList;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class IncrementalMerkleHashCalculatorTest {
+
+  private static class TestList implements IndexedList<Object[]> {
+
+    final String[] values;
+
+
+    TestList(int size) {
+      values = new String[size];
+      for (int i = 0; i < size; i++) {
+        values[i] = "value" + i;
+      }
+    }
+
+
+    @Override
+    public long getEntryCount() {
+      return values.length;
+    }
+
+
+    @Override
+    public Object[] getHashableEntry(long i) {
+      return new Object[]{i, values[(int) i]};
+    }
+  }
+
+
+  private static Set<Long> range(long from, long to) {
+    Set<Long> set = new HashSet<>();
+    for (long i = from; i < to; i++) {
+      set.add(i);
+    }
+    return set;
+  }
+
+
+  private static byte[] fullHash(IndexedList<Object[]> list) {
+    byte[][][] tree = new FullFastMerkleHashCalculator().computeHashTreeFast(list, HashSerialisation.getInstance());
+    return tree[tree.length - 1][0];
+  }
+
+
+  private void checkInitialHash(int size) {
+    TestList list = new TestList(size);
+    byte[] root = new IncrementalMerkleHashCalculator().computeHashesFromChanges(
+        new MemoryBackedHashTree(), list, HashSerialisation.getInstance(), range(0, size), null);
+    assertArrayEquals(fullHash(list), root);
+  }
+
+
+  @Test
+  public void initialHashLarge() {
+    // Large enough that the lower levels are hashed in parallel
+    checkInitialHash(5003);
+  }
+
+
+  @Test
+  public void initialHashSmall() {
+    checkInitialHash(1);
+    checkInitialHash(2);
+    checkInitialHash(7);
+  }
+
+
+  @Test
+  public void updateHash() {
+    TestList list = new TestList(4000);
+    HashTree hashTree = new MemoryBackedHashTree();
+    IncrementalMerkleHashCalculator calculator = new IncrementalMerkleHashCalculator();
+    calculator.computeHashesFromChanges(hashTree, list, HashSerialisation.getInstance(), range(0, 4000), null);
+
+    Set<Long> changed = new HashSet<>();
+    for (int i = 0; i < 4000; i += 3) {
+      list.values[i] = "changed" + i;
+      changed.add((long) i);
+    }
+    byte[] root = calculator.computeHashesFromChanges(hashTree, list, HashSerialisation.getInstance(), changed, null);
+    assertArrayEquals(fullHash(list), root);
+  }
+
+}
@@ -0,0 +1,257 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.hashtree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.serialise.hash.HashSerialisation;
+import io.setl.bc.pychain.state.IndexedList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedHashTreeStoreTest {
+
+  /** A tree which counts how many nodes are read from it. */
+  private static class CountingTree implements HashTree {
+
+    final HashTree tree;
+
+    int reads = 0;
+
+
+    CountingTree(HashTree tree) {
+      this.tree = tree;
+    }
+
+
+    @Override
+    public byte[] getHashEntry(int level, long i) {
+      reads++;
+      return tree.getHashEntry(level, i);
+    }
+
+
+    @Override
+    public byte[] getTopHashEntry() {
+      return tree.getTopHashEntry();
+    }
+
+
+    @Override
+    public void removeHash(int level, long entry) {
+      tree.removeHash(level, entry);
+    }
+
+
+    @Override
+    public void setHash(int level, long entry, byte[] hash) {
+      tree.setHash(level, entry, hash);
+    }
+
+
+    @Override
+    public void trimTree(long fromIndex) {
+      tree.trimTree(fromIndex);
+    }
+
+  }
+
+
+
+  private static void assertMatches(HashTree expected, HashTree actual, long entryCount) {
+    int levels = MappedHashTreeStore.levelCount(entryCount);
+    long size = entryCount;
+    for (int level = 0; level < levels; level++) {
+      for (long i = 0; i < size; i++) {
+        assertArrayEquals(expected.getHashEntry(level, i), actual.getHashEntry(level, i));
+      }
+      assertEquals(0, actual.getHashEntry(level, size).length);
+      size = (size + 1) / 2;
+    }
+    assertEquals(0, actual.getHashEntry(levels, 0).length);
+    assertArrayEquals(expected.getTopHashEntry(), actual.getTopHashEntry());
+  }
+
+
+  /**
+   * Compute the hash tree of a list of entries, one of which may be changed from the standard test content.
+   */
+  private static HashTree build(long entryCount, long changedEntry) {
+    IndexedList<Object[]> entries = new IndexedList<>() {
+      @Override
+      public long getEntryCount() {
+        return entryCount;
+      }
+
+
+      @Override
+      public Object[] getHashableEntry(long i) {
+        return new Object[]{i, (i == changedEntry) ? "changed" : "value" + i};
+      }
+    };
+    Set<Long> all = new HashSet<>();
+    for (long i = 0; i < entryCount; i++) {
+      all.add(i);
+    }
+    HashTree hashTree = new MemoryBackedHashTree();
+    new IncrementalMerkleHashCalculator().computeHashesFromChanges(hashTree, entries, HashSerialisation.getInstance(), all, null);
+    return hashTree;
+  }
+
+
+  private Path directory;
+
+  private IndexedList<Object[]> list;
+
+  private HashTree tree;
+
+
+  private static Hash state(int seed) {
+    byte[] hash = new byte[MappedHashTree.HASH_SIZE];
+    hash[0] = (byte) seed;
+    return new Hash(hash);
+  }
+
+
+  @Test
+  public void levelCountMatchesCalculator() {
+    assertEquals(0, MappedHashTreeStore.levelCount(0));
+    assertEquals(2, MappedHashTreeStore.levelCount(1));
+    assertEquals(2, MappedHashTreeStore.levelCount(2));
+    assertEquals(3, MappedHashTreeStore.levelCount(3));
+    assertEquals(11, MappedHashTreeStore.levelCount(1000));
+  }
+
+
+  @Test
+  public void reopenedForTheSavedStateOnly() throws IOException {
+    Object owner = new Object();
+    try (MappedHashTreeStore store = new MappedHashTreeStore(directory)) {
+      store.save(owner, "list", state(1), tree, list.getEntryCount());
+    }
+
+    try (MappedHashTreeStore store = new MappedHashTreeStore(directory)) {
+      assertTrue(store.open(owner, "list", state(2)) instanceof MemoryBackedHashTree);
+      assertTrue(store.open(owner, "other", state(1)) instanceof MemoryBackedHashTree);
+
+      HashTree reopened = store.open(owner, "list", state(1));
+      assertTrue(reopened instanceof MappedHashTree);
+      assertArrayEquals(tree.getTopHashEntry(), reopened.getTopHashEntry());
+      for (long i = 0; i < list.getEntryCount(); i++) {
+        assertArrayEquals(tree.getHashEntry(0, i), reopened.getHashEntry(0, i));
+      }
+    }
+  }
+
+
+  @Test
+  public void saveWritesOnlyChangedNodes() throws IOException {
+    Object owner = new Object();
+    try (MappedHashTreeStore store = new MappedHashTreeStore(directory)) {
+      store.save(owner, "list", state(1), tree, list.getEntryCount());
+
+      // A single changed entry is found by following one path down from the root
+      CountingTree changed = new CountingTree(build(100, 37));
+      store.save(owner, "list", state(2), changed, 100);
+      assertTrue(changed.reads <= 3 * MappedHashTreeStore.levelCount(100));
+      assertMatches(changed.tree, store.open(owner, "list", state(2)), 100);
+
+      // An unchanged tree is not read beyond its root
+      CountingTree same = new CountingTree(changed.tree);
+      store.save(owner, "list", state(3), same, 100);
+      assertEquals(1, same.reads);
+
+      // Nodes and levels left over from a larger tree are removed, and new ones are added as it grows
+      HashTree smaller = build(30, -1);
+      store.save(owner, "list", state(4), smaller, 30);
+      assertMatches(smaller, store.open(owner, "list", state(4)), 30);
+
+      HashTree larger = build(130, 5);
+      store.save(owner, "list", state(5), larger, 130);
+      assertMatches(larger, store.open(owner, "list", state(5)), 130);
+    }
+  }
+
+
+  @Test
+  public void treeInUseIsNotOverwritten() throws IOException {
+    Object owner = new Object();
+    try (MappedHashTreeStore store = new MappedHashTreeStore(directory)) {
+      store.save(owner, "list", state(1), tree, list.getEntryCount());
+      HashTree reopened = store.open(owner, "list", state(1));
+
+      // Another list cannot use the tree, or replace it, while the owner is using it
+      Object other = new Object();
+      assertTrue(store.open(other, "list", state(1)) instanceof MemoryBackedHashTree);
+      store.save(other, "list", state(2), new MemoryBackedHashTree(), 0);
+      assertSame(reopened, store.open(owner, "list", state(1)));
+
+      // The owner can save its own tree under a new state
+      store.save(owner, "list", state(3), reopened, list.getEntryCount());
+      assertTrue(store.open(owner, "list", state(1)) instanceof MemoryBackedHashTree);
+      assertSame(reopened, store.open(owner, "list", state(3)));
+    }
+  }
+
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("hashtrees");
+    list = new IndexedList<>() {
+      @Override
+      public long getEntryCount() {
+        return 100;
+      }
+
+
+      @Override
+      public Object[] getHashableEntry(long i) {
+        return new Object[]{i, "value" + i};
+      }
+    };
+    Set<Long> all = new HashSet<>();
+    for (long i = 0; i < list.getEntryCount(); i++) {
+      all.add(i);
+    }
+    tree = new MemoryBackedHashTree();
+    new IncrementalMerkleHashCalculator().computeHashesFromChanges(tree, list, HashSerialisation.getInstance(), all, null);
+  }
+
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+
+}
@@ -0,0 +1,178 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.hashtree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import io.setl.bc.pychain.serialise.hash.HashSerialisation;
+import io.setl.bc.pychain.state.IndexedList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedHashTreeTest {
+
+  private Path directory;
+
+
+  private static byte[] hash(int seed) {
+    byte[] hash = new byte[MappedHashTree.HASH_SIZE];
+    for (int i = 0; i < hash.length; i++) {
+      hash[i] = (byte) (seed + i);
+    }
+    return hash;
+  }
+
+
+  @Test
+  public void absentEntriesAreEmpty() throws IOException {
+    try (MappedHashTree tree = new MappedHashTree(directory)) {
+      assertNull(tree.getTopHashEntry());
+      assertEquals(0, tree.getHashEntry(0, 5).length);
+
+      tree.setHash(0, 5, hash(1));
+      assertEquals(0, tree.getHashEntry(0, 4).length);
+      assertEquals(0, tree.getHashEntry(0, 1_000_000).length);
+      assertEquals(0, tree.getHashEntry(1, 0).length);
+    }
+  }
+
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badHashLength() throws IOException {
+    try (MappedHashTree tree = new MappedHashTree(directory)) {
+      tree.setHash(0, 0, new byte[]{0x7e});
+    }
+  }
+
+
+  @Test
+  public void matchesMemoryBackedTree() throws IOException {
+    IndexedList<Object[]> list = new IndexedList<>() {
+      @Override
+      public long getEntryCount() {
+        return 1000;
+      }
+
+
+      @Override
+      public Object[] getHashableEntry(long i) {
+        return new Object[]{i, "value" + i};
+      }
+    };
+    Set<Long> all = new HashSet<>();
+    for (long i = 0; i < 1000; i++) {
+      all.add(i);
+    }
+
+    IncrementalMerkleHashCalculator calculator = new IncrementalMerkleHashCalculator();
+    byte[] expected = calculator.computeHashesFromChanges(new MemoryBackedHashTree(), list, HashSerialisation.getInstance(), all, null);
+    try (MappedHashTree tree = new MappedHashTree(directory)) {
+      byte[] actual = calculator.computeHashesFromChanges(tree, list, HashSerialisation.getInstance(), all, null);
+      assertArrayEquals(expected, actual);
+      assertArrayEquals(expected, tree.getTopHashEntry());
+    }
+  }
+
+
+  @Test
+  public void reopen() throws IOException {
+    try (MappedHashTree tree = new MappedHashTree(directory)) {
+      tree.setHash(0, 0, hash(1));
+      tree.setHash(0, 70_000, hash(2));
+      tree.setHash(1, 0, hash(3));
+    }
+
+    try (MappedHashTree tree = new MappedHashTree(directory)) {
+      assertArrayEquals(hash(1), tree.getHashEntry(0, 0));
+      assertArrayEquals(hash(2), tree.getHashEntry(0, 70_000));
+      assertArrayEquals(hash(3), tree.getTopHashEntry());
+    }
+  }
+
+
+  @Test
+  public void removeAndTrim() throws IOException {
+    try (MappedHashTree tree = new MappedHashTree(directory)) {
+      tree.setHash(0, 0, hash(1));
+      tree.setHash(0, 1, hash(2));
+      tree.setHash(1, 0, hash(3));
+      tree.setHash(2, 0, hash(4));
+
+      tree.removeHash(0, 1);
+      assertEquals(0, tree.getHashEntry(0, 1).length);
+      assertArrayEquals(hash(1), tree.getHashEntry(0, 0));
+
+      tree.trimTree(2);
+      assertArrayEquals(hash(3), tree.getTopHashEntry());
+      assertEquals(0, tree.getHashEntry(2, 0).length);
+    }
+  }
+
+
+  @Test
+  public void tagIsKeptUntilTheTreeChanges() throws IOException {
+    try (MappedHashTree tree = new MappedHashTree(directory)) {
+      assertNull(tree.getTag());
+      tree.setHash(0, 0, hash(1));
+      tree.setTag(hash(9));
+      assertArrayEquals(hash(9), tree.getTag());
+    }
+
+    try (MappedHashTree tree = new MappedHashTree(directory)) {
+      assertArrayEquals(hash(9), tree.getTag());
+
+      // Trimming nothing is not a change
+      tree.trimTree(1);
+      assertArrayEquals(hash(9), tree.getTag());
+
+      tree.setHash(0, 1, hash(2));
+      assertNull(tree.getTag());
+    }
+
+    try (MappedHashTree tree = new MappedHashTree(directory)) {
+      assertNull(tree.getTag());
+    }
+  }
+
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("hashtree");
+  }
+
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+
+}
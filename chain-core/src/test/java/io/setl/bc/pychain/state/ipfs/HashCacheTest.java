@@ -0,0 +1,111 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.ipfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.setl.bc.pychain.Hash;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class HashCacheTest {
+
+  private static Hash hash(int i) {
+    byte[] bytes = new byte[32];
+    bytes[0] = (byte) i;
+    bytes[1] = (byte) (i >> 8);
+    return new Hash(bytes);
+  }
+
+
+  @Test
+  public void encodedFormIsWeighed() {
+    HashCache cache = new HashCache(10_000);
+    cache.put(hash(1), "big", new byte[100_000]);
+    cache.put(hash(2), "small", new byte[10]);
+    cache.reset();
+    assertEquals("reloaded", cache.get(hash(1), h -> "reloaded"));
+    assertEquals("small", cache.get(hash(2), h -> "reloaded"));
+
+    // Loaded values are weighed by their encoded form too
+    assertEquals("3", cache.get(hash(3), h -> new byte[100_000], e -> "3"));
+    assertEquals("reloaded", cache.get(hash(3), h -> "reloaded"));
+    assertEquals("4", cache.get(hash(4), h -> new byte[10], e -> "4"));
+    assertEquals("4", cache.get(hash(4), h -> "reloaded"));
+  }
+
+
+  @Test
+  public void estimateSize() {
+    assertTrue(HashCache.estimateSize(new byte[1000]) > HashCache.estimateSize(new byte[10]));
+    assertTrue(HashCache.estimateSize(new Object[]{"a", new byte[100]}) > HashCache.estimateSize(new byte[100]));
+    assertEquals(0, HashCache.estimateSize(null));
+  }
+
+
+  @Test
+  public void loadsOnce() {
+    HashCache cache = new HashCache();
+    AtomicInteger loads = new AtomicInteger();
+    assertEquals("value", cache.get(hash(1), h -> {
+      loads.incrementAndGet();
+      return "value";
+    }));
+    assertEquals("value", cache.get(hash(1), h -> {
+      loads.incrementAndGet();
+      return "other";
+    }));
+    assertEquals(1, loads.get());
+
+    // Null values are not cached
+    assertNull(cache.get(hash(2), h -> null));
+    assertEquals("two", cache.get(hash(2), h -> "two"));
+  }
+
+
+  @Test
+  public void resetKeepsLastBlock() {
+    HashCache cache = new HashCache();
+    cache.put(hash(1), "value");
+    cache.reset();
+    assertEquals("value", cache.get(hash(1), h -> "reloaded"));
+  }
+
+
+  @Test
+  public void weightIsLimited() {
+    HashCache cache = new HashCache(100_000);
+    for (int i = 0; i < 1000; i++) {
+      int j = i;
+      cache.get(hash(i), h -> new byte[1000 + j]);
+    }
+    AtomicInteger loads = new AtomicInteger();
+    for (int i = 0; i < 1000; i++) {
+      cache.get(hash(i), h -> {
+        loads.incrementAndGet();
+        return new byte[0];
+      });
+    }
+    // Only a fraction of a megabyte of data can be held in 100K.
+    assertTrue(loads.get() > 800);
+  }
+
+}
@@ -258,6 +258,22 @@ public class IpfsListTest {
   }
 
 
+  @Test
+  public void removeMovesLastEntry() {
+    for (int i = 0; i < 10; i++) {
+      theList.update(-1, new TestEntry(i));
+    }
+    theList.getHash();
+
+    theList.remove(-1, TestEntry.keyGen(3));
+    theList.getHash();
+    assertEquals(9, theList.getEntryCount());
+    assertEquals(-1, theList.findIndex(TestEntry.keyGen(3)));
+    assertEquals(3, theList.findIndex(TestEntry.keyGen(9)));
+    assertEquals(TestEntry.keyGen(9), theList.get(3).getKey());
+  }
+
+
   @Before
   public void setup() {
     //Create an empty memory backed IPFSList
@@ -0,0 +1,170 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.ipfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import io.setl.bc.pychain.Hash;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+import org.junit.After;
+import org.junit.Test;
+
+public class IpfsWalkerTest {
+
+  private final MerkleStore<Object> ms = new MapBackedMerkleStore<>();
+
+  private ExecutorService executor;
+
+
+  private static List<Long> indices(Spliterator<TestEntry> walker) {
+    List<Long> list = new ArrayList<>();
+    walker.forEachRemaining(e -> list.add(Long.parseLong(e.getKey().substring(4))));
+    return list;
+  }
+
+
+  private static List<Long> range(long start, long end) {
+    return LongStream.range(start, end).boxed().collect(Collectors.toList());
+  }
+
+
+  /**
+   * Store a Merkle list of the given size, with the same shape as IpfsList creates.
+   *
+   * @return the list's root hash
+   */
+  private Hash makeList(int size) {
+    List<Hash> level = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      Hash hash = new Hash(("leaf:" + i).getBytes(StandardCharsets.UTF_8));
+      ms.put(hash, new TestEntry(i).encode(i));
+      level.add(hash);
+    }
+    do {
+      List<Hash> next = new ArrayList<>();
+      for (int i = 0; i < level.size(); i += 2) {
+        byte[][] node = (i + 1 < level.size()) ? new byte[][]{level.get(i).get(), level.get(i + 1).get()} : new byte[][]{level.get(i).get()};
+        Hash hash = new Hash(("node:" + level.get(i) + (i + 1 < level.size() ? level.get(i + 1) : "")).getBytes(StandardCharsets.UTF_8));
+        ms.put(hash, node);
+        next.add(hash);
+      }
+      level = next;
+    }
+    while (level.size() > 1);
+    return level.get(0);
+  }
+
+
+  @After
+  public void tearDown() {
+    IpfsWalker.setReadAhead(null, IpfsWalker.DEFAULT_READ_AHEAD);
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+
+  @Test
+  public void emptyList() {
+    IpfsWalker<TestEntry> walker = new IpfsWalker<>(ms, Hash.NULL_HASH, 0, new TestEntryDecoder(), true);
+    assertEquals(0, walker.getExactSizeIfKnown());
+    assertFalse(walker.tryAdvance(e -> { }));
+  }
+
+
+  @Test
+  public void orderedWalk() {
+    for (int size : new int[]{1, 2, 3, 5, 8, 13, 100}) {
+      Hash root = makeList(size);
+      IpfsWalker<TestEntry> walker = new IpfsWalker<>(ms, root, size, new TestEntryDecoder(), true);
+      assertEquals(size, walker.getExactSizeIfKnown());
+      assertEquals(range(0, size), indices(walker));
+      assertEquals(0, walker.estimateSize());
+
+      List<Object> visited = new ArrayList<>();
+      IpfsWalker.walk(root, ms, o -> visited.add(o));
+      assertEquals(size, visited.size());
+      assertEquals(size - 1L, ((Object[]) visited.get(size - 1))[0]);
+    }
+  }
+
+
+  @Test
+  public void readAheadIsBounded() {
+    AtomicInteger active = new AtomicInteger();
+    AtomicInteger maxActive = new AtomicInteger();
+    MerkleStoreReader<Object> slow = hash -> {
+      maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+      try {
+        Thread.sleep(2);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      active.decrementAndGet();
+      return ms.get(hash);
+    };
+
+    executor = Executors.newFixedThreadPool(8);
+    IpfsWalker.setReadAhead(executor, 4);
+    Hash root = makeList(200);
+    assertEquals(range(0, 200), indices(new IpfsWalker<>(slow, root, 200, new TestEntryDecoder(), true)));
+    assertTrue(String.valueOf(maxActive.get()), maxActive.get() > 1);
+    assertTrue(String.valueOf(maxActive.get()), maxActive.get() <= 4);
+
+    List<Long> unordered = indices(new IpfsWalker<>(slow, root, 200, new TestEntryDecoder(), false));
+    unordered.sort(null);
+    assertEquals(range(0, 200), unordered);
+  }
+
+
+  @Test
+  public void splitsAreSized() {
+    Hash root = makeList(100);
+    IpfsWalker<TestEntry> walker = new IpfsWalker<>(ms, root, 100, new TestEntryDecoder(), true);
+    assertTrue(walker.hasCharacteristics(Spliterator.SUBSIZED));
+
+    Spliterator<TestEntry> prefix = walker.trySplit();
+    assertNotNull(prefix);
+    long prefixSize = prefix.getExactSizeIfKnown();
+    assertEquals(100, prefixSize + walker.getExactSizeIfKnown());
+    assertEquals(range(0, prefixSize), indices(prefix));
+
+    Spliterator<TestEntry> middle = walker.trySplit();
+    assertNotNull(middle);
+    long middleSize = middle.getExactSizeIfKnown();
+    assertEquals(range(prefixSize, prefixSize + middleSize), indices(middle));
+    assertEquals(range(prefixSize + middleSize, 100), indices(walker));
+
+    walker = new IpfsWalker<>(ms, root, 100, new TestEntryDecoder(), true);
+    assertEquals(range(0, 100), StreamSupport.stream(walker, true).map(e -> Long.parseLong(e.getKey().substring(4))).collect(Collectors.toList()));
+  }
+
+}
@@ -0,0 +1,253 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.ipfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import io.setl.bc.pychain.Hash;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyToHashIndexStoreTest {
+
+  private Path directory;
+
+  private MerkleStore<Object> ms;
+
+  private KeyToHashIndexStore store;
+
+
+  private static Hash leafHash(String key) {
+    return new Hash(("leaf:" + key).getBytes(StandardCharsets.UTF_8));
+  }
+
+
+  private void assertEntry(KeyToHashIndex<String> index, String key, long expected) {
+    assertEquals(key, expected, index.find(key));
+    assertEquals(key, leafHash(key), index.get(key).getHash());
+  }
+
+
+  /**
+   * Store a Merkle list of the given keys.
+   *
+   * @return the list's root hash
+   */
+  private Hash makeList(String... keys) {
+    List<Hash> level = new ArrayList<>();
+    for (int i = 0; i < keys.length; i++) {
+      Hash hash = leafHash(keys[i]);
+      ms.put(hash, new Object[]{(long) i, keys[i]});
+      level.add(hash);
+    }
+    while (level.size() > 1) {
+      List<Hash> next = new ArrayList<>();
+      for (int i = 0; i < level.size(); i += 2) {
+        byte[][] node = (i + 1 < level.size()) ? new byte[][]{level.get(i).get(), level.get(i + 1).get()} : new byte[][]{level.get(i).get()};
+        Hash hash = new Hash(("node:" + level.get(i) + (i + 1 < level.size() ? level.get(i + 1) : "")).getBytes(StandardCharsets.UTF_8));
+        ms.put(hash, node);
+        next.add(hash);
+      }
+      level = next;
+    }
+    return level.get(0);
+  }
+
+
+  private void reopen() {
+    store.close();
+    store = new KeyToHashIndexStore(directory.resolve("index").toString());
+  }
+
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("keyindex");
+    ms = new MapBackedMerkleStore<>();
+    store = new KeyToHashIndexStore(directory.resolve("index").toString());
+  }
+
+
+  @After
+  public void tearDown() throws IOException {
+    store.close();
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+
+
+  @Test
+  public void branchesAreIndependent() {
+    Hash root = makeList("a", "b", "c");
+    KeyToHashIndex<String> index = store.create("T", root, ms);
+
+    KeyToHashIndex<String> left = index.copy();
+    left.put("x", 3);
+    left.set("x", leafHash("x"));
+    left.commit(new Hash(new byte[]{1}));
+
+    KeyToHashIndex<String> right = index.copy();
+    right.remove("a");
+    right.set("c", 0);
+    right.commit(new Hash(new byte[]{2}));
+    right.persist();
+
+    // Persisting the right branch moved the durable copy away from the left branch
+    assertEntry(left, "x", 3);
+    assertEntry(left, "a", 0);
+    assertEquals(4, left.getEntryCount());
+
+    assertEquals(-1, right.find("x"));
+    assertEquals(-1, right.find("a"));
+    assertEntry(right, "c", 0);
+    assertEquals(2, right.getEntryCount());
+
+    assertEquals(-1, index.find("x"));
+    assertEntry(index, "a", 0);
+    assertEntry(index, "c", 2);
+    assertEquals(3, index.getEntryCount());
+
+    // ...and back again
+    left.put("y", 4);
+    left.set("y", leafHash("y"));
+    left.commit(new Hash(new byte[]{3}));
+    left.persist();
+    assertEntry(left, "y", 4);
+    assertEquals(-1, right.find("y"));
+    assertEntry(right, "c", 0);
+    assertEntry(index, "c", 2);
+
+    // A known root does not need the Merkle store
+    KeyToHashIndex<String> known = store.create("T", new Hash(new byte[]{2}), new MapBackedMerkleStore<>());
+    assertEntry(known, "c", 0);
+    assertEquals(2, known.getEntryCount());
+  }
+
+
+  @Test
+  public void changesArePersisted() {
+    Hash root = makeList("a", "b", "c");
+    KeyToHashIndex<String> index = store.create("T", root, ms);
+    index.remove("a");
+    index.set("c", 0);
+    index.put("d", 2);
+    index.set("d", leafHash("d"));
+    index.commit(new Hash(new byte[]{1}));
+    index.persist();
+
+    reopen();
+    index = store.create("T", new Hash(new byte[]{1}), new MapBackedMerkleStore<>());
+    assertEquals(3, index.getEntryCount());
+    assertNull(index.get("a"));
+    assertEntry(index, "b", 1);
+    assertEntry(index, "c", 0);
+    assertEntry(index, "d", 2);
+  }
+
+
+  @Test
+  public void copiesDoNotShareChanges() {
+    Hash root = makeList("a", "b");
+    KeyToHashIndex<String> index = store.create("T", root, ms);
+    index.set("a", 5);
+    KeyToHashIndex<String> copy = index.copy();
+    copy.set("a", 6);
+    assertEquals(5, index.find("a"));
+    assertEquals(6, copy.find("a"));
+  }
+
+
+  @Test
+  public void reopenDoesNotWalk() {
+    Hash root = makeList("a", "b", "c", "d", "e");
+    KeyToHashIndex<String> index = store.create("T", root, ms);
+    assertEntry(index, "e", 4);
+
+    reopen();
+    index = store.create("T", root, new MapBackedMerkleStore<>());
+    assertEquals(5, index.getEntryCount());
+    assertEntry(index, "a", 0);
+    assertEntry(index, "e", 4);
+  }
+
+
+  @Test
+  public void speculativeChangesAreNotPersisted() {
+    Hash root = makeList("a", "b", "c");
+    KeyToHashIndex<String> index = store.create("T", root, ms);
+    KeyToHashIndex<String> proposal = index.copy();
+    proposal.remove("a");
+    proposal.set("c", 0);
+    proposal.commit(new Hash(new byte[]{1}));
+
+    // The committed copy sees its changes, and a later commit builds on them
+    assertEquals(2, proposal.getEntryCount());
+    assertEntry(proposal, "c", 0);
+    proposal.put("d", 2);
+    proposal.set("d", leafHash("d"));
+    proposal.commit(new Hash(new byte[]{2}));
+    assertEntry(proposal, "d", 2);
+    assertEntry(store.create("T", new Hash(new byte[]{1}), new MapBackedMerkleStore<>()), "c", 0);
+
+    // Nothing was persisted, so the durable map is still at the original root
+    reopen();
+    index = store.create("T", root, new MapBackedMerkleStore<>());
+    assertEquals(3, index.getEntryCount());
+    assertEntry(index, "a", 0);
+    assertEntry(index, "c", 2);
+  }
+
+
+  @Test
+  public void unrelatedRootIsWalked() {
+    Hash root1 = makeList("a", "b", "c");
+    Hash root2 = makeList("p", "q");
+    KeyToHashIndex<String> index1 = store.create("T", root1, ms);
+    KeyToHashIndex<String> index2 = store.create("T", root2, ms);
+
+    assertEquals(2, index2.getEntryCount());
+    assertEquals(-1, index2.find("a"));
+    assertEntry(index2, "q", 1);
+    assertEntry(index1, "c", 2);
+
+    index2.put("r", 2);
+    index2.set("r", leafHash("r"));
+    index2.commit(new Hash(new byte[]{9}));
+    index2.persist();
+    assertEntry(index1, "c", 2);
+
+    reopen();
+    index2 = store.create("T", new Hash(new byte[]{9}), new MapBackedMerkleStore<>());
+    assertEquals(3, index2.getEntryCount());
+    assertEquals(-1, index2.find("a"));
+    assertEntry(index2, "r", 2);
+  }
+
+}
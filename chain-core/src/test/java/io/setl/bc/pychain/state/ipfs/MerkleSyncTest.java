@@ -0,0 +1,289 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.state.ipfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.msgpack.MPWrappedArrayImpl;
+import io.setl.common.CommonPy.VersionConstants;
+import io.setl.common.Sha256Hash;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MerkleSyncTest {
+
+  private final Deque<List<Hash>> requests = new ArrayDeque<>();
+
+  private MapBackedMerkleStore<Object> destination;
+
+  private IpfsList<TestEntry> list;
+
+  private MapBackedMerkleStore<Object> source;
+
+  /** The roots of the states in the source. */
+  private final Set<Hash> states = new HashSet<>();
+
+  private MerkleSync sync;
+
+
+  @Test
+  public void abandonedSyncLeavesCompleteSubTrees() {
+    Hash state = putState("state");
+    sync = new MerkleSync(destination, state, 4, 1, 60_000, 3, requests::add, this::verifyRoot);
+    sync.start();
+
+    // Answer a few requests, then give up
+    for (int i = 0; i < 12; i++) {
+      List<Hash> hashes = requests.poll();
+      List<Object> values = new ArrayList<>();
+      for (Hash hash : hashes) {
+        values.add(source.theMap.get(hash));
+      }
+      sync.nodesReceived(hashes, values);
+    }
+    assertFalse(sync.isDone());
+    assertFalse(destination.theMap.isEmpty());
+    assertTrue(destination.theMap.size() < source.theMap.size());
+    assertNull(destination.get(state));
+    assertSubTreesComplete();
+
+    // A new synchronisation picks up the complete sub-trees
+    requests.clear();
+    sync = new MerkleSync(destination, state, 4, 1, 60_000, 3, requests::add, this::verifyRoot);
+    CompletableFuture<Hash> future = sync.start();
+    answerAll(source.theMap::get);
+
+    assertTrue(future.isDone());
+    assertFalse(future.isCompletedExceptionally());
+    assertEquals(source.theMap.keySet(), destination.theMap.keySet());
+    assertSubTreesComplete();
+  }
+
+
+  private void addEntries(int from, int to) {
+    for (int i = from; i < to; i++) {
+      list.update(-1, new TestEntry(i));
+    }
+    list.computeRootHash();
+  }
+
+
+  /** Answer requests from the source store until there are none left. */
+  private int answerAll(Function<Hash, Object> responder) {
+    int count = 0;
+    while (!requests.isEmpty()) {
+      List<Hash> hashes = requests.poll();
+      List<Object> values = new ArrayList<>();
+      for (Hash hash : hashes) {
+        values.add(responder.apply(hash));
+      }
+      sync.nodesReceived(hashes, values);
+      count++;
+    }
+    return count;
+  }
+
+
+  /** Every node in the destination must have all of its sub-tree in the destination. */
+  private void assertSubTreesComplete() {
+    for (Entry<Hash, Object> entry : destination.theMap.entrySet()) {
+      List<Hash> children = states.contains(entry.getKey())
+          ? IpfsBasedState.getReferencedHashes(new MPWrappedArrayImpl((Object[]) entry.getValue()))
+          : MerkleSync.children(entry.getValue());
+      for (Hash child : children) {
+        assertNotNull("Child of " + entry.getKey() + " is missing", destination.get(child));
+      }
+    }
+  }
+
+
+  @Test
+  public void badNodesAreRequestedAgain() {
+    Hash state = putState("state");
+    sync = new MerkleSync(destination, state, 4, 2, 60_000, 3, requests::add, this::verifyRoot);
+    CompletableFuture<Hash> future = sync.start();
+
+    // Every node is wrong the first time it is sent
+    Map<Hash, Integer> sent = new HashMap<>();
+    answerAll(h -> sent.merge(h, 1, Integer::sum) == 1 ? new Object[]{"wrong"} : source.theMap.get(h));
+
+    assertTrue(future.isDone());
+    assertFalse(future.isCompletedExceptionally());
+    assertEquals(source.theMap.keySet(), destination.theMap.keySet());
+  }
+
+
+  @Test
+  public void fetchesOnlyTheDelta() {
+    Hash first = putState("first");
+    source.copyTo(destination);
+
+    addEntries(100, 103);
+    Hash second = putState("second");
+
+    sync = new MerkleSync(destination, second, 16, 4, 60_000, 3, requests::add, this::verifyRoot);
+    CompletableFuture<Hash> future = sync.start();
+    answerAll(source.theMap::get);
+
+    assertTrue(future.isDone());
+    assertEquals(second, future.join());
+    assertEquals(source.theMap.keySet(), destination.theMap.keySet());
+
+    // The new state's root, plus the changed path in the list, which is at most 8 levels deep for 103 entries.
+    assertTrue(sync.getFetchedCount() < 3 * 8);
+    assertTrue(sync.getHeldCount() > 0);
+    assertNotNull(destination.get(first));
+  }
+
+
+  @Test
+  public void forgedRootIsNotStored() {
+    Hash state = putState("state");
+    Object[] forged = ((Object[]) source.theMap.get(state)).clone();
+    forged[0] = "forged";
+    sync = new MerkleSync(destination, state, 8, 2, 60_000, 2, requests::add, this::verifyRoot);
+    CompletableFuture<Hash> future = sync.start();
+    answerAll(h -> h.equals(state) ? forged : source.theMap.get(h));
+
+    // The root was fetched twice, but never stored, and nor was the configuration which depends on it
+    assertTrue(future.isCompletedExceptionally());
+    assertNull(destination.get(state));
+    assertEquals(source.theMap.size() - 2, destination.theMap.size());
+    assertSubTreesComplete();
+
+    // Only the root and configuration are needed to complete the state
+    sync = new MerkleSync(destination, state, 8, 2, 60_000, 2, requests::add, this::verifyRoot);
+    future = sync.start();
+    answerAll(source.theMap::get);
+    assertFalse(future.isCompletedExceptionally());
+    assertEquals(2, sync.getFetchedCount());
+    assertEquals(source.theMap.keySet(), destination.theMap.keySet());
+  }
+
+
+  @Test
+  public void fullSync() {
+    Hash state = putState("state");
+    sync = new MerkleSync(destination, state, 8, 2, 60_000, 3, requests::add, this::verifyRoot);
+    CompletableFuture<Hash> future = sync.start();
+    assertFalse(future.isDone());
+
+    // No more than two batches are outstanding at once
+    assertEquals(1, requests.size());
+    int batches = 0;
+    while (!requests.isEmpty()) {
+      assertTrue(requests.size() <= 2);
+      List<Hash> hashes = requests.poll();
+      assertTrue(hashes.size() <= 8);
+      List<Object> values = new ArrayList<>();
+      for (Hash hash : hashes) {
+        values.add(source.theMap.get(hash));
+      }
+      sync.nodesReceived(hashes, values);
+      batches++;
+    }
+
+    assertTrue(future.isDone());
+    assertEquals(source.theMap.keySet(), destination.theMap.keySet());
+    assertEquals(source.theMap.size(), sync.getFetchedCount());
+    assertTrue(batches > 2);
+  }
+
+
+  @Test
+  public void heldStateCompletesImmediately() {
+    Hash state = putState("state");
+    source.copyTo(destination);
+    sync = new MerkleSync(destination, state, 8, 2, 60_000, 3, requests::add, this::verifyRoot);
+    assertTrue(sync.start().isDone());
+    assertTrue(requests.isEmpty());
+  }
+
+
+  @Test
+  public void missingNodeFails() {
+    Hash state = putState("state");
+    sync = new MerkleSync(destination, state, 8, 2, 60_000, 2, requests::add, this::verifyRoot);
+    CompletableFuture<Hash> future = sync.start();
+
+    // The list's root is not available from anyone
+    Hash missing = list.getHash();
+    answerAll(h -> h.equals(missing) ? null : source.theMap.get(h));
+
+    assertTrue(future.isCompletedExceptionally());
+  }
+
+
+  /** Create a state root which refers to a configuration and the test list. */
+  private Hash putState(String name) {
+    Map<String, Object> config = new TreeMap<>();
+    config.put("name", "test");
+    Hash configHash = new Hash(Sha256Hash.newDigest().digest("config".getBytes(StandardCharsets.UTF_8)));
+    source.put(configHash, config);
+
+    Object[] root = new Object[17];
+    root[1] = VersionConstants.VERSION_DEFAULT;
+    root[6] = configHash.get();
+    root[7] = list.getHash().get();
+    for (int i = 8; i <= 14; i++) {
+      root[i] = new byte[0];
+    }
+    Hash stateHash = new Hash(Sha256Hash.newDigest().digest(name.getBytes(StandardCharsets.UTF_8)));
+    source.put(stateHash, root);
+    states.add(stateHash);
+    return stateHash;
+  }
+
+
+  @Before
+  public void setUp() {
+    source = new MapBackedMerkleStore<>();
+    destination = new MapBackedMerkleStore<>();
+    list = new IpfsList<>(Hash.NULL_HASH, source, new TestEntryDecoder(), new MemoryKeyToHashIndex<>(Hash.NULL_HASH, source), TestEntry.class);
+    addEntries(0, 100);
+  }
+
+
+  /** The test states are not real states, so their roots are verified against the source. */
+  private boolean verifyRoot(Hash root, Object[] value, MerkleStore<Object> nodes) {
+    Object[] expected = (Object[]) source.theMap.get(root);
+    Hash config = new Hash((byte[]) expected[6]);
+    return Arrays.equals(expected, value) && source.theMap.get(config).equals(nodes.get(config));
+  }
+
+}
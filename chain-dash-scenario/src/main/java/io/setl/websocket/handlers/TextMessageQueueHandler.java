@@ -46,6 +46,19 @@ public class TextMessageQueueHandler implements MessageQueueHandler<TextMessage>
   }
 
 
+  /**
+   * Compress a message into the form sent over the web socket. A prepared message can be sent to any number of sessions.
+   *
+   * @param message the message to prepare
+   *
+   * @return the prepared message
+   */
+  public TextMessage prepareMessage(byte[] message) {
+
+    return new TextMessage("LZ_" + ZipUtil.zipB64(message));
+  }
+
+
   /**
    * Send a text message to the web socket.
    *
@@ -54,15 +67,26 @@ public class TextMessageQueueHandler implements MessageQueueHandler<TextMessage>
    *
    * @return true on success
    */
-  @SuppressWarnings("squid:S2445") // 'Blocks should be synchronized on "private final" fields' : Use verified by SG. (NPP)
   public boolean sendMessage(byte[] message, WebSocketSession session) {
 
-    try {
-      String zippedMessage = "LZ_" + ZipUtil.zipB64(message);
-      TextMessage msg = new TextMessage(zippedMessage);
+    return sendMessage(prepareMessage(message), session);
+  }
 
+
+  /**
+   * Send a prepared text message to the web socket.
+   *
+   * @param message the message to send, as returned by <code>prepareMessage</code>
+   * @param session the session to send the message to
+   *
+   * @return true on success
+   */
+  @SuppressWarnings("squid:S2445") // 'Blocks should be synchronized on "private final" fields' : Use verified by SG. (NPP)
+  public boolean sendMessage(TextMessage message, WebSocketSession session) {
+
+    try {
       synchronized (session) {
-        session.sendMessage(msg);
+        session.sendMessage(message);
       }
     } catch (IOException e) {
       logger.warn("Exception caught", e);
@@ -20,6 +20,7 @@ package io.setl.websocket.handlers;
 
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
+import io.setl.bc.pychain.StateReader;
 import io.setl.bc.pychain.event.ProposalUpdateEvent;
 import io.setl.bc.pychain.event.ProposalUpdateEvent.UpdateType;
 import io.setl.bc.pychain.event.StateRequestEvent;
@@ -27,9 +28,10 @@ import io.setl.bc.pychain.node.StateInitializedEvent;
 import io.setl.bc.pychain.node.StateManager;
 import io.setl.bc.pychain.node.TransactionPool;
 import io.setl.bc.pychain.peer.PeerManager;
+import io.setl.bc.pychain.state.AbstractState;
+import io.setl.bc.pychain.state.State;
 import io.setl.bc.pychain.state.tx.Txi;
 import io.setl.bc.pychain.util.MsgPackUtil;
-import io.setl.common.Balance;
 import io.setl.scenario.ScenarioChangeEvent;
 import io.setl.scenario.ScenarioStates;
 import io.setl.util.Convert;
@@ -39,12 +41,15 @@ import io.setl.websocket.messages.APITextMessage;
 import io.setl.websocket.messages.APITextMessageFactory;
 import io.setl.websocket.messages.types.Asset;
 import io.setl.websocket.messages.types.AssetBalance;
+import io.setl.websocket.util.BalanceDeltaTracker;
+import io.setl.websocket.util.BalanceDeltaTracker.Delta;
 import io.setl.websocket.util.Last24HourTxCounter;
 import io.setl.websocket.util.ValidationNodeStatistics;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
@@ -74,6 +79,8 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 @Component
 public class UpdateSocketHandler extends TextWebSocketHandler implements ApplicationListener<StateInitializedEvent> {
 
+  private static final String BALANCE_VIEW = "balanceview";
+
   private static final int MAX_TX_PER_SECOND = 50;
 
   private static final String MESSAGE_BODY = "MessageBody";
@@ -108,6 +115,8 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
 
   private static final Logger logger = LoggerFactory.getLogger(UpdateSocketHandler.class);
 
+  private final BalanceDeltaTracker balanceDeltas = new BalanceDeltaTracker();
+
   private final EventBus eventBus;
 
   private final ScenarioStates scenarioStates;
@@ -130,6 +139,9 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
 
   private PeerManager peerManager;
 
+  /** Height of the state last sent to balance view subscribers, or -1 if not known. */
+  private int publishedHeight = -1;
+
   private TextMessageQueueHandler textMessageQueueHandler;
 
   private TransactionPool txPool;
@@ -142,16 +154,16 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
   @SuppressWarnings("squid:S00107") // Params > 7
   @Autowired
   public UpdateSocketHandler(EventBus eventBus, final ScenarioStates scenarioStates, TransactionPool txPool, ValidationNodeStatistics nodeStats,
-      final StateManager stateManager, PeerManager peerManager) {
+      final StateManager stateManager, PeerManager peerManager, StateReader stateReader) {
     this(eventBus, scenarioStates, txPool, nodeStats, stateManager, new TextMessageQueueHandler(), new HashMap<>(), new ConcurrentLinkedDeque<>(),
-        new ConcurrentHashMap<>(), peerManager);
+        new ConcurrentHashMap<>(), peerManager, stateReader);
   }
 
 
   UpdateSocketHandler(EventBus eventBus, final ScenarioStates scenarioStates, TransactionPool txPool, ValidationNodeStatistics nodeStats,
       StateManager stateManager,
       TextMessageQueueHandler textMessageQueueHandler, Map<String, Map<String, Boolean>> webSocketSubscriptions, Deque<Byte[]> clientMsgOut,
-      Map<String, WebSocketSession> allConnectedSessions, PeerManager peerManager
+      Map<String, WebSocketSession> allConnectedSessions, PeerManager peerManager, StateReader stateReader
   ) {
     eventBus.register(this);
 
@@ -159,7 +171,7 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
     this.scenarioStates = scenarioStates;
     this.webSocketSubscriptions = webSocketSubscriptions;
     this.webSocketSubscriptions.put("block", new HashMap<>());
-    this.webSocketSubscriptions.put("balanceview", new HashMap<>());
+    this.webSocketSubscriptions.put(BALANCE_VIEW, new HashMap<>());
     this.webSocketSubscriptions.put("stateview", new HashMap<>());
     this.webSocketSubscriptions.put("proposal", new HashMap<>());
     this.webSocketSubscriptions.put("transaction", new HashMap<>());
@@ -178,6 +190,9 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
     this.txQueue = new ArrayList<>();
     this.stateManager = stateManager;
     this.peerManager = peerManager;
+
+    // States loaded from now on report their changes, so balance view subscribers can be sent just what each block changed.
+    stateReader.setChangeListener(balanceDeltas);
   }
 
 
@@ -197,30 +212,14 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
   public void afterConnectionEstablished(WebSocketSession session) throws Exception {
     logger.info("afterConnectionEstablished:{}", session);
     allConnectedSessions.put(session.getId(), session);
-    initSession(session);
   }
 
 
-  private void calculateBalance(Map<String, Number> assetBalancesMap, String assetId, Balance balance) {
-    if (balance.greaterThanEqualZero()) {
-      if (assetBalancesMap.containsKey(assetId)) {
-        Number currentBalance = assetBalancesMap.get(assetId);
-        assetBalancesMap.replace(assetId, currentBalance, balance.add(currentBalance).getValue());
-      } else {
-        assetBalancesMap.put(assetId, balance.getValue());
-      }
-    }
-  }
-
-
-  private Map<String, Map<String, Number>> getAssetBalances(StateManager stateManager) {
+  private Map<String, Map<String, Number>> getAssetBalances(State state) {
     Map<String, Map<String, Number>> assetBalancesMap = new HashMap<>();
-    stateManager.getState().getAssetBalances().forEach(addressEntry -> {
-      Map<String, Number> currentAssetBalance = new HashMap<>();
-
+    state.getAssetBalances().forEach(addressEntry -> {
       if (addressEntry.getClassBalance() != null) {
-        addressEntry.getClassBalance().forEach((assetId, balance) -> calculateBalance(currentAssetBalance, assetId, balance));
-        assetBalancesMap.put(addressEntry.getKey(), currentAssetBalance);
+        assetBalancesMap.put(addressEntry.getKey(), BalanceDeltaTracker.balancesOf(addressEntry));
       }
     });
 
@@ -228,9 +227,9 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
   }
 
 
-  private Map<String, List<Asset>> getAssetList(StateManager stateManager) {
+  private Map<String, List<Asset>> getAssetList(State state) {
     Map<String, List<Asset>> assetList = new HashMap<>();
-    stateManager.getState().getAssetBalances().forEach(addressEntry -> {
+    state.getAssetBalances().forEach(addressEntry -> {
       if (addressEntry.getClassBalance() != null) {
         addressEntry.getClassBalance().forEach((assetId, balance) -> {
           if (balance.greaterThanEqualZero()) {
@@ -251,6 +250,48 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
   }
 
 
+  /**
+   * Get the messages which bring balance view subscribers up to date with the current state. If the changes made by every block since the last update are
+   * known, only those changes are sent. Otherwise the whole balance view is sent again.
+   *
+   * @return the prepared messages
+   */
+  private synchronized List<TextMessage> getBalanceUpdates() {
+    State state = stateManager.getState();
+    int height = state.getHeight();
+    List<Delta> deltas = balanceDeltas.take(height);
+
+    int expected = publishedHeight + 1;
+    boolean isComplete = publishedHeight >= 0;
+    for (Delta delta : deltas) {
+      if (delta.getHeight() != expected) {
+        isComplete = false;
+        break;
+      }
+      expected++;
+    }
+    isComplete = isComplete && expected == height + 1;
+    publishedHeight = height;
+
+    if (!isComplete) {
+      logger.info("Balance changes up to height {} are not known. Sending full balance view.", height);
+      return Collections.singletonList(prepareMessage(getBalanceViewTextMessage(state)));
+    }
+
+    List<TextMessage> messages = new ArrayList<>(deltas.size());
+    for (Delta delta : deltas) {
+      messages.add(prepareMessage(APITextMessageFactory.getBalanceDeltaTextMessage(delta)));
+    }
+    return messages;
+  }
+
+
+  private APITextMessage getBalanceViewTextMessage(State state) {
+    return APITextMessageFactory.getBalanceViewTextMessage(state, txPool.getAvailableTransactionCount(), getAssetBalances(state), state.getNamespaces(),
+        getAssetList(state));
+  }
+
+
   private Map<String, Integer> getSubscriptions() {
     Map<String, Integer> subscriptions = new HashMap<>();
     for (Map.Entry<String, Map<String, Boolean>> topic : webSocketSubscriptions.entrySet()) {
@@ -300,7 +341,7 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
           break;
         case MT_SUBSCRIBE:
           logger.info("SUBSCRIBE");
-          handleSubscribe(messageBody, messageID, session.getId());
+          handleSubscribe(messageBody, messageID, session);
           break;
         case MT_COMMAND:
           logger.info("COMMAND");
@@ -360,8 +401,9 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
   }
 
 
-  private void handleSubscribe(JSONObject body, String messageID, String sessionId) throws IOException {
+  private void handleSubscribe(JSONObject body, String messageID, WebSocketSession session) throws IOException {
     logger.info("Handle Subscribe");
+    String sessionId = session.getId();
     if (body.containsKey(TOPIC)) {
       Object topics = body.get(TOPIC);
 
@@ -370,7 +412,11 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
         for (Object topic : data) {
           String name = topic.toString();
           if (webSocketSubscriptions.containsKey(name)) {
-            webSocketSubscriptions.get(name).put(sessionId, Boolean.TRUE);
+            boolean isNew = webSocketSubscriptions.get(name).put(sessionId, Boolean.TRUE) == null;
+            if (isNew && BALANCE_VIEW.equals(name)) {
+              // A new balance view subscriber needs the full view. After that it is sent just the changes.
+              sendBalanceView(session);
+            }
           }
         }
       } else {
@@ -417,18 +463,18 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
 
 
 
-  private void initSession(WebSocketSession session) {
-    APITextMessage balanceViewTextMessage = APITextMessageFactory.getBalanceViewTextMessage(stateManager.getState(), txPool.getAvailableTransactionCount(),
-        getAssetBalances(stateManager), stateManager.getState().getNamespaces(), getAssetList(stateManager));
-    if (!textMessageQueueHandler.sendMessage(balanceViewTextMessage.toJSON().getBytes(StandardCharsets.UTF_8), session)) {
-      throw new RuntimeException("Balance View Text Message could not be sent.");
-    }
-  }
-
-
   @Override
   public void onApplicationEvent(StateInitializedEvent event) {
-    event.getState().getAssetBalances().forEach(addressEntry -> {
+    State state = event.getState();
+    if (state instanceof AbstractState) {
+      // States derived from this one inherit the listener
+      ((AbstractState) state).setStateChangeListener(balanceDeltas);
+    }
+    synchronized (this) {
+      publishedHeight = state.getHeight();
+    }
+
+    state.getAssetBalances().forEach(addressEntry -> {
       String address = addressEntry.getAddress();
       if (addressEntry.getClassBalance() != null) {
         addressEntry.getClassBalance().forEach((assetId, balance) -> {
@@ -465,6 +511,11 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
   }
 
 
+  private TextMessage prepareMessage(APITextMessage message) {
+    return textMessageQueueHandler.prepareMessage(message.toJSON().getBytes(StandardCharsets.UTF_8));
+  }
+
+
   /**
    * Accept notification of a block proposal event.
    *
@@ -483,36 +534,40 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
       nodeStats.getTxStatistics().setTx24Hours(last24HourTxCounter.getTotal());
     }
 
-    APITextMessage proposalTextMessage = APITextMessageFactory.getProposalTextMessage(proposalUpdateEvent,txPool);
-    final APITextMessage blockTextMessage;
-    final APITextMessage balanceViewTextMessage;
+    TextMessage proposalTextMessage = prepareMessage(APITextMessageFactory.getProposalTextMessage(proposalUpdateEvent, txPool));
+    final List<TextMessage> balanceViewTextMessages;
     if (proposalUpdateEvent.getUpdateType() == UpdateType.COMMITTED) {
       // TODO reinstate
       // blockTextMessage = APITextMessageFactory.getBlockTextMessage(proposalUpdateEvent.getProposal().getBlock(),
       //    (ProposalAPIMessage) proposalTextMessage.getData(), txPool.getAvailableTransactionCount(), nodeStats);
-      blockTextMessage = null;
-      balanceViewTextMessage = APITextMessageFactory.getBalanceViewTextMessage(stateManager.getState(), txPool.getAvailableTransactionCount(),
-          getAssetBalances(stateManager), stateManager.getState().getNamespaces(), getAssetList(stateManager));
+      balanceViewTextMessages = getBalanceUpdates();
     } else {
-      blockTextMessage = null;
-      balanceViewTextMessage = null;
+      balanceViewTextMessages = Collections.emptyList();
     }
 
     logger.info("API UpdateSocketHandler");
-    allConnectedSessions.forEach((k, v) -> {
+    allConnectedSessions.forEach((k, session) -> {
       logger.info("API Sending message to session: {}", k);
 
-      WebSocketSession session = allConnectedSessions.get(k);
-      if (!textMessageQueueHandler.sendMessage(proposalTextMessage.toJSON().getBytes(StandardCharsets.UTF_8), session)) {
+      if (!textMessageQueueHandler.sendMessage(proposalTextMessage, session)) {
         throw new RuntimeException("Proposal Text Message could not be sent.");
       }
-      if (blockTextMessage != null && !textMessageQueueHandler.sendMessage(blockTextMessage.toJSON().getBytes(StandardCharsets.UTF_8), session)) {
-        throw new RuntimeException("Block Text Message could not be sent.");
+    });
+
+    if (balanceViewTextMessages.isEmpty()) {
+      return;
+    }
+    for (String sessionId : new ArrayList<>(webSocketSubscriptions.get(BALANCE_VIEW).keySet())) {
+      WebSocketSession session = allConnectedSessions.get(sessionId);
+      if (session == null) {
+        continue;
       }
-      if (balanceViewTextMessage != null && !textMessageQueueHandler.sendMessage(balanceViewTextMessage.toJSON().getBytes(StandardCharsets.UTF_8), session)) {
-        throw new RuntimeException("Balance View Text Message could not be sent.");
+      for (TextMessage message : balanceViewTextMessages) {
+        if (!textMessageQueueHandler.sendMessage(message, session)) {
+          throw new RuntimeException("Balance View Text Message could not be sent.");
+        }
       }
-    });
+    }
   }
 
 
@@ -525,6 +580,14 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
   }
 
 
+  private void sendBalanceView(WebSocketSession session) throws IOException {
+    APITextMessage balanceViewTextMessage = getBalanceViewTextMessage(stateManager.getState());
+    if (!textMessageQueueHandler.sendMessage(balanceViewTextMessage.toJSON().getBytes(StandardCharsets.UTF_8), session)) {
+      throw new IOException("Balance View Text Message could not be sent.");
+    }
+  }
+
+
   /**
    * Accept notification of the block chain's status. This information is used to update the operational statistics.
    *
@@ -577,7 +640,7 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
 
     logger.info("Sending {} transactions from queue", transactions.size());
 
-    APITextMessage transactionTextMessage = APITextMessageFactory.getTransactionTextMessage(transactions);
+    TextMessage transactionTextMessage = prepareMessage(APITextMessageFactory.getTransactionTextMessage(transactions));
 
     last24HourTxCounter.update(System.currentTimeMillis() / 1000, transactions.size(), TX_UPDATE_DELAY / 1000);
 
@@ -585,7 +648,7 @@ public class UpdateSocketHandler extends TextWebSocketHandler implements Applica
     allConnectedSessions.forEach((k, session) -> {
       logger.info("API Sending message to session: {}", k);
 
-      if (!textMessageQueueHandler.sendMessage(transactionTextMessage.toJSON().getBytes(StandardCharsets.UTF_8), session)) {
+      if (!textMessageQueueHandler.sendMessage(transactionTextMessage, session)) {
         throw new RuntimeException("Transaction Text Message could not be sent.");
       }
     });
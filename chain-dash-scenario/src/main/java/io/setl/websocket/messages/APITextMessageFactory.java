@@ -19,6 +19,7 @@
 package io.setl.websocket.messages;
 
 import io.setl.bc.pychain.block.Block;
+import io.setl.bc.pychain.block.TxView;
 import io.setl.bc.pychain.event.ProposalUpdateEvent;
 import io.setl.bc.pychain.msgpack.MPWrappedMap;
 import io.setl.bc.pychain.node.StateDetail;
@@ -40,6 +41,7 @@ import io.setl.websocket.messages.types.Location;
 import io.setl.websocket.messages.types.NetworkState;
 import io.setl.websocket.messages.types.Peer;
 import io.setl.websocket.messages.types.ProtocolCounter;
+import io.setl.websocket.util.BalanceDeltaTracker.Delta;
 import io.setl.websocket.util.ValidationNodeStatistics;
 import java.net.InetAddress;
 import java.util.ArrayList;
@@ -58,6 +60,29 @@ public class APITextMessageFactory {
   private static final int TRANSACTION_BLOCK_LIMIT = 100;
 
 
+  /**
+   * Create a message detailing the balances changed by one block.
+   *
+   * @param delta the changes
+   *
+   * @return the message
+   */
+  public static APITextMessage getBalanceDeltaTextMessage(Delta delta) {
+
+    BalanceDeltaAPIMessage balanceDeltaAPIMessage = new BalanceDeltaAPIMessage(
+        "OK",
+        delta.getChainId(),
+        delta.getHash(),
+        delta.getHeight(),
+        delta.getBalances(),
+        delta.getRemoved(),
+        TimeUtil.unixTimeDouble()
+    );
+
+    return new APITextMessage(balanceDeltaAPIMessage, "Update", "balancedelta");
+  }
+
+
   /**
    * Create a message detailing the assets owned by addresses.
    *
@@ -102,11 +127,11 @@ public class APITextMessageFactory {
   public static APITextMessage getBlockTextMessage(Block block, ProposalAPIMessage proposalAPIMessage, int txPoolCount,
       ValidationNodeStatistics validationNodeStats) {
 
-    Txi[] blockTransactions = block.getTransactions();
+    TxView blockTransactions = block.getTransactionView();
 
     List<Object> transactions = new ArrayList<>();
-    for (int i = 0; i < TRANSACTION_BLOCK_LIMIT && i < blockTransactions.length; i++) {
-      Txi transaction = blockTransactions[i];
+    for (int i = 0; i < TRANSACTION_BLOCK_LIMIT && i < blockTransactions.size(); i++) {
+      Txi transaction = blockTransactions.get(i);
       if (transaction != null) {
         Object[] encoded = transaction.encodeTx();
         transactions.add(encoded);
@@ -122,7 +147,7 @@ public class APITextMessageFactory {
     });
 
     BlockAPIMessage blockAPIMessage = new BlockAPIMessage(
-        ProtocolCounter.getCounter(block.getTransactions()),
+        ProtocolCounter.getCounter(blockTransactions),
         new ArrayList<>(), // Effective Tx List - Not used in Demo2 (Contracts)
         block.getNodeName(),
         new NetworkState(
@@ -0,0 +1,124 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.websocket.messages;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import io.setl.bc.pychain.Hash;
+import io.setl.websocket.messages.serializers.AssetBalanceSerializer;
+import io.setl.websocket.messages.serializers.TimestampSerializer;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The balances changed by one block. Each changed address is given with all its balances, which replace those previously sent for that address.
+ */
+public class BalanceDeltaAPIMessage implements SubscriptionMessage {
+
+  private final Map<String, Map<String, Number>> assetBalances;
+
+  private final int chainID;
+
+  private final Hash hash;
+
+  private final int height;
+
+  private final Collection<String> removed;
+
+  private final String status;
+
+  private final double timestamp;
+
+
+  /**
+   * BalanceDeltaAPIMessage Constructor.
+   *
+   * @param status        :
+   * @param chainID       :
+   * @param hash          :
+   * @param height        :
+   * @param assetBalances : the new balances of every changed address
+   * @param removed       : the addresses removed from state
+   * @param timestamp     :
+   */
+  public BalanceDeltaAPIMessage(String status, int chainID, Hash hash, int height, Map<String, Map<String, Number>> assetBalances, Collection<String> removed,
+      double timestamp
+  ) {
+
+    this.status = status;
+    this.chainID = chainID;
+    this.hash = hash;
+    this.height = height;
+    this.assetBalances = assetBalances;
+    this.removed = removed;
+    this.timestamp = timestamp;
+  }
+
+
+  @JsonSerialize(using = AssetBalanceSerializer.class)
+  @JsonProperty("Assetbalances")
+  public Map<String, Map<String, Number>> getAssetBalances() {
+
+    return assetBalances;
+  }
+
+
+  @JsonProperty("ChainID")
+  public int getChainID() {
+
+    return chainID;
+  }
+
+
+  @JsonProperty("Hash")
+  public String getHash() {
+
+    return hash.toHexString();
+  }
+
+
+  @JsonProperty("Height")
+  public int getHeight() {
+
+    return height;
+  }
+
+
+  @JsonProperty("Removed")
+  public Collection<String> getRemoved() {
+
+    return removed;
+  }
+
+
+  @JsonProperty("Status")
+  public String getStatus() {
+
+    return status;
+  }
+
+
+  @JsonSerialize(using = TimestampSerializer.class)
+  @JsonProperty("Timestamp")
+  public double getTimestamp() {
+
+    return timestamp;
+  }
+
+}
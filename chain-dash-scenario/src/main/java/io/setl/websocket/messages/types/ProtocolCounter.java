@@ -55,7 +55,7 @@ public class ProtocolCounter {
    *
    * @return the counts for each protocol
    */
-  public static Map<String, Integer> getCounter(Txi[] transactions) {
+  public static Map<String, Integer> getCounter(Iterable<? extends Txi> transactions) {
     initCounter();
 
     for (Txi transaction : transactions) {
@@ -0,0 +1,223 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.websocket.util;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.state.State;
+import io.setl.bc.pychain.state.StateChangeListener;
+import io.setl.bc.pychain.state.entry.AddressEntry;
+import io.setl.bc.pychain.state.entry.MEntry;
+import io.setl.bc.pychain.state.exceptions.StateSnapshotCorruptedException;
+import io.setl.common.Balance;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the addresses whose balances are changed as each new state is created, so that the changes can be published without reading every balance in
+ * state.
+ */
+public class BalanceDeltaTracker implements StateChangeListener {
+
+  /** Maximum number of completed deltas held waiting to be taken. */
+  private static final int MAX_HELD = 64;
+
+  private static final Logger logger = LoggerFactory.getLogger(BalanceDeltaTracker.class);
+
+
+
+  /**
+   * The balance changes made by one block.
+   */
+  public static class Delta {
+
+    private final Map<String, Map<String, Number>> balances;
+
+    private final int chainId;
+
+    private final Hash hash;
+
+    private final int height;
+
+    private final Set<String> removed;
+
+
+    Delta(State state, Map<String, Map<String, Number>> balances, Set<String> removed) {
+      chainId = state.getChainId();
+      hash = state.getBlockHash();
+      height = state.getHeight();
+      this.balances = Collections.unmodifiableMap(balances);
+      this.removed = Collections.unmodifiableSet(removed);
+    }
+
+
+    /**
+     * Get the new balances of every address that was added or updated.
+     *
+     * @return map of address to asset ID to balance
+     */
+    public Map<String, Map<String, Number>> getBalances() {
+      return balances;
+    }
+
+
+    public int getChainId() {
+      return chainId;
+    }
+
+
+    public Hash getHash() {
+      return hash;
+    }
+
+
+    public int getHeight() {
+      return height;
+    }
+
+
+    /**
+     * Get the addresses which were removed from state.
+     *
+     * @return the removed addresses
+     */
+    public Set<String> getRemoved() {
+      return removed;
+    }
+
+  }
+
+
+
+  /**
+   * Get the non-negative balances held by an address.
+   *
+   * @param addressEntry the address
+   *
+   * @return map of asset ID to balance
+   */
+  public static Map<String, Number> balancesOf(AddressEntry addressEntry) {
+    Map<String, Balance> classBalance = addressEntry.getClassBalance();
+    if (classBalance == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, Number> balances = new HashMap<>();
+    classBalance.forEach((assetId, balance) -> {
+      if (balance.greaterThanEqualZero()) {
+        balances.put(assetId, balance.getValue());
+      }
+    });
+    return balances;
+  }
+
+
+  /** Completed deltas by state height. */
+  private final NavigableMap<Integer, Delta> completed = new TreeMap<>();
+
+  /** Balances changed by the state currently being created, or null if no state is being created. */
+  private Map<String, Map<String, Number>> changed = null;
+
+  /** Addresses removed by the state currently being created. */
+  private Set<String> removed = null;
+
+
+  @Override
+  public <T extends MEntry> void add(T entry) {
+    update(entry);
+  }
+
+
+  @Override
+  public synchronized void complete(State newState) {
+    if (changed == null) {
+      return;
+    }
+    completed.put(newState.getHeight(), new Delta(newState, changed, removed));
+    while (completed.size() > MAX_HELD) {
+      // Nobody is taking the deltas. Whoever takes them next will see the gap.
+      completed.pollFirstEntry();
+    }
+    changed = null;
+    removed = null;
+  }
+
+
+  @Override
+  public synchronized void fail(StateSnapshotCorruptedException e) {
+    logger.debug("Discarding balance changes of failed state update");
+    changed = null;
+    removed = null;
+  }
+
+
+  @Override
+  public void initialise(State state) {
+    // do nothing
+  }
+
+
+  @Override
+  public synchronized <T extends MEntry> void remove(String key, Class<T> type) {
+    if (changed != null && AddressEntry.class.isAssignableFrom(type)) {
+      changed.remove(key);
+      removed.add(key);
+    }
+  }
+
+
+  @Override
+  public synchronized void start(int version, int height) {
+    changed = new HashMap<>();
+    removed = new HashSet<>();
+  }
+
+
+  /**
+   * Take the completed deltas for states up to and including the specified height. Deltas for greater heights are kept.
+   *
+   * @param height the greatest height to take
+   *
+   * @return the deltas, in order of height
+   */
+  public synchronized List<Delta> take(int height) {
+    NavigableMap<Integer, Delta> taken = completed.headMap(height, true);
+    List<Delta> deltas = new ArrayList<>(taken.values());
+    taken.clear();
+    return deltas;
+  }
+
+
+  @Override
+  public synchronized <T extends MEntry> void update(T entry) {
+    if (changed != null && entry instanceof AddressEntry) {
+      String address = entry.getKey();
+      changed.put(address, balancesOf((AddressEntry) entry));
+      removed.remove(address);
+    }
+  }
+
+}
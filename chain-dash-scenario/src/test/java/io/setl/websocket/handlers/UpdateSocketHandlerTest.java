@@ -22,6 +22,7 @@ import static org.mockito.ArgumentMatchers.any;
 
 import com.google.common.eventbus.EventBus;
 import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.StateReader;
 import io.setl.bc.pychain.block.Block;
 import io.setl.bc.pychain.event.ProposalUpdateEvent;
 import io.setl.bc.pychain.msgpack.MPWrappedMap;
@@ -32,6 +33,7 @@ import io.setl.bc.pychain.p2p.message.SignatureMessage;
 import io.setl.bc.pychain.peer.PeerManager;
 import io.setl.bc.pychain.state.Merkle;
 import io.setl.bc.pychain.state.State;
+import io.setl.bc.pychain.state.StateChangeListener;
 import io.setl.bc.pychain.state.entry.AddressEntry;
 import io.setl.bc.pychain.state.tx.Txi;
 import io.setl.scenario.ScenarioStates;
@@ -99,6 +101,9 @@ public class UpdateSocketHandlerTest {
   @Mock
   private PeerManager peerManager;
 
+  @Mock
+  private StateReader stateReader;
+
   @Before
   @SuppressWarnings("unchecked")
   public void setUp() throws Exception {
@@ -113,6 +118,7 @@ public class UpdateSocketHandlerTest {
     nodeStatistics = Mockito.mock(ValidationNodeStatistics.class);
     stateManager = Mockito.mock(StateManager.class);
     peerManager = Mockito.mock(PeerManager.class);
+    stateReader = Mockito.mock(StateReader.class);
 
     State state = Mockito.mock(State.class);
     Mockito.when(stateManager.getState()).thenReturn(state);
@@ -163,7 +169,12 @@ public class UpdateSocketHandlerTest {
     ScenarioStates scenarioStates = new ScenarioStates();
 
     updateSocketHandler = new UpdateSocketHandler(eventBus, scenarioStates, txPool, nodeStatistics, stateManager,
-        textMessageQueueHandler, webSocketSubscriptions, clientMsgOut, allConnectedSessions, peerManager);
+        textMessageQueueHandler, webSocketSubscriptions, clientMsgOut, allConnectedSessions, peerManager, stateReader);
+  }
+
+  @Test
+  public void balanceChangesAreTracked() {
+    Mockito.verify(stateReader).setChangeListener(any(StateChangeListener.class));
   }
 
   @Test
@@ -201,15 +212,17 @@ public class UpdateSocketHandlerTest {
   @Test
   public void validProposalIsHandledCorrectly() throws Exception {
 
-    Mockito.when(textMessageQueueHandler.sendMessage(any(byte[].class), any(WebSocketSession.class))).thenReturn(true);
+    Mockito.when(textMessageQueueHandler.prepareMessage(any(byte[].class))).thenReturn(new TextMessage("proposal"));
+    Mockito.when(textMessageQueueHandler.sendMessage(any(TextMessage.class), any(WebSocketSession.class))).thenReturn(true);
     updateSocketHandler.proposalEventHandler(proposalUpdateEvent);
-    Mockito.verify(textMessageQueueHandler, Mockito.times(1)).sendMessage(any(byte[].class), any(WebSocketSession.class));
+    Mockito.verify(textMessageQueueHandler, Mockito.times(1)).sendMessage(any(TextMessage.class), any(WebSocketSession.class));
   }
 
   @Test(expected = RuntimeException.class)
   public void invalidProposalIsNotSent() throws Exception {
 
-    Mockito.when(textMessageQueueHandler.sendMessage(any(byte[].class), any(WebSocketSession.class))).thenReturn(false);
+    Mockito.when(textMessageQueueHandler.prepareMessage(any(byte[].class))).thenReturn(new TextMessage("proposal"));
+    Mockito.when(textMessageQueueHandler.sendMessage(any(TextMessage.class), any(WebSocketSession.class))).thenReturn(false);
     updateSocketHandler.proposalEventHandler(proposalUpdateEvent);
   }
 }
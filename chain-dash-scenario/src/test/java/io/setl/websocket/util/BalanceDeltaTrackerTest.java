@@ -0,0 +1,98 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.websocket.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.state.State;
+import io.setl.bc.pychain.state.entry.AddressEntry;
+import io.setl.bc.pychain.state.entry.NamespaceEntry;
+import io.setl.common.Balance;
+import io.setl.websocket.util.BalanceDeltaTracker.Delta;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class BalanceDeltaTrackerTest {
+
+  private final BalanceDeltaTracker tracker = new BalanceDeltaTracker();
+
+
+  private static AddressEntry address(String address, String assetId, long amount) {
+    AddressEntry entry = new AddressEntry(address);
+    entry.setAssetBalance(assetId, new Balance(amount));
+    return entry;
+  }
+
+
+  private static State state(int height) {
+    State state = Mockito.mock(State.class);
+    Mockito.when(state.getHeight()).thenReturn(height);
+    Mockito.when(state.getChainId()).thenReturn(20);
+    Mockito.when(state.getBlockHash()).thenReturn(Hash.fromHex("0102"));
+    return state;
+  }
+
+
+  @Test
+  public void failedUpdateIsDiscarded() {
+    tracker.start(1, 5);
+    tracker.update(address("a1", "NS|A", 10));
+    tracker.fail(null);
+    tracker.complete(state(5));
+    assertTrue(tracker.take(5).isEmpty());
+  }
+
+
+  @Test
+  public void recordsChangedAddresses() {
+    tracker.start(1, 5);
+    tracker.add(address("a1", "NS|A", 10));
+    tracker.update(address("a2", "NS|B", 20));
+    tracker.update(address("a2", "NS|B", -1));
+    tracker.add(new NamespaceEntry("NS", "a1", ""));
+    tracker.remove("a3", AddressEntry.class);
+    tracker.remove("NS", NamespaceEntry.class);
+    tracker.complete(state(5));
+
+    tracker.start(1, 6);
+    tracker.update(address("a3", "NS|A", 5));
+    tracker.complete(state(6));
+
+    List<Delta> deltas = tracker.take(5);
+    assertEquals(1, deltas.size());
+    Delta delta = deltas.get(0);
+    assertEquals(5, delta.getHeight());
+    assertEquals(20, delta.getChainId());
+    assertEquals(Map.of("a1", Map.of("NS|A", 10L), "a2", Map.of()), delta.getBalances());
+    assertEquals(Set.of("a3"), delta.getRemoved());
+
+    // The second block re-created the removed address
+    deltas = tracker.take(10);
+    assertEquals(1, deltas.size());
+    assertEquals(6, deltas.get(0).getHeight());
+    assertEquals(Map.of("a3", Map.of("NS|A", 5L)), deltas.get(0).getBalances());
+    assertTrue(tracker.take(10).isEmpty());
+  }
+
+}
@@ -44,6 +44,7 @@ import io.setl.bc.pychain.file.WalletLoader;
 import io.setl.bc.pychain.node.StateInitializedEvent;
 import io.setl.bc.pychain.node.StateManager;
 import io.setl.bc.pychain.p2p.message.TxPackage;
+import io.setl.bc.pychain.state.AssetHolderIndex;
 import io.setl.bc.pychain.state.Merkle;
 import io.setl.bc.pychain.state.State;
 import io.setl.bc.pychain.state.entry.AddressEntry;
@@ -95,6 +96,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
 import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -760,15 +763,23 @@ public class ValidationRestApi implements ApplicationListener<StateInitializedEv
         });
       }
     } else {
-      stateManager.getState().getAssetBalances().forEach(addressEntry -> {
-            if ((addressEntry != null) && (addressEntry.getClassBalance() != null)) {
-              addressEntry.getClassBalance().forEach((assetId, balance) ->
-                  getAssetBalance(filterByNamespace, filterByClassId, namespace, classId, assetId, assetBalancesMap, balance)
-              );
-            }
-          }
-      );
-
+      Consumer<AddressEntry> addBalances = addressEntry -> {
+        if ((addressEntry != null) && (addressEntry.getClassBalance() != null)) {
+          addressEntry.getClassBalance().forEach((assetId, balance) ->
+              getAssetBalance(filterByNamespace, filterByClassId, namespace, classId, assetId, assetBalancesMap, balance)
+          );
+        }
+      };
+
+      // When filtering, only the holders of the matching assets need be checked, if they are known.
+      State state = stateManager.getState();
+      Merkle<AddressEntry> balances = state.getAssetBalances();
+      Set<String> holders = filterByNamespace ? findAssetHolders(state, namespace, filterByClassId ? classId : null) : null;
+      if (holders != null) {
+        holders.forEach(holder -> addBalances.accept(balances.find(holder)));
+      } else {
+        balances.forEach(addBalances);
+      }
     }
 
     return assetBalancesMap;
@@ -1226,6 +1237,37 @@ public class ValidationRestApi implements ApplicationListener<StateInitializedEv
   }
 
 
+  /**
+   * Find the addresses holding a specific asset, or any asset in a namespace, using the state's asset holder index.
+   *
+   * @param state     the state
+   * @param namespace the namespace
+   * @param classId   the asset class, or null for all classes in the namespace
+   *
+   * @return the holders, or null if every address must be checked
+   */
+  private Set<String> findAssetHolders(State state, String namespace, String classId) {
+    AssetHolderIndex index = state.getAssetHolderIndex();
+    if (index == null) {
+      return null;
+    }
+
+    Set<String> assets = (classId != null) ? Collections.singleton(namespace + "|" + classId) : index.getAssets(namespace, state.getLoadedHash());
+    if (assets == null) {
+      return null;
+    }
+    Set<String> holders = new TreeSet<>();
+    for (String assetId : assets) {
+      Set<String> assetHolders = index.getHolders(assetId, state.getLoadedHash());
+      if (assetHolders == null) {
+        return null;
+      }
+      holders.addAll(assetHolders);
+    }
+    return holders;
+  }
+
+
   private List<AccountResponse> getAccounts(String address) {
 
     List<AccountResponse> accountResponses = new ArrayList<>();
@@ -0,0 +1,97 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.rest.explorer;
+
+import static io.setl.common.StringUtils.logSafe;
+
+import io.setl.bc.pychain.block.BlockIndexStore;
+import io.setl.bc.pychain.block.BlockIndexStore.TxLocation;
+import io.swagger.v3.oas.annotations.Parameter;
+import javax.servlet.http.HttpServletRequest;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Get the latest transactions involving an address. Requires the block index.
+ */
+@RestController
+@RequestMapping("/explorer/addressTransactions")
+public class AddressTransactions {
+
+  private static final Logger logger = LoggerFactory.getLogger(AddressTransactions.class);
+
+  private BlockIndexStore blockIndex = null;
+
+
+  /**
+   * Get the latest transactions involving an address.
+   *
+   * @param address the address
+   *
+   * @return the transactions, newest first
+   */
+  @GetMapping
+  public ResponseEntity<String> get(
+      @Parameter(hidden = true) HttpServletRequest httpRequest,
+      @RequestParam("address") String address
+  ) {
+    if (blockIndex == null) {
+      return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.TEXT_PLAIN).body("Block index is not enabled");
+    }
+    String urlBase = httpRequest.getScheme() + "://" + httpRequest.getServerName() + ":" + httpRequest.getServerPort() + httpRequest.getContextPath()
+        + "/explorer/";
+
+    logger.debug("Address transactions request for {}", logSafe(address));
+    JSONArray output = new JSONArray();
+    for (String txHash : blockIndex.getAddressTransactions(address)) {
+      TxLocation location = blockIndex.getTransaction(txHash);
+      if (location == null) {
+        continue;
+      }
+      JSONObject map = new JSONObject(true);
+      map.put("hash", txHash);
+      map.put("height", location.getHeight());
+      map.put("blockHash", location.getBlockHash());
+      map.put("blockUrl", urlBase + "blockTransactions?blockHash=" + location.getBlockHash());
+      map.put("txUrl", urlBase + "transactionDetail?txHash=" + txHash);
+      output.add(map);
+    }
+
+    JSONObject wrapper = new JSONObject(true);
+    wrapper.put("address", address);
+    wrapper.put("transactions", output);
+    return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(wrapper.toJSONString());
+  }
+
+
+  @Autowired(required = false)
+  public void setBlockIndex(BlockIndexStore blockIndex) {
+    this.blockIndex = blockIndex;
+  }
+}
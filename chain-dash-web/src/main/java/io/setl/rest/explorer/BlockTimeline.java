@@ -20,6 +20,8 @@ package io.setl.rest.explorer;
 
 import io.setl.bc.pychain.BlockReader;
 import io.setl.bc.pychain.block.Block;
+import io.setl.bc.pychain.block.BlockIndexStore;
+import io.setl.bc.pychain.block.BlockIndexStore.BlockSummary;
 import io.setl.bc.pychain.dbstore.DBStore;
 import io.setl.bc.pychain.dbstore.DBStoreException;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -54,6 +56,8 @@ public class BlockTimeline {
 
   private final DBStore dbStore;
 
+  private BlockIndexStore blockIndex = null;
+
 
   @Autowired
   public BlockTimeline(DBStore dbStore, BlockReader blockReader) {
@@ -67,7 +71,7 @@ public class BlockTimeline {
    *
    * @param start      the height of the starting block
    * @param end        the height of the final block
-   * @param isDetailed if true, provide extra details (requires loading the block)
+   * @param isDetailed if true, provide extra details (requires loading the block, unless it has been indexed)
    *
    * @return the block summaries
    */
@@ -91,14 +95,19 @@ public class BlockTimeline {
       for (int height = startValue; height <= endValue; height++) {
         JSONObject details = new JSONObject(true);
         details.put("height", height);
-        String blockHash = dbStore.getBlockHash(height);
+        BlockSummary summary = blockIndex != null ? blockIndex.getBlock(height) : null;
+        String blockHash = summary != null ? summary.getBlockHash() : dbStore.getBlockHash(height);
         details.put("blockHash", blockHash);
         details.put("blockUrl", urlBase + "blockTransactions?blockHash=" + blockHash);
         String stateHash = dbStore.getStateHash(height);
         details.put("stateHash", stateHash);
         details.put("stateUrl", urlBase + "state?stateHash=" + stateHash);
 
-        if (blockHash != null && isDetailed.orElse(Boolean.FALSE)) {
+        if (summary != null && isDetailed.orElse(Boolean.FALSE)) {
+          details.put("size", summary.getTxCount());
+          details.put("timestamp", summary.getTimestamp());
+          details.put("node", summary.getNodeName());
+        } else if (blockHash != null && isDetailed.orElse(Boolean.FALSE)) {
           Block block;
           try {
             block = Util.getBlock(logger, blockReader, blockHash);
@@ -134,4 +143,10 @@ public class BlockTimeline {
       return Util.forException(e);
     }
   }
+
+
+  @Autowired(required = false)
+  public void setBlockIndex(BlockIndexStore blockIndex) {
+    this.blockIndex = blockIndex;
+  }
 }
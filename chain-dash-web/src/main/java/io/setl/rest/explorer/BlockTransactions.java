@@ -86,9 +86,8 @@ public class BlockTransactions {
       return e.getResponse();
     }
 
-    Txi[] transactions = block.getTransactions();
     JSONArray output = new JSONArray();
-    for (Txi tx : transactions) {
+    for (Txi tx : block.getTransactionView()) {
       JSONObject map = new JSONObject(true);
       map.put("nonceAddress", tx.getNonceAddress());
       map.put("nonce", tx.getNonce());
@@ -27,6 +27,9 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import io.setl.bc.pychain.BlockReader;
 import io.setl.bc.pychain.Hash;
 import io.setl.bc.pychain.block.Block;
+import io.setl.bc.pychain.block.BlockIndexStore;
+import io.setl.bc.pychain.block.BlockIndexStore.TxLocation;
+import io.setl.bc.pychain.block.TxView;
 import io.setl.bc.pychain.state.tx.Txi;
 import io.setl.bc.pychain.tx.create.BaseTransaction;
 import io.setl.bc.pychain.tx.Views.Output;
@@ -56,6 +59,8 @@ public class TransactionDetail {
 
   private final ObjectMapper objectMapper;
 
+  private BlockIndexStore blockIndex = null;
+
 
   /**
    * New instance.
@@ -74,7 +79,7 @@ public class TransactionDetail {
 
 
   /**
-   * Get a transaction from a block.
+   * Get a transaction from a block. If the transaction has been indexed, the block hash is not required.
    *
    * @param blockHash the hash of the block
    * @param txHash    the hash of the transaction
@@ -82,25 +87,49 @@ public class TransactionDetail {
    * @return JSON representation of the transaction
    */
   @GetMapping
-  public ResponseEntity<String> get(@RequestParam("blockHash") String blockHash, @RequestParam("txHash") String txHash) {
+  public ResponseEntity<String> get(@RequestParam(name = "blockHash", required = false) String blockHash, @RequestParam("txHash") String txHash) {
     Hash toMatch;
 
     logger.debug("Block transactions request for {} in {}", logSafe(txHash), logSafe(blockHash));
     Block block;
+    TxLocation location;
     try {
       toMatch = Util.getHash(logger, txHash);
-      block = Util.getBlock(logger, blockReader, blockHash);
+      location = blockIndex != null ? blockIndex.getTransaction(toMatch.toHexString()) : null;
+      if (location != null) {
+        block = Util.getBlock(logger, blockReader, location.getBlockHash());
+      } else if (blockHash != null) {
+        block = Util.getBlock(logger, blockReader, blockHash);
+      } else {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.TEXT_PLAIN).body("Transaction not indexed. Please specify the block hash.");
+      }
     } catch (ResponseException e) {
       logger.error("Block transaction request failed", e);
       return e.getResponse();
     }
 
-    Txi[] transactions = block.getTransactions();
     Txi matched = null;
-    for (Txi txi : transactions) {
-      if (Hash.fromHex(txi.getHash()).equals(toMatch)) {
-        matched = txi;
-        break;
+    if (location != null) {
+      // Only the indexed transaction is decoded, provided the index still agrees with the block.
+      TxView txView = block.getTransactionView();
+      int position = location.getPosition();
+      if (0 <= position && position < txView.size()) {
+        Txi txi = txView.get(position);
+        if (txi != null && Hash.fromHex(txi.getHash()).equals(toMatch)) {
+          matched = txi;
+        }
+      }
+      if (matched == null) {
+        logger.warn("Index entry for {} does not match block {}", toMatch, location.getBlockHash());
+      }
+    }
+    if (matched == null) {
+      // The view decodes lazily, so transactions after the match are never decoded.
+      for (Txi txi : block.getTransactionView()) {
+        if (txi != null && Hash.fromHex(txi.getHash()).equals(toMatch)) {
+          matched = txi;
+          break;
+        }
       }
     }
 
@@ -117,4 +146,10 @@ public class TransactionDetail {
       return Util.forException(e);
     }
   }
+
+
+  @Autowired(required = false)
+  public void setBlockIndex(BlockIndexStore blockIndex) {
+    this.blockIndex = blockIndex;
+  }
 }
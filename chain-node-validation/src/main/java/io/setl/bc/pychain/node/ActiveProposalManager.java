@@ -41,6 +41,7 @@ import io.setl.bc.pychain.peer.PeerAddress;
 import io.setl.bc.pychain.state.State;
 import io.setl.bc.pychain.state.StateSnapshot;
 import io.setl.bc.pychain.state.exceptions.StateSnapshotCorruptedException;
+import io.setl.bc.pychain.tx.PrefetchData;
 import io.setl.bc.pychain.tx.TransactionProcessor;
 import io.setl.common.Balance;
 import io.setl.common.Pair;
@@ -59,6 +60,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -124,6 +127,9 @@ public class ActiveProposalManager {
     /** The proposer of this proposal. */
     String proposer;
 
+    /** Prefetch of the state entries read by the proposed transactions, started when the transactions arrive. */
+    CompletableFuture<Void> prefetch;
+
     /** Flag to identify recursive calls. */
     boolean signatureRequirementCheckedInThisCall;
 
@@ -207,6 +213,7 @@ public class ActiveProposalManager {
       originalMessage = null;
       proposedTxIds = null;
       proposedTxList = null;
+      prefetch = null;
       snapshot = null;
     }
 
@@ -328,6 +335,18 @@ public class ActiveProposalManager {
     }
 
 
+    /**
+     * Start loading the state entries the proposed transactions will read, so the I/O overlaps with receiving missing transactions and earlier work.
+     *
+     * @param state the committed state the proposal will be applied to
+     */
+    void startPrefetch(State state) {
+      if (proposedTxList != null && state.getHeight() == height) {
+        prefetch = PrefetchData.submit(priorityExecutor, Priorities.PROPOSAL, state, proposedTxList.getAllTx());
+      }
+    }
+
+
     boolean signatureRequirementMet() {
       return totalSignature.greaterThanEqualTo(getTotalVotingPowerRequired());
     }
@@ -447,6 +466,7 @@ public class ActiveProposalManager {
     proposal.setProposedTxIds(txIdList);
     proposal.setProposedTxList(txList);
     proposal.setMissingTxIds(unmatched);
+    proposal.startPrefetch(stateManager.getState());
 
     // If we have all the transactions, we can process them now.
     if (unmatched.isEmpty()) {
@@ -669,6 +689,24 @@ public class ActiveProposalManager {
   }
 
 
+  /**
+   * Wait for the proposal's prefetch to finish. A failed prefetch only means the transactions load their own entries, so it is logged and ignored.
+   *
+   * @param proposal the proposal
+   */
+  private void awaitPrefetch(Proposal proposal) {
+    CompletableFuture<Void> prefetch = proposal.prefetch;
+    if (prefetch == null) {
+      return;
+    }
+    try {
+      prefetch.join();
+    } catch (CompletionException e) {
+      logger.warn(MARKER_CONSENSUS, "Prefetch for proposal {} failed", proposal.getUuid(), e.getCause());
+    }
+  }
+
+
   private void clearExistingVotesAndReselect() {
     selectedProposalId = null;
     proposalsInPlay.values().forEach(Proposal::clearVotes);
@@ -911,6 +949,9 @@ public class ActiveProposalManager {
       logger.info(MARKER_CONSENSUS, "Applying proposal transactions for proposal {}. {}ms elapsed", proposal.getUuid(),
           System.currentTimeMillis() - proposal.startTime);
 
+      // Wait for the state entries the transactions read to be loaded, rather than loading them one at a time as each transaction is processed.
+      awaitPrefetch(proposal);
+
       if (transactionProcessor.processTransactions(Block.CURRENT_VERSION, priorityExecutor, snapshot, proposal.proposedTxList, proposal.getTimestamp())) {
         logger.info(MARKER_CONSENSUS, "Transactions successfully applied for proposal {}. {}ms elapsed", proposal.getUuid(),
             System.currentTimeMillis() - proposal.startTime);
@@ -959,7 +1000,10 @@ public class ActiveProposalManager {
     proposalsInPlay.clear();
     if (futureProposals.containsKey(stateHeight)) {
       proposalsInPlay.putAll(futureProposals.remove(stateHeight));
+      State state = stateManager.getState();
       for (Proposal p : proposalsInPlay.values()) {
+        // Future proposals could not be prefetched until their height was reached
+        p.startPrefetch(state);
         if (p.getMissingTxIds() != null && p.getMissingTxIds().isEmpty()) {
           logger.info(MARKER_CONSENSUS, "Processing transactions for proposal {} at new height {}", p.getUuid(), stateHeight);
           priorityExecutor.submit(Priorities.PROPOSAL, () -> processTransactions(p));
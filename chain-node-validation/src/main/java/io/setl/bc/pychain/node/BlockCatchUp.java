@@ -0,0 +1,521 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.node;
+
+import static io.setl.bc.logging.LoggingConstants.MARKER_CONSENSUS;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.block.Block;
+import io.setl.bc.pychain.peer.PeerAddress;
+
+/**
+ * Catches up a node which is behind the network by downloading blocks from several peers at once.
+ *
+ * <p>Ranges of blocks are requested from every peer which is known to have them, and no more than a fixed window of blocks beyond the current state is
+ * ever requested, which bounds memory use. Each block is checked as soon as it arrives: its hash is computed, its signatures verified and its transactions
+ * decoded, all independently of the state it applies to. Checked blocks are then applied strictly in order, while later blocks are still downloading.</p>
+ *
+ * <p>Requests which are not answered in time, and blocks which fail their checks, are re-requested from other peers.</p>
+ */
+public class BlockCatchUp {
+
+  private static final Logger logger = LoggerFactory.getLogger(BlockCatchUp.class);
+
+
+
+  /** Applies a checked block to the current state. */
+  public interface BlockApplier {
+
+    /**
+     * Apply a block.
+     *
+     * @param block the checked block
+     *
+     * @return true if the block was applied and the state height advanced
+     */
+    boolean apply(PreparedBlock block);
+
+  }
+
+
+
+  /** Checks a block as far as is possible without the state it applies to. */
+  public interface BlockPreparer {
+
+    /**
+     * Check a block.
+     *
+     * @param block  the block
+     * @param source the peer which sent it
+     *
+     * @return the checked block, or null if it is invalid
+     */
+    PreparedBlock prepare(Block block, PeerAddress source);
+
+  }
+
+
+
+  /** Sends a request for a range of blocks to a peer. */
+  public interface BlockRequester {
+
+    /**
+     * Request blocks.
+     *
+     * @param peer        the peer to ask
+     * @param firstHeight the height of the first block
+     * @param count       the number of blocks
+     */
+    void request(PeerAddress peer, int firstHeight, int count);
+
+  }
+
+
+
+  /** A downloaded block and the results of the checks which did not need state. */
+  public static class PreparedBlock {
+
+    private final Block block;
+
+    private final Hash blockHash;
+
+    private final PeerAddress source;
+
+    private final boolean[] validSignatures;
+
+
+    /**
+     * New instance.
+     *
+     * @param block           the block
+     * @param blockHash       the block's hash
+     * @param validSignatures for each of the block's signatures, whether it is valid
+     * @param source          the peer which sent the block
+     */
+    public PreparedBlock(Block block, Hash blockHash, boolean[] validSignatures, PeerAddress source) {
+      this.block = block;
+      this.blockHash = blockHash;
+      this.validSignatures = validSignatures;
+      this.source = source;
+    }
+
+
+    public Block getBlock() {
+      return block;
+    }
+
+
+    public Hash getBlockHash() {
+      return blockHash;
+    }
+
+
+    public int getHeight() {
+      return block.getHeight();
+    }
+
+
+    public PeerAddress getSource() {
+      return source;
+    }
+
+
+    public boolean[] getValidSignatures() {
+      return validSignatures;
+    }
+
+  }
+
+
+
+  /** What is known about a peer. */
+  private static class Peer {
+
+    final PeerAddress address;
+
+    /** Number of blocks from this peer which have failed their checks. */
+    int failures = 0;
+
+    /** The peer's state height. It holds every block below this height. */
+    int height;
+
+    int outstanding = 0;
+
+
+    Peer(PeerAddress address, int height) {
+      this.address = address;
+      this.height = height;
+    }
+
+  }
+
+
+
+  /** An outstanding request. */
+  private static class Range {
+
+    final int count;
+
+    final int first;
+
+    final Peer peer;
+
+    final long time;
+
+
+    Range(Peer peer, int first, int count, long time) {
+      this.peer = peer;
+      this.first = first;
+      this.count = count;
+      this.time = time;
+    }
+
+
+    boolean covers(int height) {
+      return first <= height && height < first + count;
+    }
+
+  }
+
+
+
+  private final BlockApplier applier;
+
+  private final AtomicBoolean applying = new AtomicBoolean(false);
+
+  private final IntSupplier currentHeight;
+
+  private final Executor executor;
+
+  /** Outstanding requests, by first height. */
+  private final TreeMap<Integer, Range> inFlight = new TreeMap<>();
+
+  private final Map<String, Peer> peers = new HashMap<>();
+
+  private final BlockPreparer preparer;
+
+  /** Heights of blocks which are currently being checked. */
+  private final Set<Integer> preparing = new HashSet<>();
+
+  private final int rangeSize;
+
+  /** Checked blocks waiting to be applied, by height. */
+  private final TreeMap<Integer, PreparedBlock> ready = new TreeMap<>();
+
+  private final BlockRequester requester;
+
+  private final long requestTimeout;
+
+  private final int window;
+
+  /** Used to share requests between equally good peers. */
+  private int rotation = 0;
+
+
+  /**
+   * New instance.
+   *
+   * @param window         the most blocks beyond the current state that may be requested or held at once
+   * @param rangeSize      the most blocks to request from one peer in one request
+   * @param requestTimeout milliseconds to wait for a request to be answered before asking another peer
+   * @param executor       executor for checking blocks
+   * @param currentHeight  supplier of the current state height, which is the height of the next block to apply
+   * @param requester      sends block requests
+   * @param preparer       checks blocks as they arrive
+   * @param applier        applies blocks in order
+   */
+  @SuppressWarnings("squid:S00107") // Params > 7
+  public BlockCatchUp(
+      int window, int rangeSize, long requestTimeout, Executor executor, IntSupplier currentHeight, BlockRequester requester, BlockPreparer preparer,
+      BlockApplier applier
+  ) {
+    this.window = Math.max(1, window);
+    this.rangeSize = Math.max(1, Math.min(rangeSize, this.window));
+    this.requestTimeout = requestTimeout;
+    this.executor = executor;
+    this.currentHeight = currentHeight;
+    this.requester = requester;
+    this.preparer = preparer;
+    this.applier = applier;
+  }
+
+
+  /**
+   * Apply checked blocks in order for as long as the next one is available. Only one thread applies blocks at a time.
+   */
+  private void applyReady() {
+    while (applying.compareAndSet(false, true)) {
+      try {
+        PreparedBlock next;
+        while ((next = takeNext()) != null) {
+          boolean applied;
+          try {
+            applied = applier.apply(next);
+          } catch (RuntimeException e) {
+            logger.error(MARKER_CONSENSUS, "Catch-up failed to apply block {}", next.getHeight(), e);
+            applied = false;
+          }
+          if (!applied) {
+            rejected(next.getHeight(), next.getSource());
+          }
+          schedule();
+        }
+      } finally {
+        applying.set(false);
+      }
+
+      // A block may have become ready after the last check but before the flag was cleared.
+      synchronized (this) {
+        if (ready.isEmpty() || ready.firstKey() != currentHeight.getAsInt()) {
+          return;
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Accept a block from a peer. Blocks which are not needed, or which are too far ahead of the current state, are ignored.
+   *
+   * @param block  the block
+   * @param source the peer which sent it
+   */
+  public void blockReceived(Block block, PeerAddress source) {
+    final int height = block.getHeight();
+    synchronized (this) {
+      int current = currentHeight.getAsInt();
+      if (height < current || height >= current + window || ready.containsKey(height) || !preparing.add(height)) {
+        logger.debug(MARKER_CONSENSUS, "Catch-up ignoring block {} as it is not needed", height);
+        return;
+      }
+    }
+
+    executor.execute(() -> {
+      PreparedBlock prepared;
+      try {
+        prepared = preparer.prepare(block, source);
+      } catch (RuntimeException e) {
+        logger.error(MARKER_CONSENSUS, "Catch-up failed to check block {}", height, e);
+        prepared = null;
+      }
+
+      synchronized (this) {
+        preparing.remove(height);
+        if (prepared != null) {
+          if (height >= currentHeight.getAsInt()) {
+            ready.put(height, prepared);
+          }
+        } else {
+          rejected(height, source);
+        }
+      }
+
+      if (prepared == null) {
+        schedule();
+      } else {
+        applyReady();
+      }
+    });
+  }
+
+
+  private boolean isCovered(int height) {
+    Entry<Integer, Range> entry = inFlight.floorEntry(height);
+    return entry != null && entry.getValue().covers(height);
+  }
+
+
+  /**
+   * Get the number of blocks waiting to be applied.
+   *
+   * @return the number of blocks
+   */
+  public synchronized int getReadyCount() {
+    return ready.size();
+  }
+
+
+  /**
+   * Get the number of outstanding requests.
+   *
+   * @return the number of requests
+   */
+  public synchronized int getRequestCount() {
+    return inFlight.size();
+  }
+
+
+  /**
+   * Record the state height reported by a peer, and request any blocks it can supply.
+   *
+   * @param address the peer's address
+   * @param height  the peer's state height
+   */
+  public void peerHeight(PeerAddress address, int height) {
+    if (address == null) {
+      return;
+    }
+    synchronized (this) {
+      Peer peer = peers.get(address.getAddressString());
+      if (peer == null) {
+        peers.put(address.getAddressString(), new Peer(address, height));
+      } else {
+        peer.height = height;
+      }
+    }
+    schedule();
+  }
+
+
+  /**
+   * Note that the block at a height could not be used, so that it is requested again, preferably from a different peer.
+   */
+  private synchronized void rejected(int height, PeerAddress source) {
+    if (source != null) {
+      Peer peer = peers.get(source.getAddressString());
+      if (peer != null) {
+        peer.failures++;
+      }
+    }
+    Entry<Integer, Range> entry = inFlight.floorEntry(height);
+    if (entry != null && entry.getValue().covers(height)) {
+      removeRange(entry.getKey());
+    }
+  }
+
+
+  private void removeRange(int first) {
+    Range range = inFlight.remove(first);
+    if (range != null) {
+      range.peer.outstanding--;
+    }
+  }
+
+
+  /**
+   * Issue requests for every block within the window that is neither held nor already requested.
+   */
+  void schedule() {
+    List<Range> toSend = new ArrayList<>();
+    synchronized (this) {
+      int current = currentHeight.getAsInt();
+      long now = System.currentTimeMillis();
+
+      // Discard blocks and requests that are no longer needed, and requests which have not been answered in time.
+      ready.headMap(current).clear();
+      Iterator<Range> iterator = inFlight.values().iterator();
+      while (iterator.hasNext()) {
+        Range range = iterator.next();
+        if (range.first + range.count <= current || range.time + requestTimeout < now) {
+          if (range.first + range.count > current) {
+            logger.warn(MARKER_CONSENSUS, "Catch-up request for {} blocks from {} timed out", range.count, range.first);
+          }
+          range.peer.outstanding--;
+          iterator.remove();
+        }
+      }
+
+      int limit = current + window;
+      int height = current;
+      while (height < limit) {
+        if (ready.containsKey(height) || preparing.contains(height) || isCovered(height)) {
+          height++;
+          continue;
+        }
+
+        Peer peer = selectPeer(height);
+        if (peer == null) {
+          // No peer has this block, so none has any later block either.
+          break;
+        }
+
+        int end = Math.min(Math.min(height + rangeSize, limit), peer.height);
+        int count = 1;
+        while (height + count < end && !ready.containsKey(height + count) && !preparing.contains(height + count) && !isCovered(height + count)) {
+          count++;
+        }
+
+        Range range = new Range(peer, height, count, now);
+        inFlight.put(height, range);
+        peer.outstanding++;
+        toSend.add(range);
+        height += count;
+      }
+    }
+
+    for (Range range : toSend) {
+      logger.info(MARKER_CONSENSUS, "Catch-up requesting {} blocks from {} from {}", range.count, range.first, range.peer.address.getAddressString());
+      requester.request(range.peer.address, range.first, range.count);
+    }
+  }
+
+
+  /**
+   * Choose the peer to request a block from. Peers whose blocks have failed checks are avoided, then the least busy peer is preferred.
+   */
+  private Peer selectPeer(int height) {
+    List<Peer> candidates = new ArrayList<>(peers.values());
+    int size = candidates.size();
+    if (size == 0) {
+      return null;
+    }
+    rotation = (rotation + 1) % size;
+    Peer best = null;
+    for (int i = 0; i < size; i++) {
+      Peer peer = candidates.get((rotation + i) % size);
+      if (peer.height <= height) {
+        continue;
+      }
+      if (best == null || peer.failures < best.failures || (peer.failures == best.failures && peer.outstanding < best.outstanding)) {
+        best = peer;
+      }
+    }
+    return best;
+  }
+
+
+  private synchronized PreparedBlock takeNext() {
+    if (ready.isEmpty()) {
+      return null;
+    }
+    int current = currentHeight.getAsInt();
+    ready.headMap(current).clear();
+    if (!ready.isEmpty() && ready.firstKey() == current) {
+      return ready.pollFirstEntry().getValue();
+    }
+    return null;
+  }
+
+}
@@ -21,14 +21,19 @@ package io.setl.bc.pychain.node;
 import static io.setl.bc.logging.LoggingConstants.MARKER_CONSENSUS;
 import static io.setl.bc.logging.LoggingConstants.MARKER_STORAGE;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import io.setl.bc.pychain.BlockReader;
 import io.setl.bc.pychain.BlockWriter;
 import io.setl.bc.pychain.Hash;
 import io.setl.bc.pychain.block.Block;
+import io.setl.bc.pychain.block.BlockIndexStore;
 import io.setl.bc.pychain.dbstore.DBStore;
 import io.setl.bc.pychain.p2p.MsgFactory;
 import io.setl.bc.pychain.p2p.message.BlockRequest;
@@ -56,8 +61,12 @@ public class BlockManager {
   private final PriorityExecutor priorityExecutor;
   private final MsgFactory msgFactory;
 
+  private BlockIndexStore blockIndex = null;
   private Block lastBlock = null;
   private final Object lastBlockLock = new Object();
+  private PersistencePipeline persistencePipeline = null;
+  /** Blocks queued in the persistence pipeline but not yet written, so they can still be served to peers. */
+  private final Map<Integer, Block> unwrittenBlocks = new ConcurrentHashMap<>();
 
 
   /**
@@ -108,6 +117,15 @@ public class BlockManager {
       // Cache the block as the last block
       lastBlock = block;
     }
+    if (persistencePipeline != null && persistencePipeline.isAsynchronous()) {
+      // Write the block in order with the states, so the block is on disk before the state that follows it is recorded as durable.
+      unwrittenBlocks.put(block.getHeight(), block);
+      persistencePipeline.submit("block " + block.getHeight(), () -> {
+        persistBlock(block, blockHash);
+        unwrittenBlocks.remove(block.getHeight());
+      });
+      return;
+    }
     priorityExecutor.submit(Priorities.BLOCK_WRITER, () -> {
       logger.info(MARKER_CONSENSUS, "  commit,Persisting block:{}", blockHash);
       persistBlock(block, blockHash);
@@ -128,12 +146,38 @@ public class BlockManager {
       dbStore.setBlockHash(block.getHeight(), blockHash.toHexString(), block.getTimeStamp());
       blockWriter.writeBlock(block, blockHash);
       validatorHandler.setHeight(block.getHeight());
+      indexBlock(block, blockHash);
     } catch (Exception e) {
       logger.error(MARKER_STORAGE, "Could not persist block", e);
     }
   }
 
 
+  private void indexBlock(Block block, Hash blockHash) {
+    if (blockIndex == null) {
+      return;
+    }
+    try {
+      blockIndex.index(block, blockHash);
+    } catch (RuntimeException e) {
+      // The block itself is safely stored, so this is not fatal. Explorer queries for the block's transactions will fall back to reading blocks.
+      logger.error(MARKER_STORAGE, "Could not index block {}", block.getHeight(), e);
+    }
+  }
+
+
+  @Autowired(required = false)
+  public void setBlockIndex(BlockIndexStore blockIndex) {
+    this.blockIndex = blockIndex;
+  }
+
+
+  @Autowired(required = false)
+  public void setPersistencePipeline(PersistencePipeline persistencePipeline) {
+    this.persistencePipeline = persistencePipeline;
+  }
+
+
   /**
    * Handles the request for a block.
    *
@@ -169,6 +213,9 @@ public class BlockManager {
             block = lastBlock;
           }
         }
+        if (block == null) {
+          block = unwrittenBlocks.get(rBlock);
+        }
 
         if (block == null) {
           // If the block isn't the last block and we have gone past the height drop out
@@ -20,7 +20,6 @@ package io.setl.bc.pychain.node;
 
 import static io.setl.common.Balance.BALANCE_ZERO;
 
-import java.security.PublicKey;
 import java.util.Base64;
 import java.util.HashSet;
 import java.util.Set;
@@ -35,9 +34,9 @@ import io.setl.bc.pychain.Hash;
 import io.setl.bc.pychain.msgpack.MPWrappedArray;
 import io.setl.bc.pychain.p2p.message.SignatureMessage;
 import io.setl.common.Balance;
-import io.setl.common.Hex;
-import io.setl.crypto.KeyGen;
+import io.setl.crypto.BatchSignatureVerifier;
 import io.setl.crypto.MessageVerifier;
+import io.setl.util.PriorityExecutor.TaskContext;
 
 /**
  * Verify blockchain p2p signature messages - pychain compatible.
@@ -54,38 +53,52 @@ public class DefaultSignatureMessageVerifier {
 
 
   /**
-   * verifyBlockSignatureList.
+   * Check that a block's signatures are all valid and cover the required voting power. The signatures are verified as a batch.
    *
-   * @param sigList                  :
-   * @param blockHash                :
-   * @param chainId                  :
-   * @param totalVotingPowerRequired :
-   * @param getVotingPower           :
+   * @param sigList                  the block's signatures
+   * @param blockHash                the block's hash
+   * @param totalVotingPowerRequired the voting power which must be exceeded
+   * @param getVotingPower           provider of the voting power of a public key
+   * @param taskContext              context for verifying the signatures in parallel
    *
-   * @return :
+   * @return true if the block is sufficiently signed
    */
   public boolean verifyBlockSignatureList(
-      MPWrappedArray sigList, Hash blockHash, int chainId, Balance totalVotingPowerRequired,
-      Function<String, Balance> getVotingPower
+      MPWrappedArray sigList, Hash blockHash, Balance totalVotingPowerRequired,
+      Function<String, Balance> getVotingPower, TaskContext taskContext
   ) {
+    boolean[] validSignatures = verifyBlockSignatures(sigList, blockHash, taskContext);
+    return hasSignatureCoverage(sigList, validSignatures, totalVotingPowerRequired, getVotingPower);
+  }
+
 
+  /**
+   * Check whether the valid signatures on a block provide enough voting power. This applies the same rules as
+   * {@link #verifyBlockSignatureList(MPWrappedArray, Hash, Balance, Function, TaskContext)}, but uses signature checks which have already been done.
+   *
+   * @param sigList                  the block's signatures
+   * @param validSignatures          for each signature, whether it is valid, as returned by {@link #verifyBlockSignatures(MPWrappedArray, Hash, TaskContext)}
+   * @param totalVotingPowerRequired the voting power which must be exceeded
+   * @param getVotingPower           the voting power of each public key
+   *
+   * @return true if the required voting power is reached before any invalid signature is encountered
+   */
+  public boolean hasSignatureCoverage(
+      MPWrappedArray sigList, boolean[] validSignatures, Balance totalVotingPowerRequired,
+      Function<String, Balance> getVotingPower
+  ) {
     Set<String> processedPublicKeys = new HashSet<>();
     Balance processedVotingPower = BALANCE_ZERO;
 
     for (int i = 0; i < sigList.size(); i++) {
-
-      MPWrappedArray signatureDetails = sigList.asWrapped(i);
-      String publicKeyHex = signatureDetails.asString(1);
-      PublicKey publicKey = KeyGen.getPublicKey(Hex.decode(publicKeyHex));
+      String publicKeyHex = sigList.asWrapped(i).asString(1);
 
       if (processedPublicKeys.contains(publicKeyHex)) {
         logger.warn("Signing public key already processed {}", publicKeyHex);
         continue;
       }
 
-      String sigstr = signatureDetails.asString(0);
-
-      if (!messageVerifier.verifySignature(blockHash.get(), publicKey, Base64.getDecoder().decode(sigstr))) {
+      if (!validSignatures[i]) {
         return false;
       }
 
@@ -101,6 +114,33 @@ public class DefaultSignatureMessageVerifier {
   }
 
 
+  /**
+   * Check all the signatures on a block, as a batch. Unlike {@link #verifyBlockSignatureList(MPWrappedArray, Hash, Balance, Function, TaskContext)} this
+   * does not need the state the block applies to, so it can be done as soon as the block arrives.
+   *
+   * @param sigList     the block's signatures
+   * @param blockHash   the block's hash
+   * @param taskContext the context for parallel verification
+   *
+   * @return for each signature, whether it is valid
+   */
+  public boolean[] verifyBlockSignatures(MPWrappedArray sigList, Hash blockHash, TaskContext taskContext) {
+    BatchSignatureVerifier batch = new BatchSignatureVerifier(messageVerifier);
+    byte[] message = blockHash.get();
+    for (int i = 0; i < sigList.size(); i++) {
+      MPWrappedArray signatureDetails = sigList.asWrapped(i);
+      byte[] signature;
+      try {
+        signature = Base64.getDecoder().decode(signatureDetails.asString(0));
+      } catch (IllegalArgumentException e) {
+        signature = null;
+      }
+      batch.add(message, signatureDetails.asString(1), signature);
+    }
+    return batch.verify(taskContext);
+  }
+
+
   /**
    * Verify the signature in the net encoded message.
    *
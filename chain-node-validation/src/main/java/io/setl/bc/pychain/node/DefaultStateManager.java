@@ -27,6 +27,7 @@ import io.setl.bc.pychain.StateWriter;
 import io.setl.bc.pychain.dbstore.DBStore;
 import io.setl.bc.pychain.dbstore.DBStoreException;
 import io.setl.bc.pychain.state.AbstractState;
+import io.setl.bc.pychain.state.AssetHolderIndex;
 import io.setl.bc.pychain.state.State;
 import io.setl.bc.pychain.state.entry.SignNodeEntry;
 import io.setl.common.Balance;
@@ -50,12 +51,16 @@ public class DefaultStateManager implements StateManager {
 
   private final ApplicationEventPublisher eventPublisher;
 
+  private AssetHolderIndex assetHolderIndex = null;
+
   private State currentState;
 
   private StateDetail currentStateDetail = null;
 
   private DBStore dbStore;
 
+  private PersistencePipeline persistencePipeline = new PersistencePipeline(0);
+
   private StateReader stateLoader;
 
   private StateWriter stateWriter;
@@ -154,6 +159,10 @@ public class DefaultStateManager implements StateManager {
       } catch (Exception e) {
         throw new RuntimeException(e);
       }
+      if (assetHolderIndex != null) {
+        assetHolderIndex.rebuild(currentState);
+        currentState.setAssetHolderIndex(assetHolderIndex);
+      }
     } catch (DBStoreException | NoStateFoundException e) {
       throw new RuntimeException(e);
     }
@@ -165,29 +174,52 @@ public class DefaultStateManager implements StateManager {
 
   @Override
   public void reset() {
+    // The new state is available immediately. Writing it, and recording its height as durable, may happen in the background.
+    final State state = currentState;
+    currentStateDetail = null;
+    persistencePipeline.submit("state at height " + state.getHeight(), () -> writeState(state));
+  }
+
+
+  @Autowired(required = false)
+  public void setAssetHolderIndex(AssetHolderIndex assetHolderIndex) {
+    this.assetHolderIndex = assetHolderIndex;
+  }
+
+
+  @Autowired(required = false)
+  public void setPersistencePipeline(PersistencePipeline persistencePipeline) {
+    this.persistencePipeline = persistencePipeline;
+  }
+
+
+  @Override
+  public void setState(State newState) {
+    if (assetHolderIndex != null) {
+      // States derived from this one inherit the index. If it does not match this state, it is rebuilt when the next block is applied.
+      newState.setAssetHolderIndex(assetHolderIndex);
+    }
+    currentState = newState;
+    currentStateDetail = null;
+  }
+
+
+  private void writeState(State state) {
     // TODO: This is wrong
     try {
-      stateWriter.writeState((AbstractState) currentState);
+      stateWriter.writeState((AbstractState) state);
     } catch (DBStoreException e) {
       throw new RuntimeException(e);
     }
 
+    // Only record the height once the state is safely written, so a restart always finds a loadable state.
     try {
-      int newHeight = currentState.getHeight();
-      dbStore.setStateHash(newHeight, currentState.getLoadedHash().toHexString(), currentState.getTimestamp());
+      int newHeight = state.getHeight();
+      dbStore.setStateHash(newHeight, state.getLoadedHash().toHexString(), state.getTimestamp());
       dbStore.setHeight(newHeight);
     } catch (DBStoreException e) {
       throw new RuntimeException(e);
     }
-
-    currentStateDetail = null;
-  }
-
-
-  @Override
-  public void setState(State newState) {
-    currentState = newState;
-    currentStateDetail = null;
   }
 
 }
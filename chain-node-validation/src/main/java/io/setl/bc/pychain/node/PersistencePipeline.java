@@ -0,0 +1,163 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.node;
+
+import static io.setl.bc.logging.LoggingConstants.MARKER_STORAGE;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.setl.util.RuntimeInterruptedException;
+
+/**
+ * An ordered, bounded background stage for writing committed blocks and states to storage.
+ *
+ * <p>With a depth of zero, every job runs immediately on the caller's thread. Otherwise jobs run one at a time, in submission order, on a dedicated thread,
+ * and at most "depth" jobs may be outstanding. A further submission blocks until a job completes, which applies back-pressure to consensus when storage
+ * falls behind.</p>
+ *
+ * <p>Because jobs run in order, a state height is only recorded as durable once the state, the blocks before it and all earlier states have been written.
+ * After a crash the node restarts from the last durable height and catches up the remaining blocks.</p>
+ */
+public class PersistencePipeline {
+
+  private static final Logger logger = LoggerFactory.getLogger(PersistencePipeline.class);
+
+  private final int depth;
+
+  private final ExecutorService executor;
+
+  private final Semaphore permits;
+
+  /** The first failure of a background job. Once set, no further jobs are accepted. */
+  private volatile RuntimeException failure;
+
+
+  /**
+   * New instance.
+   *
+   * @param depth the maximum number of outstanding jobs. Zero means run all jobs synchronously.
+   */
+  public PersistencePipeline(int depth) {
+    this.depth = Math.max(0, depth);
+    if (this.depth > 0) {
+      permits = new Semaphore(this.depth);
+      executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "SETL-persistence-pipeline"));
+    } else {
+      permits = null;
+      executor = null;
+    }
+  }
+
+
+  private void checkFailure() {
+    RuntimeException e = failure;
+    if (e != null) {
+      throw new IllegalStateException("Background persistence failed", e);
+    }
+  }
+
+
+  /**
+   * Wait for all outstanding jobs to complete.
+   *
+   * @throws IllegalStateException if a background job failed
+   */
+  public void flush() {
+    if (depth > 0) {
+      permits.acquireUninterruptibly(depth);
+      permits.release(depth);
+    }
+    checkFailure();
+  }
+
+
+  public int getDepth() {
+    return depth;
+  }
+
+
+  /**
+   * Is this pipeline running jobs in the background?
+   *
+   * @return true if jobs are asynchronous
+   */
+  public boolean isAsynchronous() {
+    return depth > 0;
+  }
+
+
+  /**
+   * Wait for all outstanding jobs and stop the background thread.
+   */
+  public void shutdown() {
+    if (depth > 0) {
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(5, TimeUnit.MINUTES)) {
+          logger.error(MARKER_STORAGE, "Persistence pipeline did not drain in time");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeInterruptedException(e);
+      }
+    }
+  }
+
+
+  /**
+   * Submit a job to the pipeline. If the pipeline is synchronous the job runs immediately and any exception propagates to the caller.
+   *
+   * @param description a description of the job for logging
+   * @param job         the job
+   *
+   * @throws IllegalStateException if an earlier background job failed
+   */
+  public void submit(String description, Runnable job) {
+    if (depth == 0) {
+      job.run();
+      return;
+    }
+
+    checkFailure();
+    if (!permits.tryAcquire()) {
+      logger.warn(MARKER_STORAGE, "Persistence pipeline is full. Waiting to submit {}", description);
+      permits.acquireUninterruptibly();
+    }
+    executor.execute(() -> {
+      try {
+        if (failure == null) {
+          job.run();
+          logger.debug(MARKER_STORAGE, "Persisted {}", description);
+        }
+      } catch (RuntimeException e) {
+        logger.error(MARKER_STORAGE, "Failed to persist {}", description, e);
+        failure = e;
+      } finally {
+        permits.release();
+      }
+    });
+  }
+
+}
@@ -19,9 +19,12 @@
 package io.setl.bc.pychain.node;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -45,12 +48,21 @@ import io.setl.bc.pychain.BlockWriter;
 import io.setl.bc.pychain.Defaults;
 import io.setl.bc.pychain.PrivateKeySource;
 import io.setl.bc.pychain.StateReader;
+import io.setl.bc.pychain.block.BlockIndexStore;
 import io.setl.bc.pychain.dbstore.DBStore;
 import io.setl.bc.pychain.file.FileBlockLoader;
 import io.setl.bc.pychain.file.FileBlockWriter;
 import io.setl.bc.pychain.file.WalletLoader;
 import io.setl.bc.pychain.node.txpool.LargeTransactionPool;
 import io.setl.bc.pychain.serialise.hash.HashSerialisation;
+import io.setl.bc.pychain.state.AssetHolderIndex;
+import io.setl.bc.pychain.state.hashtree.MappedHashTreeStore;
+import io.setl.bc.pychain.state.ipfs.GlobalHashCache;
+import io.setl.bc.pychain.state.ipfs.HashCache;
+import io.setl.bc.pychain.state.ipfs.IpfsList;
+import io.setl.bc.pychain.state.ipfs.IpfsWalker;
+import io.setl.bc.pychain.state.ipfs.KeyToHashIndexStore;
+import io.setl.bc.pychain.state.monolithic.KeyedIndexedEntryList;
 import io.setl.bc.pychain.tx.DefaultProcessor;
 import io.setl.bc.pychain.tx.TransactionProcessor;
 import io.setl.bc.pychain.tx.verifier.DefaultTxVerifier;
@@ -76,6 +88,7 @@ import io.micrometer.core.instrument.MeterRegistry;
 @Configuration
 @ComponentScan(basePackages = {
     "io.setl.bc.pychain",
+    "io.setl.bc.store.rocksdb",
     "io.setl.rest",
     "io.setl.utils.spring"
 })
@@ -83,15 +96,27 @@ import io.micrometer.core.instrument.MeterRegistry;
 @PropertySource("classpath:vnode-setting.properties")
 class SpringConfiguration {
 
+  @Value("${executor.blocking.priorities:}")
+  private String[] blockingPriorities;
+
+  @Value("${executor.blocking.threads:0}")
+  private int blockingThreads;
+
   @Value("${chainid}")
   private int chainId;
 
+  @Value("${executor.mode:SHARED_QUEUE}")
+  private PriorityExecutor.Mode executorMode;
+
   @Value("${executor.workQueue.max}")
   private int maxJobs;
 
   @Value("${executor.threadPool.max}")
   private int maxThreads;
 
+  @Value("${merkle.readAhead:32}")
+  private int merkleReadAhead;
+
   @Value("${executor.workQueue.min}")
   private int minJobs;
 
@@ -120,6 +145,26 @@ class SpringConfiguration {
   }
 
 
+  /**
+   * Index of which addresses hold each asset, kept up to date as blocks are applied, so asset-wide operations need not scan every address.
+   */
+  @Bean
+  @ConditionalOnProperty(value = "assetindex.enabled", havingValue = "true")
+  public AssetHolderIndex assetHolderIndex() {
+    return new AssetHolderIndex();
+  }
+
+
+  /**
+   * Index of where transactions are in blocks, kept up to date as blocks are persisted, so the explorer can find transactions without reading blocks.
+   */
+  @Bean
+  @ConditionalOnProperty(value = "blockindex.enabled", havingValue = "true")
+  public BlockIndexStore blockIndexStore(@Value("${blockindex.file:blockIndex.db}") String fileName) {
+    return new BlockIndexStore(Defaults.get().getAbsolutePath(fileName));
+  }
+
+
   @Bean
   protected BlockReader blockReader() {
     return new FileBlockLoader();
@@ -147,6 +192,56 @@ class SpringConfiguration {
   }
 
 
+  /**
+   * Create the node's cache of decoded state entries, and make it the shared instance.
+   */
+  @Bean
+  public HashCache hashCache(MeterRegistry meterRegistry, @Value("${hashCache.maxWeight:268435456}") long maxWeight) {
+    HashCache hashCache = new HashCache(maxWeight);
+    hashCache.bindTo(meterRegistry);
+    GlobalHashCache.setInstance(hashCache);
+    return hashCache;
+  }
+
+
+  /**
+   * Create the node's cache of verified transactions, and make it the shared instance.
+   */
+  @Bean
+  public VerifiedTxCache verifiedTxCache(MeterRegistry meterRegistry, @Value("${verifiedTxCache.maxSize:100000}") long maxSize) {
+    VerifiedTxCache verifiedTxCache = new VerifiedTxCache(maxSize);
+    verifiedTxCache.bindTo(meterRegistry);
+    VerifiedTxCache.setInstance(verifiedTxCache);
+    return verifiedTxCache;
+  }
+
+
+  /**
+   * Create the durable store of Merkle list indices, and make it the source of indices for loaded states. Without it, every index is rebuilt in memory when
+   * a state is loaded.
+   */
+  @Bean
+  @ConditionalOnProperty(value = "keyindex.enabled", havingValue = "true")
+  public KeyToHashIndexStore keyToHashIndexStore(@Value("${keyindex.file:keyToHashIndex.db}") String fileName) {
+    KeyToHashIndexStore store = new KeyToHashIndexStore(Defaults.get().getAbsolutePath(fileName));
+    IpfsList.setIndexFactory(store);
+    return store;
+  }
+
+
+  /**
+   * Create the durable store of the hash trees of monolithic states' lists. A restarted node reopens the trees saved with the state it loads, rather than
+   * computing them.
+   */
+  @Bean
+  @ConditionalOnProperty(value = "hashtree.mapped", havingValue = "true")
+  public MappedHashTreeStore mappedHashTreeStore(@Value("${hashtree.directory:hashTrees}") String directory) {
+    MappedHashTreeStore store = new MappedHashTreeStore(Paths.get(Defaults.get().getAbsolutePath(directory)));
+    KeyedIndexedEntryList.setHashTreeFactory(store);
+    return store;
+  }
+
+
   @Bean
   @DependsOn("vaultAccessor")
   FileWatcher fileWatcher() {
@@ -236,6 +331,16 @@ class SpringConfiguration {
   }
 
 
+  /**
+   * The background stage for writing committed blocks and states. With a depth above zero, the next round of consensus can proceed on the new in-memory
+   * state while earlier blocks and states are still being written.
+   */
+  @Bean
+  public PersistencePipeline persistencePipeline(@Value("${commit.pipeline-depth:0}") int depth) {
+    return new PersistencePipeline(depth);
+  }
+
+
   @Bean
   protected AsyncTaskExecutor prePoolTransactionTaskExecutor(PriorityExecutor priorityExecutor) {
     return new TaskExecutorAdapter(r -> priorityExecutor.submit(Priorities.TX_VERIFY, r));
@@ -244,7 +349,15 @@ class SpringConfiguration {
 
   @Bean
   public PriorityExecutor priorityExecutor() {
-    return new PerformanceDrivenPriorityExecutor(minThreads, maxThreads, minJobs, maxJobs);
+    List<Integer> blocking = new ArrayList<>();
+    for (String name : blockingPriorities) {
+      if (!name.isBlank()) {
+        blocking.add(PriorityExecutor.priorityForName(name));
+      }
+    }
+    PriorityExecutor executor = new PerformanceDrivenPriorityExecutor(minThreads, maxThreads, minJobs, maxJobs, executorMode, blocking, blockingThreads);
+    IpfsWalker.setReadAhead(merkleReadAhead > 0 ? executor.asExecutor(Priorities.STATE_READ) : null, merkleReadAhead);
+    return executor;
   }
 
 
@@ -309,8 +422,10 @@ class SpringConfiguration {
 
 
   @Bean
-  protected TransactionProcessor transactionProcessor() {
-    return DefaultProcessor.getInstance();
+  protected TransactionProcessor transactionProcessor(@Value("${txprocessor.concurrent:false}") boolean concurrent) {
+    DefaultProcessor processor = DefaultProcessor.getInstance();
+    processor.setConcurrentProcessing(concurrent);
+    return processor;
   }
 
 
@@ -0,0 +1,377 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.node;
+
+import static io.setl.bc.logging.LoggingConstants.MARKER_STATE;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.setl.bc.exception.NoStateFoundException;
+import io.setl.bc.pychain.Hash;
+import io.setl.bc.pychain.StateReader;
+import io.setl.bc.pychain.block.Block;
+import io.setl.bc.pychain.block.BlockVerifier;
+import io.setl.bc.pychain.dbstore.DBStoreException;
+import io.setl.bc.pychain.p2p.MsgFactory;
+import io.setl.bc.pychain.p2p.message.ItemRequest;
+import io.setl.bc.pychain.p2p.message.MerkleNodes;
+import io.setl.bc.pychain.p2p.message.StateResponse;
+import io.setl.bc.pychain.peer.PeerAddress;
+import io.setl.bc.pychain.peer.PeerManager;
+import io.setl.bc.pychain.state.AbstractState;
+import io.setl.bc.pychain.state.State;
+import io.setl.bc.pychain.state.ipfs.MerkleStore;
+import io.setl.bc.pychain.state.ipfs.MerkleSync;
+import io.setl.common.CommonPy.ItemType;
+import io.setl.util.Priorities;
+import io.setl.util.PriorityExecutor;
+
+/**
+ * Synchronises state with other nodes by copying only the parts of a state's Merkle trees that are missing from the local store, and serves the trees to
+ * other nodes doing the same.
+ *
+ * <p>A node which is more than a threshold number of blocks behind its peers fetches their state, rather than replaying every block. Peers' reports are not
+ * trusted on their own, as they are easily forged. Once enough peers report the same height, the last block below that height is requested from them, and
+ * its signatures are checked for sufficient voting power, exactly as a block being applied would be. The state that block applies to is then fetched, and is
+ * verified against the block's base state hash before it is used. As the voting power is taken from the local state, a change of signers since then can
+ * prevent synchronisation, in which case the node catches up by replaying blocks.</p>
+ */
+@Component
+public class StateSync {
+
+  /** Number of distinct candidate heights to track before forgetting them all. */
+  private static final int MAX_CANDIDATES = 64;
+
+  /** The most times a node is requested before a synchronisation is abandoned. */
+  private static final int MAX_ATTEMPTS = 5;
+
+  /** The most nodes served in reply to a single request. */
+  private static final int MAX_NODES_SERVED = 4096;
+
+  private static final Logger logger = LoggerFactory.getLogger(StateSync.class);
+
+  private final int batchSize;
+
+  /** For each candidate block height, the peers which have reported it. */
+  private final Map<Integer, Map<String, PeerAddress>> candidates = new HashMap<>();
+
+  private final int chainId;
+
+  private final MsgFactory msgFactory = new MsgFactory();
+
+  private final int parallelism;
+
+  private final PeerManager peerManager;
+
+  private final PriorityExecutor priorityExecutor;
+
+  private final int requiredConfirmations;
+
+  private final long requestTimeout;
+
+  private final DefaultSignatureMessageVerifier signatureVerifier;
+
+  private final StateManager stateManager;
+
+  private final StateReader stateReader;
+
+  private final MerkleStore<Object> store;
+
+  private final int threshold;
+
+  /** Receives the state once it is synchronised. */
+  private Consumer<State> adopter;
+
+  /** The height of the block requested to establish which state to synchronise, or -1 if none is requested. */
+  private int anchorHeight = -1;
+
+  /** When the anchor block was requested. */
+  private long anchorTime;
+
+  private int rotation = 0;
+
+  /** The peers which reported the state currently being synchronised. */
+  private List<PeerAddress> sources;
+
+  private MerkleSync sync;
+
+
+  /**
+   * New instance.
+   *
+   * @param stateReader           the state reader, which must also be a Merkle store for state to be synchronised
+   * @param stateManager          the state manager, which provides the voting power needed to sign a block
+   * @param signatureVerifier     checks the signatures on blocks
+   * @param peerManager           the peer manager
+   * @param priorityExecutor      the priority executor
+   * @param chainId               the chain's ID
+   * @param threshold             how many blocks behind its peers this node must be to synchronise state. Zero disables synchronisation.
+   * @param requiredConfirmations how many peers must report the same height before a signed block at that height is requested
+   * @param batchSize             the most nodes to request at once
+   * @param parallelism           the most requests to have outstanding at once
+   * @param requestTimeout        milliseconds to wait for a request to be answered before asking again
+   */
+  @SuppressWarnings({"squid:S00107", "unchecked"}) // Params > 7
+  public StateSync(
+      StateReader stateReader,
+      StateManager stateManager,
+      DefaultSignatureMessageVerifier signatureVerifier,
+      PeerManager peerManager,
+      PriorityExecutor priorityExecutor,
+      @Value("${chainid}") int chainId,
+      @Value("${statesync.threshold:0}") int threshold,
+      @Value("${statesync.confirmations:2}") int requiredConfirmations,
+      @Value("${statesync.batch-size:256}") int batchSize,
+      @Value("${statesync.parallelism:8}") int parallelism,
+      @Value("${statesync.request-timeout:30000}") long requestTimeout
+  ) {
+    this.stateReader = stateReader;
+    this.store = (stateReader instanceof MerkleStore) ? (MerkleStore<Object>) stateReader : null;
+    this.stateManager = stateManager;
+    this.signatureVerifier = signatureVerifier;
+    this.peerManager = peerManager;
+    this.priorityExecutor = priorityExecutor;
+    this.chainId = chainId;
+    this.threshold = threshold;
+    this.requiredConfirmations = Math.max(1, requiredConfirmations);
+    this.batchSize = batchSize;
+    this.parallelism = parallelism;
+    this.requestTimeout = requestTimeout;
+  }
+
+
+  /**
+   * Accept a block sent by a peer. If it is the block requested to establish which state to synchronise, and it is signed by sufficient voting power, the
+   * state it applies to is synchronised.
+   *
+   * @param block the block
+   * @param peer  the peer which sent it
+   *
+   * @return true if the block was requested by this, and so needs no further processing
+   */
+  public boolean blockReceived(Block block, PeerAddress peer) {
+    Consumer<State> stateAdopter;
+    synchronized (this) {
+      if (sync != null || anchorHeight < 0 || block.getHeight() != anchorHeight) {
+        return false;
+      }
+      anchorHeight = -1;
+      stateAdopter = adopter;
+    }
+
+    Hash stateHash = block.getBaseStateHash();
+    if (block.getChainId() != chainId || stateHash == null || stateHash.isNull()) {
+      logger.error(MARKER_STATE, "Block {} from {} cannot be used to synchronise state", block.getHeight(), peer);
+      return true;
+    }
+
+    Hash blockHash = new BlockVerifier().computeHash(block);
+    boolean[] validSignatures = signatureVerifier.verifyBlockSignatures(block.getSigList(), blockHash,
+        priorityExecutor.getTaskContext(Priorities.STATE_UPDATE)
+    );
+    if (!signatureVerifier.hasSignatureCoverage(block.getSigList(), validSignatures, stateManager.getTotalRequiredVotingPower(),
+        stateManager::getVotingPower
+    )) {
+      logger.error(MARKER_STATE, "Block {} from {} has insufficient signature coverage to synchronise state", block.getHeight(), peer);
+      return true;
+    }
+
+    MerkleSync started;
+    int sourceCount;
+    synchronized (this) {
+      if (sync != null) {
+        return true;
+      }
+      started = new MerkleSync(store, stateHash, batchSize, parallelism, requestTimeout, MAX_ATTEMPTS, this::request);
+      sync = started;
+      sourceCount = sources.size();
+    }
+
+    logger.warn(MARKER_STATE, "Synchronising state {} at height {} from {} peers.", stateHash, block.getHeight(), sourceCount);
+    started.start().whenComplete((hash, error) -> finished(started, hash, error, stateAdopter));
+    return true;
+  }
+
+
+  private synchronized void clear(MerkleSync finished) {
+    if (sync == finished) {
+      sync = null;
+      sources = null;
+    }
+  }
+
+
+  /**
+   * Load a synchronised state, check it matches its hash, and pass it on.
+   */
+  private void finished(MerkleSync finished, Hash stateHash, Throwable error, Consumer<State> adopter) {
+    if (error != null) {
+      logger.error(MARKER_STATE, "Synchronisation of state {} failed", finished.getRoot(), error);
+      clear(finished);
+      return;
+    }
+
+    priorityExecutor.submit(Priorities.STATE_UPDATE, () -> {
+      try {
+        AbstractState state = stateReader.readState(stateHash.toHexString());
+        if (state.verifyAll() && stateHash.equals(state.getLoadedHash())) {
+          adopter.accept(state);
+        } else {
+          logger.error(MARKER_STATE, "Synchronised state does not match its hash {}", stateHash);
+        }
+      } catch (DBStoreException | NoStateFoundException | RuntimeException e) {
+        logger.error(MARKER_STATE, "Failed to load synchronised state {}", stateHash, e);
+      } finally {
+        clear(finished);
+      }
+    });
+  }
+
+
+  /**
+   * Serve a request for Merkle nodes. Nodes which are not held are returned as null.
+   *
+   * @param request the request
+   * @param peer    the requesting peer
+   */
+  public void handleItemRequest(ItemRequest request, PeerAddress peer) {
+    if (store == null) {
+      logger.info(MARKER_STATE, "Request for Merkle nodes from {} ignored, as state is not held in a Merkle store", peer);
+      return;
+    }
+    if (!(request.getId() instanceof Object[])) {
+      logger.warn(MARKER_STATE, "Malformed request for Merkle nodes from {}", peer);
+      return;
+    }
+    Object[] ids = (Object[]) request.getId();
+    int count = Math.min(ids.length, MAX_NODES_SERVED);
+    List<Hash> hashes = new ArrayList<>(count);
+    List<Object> values = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      if (!(ids[i] instanceof byte[])) {
+        logger.warn(MARKER_STATE, "Malformed request for Merkle nodes from {}", peer);
+        return;
+      }
+      Hash hash = new Hash((byte[]) ids[i]);
+      hashes.add(hash);
+      values.add(store.get(hash));
+    }
+    peerManager.send(peer, msgFactory.merkleNodes(chainId, hashes, values));
+  }
+
+
+  /**
+   * Accept Merkle nodes sent by a peer.
+   *
+   * @param message the nodes
+   */
+  public void nodesReceived(MerkleNodes message) {
+    MerkleSync current;
+    synchronized (this) {
+      current = sync;
+    }
+    if (current != null) {
+      current.nodesReceived(message.getHashes(), message.getValues());
+    }
+  }
+
+
+  /**
+   * Record the state reported by a peer. If this node is far enough behind and enough peers agree on the height, the block below that height is requested
+   * from them. If the block is properly signed, the state it applies to is synchronised. When that completes the state is verified and passed to the adopter,
+   * on the state update priority.
+   *
+   * @param response    the peer's state response
+   * @param peer        the peer
+   * @param localHeight this node's state height
+   * @param adopter     receives the synchronised state
+   */
+  public void peerState(StateResponse response, PeerAddress peer, int localHeight, Consumer<State> adopter) {
+    if (store == null || threshold <= 0 || peer == null) {
+      return;
+    }
+
+    MerkleSync current;
+    PeerAddress anchorPeer = null;
+    int height = response.getHeight() - 1;
+    synchronized (this) {
+      current = sync;
+      if (current == null) {
+        if (anchorHeight >= 0 && System.currentTimeMillis() - anchorTime < requestTimeout) {
+          // Waiting for the block
+          return;
+        }
+        anchorHeight = -1;
+        if (response.getHeight() - localHeight < threshold) {
+          return;
+        }
+        if (candidates.size() >= MAX_CANDIDATES && !candidates.containsKey(height)) {
+          candidates.clear();
+        }
+        Map<String, PeerAddress> peers = candidates.computeIfAbsent(height, h -> new HashMap<>());
+        peers.put(peer.getAddressString(), peer);
+        if (peers.size() < requiredConfirmations) {
+          return;
+        }
+
+        candidates.clear();
+        sources = new ArrayList<>(peers.values());
+        this.adopter = adopter;
+        anchorHeight = height;
+        anchorTime = System.currentTimeMillis();
+        anchorPeer = peer;
+      }
+    }
+
+    if (anchorPeer != null) {
+      logger.warn(MARKER_STATE, "State is {} blocks behind. Requesting block {} to synchronise state.", response.getHeight() - localHeight, height);
+      peerManager.send(anchorPeer, msgFactory.blockRequest(chainId, height, 0));
+    } else if (current != null) {
+      // State responses arrive regularly, so use them to check for requests which have gone unanswered.
+      current.checkTimeouts();
+    }
+  }
+
+
+  private void request(List<Hash> hashes) {
+    PeerAddress peer;
+    synchronized (this) {
+      if (sources == null) {
+        return;
+      }
+      rotation = (rotation + 1) % sources.size();
+      peer = sources.get(rotation);
+    }
+    Object[] encoded = new Object[hashes.size()];
+    for (int i = 0; i < encoded.length; i++) {
+      encoded[i] = hashes.get(i).get();
+    }
+    peerManager.send(peer, msgFactory.itemRequest(chainId, ItemType.MERKLE_NODES, encoded));
+  }
+
+}
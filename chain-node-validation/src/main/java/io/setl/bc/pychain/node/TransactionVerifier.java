@@ -25,6 +25,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
 
 import com.google.common.eventbus.EventBus;
 import org.slf4j.Logger;
@@ -42,6 +43,7 @@ import io.setl.bc.pychain.tx.TransactionProcessor;
 import io.setl.bc.pychain.tx.verifier.TxVerifier;
 import io.setl.common.MutableBoolean;
 import io.setl.common.MutableLong;
+import io.setl.crypto.BatchSignatureVerifier;
 import io.setl.util.ParallelTask;
 import io.setl.util.Priorities;
 import io.setl.util.PriorityExecutor;
@@ -71,6 +73,9 @@ public class TransactionVerifier {
 
     AbstractTx tx;
 
+    /** True if the transaction's hash and signature are already known to be good. */
+    boolean verified = false;
+
 
     Result(String hash) {
       this.hash = hash;
@@ -89,6 +94,11 @@ public class TransactionVerifier {
     }
 
 
+    synchronized boolean hasOutcome() {
+      return outcome != null;
+    }
+
+
     void setOutcome(Verify outcome) {
       synchronized (this) {
         this.outcome = outcome;
@@ -100,6 +110,24 @@ public class TransactionVerifier {
 
 
 
+  /**
+   * Is the transaction at the given index claimed by this batch and still awaiting an outcome?
+   */
+  private static boolean isPending(boolean[] owned, Result[] results, int index) {
+    return owned[index] && !results[index].hasOutcome();
+  }
+
+
+  /**
+   * Create the result for a transaction that could not be decoded. It has no hash, so it is never in progress or in the pool.
+   */
+  private static Result rejected() {
+    Result result = new Result(null);
+    result.setOutcome(Verify.INVALID);
+    return result;
+  }
+
+
   @SuppressWarnings("squid:S1068") // 'Unused "private" fields should be removed'
   private final EventBus eventBus;
 
@@ -121,6 +149,8 @@ public class TransactionVerifier {
 
   private final TxVerifier txVerifier;
 
+  private final VerifiedTxCache verifiedTxCache;
+
 
   /**
    * some javadoc.
@@ -134,7 +164,8 @@ public class TransactionVerifier {
       PriorityExecutor priorityExecutor,
       StateManager stateManager,
       TransactionProcessor transactionProcessor,
-      EventBus eventBus
+      EventBus eventBus,
+      VerifiedTxCache verifiedTxCache
   ) {
     this.txVerifier = txVerifier;
     this.transactionPool = transactionPool;
@@ -142,6 +173,7 @@ public class TransactionVerifier {
     this.stateManager = stateManager;
     this.transactionProcessor = transactionProcessor;
     this.eventBus = eventBus;
+    this.verifiedTxCache = verifiedTxCache;
 
     txLocks = new Object[256];
     for (int i = txLocks.length - 1; i >= 0; i--) {
@@ -174,15 +206,37 @@ public class TransactionVerifier {
     long fifo = isForProposal ? 0 : fifoSource.getAndIncrement();
     long startTime = System.currentTimeMillis();
     Result[] results = new Result[length];
+    boolean[] owned = new boolean[length];
 
     int badCount = 0;
     try {
-      ParallelTask.process(taskContext, length, i -> {
+      // Decode and check hashes. Transactions which are already known are resolved here.
+      ParallelTask.process(taskContext, length, (IntConsumer) i -> {
         MPWrappedArray def = transactions.get(i);
-        if (def != null) {
-          results[i] = verifyTx(source, def);
-        } else {
+        if (def == null) {
           logger.error("Missing transaction {}", i);
+          results[i] = rejected();
+          return;
+        }
+        try {
+          results[i] = startVerifyTx(source, def, owned, i);
+        } catch (IllegalArgumentException e) {
+          // Already logged. The transaction is bad, but the rest of the batch is still verified.
+          results[i] = rejected();
+        }
+      });
+
+      // Verify the signatures of the transactions this batch is responsible for together.
+      BatchSignatureVerifier batch = new BatchSignatureVerifier();
+      int[] batchIndex = new int[length];
+      for (int i = 0; i < length; i++) {
+        batchIndex[i] = (isPending(owned, results, i) && !results[i].verified) ? txVerifier.addSignature(results[i].tx, batch) : -1;
+      }
+      boolean[] signatures = batch.verify(taskContext);
+
+      ParallelTask.process(taskContext, length, (IntConsumer) i -> {
+        if (isPending(owned, results, i)) {
+          finishVerifyTx(source, transactions.get(i), results[i], batchIndex[i] >= 0 ? Boolean.valueOf(signatures[batchIndex[i]]) : null);
         }
       });
 
@@ -197,8 +251,14 @@ public class TransactionVerifier {
 
       // process the results
       for (Result result : results) {
-        // Synchronize so we can update in-progress and the tx-pool atomically.
         Verify outcome = result.getOutcome();
+        if (result.hash == null) {
+          // Could not be decoded
+          badCount++;
+          continue;
+        }
+
+        // Synchronize so we can update in-progress and the tx-pool atomically.
         synchronized (lock(result.hash)) {
           switch (outcome) {
             case IN_POOL:
@@ -226,6 +286,17 @@ public class TransactionVerifier {
       logger.error("Transaction processing was interrupted.", ie);
       Thread.currentThread().interrupt();
     } finally {
+      // Every transaction this batch claimed must be resolved and released, whatever failed, or other batches would wait on it forever.
+      for (int i = 0; i < length; i++) {
+        if (owned[i]) {
+          Result result = results[i];
+          if (!result.hasOutcome()) {
+            result.setOutcome(Verify.INVALID);
+          }
+          inProgress.remove(result.hash, result);
+        }
+      }
+
       if (!isForProposal) {
         // Allow next FIFO element out
         synchronized (fifoOut) {
@@ -250,12 +321,52 @@ public class TransactionVerifier {
   }
 
 
-  private Result verifyTx(PeerAddress addr, MPWrappedArray txMessage) {
+  private void finishVerifyTx(PeerAddress addr, MPWrappedArray txMessage, Result result, Boolean batchSignature) {
+    AbstractTx tx = result.tx;
     try {
-      AbstractTx tx = TxFromList.txFromList(txMessage);
-      String hash = tx.getHash();
+      if (!result.verified) {
+        boolean signatureOk = (batchSignature != null) ? batchSignature.booleanValue() : txVerifier.verifySignature(tx);
+        if (!signatureOk) {
+          //TODO - progress any transactions with same hash
+          logger.warn("Transaction signature invalid:{}", tx.getHash());
+          result.setOutcome(Verify.INVALID);
+          return;
+        }
 
-      Result result;
+        // Remember the transaction so it is not decoded and verified again when it appears in a proposal or block.
+        verifiedTxCache.put(tx);
+      }
+
+      if (!transactionProcessor.checkValidatedTransactionForPool(tx, stateManager.getState())) {
+        logger.warn("Transaction for pool failed (replay?):{}", tx.getHash());
+        result.setOutcome(Verify.INVALID);
+        return;
+      }
+
+      //TODO - remove any transactions with same hash
+      if (logger.isTraceEnabled()) {
+        logger.trace("Transaction valid:{}", tx.getHash());
+      }
+
+      result.setOutcome(Verify.GOOD);
+    } catch (RuntimeException e) {
+      // Only this transaction is bad. The rest of the batch must still be resolved.
+      logger.error("Transaction from {} caused internal error:{}", addr.getAddressString(), Arrays.deepToString(txMessage.unwrap()), e);
+      result.setOutcome(Verify.INVALID);
+    }
+  }
+
+
+  /**
+   * Decode a transaction and check its hash. If the transaction is already in the pool, or being verified elsewhere, the returned result is the existing
+   * one. Otherwise this batch takes ownership of it and the result is left without an outcome until its signature has been checked.
+   */
+  private Result startVerifyTx(PeerAddress addr, MPWrappedArray txMessage, boolean[] owned, int index) {
+    Result result = null;
+    try {
+      AbstractTx verified = verifiedTxCache.get(txMessage);
+      AbstractTx tx = (verified != null) ? verified : TxFromList.txFromList(txMessage);
+      String hash = tx.getHash();
 
       // TODO - there is a vulnerability here for hash stealing. If a TX with a valid hash has been validated and is in the pool, or in-progress, then a
       // second transaction which has copied its hash will be assumed to be the same transaction and also pass. To fix this we need to check that the TX in
@@ -292,39 +403,25 @@ public class TransactionVerifier {
           // Did not create it, so in-progress elsewhere.
           return result;
         }
+        owned[index] = true;
       }
 
       result.tx = tx;
-
-      if (!txVerifier.verifyCurrentHash(tx)) {
+      if (verified != null) {
+        result.verified = true;
+      } else if (!txVerifier.verifyCurrentHash(tx)) {
         //TODO - progress any transactions with same hash
         logger.warn("Transaction hash invalid:{}", tx.getHash());
         result.setOutcome(Verify.INVALID);
-        return result;
       }
-      if (!txVerifier.verifySignature(tx)) {
-        //TODO - Potentially record hash, pubkey and signature to avoid re-verification
-        //TODO - progress any transactions with same hash
-        logger.warn("Transaction signature invalid:{}", tx.getHash());
-        result.setOutcome(Verify.INVALID);
-        return result;
-      }
-
-      if (!transactionProcessor.checkValidatedTransactionForPool(tx, stateManager.getState())) {
-        logger.warn("Transaction for pool failed (replay?):{}", tx.getHash());
-        result.setOutcome(Verify.INVALID);
-        return result;
-      }
-
-      //TODO - remove any transactions with same hash
-      if (logger.isTraceEnabled()) {
-        logger.trace("Transaction valid:{}", tx.getHash());
-      }
-
-      result.setOutcome(Verify.GOOD);
       return result;
     } catch (RuntimeException e) {
       logger.error("Transaction from {} caused internal error:{}", addr.getAddressString(), Arrays.deepToString(txMessage.unwrap()), e);
+      if (owned[index]) {
+        // This batch has claimed the transaction, so it must be resolved here.
+        result.setOutcome(Verify.INVALID);
+        return result;
+      }
       throw new IllegalArgumentException("Transaction caused internal error", e);
     }
   }
@@ -341,9 +438,13 @@ public class TransactionVerifier {
     CompletableFuture<Boolean> future = new CompletableFuture<>();
     priorityExecutor.submit(
         proposalId != null ? Priorities.PROPOSAL : Priorities.TX_VERIFY,
-        ctxt -> future.complete(Boolean.valueOf(
-            processMultipleTransactions(ctxt, addr, txPackage.getEncodedTxs(), proposalId)
-        ))
+        ctxt -> {
+          try {
+            future.complete(Boolean.valueOf(processMultipleTransactions(ctxt, addr, txPackage.getEncodedTxs(), proposalId)));
+          } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+          }
+        }
     );
     return future;
   }
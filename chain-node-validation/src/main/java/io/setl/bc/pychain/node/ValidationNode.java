@@ -83,12 +83,14 @@ import io.setl.bc.pychain.dbstore.DBStoreException;
 import io.setl.bc.pychain.event.StateRequestEvent;
 import io.setl.bc.pychain.event.TransactionListenerInternal;
 import io.setl.bc.pychain.msgpack.MPWrappedArrayImpl;
+import io.setl.bc.pychain.node.BlockCatchUp.PreparedBlock;
 import io.setl.bc.pychain.p2p.MsgFactory;
 import io.setl.bc.pychain.p2p.message.BlockCommitted;
 import io.setl.bc.pychain.p2p.message.BlockFinalized;
 import io.setl.bc.pychain.p2p.message.BlockRequest;
 import io.setl.bc.pychain.p2p.message.EmptyProposal;
 import io.setl.bc.pychain.p2p.message.ItemRequest;
+import io.setl.bc.pychain.p2p.message.MerkleNodes;
 import io.setl.bc.pychain.p2p.message.Message;
 import io.setl.bc.pychain.p2p.message.PreparingProposal;
 import io.setl.bc.pychain.p2p.message.ProposalMessage;
@@ -219,6 +221,21 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
   @Value("${vnode.setting.auto-adjust-block-limit}")
   private boolean autoAdjustBlockLimit;
 
+  /** Parallel block catch-up. Null if disabled or not yet started. */
+  private BlockCatchUp blockCatchUp;
+
+  /** Most blocks to request from one peer at once during catch-up. */
+  @Value("${catchup.range-size:8}")
+  private int catchUpRange = 8;
+
+  /** Milliseconds to wait for a peer to answer a block request during catch-up. */
+  @Value("${catchup.request-timeout:30000}")
+  private long catchUpTimeout = 30000;
+
+  /** Most blocks beyond the current state to request or hold during catch-up. Zero disables parallel catch-up. */
+  @Value("${catchup.window:64}")
+  private int catchUpWindow = 64;
+
   @Value("${chainid}")
   private int chainId;
 
@@ -238,12 +255,18 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
 
   private boolean noStart;
 
+  @Autowired(required = false)
+  private PersistencePipeline persistencePipeline;
+
   // TODO:Refactor nodeState to be useful
   private NodeState nodeState = NodeState.Init;
 
   //Map for enforcing single signed hash per height
   private Map<Integer, Hash> signatureHeightMap = new HashMap<>();
 
+  @Autowired(required = false)
+  private StateSync stateSync;
+
   @Value("${useFullBlocks:false}")
   private boolean useFullBlocks = false;
 
@@ -385,6 +408,27 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
   }
 
 
+  /**
+   * Replace the current state with one synchronised from peers, provided block catch-up has not already passed it.
+   *
+   * @param state the verified, synchronised state
+   */
+  private void adoptSynchronisedState(State state) {
+    synchronized (activeProposalManager) {
+      int height = stateManager.getCurrentStateDetail().getHeight();
+      if (state.getHeight() <= height) {
+        logger.info(MARKER_CONSENSUS, "Synchronised state at height {} is not needed, as local height is {}", state.getHeight(), height);
+        return;
+      }
+
+      logger.warn(MARKER_CONSENSUS, "Adopting synchronised state at height {} in place of height {}", state.getHeight(), height);
+      stateManager.setState(state);
+      activeProposalManager.reset(stateManager.getTotalRequiredVotingPower(), stateManager.getTotalVotingPower(), state.getHeight());
+      stateManager.reset();
+    }
+  }
+
+
   /**
    * Process all transactions within block against state snapshot.
    *
@@ -393,7 +437,7 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
    */
   private boolean applyTransactionsAndValidateProposalBlock(Block block, StateSnapshot stateSnapshot) {
     try {
-      Txi[] tx = block.getTransactions();
+      Txi[] tx = block.getTransactionView().decodeAll(priorityExecutor.getTaskContext(Priorities.STATE_UPDATE)).toTxArray();
       return transactionProcessor.processTransactions(stateSnapshot, tx, block.getTimeStamp(), true);
     } catch (StateSnapshotCorruptedException e) {
       throw new ConsensusFailedException(e);
@@ -619,59 +663,61 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
   }
 
 
-  //TODO - When multiple blocks requested, although they arrive in order, once 2 or more are received, the order threads are woken is indeterminate,
-  //       resulting in incorrect processing order.
-  // Note : handleStateResponse only requests One block at a time.
-
-  private void handleBlockFinalized(BlockFinalized blockFinalized, PeerAddress peerAddress) {
-    // Result of block request
+  /**
+   * Apply a finalized block to the current state, if it is the next block and is signed by sufficient voting power.
+   *
+   * @param block           the block
+   * @param blockHash       the block's hash
+   * @param validSignatures if the block's signatures have already been checked, the result of each check. Otherwise null.
+   * @param peerAddress     the peer which sent the block
+   *
+   * @return true if the block was applied
+   */
+  private boolean applyFinalizedBlock(Block block, Hash blockHash, boolean[] validSignatures, PeerAddress peerAddress) {
     // Validate block and signatures, then apply if > 50% of required signatures and
     // transactions validate
 
     synchronized (activeProposalManager) {
       logger.info(MARKER_CONSENSUS, "handleBlockFinalized, start.");
 
-      Block block = blockFinalized.getBlock();
-
       StateDetail csd = stateManager.getCurrentStateDetail();
 
       if (block.getChainId() != csd.getChainId()) {
         logger.error(MARKER_CONSENSUS, "handleBlockFinalized:Wrong chain id :{}, required:{}", block.getChainId(),
             csd.getChainId()
         );
-        return;
+        return false;
       }
 
       if (block.getHeight() != csd.getHeight()) {
         logger.error(MARKER_CONSENSUS, "handleBlockFinalized:Wrong height:{}, required:{}", block.getHeight(),
             csd.getHeight()
         );
-        return;
+        return false;
       }
 
       if (!csd.getStateHash().equals(block.getBaseStateHash())) {
         logger.error(MARKER_CONSENSUS, "handleBlockFinalized:Wrong state hash:{}, required:{}", block.getBaseStateHash(),
             csd.getStateHash()
         );
-        return;
+        return false;
       }
 
-      logger.info(MARKER_CONSENSUS, "handleBlockFinalized, block height:{}", block.getHeight());
+      logger.info(MARKER_CONSENSUS, "handleBlockFinalized, block height:{} hash:{}", block.getHeight(), blockHash);
 
-      Hash blockHash;
-      try {
-        blockHash = new BlockVerifier().computeHash(block);
-        logger.info(MARKER_CONSENSUS, "handleBlockFinalized, block hash:{}", blockHash);
-      } catch (Exception e) {
-        logger.error(MARKER_CONSENSUS, "handleBlockFinalized:", e);
-        return;
+      boolean isSigned;
+      if (validSignatures != null) {
+        isSigned = signatureMessageVerifier.hasSignatureCoverage(block.getSigList(), validSignatures, stateManager.getTotalRequiredVotingPower(),
+            stateManager::getVotingPower
+        );
+      } else {
+        isSigned = signatureMessageVerifier.verifyBlockSignatureList(block.getSigList(), blockHash, stateManager.getTotalRequiredVotingPower(),
+            stateManager::getVotingPower, priorityExecutor.getTaskContext(Priorities.STATE_UPDATE)
+        );
       }
-
-      if (!signatureMessageVerifier.verifyBlockSignatureList(block.getSigList(), blockHash, config.getChainId(), stateManager.getTotalRequiredVotingPower(),
-          stateManager::getVotingPower
-      )) {
+      if (!isSigned) {
         logger.error(MARKER_CONSENSUS, "handleBlockFinalized,Insufficient signature coverage: {}", blockHash);
-        return;
+        return false;
       }
 
       //TODO - Further validation of block
@@ -715,9 +761,9 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
         logger.debug(MARKER_CONSENSUS, "  handleBlockFinalized,Request Next block");
 
         // Notify the Peer manager that block has been handled (please send the next one). If this returns false, then
-        // this is a classic Mesh network and traditional peer-request will be made.
+        // this is a classic Mesh network and traditional peer-request will be made, unless catch-up is requesting blocks.
 
-        if (!peerManager.getBlock(block.getChainId(),  newStateHeight)) {
+        if (!peerManager.getBlock(block.getChainId(), newStateHeight) && blockCatchUp == null) {
 
           peerManager.send(peerAddress, msgFactory.blockRequest(config.getChainId(),
               stateManager.getCurrentStateDetail().getHeight(), 0
@@ -726,8 +772,10 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
         }
 
         logger.info(MARKER_CONSENSUS, "  handleBlockFinalized completed : {}", blockHash);
+        return true;
       } else {
         logger.error(MARKER_CONSENSUS, "  handleBlockFinalized:Failed to process transactions");
+        return false;
       }
 
     } //  synchronized
@@ -735,6 +783,31 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
   }
 
 
+  private void handleBlockFinalized(BlockFinalized blockFinalized, PeerAddress peerAddress) {
+    Block block = blockFinalized.getBlock();
+
+    // A block requested to establish which state to synchronise
+    if (stateSync != null && stateSync.blockReceived(block, peerAddress)) {
+      return;
+    }
+
+    // Result of block request. With catch-up, blocks are checked in parallel and applied in order.
+    if (blockCatchUp != null) {
+      blockCatchUp.blockReceived(block, peerAddress);
+      return;
+    }
+
+    Hash blockHash;
+    try {
+      blockHash = new BlockVerifier().computeHash(block);
+    } catch (Exception e) {
+      logger.error(MARKER_CONSENSUS, "handleBlockFinalized:", e);
+      return;
+    }
+    applyFinalizedBlock(block, blockHash, null, peerAddress);
+  }
+
+
   /**
    * Handle incoming blockchain events.
    */
@@ -803,6 +876,11 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
         case ITEM_REQUEST:
           handleItemRequest((ItemRequest) eventMessage, peerAddress);
           break;
+        case MERKLE_NODES:
+          if (stateSync != null) {
+            stateSync.nodesReceived((MerkleNodes) eventMessage);
+          }
+          break;
         case TX_PACKAGE_RESPONSE:
           handleTxPackageResponse((TxPackageResponse) eventMessage, peerAddress);
           break;
@@ -853,6 +931,13 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
       return;
     }
 
+    if (ItemType.MERKLE_NODES == itemRequested) {
+      if (stateSync != null) {
+        priorityExecutor.submit(Priorities.NETWORK_WRITE, () -> stateSync.handleItemRequest(eventMessage, peerAddress));
+      }
+      return;
+    }
+
     if (ItemType.PROPVOTES == itemRequested) {
       logger.info(MARKER_MESSAGING, "PROPVOTES_REQUEST IGNORED:{}", eventMessage);
       return;
@@ -1108,6 +1193,11 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
 
           logger.info(MARKER_CONSENSUS, "Requesting {} of {} blocks", behind, blockCount);
 
+          // If far behind, fetch the missing parts of the peers' state as well. Whichever arrives first wins.
+          if (stateSync != null) {
+            stateSync.peerState(message, addr, currentStateDetail.getHeight(), this::adoptSynchronisedState);
+          }
+
           // Request the blocks from the network.
 
           // Try to request blocks from the Peer Manager.
@@ -1116,11 +1206,16 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
 
           if (!peerManager.getBlock(config.getChainId(), currentStateDetail.getHeight())) {
 
-            // Use traditional request form :
+            if (blockCatchUp != null) {
+              // Fetch from every peer which is ahead, in parallel.
+              blockCatchUp.peerHeight(addr, messageHeight);
+            } else {
+              // Use traditional request form :
 
-            peerManager.send(addr, msgFactory.blockRequest(config.getChainId(),
-                currentStateDetail.getHeight(), blockCount - 1
-            ));
+              peerManager.send(addr, msgFactory.blockRequest(config.getChainId(),
+                  currentStateDetail.getHeight(), blockCount - 1
+              ));
+            }
 
           }
 
@@ -1242,6 +1337,33 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
   }
 
 
+  /**
+   * Check a block received during catch-up as far as possible without the state it applies to.
+   */
+  private PreparedBlock prepareBlock(Block block, PeerAddress source) {
+    if (block.getChainId() != config.getChainId()) {
+      logger.error(MARKER_CONSENSUS, "Catch-up block has wrong chain id :{}, required:{}", block.getChainId(), config.getChainId());
+      return null;
+    }
+
+    Hash blockHash;
+    try {
+      blockHash = new BlockVerifier().computeHash(block);
+    } catch (Exception e) {
+      logger.error(MARKER_CONSENSUS, "Catch-up block hash failed:", e);
+      return null;
+    }
+
+    boolean[] validSignatures = signatureMessageVerifier.verifyBlockSignatures(block.getSigList(), blockHash,
+        priorityExecutor.getTaskContext(Priorities.STATE_UPDATE)
+    );
+
+    // Decode the transactions now, so applying the block does not have to.
+    block.getTransactionView().decodeAll(priorityExecutor.getTaskContext(Priorities.STATE_UPDATE));
+    return new PreparedBlock(block, blockHash, validSignatures, source);
+  }
+
+
   /**
    * Proposal check - Schedule every 5th second.
    */
@@ -1504,6 +1626,16 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
     //Provide health with node identifier
     nodeStatus.setUniqueNodeIdentifier(config.getUniqueNodeIdentifier());
 
+    if (catchUpWindow > 0) {
+      blockCatchUp = new BlockCatchUp(catchUpWindow, catchUpRange, catchUpTimeout,
+          r -> priorityExecutor.submit(Priorities.STATE_UPDATE, r),
+          () -> stateManager.getCurrentStateDetail().getHeight(),
+          (peer, first, count) -> peerManager.send(peer, msgFactory.blockRequest(config.getChainId(), first, count - 1)),
+          this::prepareBlock,
+          prepared -> applyFinalizedBlock(prepared.getBlock(), prepared.getBlockHash(), prepared.getValidSignatures(), prepared.getSource())
+      );
+    }
+
     // Listen for transactions
     peerManager.addTransactionListener(this);
 
@@ -1525,6 +1657,12 @@ public class ValidationNode implements TransactionListener, TransactionListenerI
     nodeState = NodeState.Stopped;
     logger.info("Current node state: {}", nodeState);
 
+    if (persistencePipeline != null) {
+      // Let background writes complete, so the durable height is as high as possible.
+      persistencePipeline.shutdown();
+      logger.info("Persistence pipeline drained.");
+    }
+
     try {
       dbStore.close();
       logger.info("DB store closed.");
@@ -0,0 +1,167 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.setl.bc.pychain.block.Block;
+import io.setl.bc.pychain.node.BlockCatchUp.PreparedBlock;
+import io.setl.bc.pychain.peer.PeerAddress;
+
+public class BlockCatchUpTest {
+
+  private final List<Integer> applied = new ArrayList<>();
+
+  private final List<int[]> requests = new ArrayList<>();
+
+  private final List<String> requestPeers = new ArrayList<>();
+
+  private BlockCatchUp catchUp;
+
+  private int height = 10;
+
+  private int rejectHeight = -1;
+
+
+  private static Block block(int height) {
+    Block block = mock(Block.class);
+    when(block.getHeight()).thenReturn(height);
+    return block;
+  }
+
+
+  private static PeerAddress peer(String name) {
+    return () -> name;
+  }
+
+
+  @Test
+  public void appliesInOrder() {
+    PeerAddress peer = peer("a");
+    catchUp.peerHeight(peer, 20);
+
+    // Blocks arrive out of order, but are applied in order
+    catchUp.blockReceived(block(12), peer);
+    catchUp.blockReceived(block(11), peer);
+    assertTrue(applied.isEmpty());
+    assertEquals(2, catchUp.getReadyCount());
+
+    catchUp.blockReceived(block(10), peer);
+    assertEquals(List.of(10, 11, 12), applied);
+    assertEquals(0, catchUp.getReadyCount());
+  }
+
+
+  @Test
+  public void ignoresUnwanted() {
+    PeerAddress peer = peer("a");
+    catchUp.blockReceived(block(9), peer);
+    catchUp.blockReceived(block(10 + 16), peer);
+    assertEquals(0, catchUp.getReadyCount());
+    assertTrue(applied.isEmpty());
+  }
+
+
+  @Test
+  public void rejectedBlockIsRequestedFromAnotherPeer() {
+    PeerAddress a = peer("a");
+    PeerAddress b = peer("b");
+    catchUp.peerHeight(a, 12);
+    requests.clear();
+    requestPeers.clear();
+    catchUp.peerHeight(b, 12);
+    assertTrue(requests.isEmpty());
+
+    rejectHeight = 10;
+    catchUp.blockReceived(block(10), a);
+    assertTrue(applied.isEmpty());
+    assertEquals(1, requests.size());
+    assertEquals("b", requestPeers.get(0));
+    assertEquals(10, requests.get(0)[0]);
+  }
+
+
+  @Test
+  public void requestsAreSpreadAndBounded() {
+    catchUp.peerHeight(peer("a"), 100);
+
+    // 16 block window, 4 block ranges
+    int total = 0;
+    int next = 10;
+    for (int[] r : requests) {
+      assertEquals(next, r[0]);
+      assertTrue(r[1] <= 4);
+      next += r[1];
+      total += r[1];
+    }
+    assertEquals(16, total);
+    assertEquals(4, catchUp.getRequestCount());
+
+    // Everything in the window is requested, so a new peer is not asked yet
+    requests.clear();
+    requestPeers.clear();
+    catchUp.peerHeight(peer("b"), 100);
+    assertTrue(requests.isEmpty());
+
+    // Applying a block moves the window on, and the least busy peer is asked
+    catchUp.blockReceived(block(10), peer("a"));
+    assertEquals(List.of(10), applied);
+    assertEquals(1, requests.size());
+    assertEquals(26, requests.get(0)[0]);
+    assertEquals(List.of("b"), requestPeers);
+  }
+
+
+  @Before
+  public void setUp() {
+    catchUp = new BlockCatchUp(16, 4, 60_000, Runnable::run, () -> height,
+        (peer, first, count) -> {
+          requests.add(new int[]{first, count});
+          requestPeers.add(peer.getAddressString());
+        },
+        (block, source) -> new PreparedBlock(block, null, new boolean[0], source),
+        prepared -> {
+          if (prepared.getHeight() == rejectHeight) {
+            return false;
+          }
+          applied.add(prepared.getHeight());
+          height++;
+          return true;
+        }
+    );
+  }
+
+
+  @Test
+  public void stopsAtPeerHeight() {
+    catchUp.peerHeight(peer("a"), 13);
+    assertEquals(1, requests.size());
+    assertEquals(10, requests.get(0)[0]);
+    assertEquals(3, requests.get(0)[1]);
+  }
+
+}
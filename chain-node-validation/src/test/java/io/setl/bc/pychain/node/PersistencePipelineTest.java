@@ -0,0 +1,141 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class PersistencePipelineTest {
+
+  @Test
+  public void asynchronousKeepsOrder() {
+    PersistencePipeline pipeline = new PersistencePipeline(3);
+    assertTrue(pipeline.isAsynchronous());
+
+    List<Integer> order = new CopyOnWriteArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      final int n = i;
+      pipeline.submit("job " + n, () -> order.add(n));
+    }
+    pipeline.flush();
+
+    assertEquals(IntStream.range(0, 100).boxed().collect(Collectors.toList()), order);
+    pipeline.shutdown();
+  }
+
+
+  @Test
+  public void failureStopsLaterJobs() throws InterruptedException {
+    PersistencePipeline pipeline = new PersistencePipeline(2);
+    RuntimeException failure = new RuntimeException("disk full");
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> ran = new CopyOnWriteArrayList<>();
+
+    pipeline.submit("blocked", () -> {
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      throw failure;
+    });
+    pipeline.submit("after failure", () -> ran.add("after failure"));
+    release.countDown();
+
+    try {
+      pipeline.flush();
+      fail();
+    } catch (IllegalStateException e) {
+      assertSame(failure, e.getCause());
+    }
+    assertTrue(ran.isEmpty());
+
+    try {
+      pipeline.submit("rejected", () -> ran.add("rejected"));
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    pipeline.shutdown();
+    assertTrue(ran.isEmpty());
+  }
+
+
+  @Test
+  public void pipelineIsBounded() throws InterruptedException {
+    PersistencePipeline pipeline = new PersistencePipeline(1);
+    CountDownLatch release = new CountDownLatch(1);
+    pipeline.submit("first", () -> {
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    // The second submission must wait until the first completes.
+    CountDownLatch submitted = new CountDownLatch(1);
+    Thread submitter = new Thread(() -> {
+      pipeline.submit("second", () -> {
+        // do nothing
+      });
+      submitted.countDown();
+    });
+    submitter.start();
+    assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+
+    release.countDown();
+    assertTrue(submitted.await(10, TimeUnit.SECONDS));
+    pipeline.shutdown();
+  }
+
+
+  @Test
+  public void synchronousRunsInline() {
+    PersistencePipeline pipeline = new PersistencePipeline(0);
+    assertFalse(pipeline.isAsynchronous());
+
+    Thread[] thread = new Thread[1];
+    pipeline.submit("inline", () -> thread[0] = Thread.currentThread());
+    assertSame(Thread.currentThread(), thread[0]);
+
+    RuntimeException failure = new RuntimeException();
+    try {
+      pipeline.submit("fails", () -> {
+        throw failure;
+      });
+      fail();
+    } catch (RuntimeException e) {
+      assertSame(failure, e);
+    }
+    pipeline.flush();
+  }
+}
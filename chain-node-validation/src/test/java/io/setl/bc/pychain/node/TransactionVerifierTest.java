@@ -0,0 +1,134 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.eventbus.EventBus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.setl.bc.pychain.msgpack.MPWrappedArray;
+import io.setl.bc.pychain.msgpack.MPWrappedArrayImpl;
+import io.setl.bc.pychain.node.TransactionPool.HasResult;
+import io.setl.bc.pychain.p2p.message.TxPackage;
+import io.setl.bc.pychain.peer.PeerAddress;
+import io.setl.bc.pychain.state.tx.MemoTx;
+import io.setl.bc.pychain.tx.TransactionProcessor;
+import io.setl.bc.pychain.tx.verifier.TxVerifier;
+import io.setl.common.CommonPy.P2PType;
+import io.setl.util.PriorityExecutor;
+
+public class TransactionVerifierTest {
+
+  private static MemoTx memo(String hash, long nonce) {
+    return new MemoTx(16, 1, hash, nonce, false, "fromPubKey", "fromAddress", "metadata", "signature", -1, "", 1000L);
+  }
+
+
+  private static TxPackage txPackage(MPWrappedArray... txs) {
+    return new TxPackage(P2PType.TX_PACKAGE_ORIGINAL, 16, Arrays.asList(txs));
+  }
+
+
+  private static MPWrappedArray wrap(MemoTx tx) {
+    return new MPWrappedArrayImpl(tx.encodeTx());
+  }
+
+
+  private PeerAddress peer;
+
+  private PriorityExecutor priorityExecutor;
+
+  private TransactionPool transactionPool;
+
+  private TransactionProcessor transactionProcessor;
+
+  private TransactionVerifier verifier;
+
+
+  @Test
+  public void internalErrorReleasesTransaction() throws Exception {
+    when(transactionProcessor.checkValidatedTransactionForPool(argThat(tx -> tx != null && tx.getHash().equals("hash3")), any()))
+        .thenThrow(new IllegalStateException("test"));
+    TxPackage txPackage = txPackage(wrap(memo("hash3", 3)), wrap(memo("hash4", 4)));
+    assertEquals(Boolean.FALSE, verifier.verifyTxsAndAddToPool(peer, txPackage, null).get(10, TimeUnit.SECONDS));
+    verify(transactionPool, times(1)).addTx(any());
+
+    // The failed transaction is no longer in progress, so verifying it again does not wait for the first batch.
+    when(transactionProcessor.checkValidatedTransactionForPool(any(), any())).thenReturn(true);
+    assertEquals(Boolean.TRUE, verifier.verifyTxsAndAddToPool(peer, txPackage(wrap(memo("hash3", 3))), null).get(10, TimeUnit.SECONDS));
+    verify(transactionPool, times(2)).addTx(any());
+  }
+
+
+  @Test
+  public void malformedTransactionDoesNotStopBatch() throws Exception {
+    MPWrappedArray malformed = new MPWrappedArrayImpl(new Object[]{"not", "a", "transaction"});
+    TxPackage txPackage = txPackage(wrap(memo("hash1", 1)), malformed, wrap(memo("hash2", 2)));
+
+    // The batch is reported as bad, but its good transactions still reach the pool.
+    assertEquals(Boolean.FALSE, verifier.verifyTxsAndAddToPool(peer, txPackage, null).get(10, TimeUnit.SECONDS));
+    verify(transactionPool, times(2)).addTx(any());
+
+    // Later batches are not held up in the FIFO queue.
+    assertEquals(Boolean.TRUE, verifier.verifyTxsAndAddToPool(peer, txPackage(wrap(memo("hash5", 5))), null).get(10, TimeUnit.SECONDS));
+    verify(transactionPool, times(3)).addTx(any());
+  }
+
+
+  @Before
+  public void setUp() {
+    peer = mock(PeerAddress.class);
+    priorityExecutor = new PriorityExecutor(4);
+
+    transactionPool = mock(TransactionPool.class);
+    when(transactionPool.hasTx(anyString(), anyLong(), any())).thenReturn(HasResult.NOT_PRESENT);
+
+    transactionProcessor = mock(TransactionProcessor.class);
+    when(transactionProcessor.checkValidatedTransactionForPool(any(), any())).thenReturn(true);
+
+    TxVerifier txVerifier = mock(TxVerifier.class);
+    when(txVerifier.verifyCurrentHash(any())).thenReturn(true);
+    when(txVerifier.verifySignature(any())).thenReturn(true);
+    when(txVerifier.addSignature(any(), any())).thenReturn(-1);
+
+    verifier = new TransactionVerifier(txVerifier, transactionPool, priorityExecutor, mock(StateManager.class), transactionProcessor, mock(EventBus.class),
+        new VerifiedTxCache());
+  }
+
+
+  @After
+  public void tearDown() {
+    priorityExecutor.shutdown();
+  }
+
+}
@@ -0,0 +1,104 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.peer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.DefaultByteBufHolder;
+
+import io.setl.bc.pychain.p2p.MsgFactory;
+import io.setl.bc.pychain.p2p.message.Message;
+import io.setl.bc.pychain.util.MsgPackUtil;
+import io.setl.common.CommonPy.P2PType;
+
+/**
+ * A received message of which only the header has been read. The body remains in a retained slice of the received frame until it is decoded, which allows
+ * unwanted messages to be discarded cheaply and wanted ones to be decoded away from the event loop.
+ */
+class LazyMessage extends DefaultByteBufHolder {
+
+  private final int chainId;
+
+  private final P2PType type;
+
+  private final int typeId;
+
+
+  /**
+   * New instance.
+   *
+   * @param chainId the message's chain ID
+   * @param typeId  the message's type ID
+   * @param frame   the whole encoded message. This instance takes ownership of the buffer.
+   */
+  LazyMessage(int chainId, int typeId, ByteBuf frame) {
+    super(frame);
+    this.chainId = chainId;
+    this.typeId = typeId;
+    P2PType p2PType = P2PType.get(typeId);
+    type = (p2PType != null) ? p2PType : P2PType.UNKNOWN;
+  }
+
+
+  /**
+   * Decode the full message. The underlying buffer is released whether or not decoding succeeds.
+   *
+   * @param msgFactory the factory to create the message with
+   *
+   * @return the message
+   */
+  Message decode(MsgFactory msgFactory) throws IOException {
+    try (InputStream inputStream = new ByteBufInputStream(content())) {
+      return msgFactory.create(MsgPackUtil.unpackWrapped(MsgPackUtil.newUnpacker(inputStream)));
+    } finally {
+      release();
+    }
+  }
+
+
+  int getChainId() {
+    return chainId;
+  }
+
+
+  P2PType getType() {
+    return type;
+  }
+
+
+  int getTypeId() {
+    return typeId;
+  }
+
+
+  @Override
+  public LazyMessage replace(ByteBuf content) {
+    return new LazyMessage(chainId, typeId, content);
+  }
+
+
+  @Override
+  public String toString() {
+    return "LazyMessage(chainId=" + chainId + ", type=" + type + ", size=" + content().readableBytes() + ")";
+  }
+
+}
@@ -0,0 +1,141 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.peer;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.MessageToMessageDecoder;
+
+/**
+ * Reads the chain ID and message type from the start of each frame without unpacking the rest of it. Every P2P message is a Message Pack array which starts
+ * with those two integers. The output is a {@link LazyMessage} holding a retained slice of the frame, so the body is neither copied nor decoded here.
+ */
+public class MsgPackHeaderDecoder extends MessageToMessageDecoder<ByteBuf> {
+
+  /**
+   * Read a Message Pack integer at the given index.
+   *
+   * @param buf    the buffer
+   * @param index  the index of the integer's format byte. On return, index[0] is the index of the following byte.
+   *
+   * @return the integer's value
+   */
+  public static int readInt(ByteBuf buf, int[] index) {
+    int i = index[0];
+    int format = buf.getUnsignedByte(i);
+    long value;
+    int length;
+    if (format <= 0x7f || format >= 0xe0) {
+      // positive or negative fixint
+      value = (byte) format;
+      length = 1;
+    } else {
+      switch (format) {
+        case 0xcc:
+          value = buf.getUnsignedByte(i + 1);
+          length = 2;
+          break;
+        case 0xcd:
+          value = buf.getUnsignedShort(i + 1);
+          length = 3;
+          break;
+        case 0xce:
+          value = buf.getUnsignedInt(i + 1);
+          length = 5;
+          break;
+        case 0xcf:
+        case 0xd3:
+          value = buf.getLong(i + 1);
+          length = 9;
+          break;
+        case 0xd0:
+          value = buf.getByte(i + 1);
+          length = 2;
+          break;
+        case 0xd1:
+          value = buf.getShort(i + 1);
+          length = 3;
+          break;
+        case 0xd2:
+          value = buf.getInt(i + 1);
+          length = 5;
+          break;
+        default:
+          throw new CorruptedFrameException(String.format("Expected an integer but found format 0x%02x", format));
+      }
+    }
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new CorruptedFrameException("Integer out of range: " + value);
+    }
+    index[0] = i + length;
+    return (int) value;
+  }
+
+
+  /**
+   * Skip over a Message Pack array header and check that the array has at least two elements.
+   *
+   * @param buf   the buffer
+   * @param index the index of the array's format byte. On return, index[0] is the index of the first element.
+   */
+  public static void skipArrayHeader(ByteBuf buf, int[] index) {
+    int i = index[0];
+    int format = buf.getUnsignedByte(i);
+    long size;
+    if ((format & 0xf0) == 0x90) {
+      size = format & 0x0f;
+      i += 1;
+    } else if (format == 0xdc) {
+      size = buf.getUnsignedShort(i + 1);
+      i += 3;
+    } else if (format == 0xdd) {
+      size = buf.getUnsignedInt(i + 1);
+      i += 5;
+    } else {
+      throw new CorruptedFrameException(String.format("Expected an array but found format 0x%02x", format));
+    }
+    if (size < 2) {
+      throw new CorruptedFrameException("Message has only " + size + " elements");
+    }
+    index[0] = i;
+  }
+
+
+  public MsgPackHeaderDecoder() {
+    super(ByteBuf.class);
+  }
+
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) {
+    int[] index = {msg.readerIndex()};
+    try {
+      skipArrayHeader(msg, index);
+      int chainId = readInt(msg, index);
+      int typeId = readInt(msg, index);
+      out.add(new LazyMessage(chainId, typeId, msg.retainedSlice()));
+    } catch (IndexOutOfBoundsException e) {
+      throw new CorruptedFrameException("Message is truncated", e);
+    }
+  }
+
+}
@@ -22,6 +22,7 @@ import static io.setl.bc.logging.LoggingConstants.MARKER_BROADCAST;
 import static io.setl.bc.logging.LoggingConstants.MARKER_CONNECT;
 import static io.setl.bc.logging.LoggingConstants.MARKER_PERFORMANCE;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
@@ -37,14 +38,16 @@ import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -52,11 +55,7 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelOutboundInvoker;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.util.Attribute;
@@ -74,7 +73,6 @@ import org.springframework.context.annotation.Primary;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
-import io.setl.bc.pychain.msgpack.MPWrappedArray;
 import io.setl.bc.pychain.p2p.MsgFactory;
 import io.setl.bc.pychain.p2p.message.CheckOrigin;
 import io.setl.bc.pychain.p2p.message.ListenPort;
@@ -83,8 +81,8 @@ import io.setl.bc.pychain.p2p.message.PeerRecord;
 import io.setl.bc.pychain.p2p.message.PeerRecord.Record;
 import io.setl.bc.pychain.p2p.message.PeerRequest;
 import io.setl.bc.pychain.p2p.message.TxPackage;
-import io.setl.bc.pychain.p2p.message.UnknownMessage;
 import io.setl.bc.pychain.peer.MeshNet.RemoteAddresses;
+import io.setl.bc.pychain.peer.OutboundQueue.Lane;
 import io.setl.bc.pychain.peer.pipeline.FrameDecoder;
 import io.setl.bc.pychain.util.MsgPackUtil;
 import io.setl.common.CommonPy.NodeType;
@@ -118,6 +116,8 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
 
   private static final long CHANNEL_ACTIVATE_TIMEOUT_MS = 30000;
 
+  private static final EnumSet<P2PType> GOSSIP_MESSAGE = EnumSet.of(P2PType.TX_PACKAGE_FORWARD, P2PType.TX_PACKAGE_ORIGINAL);
+
   private static final EnumSet<P2PType> PRIORITY_MESSAGE = EnumSet
       .of(
           P2PType.PREPARING_PROPOSAL, P2PType.EMPTY_PROPOSAL, P2PType.ITEM_REQUEST, P2PType.PROPOSAL, P2PType.SIGNATURE, P2PType.VOTE,
@@ -127,12 +127,6 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
 
   private static final Logger logger = LoggerFactory.getLogger(NettyPeerManager.class);
 
-  private static final ChannelFutureListener channelErrorListener = future -> {
-    if (!future.isSuccess()) {
-      logger.error(MARKER_CONNECT, "sendError:", future.cause());
-    }
-  };
-
 
   private static void handleUnreadyChannel(Channel channel) {
     if (channel.hasAttr(ACTIVATE_TIME) && channel.attr(ACTIVATE_TIME).get() != null) {
@@ -149,6 +143,14 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
   }
 
 
+  private static Lane laneFor(P2PType type) {
+    if (PRIORITY_MESSAGE.contains(type)) {
+      return Lane.CONSENSUS;
+    }
+    return GOSSIP_MESSAGE.contains(type) ? Lane.GOSSIP : Lane.NORMAL;
+  }
+
+
   public static void writeAndFlush(ChannelOutboundInvoker channel, Object[] msg) {
     ByteBuf buffer = Unpooled.wrappedBuffer(MsgPackUtil.pack(msg));
     channel.writeAndFlush(buffer);
@@ -166,6 +168,31 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
     //private final Map<P2PType,MessageHandler> messageHandlers;
 
 
+    private boolean accept(ChannelHandlerContext channelContext, LazyMessage message) {
+      if (NettyPeerManager.this.chainsId == null) {
+        logger.error("no chains defined, i won't handle message");
+        return false;
+      }
+
+      if (Collections.binarySearch(NettyPeerManager.this.chainsId, message.getChainId()) < 0) {
+        logger.error("Incorrect chain {}", message.getChainId());
+        return false;
+      }
+
+      if (!checkChannel(channelContext)) {
+        logger.warn("Message come from node which shares uuid with this node, connection will be dropped");
+        channelContext.disconnect();
+        return false;
+      }
+
+      if (message.getType() == P2PType.UNKNOWN) {
+        logger.error("Unknown message type: {}", message.getTypeId());
+        return false;
+      }
+      return true;
+    }
+
+
     /**
      * Invoked when a channel becomes active. Adds the channel to those which this PeerManager knows about.
      */
@@ -186,79 +213,86 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
       activeConnectionSet.remove(ctx);
+      OutboundQueue queue = ctx.channel().attr(OutboundQueue.OUTBOUND).get();
+      if (queue != null) {
+        queue.close();
+      }
       logger.debug(MARKER_CONNECT, "Disconnect from address: {}. Current number of connections: {}", ctx.channel().remoteAddress(), activeConnectionSet.size());
       ctx.fireChannelInactive();
     }
 
 
+    /**
+     * Invoked when a message arrives. Only the message header has been read at this point. Messages for other chains and of unknown types are discarded
+     * here, and the rest are decoded and handled on the executor.
+     */
     @Override
     public void channelRead(final ChannelHandlerContext channelContext, Object msg) {
-      Message message = msgFactory.create((MPWrappedArray) msg);
-      int msgChainId = message.getChainId();
-      logger.trace("received message [{}]", message.getType().name());
-      if (NettyPeerManager.this.chainsId == null) {
-        logger.error("no chains defined, i won't handle message");
-        return;
-      }
-
-      if (Collections.binarySearch(NettyPeerManager.this.chainsId, msgChainId) < 0) {
-        logger.error("Incorrect chain {}", msgChainId);
-        return;
-      }
-
-      if (!checkChannel(channelContext)) {
-        logger.warn("Message come from node which shares uuid with this node, connection will be dropped");
-        channelContext.disconnect();
-        return;
-      }
-
+      LazyMessage message = (LazyMessage) msg;
       P2PType type = message.getType();
-      if (type == P2PType.UNKNOWN) {
-        logger.error("Unknown message type: {}", ((UnknownMessage) message).getTypeId());
+      logger.trace("received message [{}]", type.name());
+      if (!accept(channelContext, message)) {
+        message.release();
         return;
       }
 
       switch (type) {
         case CLOSE_REQUEST:
+          message.release();
           logger.info(MARKER_CONNECT, "CLOSE REQUEST");
           channelContext.channel().close();
           break;
-        case PEER_RECORD:
-          executor.submit(Priorities.NETWORK_MANAGE, () -> handlePeerRecord((PeerRecord) message));
-          break;
-        case PEER_REQUEST:
-          executor.submit(Priorities.NETWORK_MANAGE, () -> handlePeerRequest(message, channelContext));
-          break;
         case LISTEN_PORT:
           if (peerlistonly == false) {
-            executor.submit(Priorities.NETWORK_MANAGE, () -> handleListenPort(
-                (ListenPort) message,
-                (InetSocketAddress) channelContext.channel().remoteAddress()
-            ));
+            dispatch(channelContext, message, Priorities.NETWORK_MANAGE);
+          } else {
+            message.release();
           }
           break;
         case CHECK_ORIGIN:
-          executor.submit(Priorities.NETWORK_MANAGE, () -> handleCheckOrigin((CheckOrigin) message, channelContext));
+        case PEER_RECORD:
+        case PEER_REQUEST:
+          dispatch(channelContext, message, Priorities.NETWORK_MANAGE);
           break;
         case TX_PACKAGE_ORIGINAL:
-          if (broadcastTransactions) {
-            enqueuePackageForward((TxPackage) message);
-          }
-          enqueueTxReceived(channelContext, (TxPackage) message);
-          break;
         case TX_PACKAGE_FORWARD:
-          enqueueTxReceived(channelContext, (TxPackage) message);
+          dispatch(channelContext, message, Priorities.TX_VERIFY);
           break;
         default:
-          executor.submit(
-              PRIORITY_MESSAGE.contains(type) ? Priorities.PROPOSAL : Priorities.DEFAULT,
-              () -> fireBlockchainEventReceived(channelContext, message)
-          );
+          dispatch(channelContext, message, PRIORITY_MESSAGE.contains(type) ? Priorities.PROPOSAL : Priorities.DEFAULT);
           break;
       }
     }
 
 
+    /**
+     * Invoked when the channel's outbound buffer crosses a water mark. Resumes writing any queued messages once the peer has caught up.
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+      Channel channel = ctx.channel();
+      OutboundQueue queue = channel.attr(OutboundQueue.OUTBOUND).get();
+      if (queue != null && channel.isWritable()) {
+        queue.drain();
+      }
+      ctx.fireChannelWritabilityChanged();
+    }
+
+
+    /**
+     * Hand a message to the executor to be decoded and handled. If the executor will not accept it, the message's buffer is released here as no task will
+     * release it.
+     */
+    private void dispatch(ChannelHandlerContext channelContext, LazyMessage message, int priority) {
+      try {
+        executor.submit(priority, () -> handleMessage(channelContext, message));
+      } catch (RejectedExecutionException e) {
+        message.release();
+        logger.warn(MARKER_CONNECT, "Discarding {} from {} as the executor rejected it", message.getType(), channelContext.channel().remoteAddress());
+      }
+    }
+
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
       // Log the error and close the channel
@@ -297,10 +331,11 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
         channelContext.channel().attr(ORIGIN_KEY).set(uuid);
         channelContext.channel().attr(NODE_TYPE).set(checkOrigin.getNodeType());
       }
+      frameDecoder.setPeerCapabilities(channel, checkOrigin.getCapabilities());
       if (!channelContext.channel().hasAttr(READY) || (channelContext.channel().hasAttr(READY) && (channelContext.channel().attr(READY).get() == null
           || !channelContext.channel().attr(READY).get().equals(Boolean.TRUE)))) {
         channelContext.channel().attr(READY).set(true);
-        writeAndFlush(channelContext, new MsgFactory().checkOrigin(checkOrigin.getChainId(), uniqueNodeIdentifier, nodeType));
+        writeAndFlush(channelContext, new MsgFactory().checkOrigin(checkOrigin.getChainId(), uniqueNodeIdentifier, nodeType, frameDecoder.getCapabilities()));
       }
     }
 
@@ -315,6 +350,45 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
     }
 
 
+    private void handleMessage(ChannelHandlerContext channelContext, LazyMessage lazyMessage) {
+      Message message;
+      try {
+        message = lazyMessage.decode(msgFactory);
+      } catch (IOException | RuntimeException e) {
+        logger.error(MARKER_CONNECT, "Failed to decode {} message from {}", lazyMessage.getType(), channelContext.channel().remoteAddress(), e);
+        channelContext.close();
+        return;
+      }
+
+      switch (message.getType()) {
+        case PEER_RECORD:
+          handlePeerRecord((PeerRecord) message);
+          break;
+        case PEER_REQUEST:
+          handlePeerRequest(message, channelContext);
+          break;
+        case LISTEN_PORT:
+          handleListenPort((ListenPort) message, (InetSocketAddress) channelContext.channel().remoteAddress());
+          break;
+        case CHECK_ORIGIN:
+          handleCheckOrigin((CheckOrigin) message, channelContext);
+          break;
+        case TX_PACKAGE_ORIGINAL:
+          if (broadcastTransactions) {
+            enqueuePackageForward((TxPackage) message);
+          }
+          enqueueTxReceived(channelContext, (TxPackage) message);
+          break;
+        case TX_PACKAGE_FORWARD:
+          enqueueTxReceived(channelContext, (TxPackage) message);
+          break;
+        default:
+          fireBlockchainEventReceived(channelContext, message);
+          break;
+      }
+    }
+
+
     private void handlePeerRecord(PeerRecord peerRecord) {
       if (ignorePeerList || autodiscover == false) {//TODO should this be checked before task is submitted?
         return;
@@ -460,6 +534,8 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
 
   private final PriorityExecutor executor;
 
+  private final FrameDecoder frameDecoder;
+
   final private NodeType nodeType;
 
   // List of TxListeners to notify of incoming TxMessages. At present, this is the ValidationNode object.
@@ -486,6 +562,10 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
 
   private List<Integer> chainsId;
 
+  /** Maximum number of bytes of transaction gossip that may wait for a single peer before further gossip to it is dropped. */
+  @Value("${p2p.gossip-queue-limit:16777216}")
+  private long gossipQueueLimit = 16 * 1024 * 1024;
+
   @Value("${p2p.ignore-peerlist:false}")
   private boolean ignorePeerList;
 
@@ -502,6 +582,9 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
 
   private MeshNet meshNet;
 
+  /** Registry for the per-peer metrics of outbound queues. */
+  private MeterRegistry meterRegistry = Metrics.globalRegistry;
+
   private P2P p2p;
 
   private List<Pair<String, Map<String, Object>>> peerList = new ArrayList<>();
@@ -518,6 +601,10 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
   @Value("${p2p.peerlistonly:true}")
   private boolean peerlistonly;
 
+  /** Maximum number of bytes of consensus and ordinary messages that may wait for a single peer before it is disconnected. */
+  @Value("${p2p.peer-queue-limit:67108864}")
+  private long peerQueueLimit = 64 * 1024 * 1024;
+
   private Sync<TxPackageForwardTask> txPackageForwardTask = new Sync<>();
 
   @Value("${txPackageLimit:1000}")
@@ -525,21 +612,21 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
 
   private String uniqueNodeIdentifier;
 
-  private EventLoopGroup workerGroup = new NioEventLoopGroup();
-
-  private EventLoopGroup bossGroup = workerGroup;
+  private final NettyTransport transport;
 
 
   /**
    * Create a new instance.
    */
   @Autowired
-  public NettyPeerManager(@Autowired(required = false) PriorityExecutor priorityExecutor, NodeType nodeType, FrameDecoder frameDecoder) {
+  public NettyPeerManager(
+      @Autowired(required = false) PriorityExecutor priorityExecutor, NodeType nodeType, FrameDecoder frameDecoder,
+      @Autowired(required = false) NettyTransport transport
+  ) {
     executor = (priorityExecutor != null) ? priorityExecutor : PriorityExecutor.INSTANCE;
     this.nodeType = nodeType;
-    clientBS.group(workerGroup);
-    clientBS.channel(NioSocketChannel.class);
-    clientBS.option(ChannelOption.SO_KEEPALIVE, true);
+    this.frameDecoder = frameDecoder;
+    this.transport = (transport != null) ? transport : new NettyTransport();
     channelInitialiser = new ChannelInitializer<SocketChannel>() {
       @Override
       public void initChannel(SocketChannel ch) {
@@ -550,6 +637,7 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
       }
     };
     clientBS.handler(channelInitialiser);
+    this.transport.configure(clientBS);
     connectionHandler = this;
   }
 
@@ -557,9 +645,8 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
   public NettyPeerManager(PriorityExecutor priorityExecutor, NodeType nodeType, FrameDecoder frameDecoder, ConnectionHandler connectionHandler) {
     executor = (priorityExecutor != null) ? priorityExecutor : PriorityExecutor.INSTANCE;
     this.nodeType = nodeType;
-    clientBS.group(workerGroup);
-    clientBS.channel(NioSocketChannel.class);
-    clientBS.option(ChannelOption.SO_KEEPALIVE, true);
+    this.frameDecoder = frameDecoder;
+    transport = new NettyTransport();
     channelInitialiser = new ChannelInitializer<SocketChannel>() {
       @Override
       public void initChannel(SocketChannel ch) {
@@ -570,6 +657,7 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
       }
     };
     clientBS.handler(channelInitialiser);
+    this.transport.configure(clientBS);
     this.connectionHandler = connectionHandler;
   }
 
@@ -622,6 +710,7 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
 
     //Pre-pack broadcast messages to remove multi-pack overhead
     byte[] binary = MsgPackUtil.pack(message.encode());
+    Lane lane = laneFor(message.getType());
 
     // Don't broadcast to self
     Set<String> sentUUIDs = new HashSet<>();
@@ -629,7 +718,7 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
       sentUUIDs.add(uniqueNodeIdentifier);
     }
 
-    // Note direct write to channel may fill buffers - some mechanism to back pressure needed ?
+    // Messages are queued per peer and only written while the peer's channel is writable.
     for (ChannelHandlerContext c : channels) {
       Channel channel = c.channel();
       InetSocketAddress address = (InetSocketAddress) channel.remoteAddress();
@@ -657,7 +746,9 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
       if (uuid == null || sentUUIDs.add(uuid)) {
         logger.debug(MARKER_BROADCAST, "Broadcast to:{} {}", address, nodeType);
 
-        c.writeAndFlush(Unpooled.wrappedBuffer(binary));
+        if (!outbound(channel).enqueue(lane, binary)) {
+          logger.debug(MARKER_BROADCAST, "Dropped {} to slow peer {}", message.getType(), address);
+        }
       }
     }
     logger.debug(MARKER_BROADCAST, "Broadcast complete");
@@ -833,12 +924,11 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
   }
 
 
-  private void listen(int port, EventLoopGroup workerGroup, EventLoopGroup bossGroup)
-      throws InterruptedException {
+  private void listen(int port) throws InterruptedException {
     // Configure the server.
     ServerBootstrap serverBS = new ServerBootstrap();
-    serverBS.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
-        .option(ChannelOption.SO_BACKLOG, 100).handler(new LoggingHandler(LogLevel.INFO))
+    transport.configure(serverBS);
+    serverBS.option(ChannelOption.SO_BACKLOG, 100).handler(new LoggingHandler(LogLevel.INFO))
         .childHandler(channelInitialiser);
 
     // Start the server.
@@ -849,7 +939,7 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
   @Override
   public void onConnect(Channel channel) {
     for (int chainId : this.chainsId) {
-      writeAndFlush(channel, msgFactory.checkOrigin(chainId, uniqueNodeIdentifier, nodeType));
+      writeAndFlush(channel, msgFactory.checkOrigin(chainId, uniqueNodeIdentifier, nodeType, frameDecoder.getCapabilities()));
       writeAndFlush(channel, msgFactory.peerRequest(chainId));
       writeAndFlush(channel, msgFactory.listenPort(chainId, listenPort, P2P.NODE_NAME));
 
@@ -859,6 +949,20 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
   }
 
 
+  private OutboundQueue outbound(Channel channel) {
+    Attribute<OutboundQueue> attribute = channel.attr(OutboundQueue.OUTBOUND);
+    OutboundQueue queue = attribute.get();
+    if (queue == null) {
+      OutboundQueue newQueue = new OutboundQueue(channel, gossipQueueLimit, peerQueueLimit, meterRegistry);
+      queue = attribute.setIfAbsent(newQueue);
+      if (queue == null) {
+        queue = newQueue;
+      }
+    }
+    return queue;
+  }
+
+
   private void registerAndConnectRemotePeer(String host, int port, Map<String, Object> properties) {
     if (port != 0) {
       meshNet.registerListenAddress(host, port, properties);
@@ -913,7 +1017,7 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
     Channel channel = ((NettyPeerAddress) addr).getCtx();
 
     if (channel.isActive() && channel.isOpen() && channel.hasAttr(READY) && channel.attr(READY).get().equals(Boolean.TRUE)) {
-      channel.writeAndFlush(Unpooled.wrappedBuffer(msg)).addListener(channelErrorListener);
+      outbound(channel).enqueue(Lane.NORMAL, msg);
       return true;
     } else {
       logger.warn(MARKER_CONNECT, "Unable to send message to [{}] as connection is not ready yet", channel.remoteAddress());
@@ -923,6 +1027,17 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
   }
 
 
+  /**
+   * Set the registry to which slow-peer metrics are reported.
+   *
+   * @param meterRegistry the registry
+   */
+  @Autowired(required = false)
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+
   @Override
   public void setListenPort(int port) {
     if (isRunning) {
@@ -940,7 +1055,7 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
     }
     try {
       if (listenPort != 0) {
-        listen(listenPort, workerGroup, bossGroup);
+        listen(listenPort);
       } else {
         logger.info(MARKER_CONNECT, "No listening port");
       }
@@ -973,8 +1088,7 @@ public class NettyPeerManager implements PeerManager, DisposableBean, Initializi
   @Override
   public void stop() {
     isRunning = false;
-    bossGroup.shutdownGracefully();
-    workerGroup.shutdownGracefully();
+    transport.shutdown();
     if (timer != null) {
       timer.cancel();
     }
@@ -38,4 +38,43 @@ public class NettyPeermanagerConfig {
     return nodeType;
   }
 
+
+  /**
+   * Create the transport used for peer connections.
+   *
+   * @param preferNative    use the native epoll transport where available
+   * @param bossThreads     number of threads accepting connections
+   * @param workerThreads   number of threads handling connections, zero for Netty's default
+   * @param pooled          use pooled buffers
+   * @param tcpNoDelay      disable Nagle's algorithm
+   * @param sendBuffer      socket send buffer size, zero for the OS default
+   * @param receiveBuffer   socket receive buffer size, zero for the OS default
+   * @param writeBufferLow  outbound buffer size at which an unwritable channel becomes writable again
+   * @param writeBufferHigh outbound buffer size at which a channel stops being writable
+   *
+   * @return the transport
+   */
+  @Bean
+  public NettyTransport nettyTransport(
+      @Value("${p2p.transport.native:true}") boolean preferNative,
+      @Value("${p2p.transport.boss-threads:1}") int bossThreads,
+      @Value("${p2p.transport.worker-threads:0}") int workerThreads,
+      @Value("${p2p.transport.pooled:true}") boolean pooled,
+      @Value("${p2p.socket.tcp-nodelay:true}") boolean tcpNoDelay,
+      @Value("${p2p.socket.send-buffer:0}") int sendBuffer,
+      @Value("${p2p.socket.receive-buffer:0}") int receiveBuffer,
+      @Value("${p2p.write-buffer.low:262144}") int writeBufferLow,
+      @Value("${p2p.write-buffer.high:1048576}") int writeBufferHigh
+  ) {
+    NettyTransport transport = new NettyTransport(preferNative, bossThreads, workerThreads);
+    transport.setPooled(pooled);
+    transport.setTcpNoDelay(tcpNoDelay);
+    transport.setSendBufferSize(sendBuffer);
+    transport.setReceiveBufferSize(receiveBuffer);
+    transport.setWriteBufferWaterMark(writeBufferLow, writeBufferHigh);
+    logger.info("Peer transport is {}, with {} worker threads", transport.isNative() ? "epoll" : "NIO",
+        workerThreads > 0 ? Integer.toString(workerThreads) : "the default number of");
+    return transport;
+  }
+
 }
@@ -0,0 +1,220 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.peer;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The event loops, channel types and socket options used for peer connections. The native epoll transport is used when requested and available, otherwise
+ * NIO is used. Accepting connections and handling them use separate event loop groups so a busy peer cannot delay new connections.
+ */
+public class NettyTransport {
+
+  private static final Logger logger = LoggerFactory.getLogger(NettyTransport.class);
+
+  private final EventLoopGroup bossGroup;
+
+  private final boolean isNative;
+
+  private final EventLoopGroup workerGroup;
+
+  private ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+  private int receiveBufferSize = 0;
+
+  private int sendBufferSize = 0;
+
+  private boolean tcpNoDelay = true;
+
+  private WriteBufferWaterMark writeBufferWaterMark = new WriteBufferWaterMark(256 * 1024, 1024 * 1024);
+
+
+  /**
+   * Create a NIO transport with the default number of threads.
+   */
+  public NettyTransport() {
+    this(false, 1, 0);
+  }
+
+
+  /**
+   * New instance.
+   *
+   * @param preferNative  if true, use the native epoll transport if it is available
+   * @param bossThreads   number of threads accepting connections
+   * @param workerThreads number of threads handling connections. Zero means Netty's default.
+   */
+  public NettyTransport(boolean preferNative, int bossThreads, int workerThreads) {
+    isNative = preferNative && Epoll.isAvailable();
+    if (isNative) {
+      bossGroup = new EpollEventLoopGroup(bossThreads, new DefaultThreadFactory("p2p-boss"));
+      workerGroup = new EpollEventLoopGroup(workerThreads, new DefaultThreadFactory("p2p-worker"));
+    } else {
+      if (preferNative) {
+        logger.info("Native epoll transport is not available, using NIO: {}", String.valueOf(Epoll.unavailabilityCause()));
+      }
+      bossGroup = new NioEventLoopGroup(bossThreads, new DefaultThreadFactory("p2p-boss"));
+      workerGroup = new NioEventLoopGroup(workerThreads, new DefaultThreadFactory("p2p-worker"));
+    }
+  }
+
+
+  /**
+   * Configure a client bootstrap to use this transport.
+   *
+   * @param bootstrap the bootstrap
+   */
+  public void configure(Bootstrap bootstrap) {
+    bootstrap.group(workerGroup)
+        .channel(getSocketChannelClass())
+        .option(ChannelOption.SO_KEEPALIVE, true)
+        .option(ChannelOption.TCP_NODELAY, tcpNoDelay)
+        .option(ChannelOption.ALLOCATOR, allocator)
+        .option(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+    if (sendBufferSize > 0) {
+      bootstrap.option(ChannelOption.SO_SNDBUF, sendBufferSize);
+    }
+    if (receiveBufferSize > 0) {
+      bootstrap.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+    }
+  }
+
+
+  /**
+   * Configure a server bootstrap to use this transport.
+   *
+   * @param bootstrap the bootstrap
+   */
+  public void configure(ServerBootstrap bootstrap) {
+    bootstrap.group(bossGroup, workerGroup)
+        .channel(getServerChannelClass())
+        .option(ChannelOption.ALLOCATOR, allocator)
+        .childOption(ChannelOption.SO_KEEPALIVE, true)
+        .childOption(ChannelOption.TCP_NODELAY, tcpNoDelay)
+        .childOption(ChannelOption.ALLOCATOR, allocator)
+        .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+    if (sendBufferSize > 0) {
+      bootstrap.childOption(ChannelOption.SO_SNDBUF, sendBufferSize);
+    }
+    if (receiveBufferSize > 0) {
+      // Set on the listening socket so that it applies before the TCP window is negotiated
+      bootstrap.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+    }
+  }
+
+
+  public EventLoopGroup getBossGroup() {
+    return bossGroup;
+  }
+
+
+  public Class<? extends ServerChannel> getServerChannelClass() {
+    return isNative ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+  }
+
+
+  public Class<? extends SocketChannel> getSocketChannelClass() {
+    return isNative ? EpollSocketChannel.class : NioSocketChannel.class;
+  }
+
+
+  public EventLoopGroup getWorkerGroup() {
+    return workerGroup;
+  }
+
+
+  public boolean isNative() {
+    return isNative;
+  }
+
+
+  /**
+   * Use pooled or unpooled direct buffers for channel I/O.
+   *
+   * @param pooled if true, use pooled buffers
+   */
+  public void setPooled(boolean pooled) {
+    allocator = pooled ? PooledByteBufAllocator.DEFAULT : UnpooledByteBufAllocator.DEFAULT;
+  }
+
+
+  /**
+   * Set the socket receive buffer size.
+   *
+   * @param receiveBufferSize the size in bytes. Zero or less means the operating system default.
+   */
+  public void setReceiveBufferSize(int receiveBufferSize) {
+    this.receiveBufferSize = receiveBufferSize;
+  }
+
+
+  /**
+   * Set the socket send buffer size.
+   *
+   * @param sendBufferSize the size in bytes. Zero or less means the operating system default.
+   */
+  public void setSendBufferSize(int sendBufferSize) {
+    this.sendBufferSize = sendBufferSize;
+  }
+
+
+  public void setTcpNoDelay(boolean tcpNoDelay) {
+    this.tcpNoDelay = tcpNoDelay;
+  }
+
+
+  /**
+   * Set the outbound buffer sizes at which a channel stops and resumes being writable.
+   *
+   * @param low  the size at which an unwritable channel becomes writable again
+   * @param high the size at which a channel stops being writable
+   */
+  public void setWriteBufferWaterMark(int low, int high) {
+    writeBufferWaterMark = new WriteBufferWaterMark(low, high);
+  }
+
+
+  /**
+   * Shut down the event loops.
+   */
+  public void shutdown() {
+    bossGroup.shutdownGracefully();
+    workerGroup.shutdownGracefully();
+  }
+
+}
@@ -0,0 +1,249 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.peer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-peer queue of outbound messages. Messages are written to the channel only while it is writable, so a slow peer holds its backlog here rather than in
+ * Netty's direct-memory buffers. Consensus messages are always written before ordinary messages, which are always written before transaction gossip, and
+ * each drain of the queue is completed with a single flush.
+ *
+ * <p>Gossip beyond its limit is dropped, as the peer can fetch missing transactions later. Consensus and ordinary messages cannot be dropped without breaking
+ * the protocol, so a peer which lets too many of them build up is disconnected instead. It can reconnect and catch up once it is able to.</p>
+ */
+class OutboundQueue {
+
+  /** The channel attribute holding a channel's queue. */
+  static final AttributeKey<OutboundQueue> OUTBOUND = AttributeKey.valueOf("OUTBOUND");
+
+  private static final Logger logger = LoggerFactory.getLogger(OutboundQueue.class);
+
+
+
+  /** Message lanes, in the order they are drained. */
+  enum Lane {
+    CONSENSUS,
+    NORMAL,
+    GOSSIP
+  }
+
+
+
+  private final Channel channel;
+
+  private final Counter disconnectedCounter;
+
+  private final Counter droppedCounter;
+
+  private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+  private final AtomicLong gossipBytes = new AtomicLong();
+
+  private final long gossipLimit;
+
+  private final Queue<byte[]>[] lanes;
+
+  private final MeterRegistry meterRegistry;
+
+  private final String peer;
+
+  /** Bytes waiting in the consensus and normal lanes. */
+  private final AtomicLong queuedBytes = new AtomicLong();
+
+  private final long queueLimit;
+
+  private final Counter stalledCounter;
+
+  /** Is the channel currently not writable with messages waiting?. Only accessed from the channel's event loop. */
+  private boolean stalled = false;
+
+
+  /**
+   * New instance.
+   *
+   * @param channel       the channel this queue writes to
+   * @param gossipLimit   the maximum number of bytes of gossip that may be waiting for this channel
+   * @param queueLimit    the maximum number of bytes of consensus and ordinary messages that may be waiting before the channel is closed
+   * @param meterRegistry registry for the per-peer dropped, stalled and disconnected counters
+   */
+  @SuppressWarnings("unchecked")
+  OutboundQueue(Channel channel, long gossipLimit, long queueLimit, MeterRegistry meterRegistry) {
+    this.channel = channel;
+    this.gossipLimit = gossipLimit;
+    this.queueLimit = queueLimit;
+    this.meterRegistry = meterRegistry;
+    peer = String.valueOf(channel.remoteAddress());
+    Tags tags = Tags.of("peer", peer);
+    droppedCounter = meterRegistry.counter("p2p_gossip_dropped", tags);
+    stalledCounter = meterRegistry.counter("p2p_peer_stalled", tags);
+    disconnectedCounter = meterRegistry.counter("p2p_peer_queue_disconnected", tags);
+    lanes = new Queue[Lane.values().length];
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new ConcurrentLinkedQueue<>();
+    }
+  }
+
+
+  /**
+   * Discard all waiting messages.
+   */
+  void clear() {
+    for (Queue<byte[]> lane : lanes) {
+      lane.clear();
+    }
+    gossipBytes.set(0);
+    queuedBytes.set(0);
+  }
+
+
+  /**
+   * Discard all waiting messages and remove this queue's metrics. Called when the channel becomes inactive.
+   */
+  void close() {
+    clear();
+    for (Meter meter : new Meter[]{droppedCounter, stalledCounter, disconnectedCounter}) {
+      meterRegistry.remove(meter);
+    }
+  }
+
+
+  /**
+   * Write as many waiting messages as the channel will accept, then flush them together. Must be called on the channel's event loop.
+   */
+  void drain() {
+    drainScheduled.set(false);
+    if (!channel.isActive()) {
+      clear();
+      return;
+    }
+
+    boolean written = false;
+    while (channel.isWritable()) {
+      byte[] message = poll();
+      if (message == null) {
+        break;
+      }
+      channel.write(Unpooled.wrappedBuffer(message), channel.voidPromise());
+      written = true;
+    }
+    if (written) {
+      channel.flush();
+    }
+
+    if (channel.isWritable() || isEmpty()) {
+      stalled = false;
+    } else if (!stalled) {
+      stalled = true;
+      stalledCounter.increment();
+    }
+  }
+
+
+  /**
+   * Queue a message for the channel.
+   *
+   * @param lane    the lane to queue it in
+   * @param message the packed message
+   *
+   * @return true if the message was queued, false if it was dropped or the channel closed
+   */
+  boolean enqueue(Lane lane, byte[] message) {
+    if (lane == Lane.GOSSIP) {
+      if (gossipBytes.addAndGet(message.length) > gossipLimit) {
+        gossipBytes.addAndGet(-message.length);
+        droppedCounter.increment();
+        return false;
+      }
+    } else if (queuedBytes.addAndGet(message.length) > queueLimit) {
+      queuedBytes.addAndGet(-message.length);
+      if (channel.isOpen()) {
+        logger.warn("Closing connection to {} as more than {} bytes are waiting to be sent to it", peer, queueLimit);
+        disconnectedCounter.increment();
+        channel.close();
+      }
+      return false;
+    }
+    lanes[lane.ordinal()].add(message);
+    if (drainScheduled.compareAndSet(false, true)) {
+      channel.eventLoop().execute(this::drain);
+    }
+    return true;
+  }
+
+
+  /**
+   * Get the number of bytes of gossip waiting to be written.
+   *
+   * @return the number of bytes
+   */
+  long getGossipBytes() {
+    return gossipBytes.get();
+  }
+
+
+  /**
+   * Get the number of bytes of consensus and ordinary messages waiting to be written.
+   *
+   * @return the number of bytes
+   */
+  long getQueuedBytes() {
+    return queuedBytes.get();
+  }
+
+
+  boolean isEmpty() {
+    for (Queue<byte[]> lane : lanes) {
+      if (!lane.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  private byte[] poll() {
+    for (Lane lane : Lane.values()) {
+      byte[] message = lanes[lane.ordinal()].poll();
+      if (message != null) {
+        if (lane == Lane.GOSSIP) {
+          gossipBytes.addAndGet(-message.length);
+        } else {
+          queuedBytes.addAndGet(-message.length);
+        }
+        return message;
+      }
+    }
+    return null;
+  }
+
+}
@@ -37,7 +37,7 @@ public class SimplePipeline {
    * @param pipeline the pipeline to configure
    */
   public static void build(ChannelPipeline pipeline) {
-    pipeline.addLast("msgPackDecoder", new MsgPackWrappedDecoder());
+    pipeline.addLast("msgPackDecoder", new MsgPackHeaderDecoder());
     pipeline.addLast("msgPackEncoder", new MsgPackObjectEncoder());
   }
 
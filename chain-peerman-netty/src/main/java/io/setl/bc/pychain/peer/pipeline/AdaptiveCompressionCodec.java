@@ -0,0 +1,459 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.peer.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.handler.codec.compression.Snappy;
+
+import io.setl.bc.pychain.peer.MsgPackHeaderDecoder;
+import io.setl.common.CommonPy.P2PType;
+
+/**
+ * Compresses each outbound frame with a codec chosen for its message type and size, and decompresses inbound frames. Every frame starts with a byte
+ * identifying its codec.
+ *
+ * <p>Consensus messages and small frames are sent raw. Large frames are deflated, using the message type's preset dictionary when the peer has it. Other
+ * frames are compressed with Snappy.</p>
+ *
+ * <p>Until the peer has advertised the codecs it can decode, frames are sent exactly as the base pipeline sends them, without a codec byte. A peer using the
+ * base pipeline never advertises codecs, so it is only ever sent such frames. Inbound frames without a codec byte are recognised by their leading message
+ * pack array header, which can never be mistaken for a codec byte. Hence nodes can be moved from the base pipeline to this one a few at a time.</p>
+ *
+ * <p>One instance is needed per channel.</p>
+ */
+public class AdaptiveCompressionCodec extends MessageToMessageCodec<ByteBuf, ByteBuf> {
+
+  /** Capability prefix advertising a codec. */
+  public static final String CODEC_PREFIX = "compress:";
+
+  /** Capability prefix advertising a dictionary. */
+  public static final String DICTIONARY_PREFIX = "dictionary:";
+
+  static final byte DEFLATE = 2;
+
+  static final byte RAW = 0;
+
+  static final byte SNAPPY = 1;
+
+  /** Capability advertising deflate. */
+  static final String CAPABILITY_DEFLATE = CODEC_PREFIX + "deflate";
+
+  /** Capability advertising Snappy. */
+  static final String CAPABILITY_SNAPPY = CODEC_PREFIX + "snappy";
+
+  /** Message types which are always sent raw, as latency matters more than size. */
+  private static final Set<P2PType> RAW_TYPES = EnumSet.of(
+      P2PType.CHECK_ORIGIN, P2PType.EMPTY_PROPOSAL, P2PType.ITEM_REQUEST, P2PType.LISTEN_PORT, P2PType.PEER_REQUEST, P2PType.PREPARING_PROPOSAL,
+      P2PType.SIGNATURE, P2PType.VOTE
+  );
+
+
+
+  /** Compression settings shared by all channels. */
+  public static class Settings {
+
+    final CompressionDictionaries dictionaries;
+
+    /** The capability a peer must advertise to be sent frames deflated with a message type's dictionary. */
+    final Map<P2PType, String> dictionaryCapabilities = new EnumMap<>(P2PType.class);
+
+    final int deflateLevel;
+
+    final int deflateSize;
+
+    final int maxFrameSize;
+
+    final MeterRegistry meterRegistry;
+
+    final int minSize;
+
+
+    /**
+     * New instance.
+     *
+     * @param dictionaries  the preset dictionaries
+     * @param minSize       frames smaller than this are sent raw
+     * @param deflateSize   frames at least this big are deflated rather than compressed with Snappy
+     * @param deflateLevel  the deflate compression level
+     * @param maxFrameSize  the largest decompressed frame that will be accepted
+     * @param meterRegistry registry for compression metrics
+     */
+    public Settings(CompressionDictionaries dictionaries, int minSize, int deflateSize, int deflateLevel, int maxFrameSize, MeterRegistry meterRegistry) {
+      this.dictionaries = dictionaries;
+      this.minSize = minSize;
+      this.deflateSize = deflateSize;
+      this.deflateLevel = deflateLevel;
+      this.maxFrameSize = maxFrameSize;
+      this.meterRegistry = meterRegistry;
+
+      // Dictionary identifiers are checksums, so they are computed once rather than for every frame.
+      for (P2PType type : P2PType.values()) {
+        byte[] dictionary = dictionaries.forType(type);
+        if (dictionary != null) {
+          dictionaryCapabilities.put(type, DICTIONARY_PREFIX + Integer.toHexString(CompressionDictionaries.id(dictionary)));
+        }
+      }
+    }
+
+
+    /**
+     * Get the capabilities to advertise to peers.
+     *
+     * @return the capabilities
+     */
+    public List<String> getCapabilities() {
+      List<String> capabilities = new ArrayList<>();
+      capabilities.add(CAPABILITY_SNAPPY);
+      capabilities.add(CAPABILITY_DEFLATE);
+      for (Integer id : dictionaries.getIds()) {
+        capabilities.add(DICTIONARY_PREFIX + Integer.toHexString(id));
+      }
+      return capabilities;
+    }
+
+  }
+
+
+
+  /** Metrics for one message type on this channel. */
+  private class TypeMeters {
+
+    final Counter compressedBytes;
+
+    final Timer decodeTime;
+
+    final Timer encodeTime;
+
+    final Counter uncompressedBytes;
+
+
+    TypeMeters(P2PType type) {
+      MeterRegistry registry = settings.meterRegistry;
+      Tags tags = Tags.of("peer", peer, "type", type.name());
+      uncompressedBytes = registry.counter("p2p_compression_uncompressed_bytes", tags);
+      compressedBytes = registry.counter("p2p_compression_compressed_bytes", tags);
+      encodeTime = registry.timer("p2p_compression_time", tags.and("direction", "encode"));
+      decodeTime = registry.timer("p2p_compression_time", tags.and("direction", "decode"));
+    }
+
+
+    void remove() {
+      for (Meter meter : new Meter[]{uncompressedBytes, compressedBytes, encodeTime, decodeTime}) {
+        settings.meterRegistry.remove(meter);
+      }
+    }
+
+  }
+
+
+
+  /**
+   * Test if a byte can start a message pack array, and hence a frame sent without a codec byte.
+   *
+   * @param b the byte
+   *
+   * @return true if it is an array header
+   */
+  private static boolean isArrayHeader(byte b) {
+    int header = b & 0xff;
+    return (0x90 <= header && header <= 0x9f) || header == 0xdc || header == 0xdd;
+  }
+
+
+  /**
+   * Read the uncompressed length from the preamble of a Snappy block without consuming it. The preamble is a little-endian base-128 varint.
+   *
+   * @param msg the compressed block
+   *
+   * @return the uncompressed length
+   */
+  private static int snappyLength(ByteBuf msg) {
+    int length = 0;
+    int index = msg.readerIndex();
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (index >= msg.writerIndex()) {
+        break;
+      }
+      int current = msg.getUnsignedByte(index++);
+      length |= (current & 0x7f) << shift;
+      if ((current & 0x80) == 0) {
+        return length;
+      }
+    }
+    throw new CorruptedFrameException("Invalid Snappy preamble");
+  }
+
+
+  private static P2PType typeOf(ByteBuf frame) {
+    try {
+      int[] index = {frame.readerIndex()};
+      MsgPackHeaderDecoder.skipArrayHeader(frame, index);
+      MsgPackHeaderDecoder.readInt(frame, index);
+      P2PType type = P2PType.get(MsgPackHeaderDecoder.readInt(frame, index));
+      return (type != null) ? type : P2PType.UNKNOWN;
+    } catch (RuntimeException e) {
+      return P2PType.UNKNOWN;
+    }
+  }
+
+
+  private final Map<P2PType, TypeMeters> meters = new EnumMap<>(P2PType.class);
+
+  private final Settings settings;
+
+  private final Snappy snappy = new Snappy();
+
+  private Deflater deflater;
+
+  private Inflater inflater;
+
+  private String peer = "unknown";
+
+  /** The capabilities of the peer. Null until the peer has advertised them. */
+  private volatile Set<String> peerCapabilities = null;
+
+
+  public AdaptiveCompressionCodec(Settings settings) {
+    this.settings = settings;
+  }
+
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    peer = String.valueOf(ctx.channel().remoteAddress());
+    super.channelActive(ctx);
+  }
+
+
+  private ByteBuf deflate(ChannelHandlerContext ctx, ByteBuf msg, byte[] dictionary) {
+    if (deflater == null) {
+      deflater = new Deflater(settings.deflateLevel);
+    }
+    deflater.reset();
+    if (dictionary != null) {
+      deflater.setDictionary(dictionary);
+    }
+    int length = msg.readableBytes();
+    deflater.setInput(msg.nioBuffer());
+    deflater.finish();
+
+    ByteBuf frame = ctx.alloc().heapBuffer(length / 2 + 64);
+    frame.writeByte(DEFLATE).writeInt(length);
+    while (!deflater.finished()) {
+      if (frame.writerIndex() > length) {
+        // Not compressing, so give up.
+        frame.release();
+        return null;
+      }
+      frame.ensureWritable(4096);
+      ByteBuffer target = frame.nioBuffer(frame.writerIndex(), frame.writableBytes());
+      frame.writerIndex(frame.writerIndex() + deflater.deflate(target));
+    }
+    return frame;
+  }
+
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+    long start = System.nanoTime();
+    byte codec = msg.readByte();
+    ByteBuf frame;
+    switch (codec) {
+      case RAW:
+        out.add(msg.retainedSlice());
+        return;
+      case SNAPPY:
+        frame = unsnappy(ctx, msg);
+        break;
+      case DEFLATE:
+        frame = inflate(ctx, msg);
+        break;
+      default:
+        if (isArrayHeader(codec)) {
+          // A frame from a peer which does not use codec bytes.
+          out.add(msg.readerIndex(msg.readerIndex() - 1).retainedSlice());
+          return;
+        }
+        throw new CorruptedFrameException("Unknown compression codec: " + codec);
+    }
+
+    TypeMeters typeMeters = getMeters(typeOf(frame));
+    typeMeters.decodeTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    out.add(frame);
+  }
+
+
+  @Override
+  protected void encode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) {
+    long start = System.nanoTime();
+    int length = msg.readableBytes();
+    P2PType type = typeOf(msg);
+    Set<String> capabilities = peerCapabilities;
+
+    if (capabilities == null || !(capabilities.contains(CAPABILITY_SNAPPY) || capabilities.contains(CAPABILITY_DEFLATE))) {
+      // The peer may not understand codec bytes.
+      out.add(msg.retain());
+      return;
+    }
+
+    ByteBuf frame = null;
+    if (length >= settings.minSize && !RAW_TYPES.contains(type)) {
+      String dictionaryCapability = settings.dictionaryCapabilities.get(type);
+      byte[] dictionary = (dictionaryCapability != null && capabilities.contains(dictionaryCapability)) ? settings.dictionaries.forType(type) : null;
+
+      if (capabilities.contains(CAPABILITY_DEFLATE) && (dictionary != null || length >= settings.deflateSize)) {
+        frame = deflate(ctx, msg, dictionary);
+      } else if (capabilities.contains(CAPABILITY_SNAPPY)) {
+        frame = ctx.alloc().buffer(length + 16);
+        frame.writeByte(SNAPPY);
+        snappy.encode(msg.duplicate(), frame, length);
+        snappy.reset();
+      }
+
+      if (frame != null && frame.readableBytes() > length) {
+        frame.release();
+        frame = null;
+      }
+    }
+
+    if (frame == null) {
+      ByteBuf header = ctx.alloc().buffer(1).writeByte(RAW);
+      frame = ctx.alloc().compositeBuffer(2).addComponents(true, header, msg.retain());
+    }
+
+    TypeMeters typeMeters = getMeters(type);
+    typeMeters.encodeTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    typeMeters.uncompressedBytes.increment(length);
+    typeMeters.compressedBytes.increment(frame.readableBytes());
+    out.add(frame);
+  }
+
+
+  private TypeMeters getMeters(P2PType type) {
+    return meters.computeIfAbsent(type, TypeMeters::new);
+  }
+
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    if (deflater != null) {
+      deflater.end();
+    }
+    if (inflater != null) {
+      inflater.end();
+    }
+    meters.values().forEach(TypeMeters::remove);
+    meters.clear();
+    super.handlerRemoved(ctx);
+  }
+
+
+  private ByteBuf inflate(ChannelHandlerContext ctx, ByteBuf msg) throws DataFormatException {
+    int length = msg.readInt();
+    if (length < 0 || length > settings.maxFrameSize) {
+      throw new CorruptedFrameException("Invalid decompressed length: " + length);
+    }
+    if (inflater == null) {
+      inflater = new Inflater();
+    }
+    inflater.reset();
+    inflater.setInput(msg.nioBuffer());
+
+    ByteBuf frame = ctx.alloc().heapBuffer(length, length);
+    try {
+      ByteBuffer target = frame.nioBuffer(0, length);
+      while (!inflater.finished()) {
+        if (inflater.inflate(target) == 0) {
+          if (inflater.needsDictionary()) {
+            byte[] dictionary = settings.dictionaries.forId(inflater.getAdler());
+            if (dictionary == null) {
+              throw new CorruptedFrameException("Frame requires unknown dictionary " + Integer.toHexString(inflater.getAdler()));
+            }
+            inflater.setDictionary(dictionary);
+          } else if (inflater.needsInput() || !target.hasRemaining()) {
+            throw new CorruptedFrameException("Compressed frame is truncated or longer than declared");
+          }
+        }
+      }
+      if (target.position() != length) {
+        throw new CorruptedFrameException("Decompressed frame is shorter than declared");
+      }
+      frame.writerIndex(length);
+      return frame;
+    } catch (RuntimeException | DataFormatException e) {
+      frame.release();
+      throw e;
+    }
+  }
+
+
+  /**
+   * Set the capabilities advertised by the peer. Codec bytes and compression are only used once the peer has advertised a codec.
+   *
+   * @param capabilities the peer's capabilities
+   */
+  public void setPeerCapabilities(List<String> capabilities) {
+    peerCapabilities = Collections.unmodifiableSet(new HashSet<>(capabilities));
+  }
+
+
+  private ByteBuf unsnappy(ChannelHandlerContext ctx, ByteBuf msg) {
+    // Check the declared length before decompressing, and do not let the output grow past it.
+    int length = snappyLength(msg);
+    if (length < 0 || length > settings.maxFrameSize) {
+      throw new CorruptedFrameException("Invalid decompressed length: " + length);
+    }
+    ByteBuf frame = ctx.alloc().buffer(length, length);
+    try {
+      snappy.decode(msg, frame);
+      if (frame.readableBytes() != length) {
+        throw new CorruptedFrameException("Decompressed frame is shorter than declared");
+      }
+      return frame;
+    } catch (RuntimeException e) {
+      frame.release();
+      throw e;
+    } finally {
+      snappy.reset();
+    }
+  }
+
+}
@@ -0,0 +1,118 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.peer.pipeline;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import io.setl.bc.pychain.peer.pipeline.AdaptiveCompressionCodec.Settings;
+
+/**
+ * Length-prefixed frames, compressed per frame according to message type and size. The compression codecs each peer can decode are negotiated in the
+ * CHECK_ORIGIN handshake. All peers on a network must use the same pipeline.
+ */
+@Component
+@ConditionalOnProperty(value = "p2p.pipeline", havingValue = "adaptive")
+public class AdaptivePipeline implements FrameDecoder, InitializingBean {
+
+  private static final Logger logger = LoggerFactory.getLogger(AdaptivePipeline.class);
+
+  @Value("${p2p.compression.deflate-level:-1}")
+  private int deflateLevel = -1;
+
+  @Value("${p2p.compression.deflate-size:65536}")
+  private int deflateSize = 65536;
+
+  @Value("${p2p.compression.dictionaries:}")
+  private String dictionaryDirectory = "";
+
+  @Value("${p2p.compression.max-frame:1073741824}")
+  private int maxFrameSize = 1 << 30;
+
+  private MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+  @Value("${p2p.compression.min-size:1024}")
+  private int minSize = 1024;
+
+  private Settings settings;
+
+
+  @Override
+  public void addPipeline(ChannelPipeline pipeline) {
+    pipeline.addLast("frameDecoder", new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4));
+    pipeline.addLast("frameEncoder", new LengthFieldPrepender(4));
+    pipeline.addLast("compression", new AdaptiveCompressionCodec(getSettings()));
+  }
+
+
+  @Override
+  public void afterPropertiesSet() throws IOException {
+    CompressionDictionaries dictionaries = CompressionDictionaries.NONE;
+    if (!dictionaryDirectory.isEmpty()) {
+      dictionaries = CompressionDictionaries.load(Paths.get(dictionaryDirectory));
+      logger.info("Loaded {} compression dictionaries from {}", dictionaries.getIds().size(), dictionaryDirectory);
+    }
+    settings = new Settings(dictionaries, minSize, deflateSize, deflateLevel, maxFrameSize, meterRegistry);
+  }
+
+
+  @Override
+  public List<String> getCapabilities() {
+    return getSettings().getCapabilities();
+  }
+
+
+  private Settings getSettings() {
+    if (settings == null) {
+      settings = new Settings(CompressionDictionaries.NONE, minSize, deflateSize, deflateLevel, maxFrameSize, meterRegistry);
+    }
+    return settings;
+  }
+
+
+  @Autowired(required = false)
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+
+  @Override
+  public void setPeerCapabilities(Channel channel, List<String> capabilities) {
+    AdaptiveCompressionCodec codec = channel.pipeline().get(AdaptiveCompressionCodec.class);
+    if (codec != null) {
+      codec.setPeerCapabilities(capabilities);
+    }
+  }
+
+}
@@ -0,0 +1,258 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.peer.pipeline;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.setl.common.CommonPy.P2PType;
+
+/**
+ * Preset deflate dictionaries for compressing P2P messages, one per message type. A dictionary holds byte sequences which commonly occur in messages of its
+ * type, which lets even a single message compress well. Dictionaries are identified by their Adler-32 checksum, which is also how a deflate stream names the
+ * dictionary it needs.
+ */
+public class CompressionDictionaries {
+
+  /** An empty set of dictionaries. */
+  public static final CompressionDictionaries NONE = new CompressionDictionaries(Collections.emptyMap());
+
+  /** File name suffix for dictionary files. The rest of the file name is the message type. */
+  public static final String SUFFIX = ".dict";
+
+  /** Length of the byte sequences counted when training. */
+  private static final int GRAM = 8;
+
+  /** Length of the sample segment copied into a dictionary for each common sequence. */
+  private static final int SEGMENT = 32;
+
+  private static final Logger logger = LoggerFactory.getLogger(CompressionDictionaries.class);
+
+
+  /**
+   * Get the identifier of a dictionary.
+   *
+   * @param dictionary the dictionary
+   *
+   * @return its Adler-32 checksum
+   */
+  public static int id(byte[] dictionary) {
+    Adler32 adler32 = new Adler32();
+    adler32.update(dictionary);
+    return (int) adler32.getValue();
+  }
+
+
+  /**
+   * Load dictionaries from a directory. Each dictionary is held in a file named for its message type, such as "TX_PACKAGE_FORWARD.dict".
+   *
+   * @param directory the directory
+   *
+   * @return the dictionaries
+   */
+  public static CompressionDictionaries load(Path directory) throws IOException {
+    Map<P2PType, byte[]> dictionaries = new EnumMap<>(P2PType.class);
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+      for (Path path : stream) {
+        String name = path.getFileName().toString();
+        name = name.substring(0, name.length() - SUFFIX.length());
+        P2PType type;
+        try {
+          type = P2PType.valueOf(name);
+        } catch (IllegalArgumentException e) {
+          logger.warn("Ignoring compression dictionary {} as it does not correspond to a message type", path);
+          continue;
+        }
+        dictionaries.put(type, Files.readAllBytes(path));
+      }
+    }
+    return new CompressionDictionaries(dictionaries);
+  }
+
+
+  /**
+   * Train a dictionary from sample messages and write it where <code>load</code> will find it. The arguments are the message type, a directory holding
+   * one sample message per file, the directory to write the dictionary to, and optionally the maximum dictionary size.
+   *
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3 || args.length > 4) {
+      System.err.println("Usage: CompressionDictionaries <message type> <sample directory> <dictionary directory> [max size]");
+      System.exit(1);
+    }
+    P2PType type = P2PType.valueOf(args[0]);
+    int maxSize = (args.length == 4) ? Integer.parseInt(args[3]) : 32768;
+
+    List<byte[]> samples = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(args[1]))) {
+      for (Path path : stream) {
+        if (Files.isRegularFile(path)) {
+          samples.add(Files.readAllBytes(path));
+        }
+      }
+    }
+
+    byte[] dictionary = train(samples, maxSize);
+    Path output = Paths.get(args[2]).resolve(type.name() + SUFFIX);
+    Files.write(output, dictionary);
+    logger.info("Wrote {} byte dictionary {} trained on {} samples", dictionary.length, output, samples.size());
+  }
+
+
+  /**
+   * Build a dictionary from sample messages. The most widely shared byte sequences are selected and a segment of sample data around each is added to the
+   * dictionary. The most common segments are placed at the end of the dictionary, where deflate can refer to them most cheaply.
+   *
+   * @param samples the sample messages
+   * @param maxSize the maximum size of the dictionary. Deflate can use at most 32KB.
+   *
+   * @return the dictionary
+   */
+  public static byte[] train(Collection<byte[]> samples, int maxSize) {
+    // Count the number of samples each sequence occurs in, remembering where it was first seen.
+    Map<String, int[]> counts = new HashMap<>();
+    int sampleIndex = 0;
+    List<byte[]> sampleList = new ArrayList<>(samples);
+    for (byte[] sample : sampleList) {
+      Map<String, Boolean> seen = new HashMap<>();
+      for (int i = 0; i + GRAM <= sample.length; i++) {
+        String gram = new String(sample, i, GRAM, ISO_8859_1);
+        if (seen.putIfAbsent(gram, Boolean.TRUE) == null) {
+          int[] count = counts.computeIfAbsent(gram, k -> new int[]{0, 0, 0});
+          if (count[0] == 0) {
+            count[1] = sampleIndex;
+            count[2] = i;
+          }
+          count[0]++;
+        }
+      }
+      sampleIndex++;
+    }
+
+    List<Map.Entry<String, int[]>> common = new ArrayList<>();
+    for (Map.Entry<String, int[]> e : counts.entrySet()) {
+      if (e.getValue()[0] > 1) {
+        common.add(e);
+      }
+    }
+    common.sort((a, b) -> Integer.compare(b.getValue()[0], a.getValue()[0]));
+
+    // Select segments, most common first, skipping those already covered.
+    List<byte[]> segments = new ArrayList<>();
+    StringBuilder selected = new StringBuilder();
+    int size = 0;
+    for (Map.Entry<String, int[]> e : common) {
+      if (selected.indexOf(e.getKey()) != -1) {
+        continue;
+      }
+      byte[] sample = sampleList.get(e.getValue()[1]);
+      int start = e.getValue()[2];
+      int length = Math.min(Math.min(SEGMENT, sample.length - start), maxSize - size);
+      if (length < GRAM) {
+        break;
+      }
+      byte[] segment = new byte[length];
+      System.arraycopy(sample, start, segment, 0, length);
+      segments.add(segment);
+      selected.append(new String(segment, ISO_8859_1)).append('\uffff');
+      size += length;
+    }
+
+    byte[] dictionary = new byte[size];
+    int position = 0;
+    for (int i = segments.size() - 1; i >= 0; i--) {
+      byte[] segment = segments.get(i);
+      System.arraycopy(segment, 0, dictionary, position, segment.length);
+      position += segment.length;
+    }
+    return dictionary;
+  }
+
+
+  private final Map<Integer, byte[]> byId;
+
+  private final Map<P2PType, byte[]> byType;
+
+
+  /**
+   * New instance.
+   *
+   * @param dictionaries the dictionary for each message type
+   */
+  public CompressionDictionaries(Map<P2PType, byte[]> dictionaries) {
+    byType = dictionaries.isEmpty() ? Collections.emptyMap() : new EnumMap<>(dictionaries);
+    byId = new HashMap<>();
+    for (byte[] dictionary : byType.values()) {
+      byId.put(id(dictionary), dictionary);
+    }
+  }
+
+
+  /**
+   * Get a dictionary by its identifier.
+   *
+   * @param id the identifier
+   *
+   * @return the dictionary, or null
+   */
+  public byte[] forId(int id) {
+    return byId.get(id);
+  }
+
+
+  /**
+   * Get the dictionary for a message type.
+   *
+   * @param type the message type
+   *
+   * @return the dictionary, or null
+   */
+  public byte[] forType(P2PType type) {
+    return byType.get(type);
+  }
+
+
+  /**
+   * Get the identifiers of all the dictionaries.
+   *
+   * @return the identifiers
+   */
+  public Set<Integer> getIds() {
+    return Collections.unmodifiableSet(byId.keySet());
+  }
+
+}
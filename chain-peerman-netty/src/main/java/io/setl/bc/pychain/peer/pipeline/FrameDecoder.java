@@ -18,6 +18,10 @@
 </notice> */
 package io.setl.bc.pychain.peer.pipeline;
 
+import java.util.Collections;
+import java.util.List;
+
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelPipeline;
 
 
@@ -25,4 +29,25 @@ public interface FrameDecoder {
 
   void addPipeline(ChannelPipeline pipeline);
 
+
+  /**
+   * Get the capabilities of this pipeline which are advertised to peers in the CHECK_ORIGIN handshake.
+   *
+   * @return the capabilities
+   */
+  default List<String> getCapabilities() {
+    return Collections.emptyList();
+  }
+
+
+  /**
+   * Notification of the capabilities advertised by the peer on a channel.
+   *
+   * @param channel      the channel
+   * @param capabilities the peer's capabilities
+   */
+  default void setPeerCapabilities(Channel channel, List<String> capabilities) {
+    // do nothing
+  }
+
 }
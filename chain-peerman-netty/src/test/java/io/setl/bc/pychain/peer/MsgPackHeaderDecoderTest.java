@@ -0,0 +1,86 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.peer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import org.junit.Test;
+
+import io.setl.bc.pychain.p2p.MsgFactory;
+import io.setl.bc.pychain.p2p.message.Message;
+import io.setl.bc.pychain.util.MsgPackUtil;
+import io.setl.common.CommonPy.P2PType;
+
+public class MsgPackHeaderDecoderTest {
+
+  @Test(expected = DecoderException.class)
+  public void badFrame() {
+    EmbeddedChannel channel = new EmbeddedChannel(new MsgPackHeaderDecoder());
+    channel.writeInbound(Unpooled.wrappedBuffer(MsgPackUtil.pack(new Object[]{"chain", 1})));
+  }
+
+
+  @Test
+  public void headerOnly() throws Exception {
+    EmbeddedChannel channel = new EmbeddedChannel(new MsgPackHeaderDecoder());
+    ByteBuf frame = Unpooled.wrappedBuffer(MsgPackUtil.pack(new MsgFactory().peerRequest(20)));
+    channel.writeInbound(frame);
+
+    LazyMessage lazyMessage = channel.readInbound();
+    assertEquals(20, lazyMessage.getChainId());
+    assertEquals(P2PType.PEER_REQUEST, lazyMessage.getType());
+
+    // The frame is retained, not copied, until the message is decoded
+    assertEquals(1, frame.refCnt());
+    Message message = lazyMessage.decode(new MsgFactory());
+    assertEquals(20, message.getChainId());
+    assertEquals(P2PType.PEER_REQUEST, message.getType());
+    assertEquals(0, frame.refCnt());
+  }
+
+
+  @Test
+  public void readInt() {
+    Object[] values = {0, 1, 127, 128, 255, 256, 65535, 65536, Integer.MAX_VALUE, -1, -32, -33, -128, -129, -32768, -32769, Integer.MIN_VALUE};
+    ByteBuf buf = Unpooled.wrappedBuffer(MsgPackUtil.pack(values));
+    int[] index = {0};
+    MsgPackHeaderDecoder.skipArrayHeader(buf, index);
+    for (Object v : values) {
+      assertEquals(v, MsgPackHeaderDecoder.readInt(buf, index));
+    }
+    assertEquals(buf.writerIndex(), index[0]);
+  }
+
+
+  @Test
+  public void unknownType() {
+    EmbeddedChannel channel = new EmbeddedChannel(new MsgPackHeaderDecoder());
+    channel.writeInbound(Unpooled.wrappedBuffer(MsgPackUtil.pack(new Object[]{1, 0x1234, "x"})));
+    LazyMessage lazyMessage = channel.readInbound();
+    assertEquals(P2PType.UNKNOWN, lazyMessage.getType());
+    assertEquals(0x1234, lazyMessage.getTypeId());
+    assertTrue(lazyMessage.release());
+  }
+
+}
@@ -0,0 +1,119 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.peer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.setl.bc.pychain.peer.OutboundQueue.Lane;
+
+public class OutboundQueueTest {
+
+  private EmbeddedChannel channel;
+
+  private Counter dropped;
+
+  private OutboundQueue queue;
+
+
+  private byte read() {
+    ByteBuf buf = channel.readOutbound();
+    try {
+      return buf.readByte();
+    } finally {
+      buf.release();
+    }
+  }
+
+
+  @Before
+  public void setUp() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    channel = new EmbeddedChannel();
+    queue = new OutboundQueue(channel, 4, 8, registry);
+    dropped = registry.get("p2p_gossip_dropped").tag("peer", String.valueOf(channel.remoteAddress())).counter();
+  }
+
+
+  @Test
+  public void clearedWhenInactive() {
+    queue.enqueue(Lane.NORMAL, new byte[]{1});
+    channel.close();
+    channel.runPendingTasks();
+    assertTrue(queue.isEmpty());
+  }
+
+
+  @Test
+  public void gossipIsBounded() {
+    assertTrue(queue.enqueue(Lane.GOSSIP, new byte[]{1, 1, 1}));
+    assertFalse(queue.enqueue(Lane.GOSSIP, new byte[]{2, 2}));
+    assertEquals(1.0, dropped.count(), 0.0);
+    assertEquals(3, queue.getGossipBytes());
+
+    // Consensus and normal messages are not subject to the gossip limit
+    assertTrue(queue.enqueue(Lane.NORMAL, new byte[]{3, 3, 3, 3, 3}));
+
+    channel.runPendingTasks();
+    assertEquals(0, queue.getGossipBytes());
+    assertTrue(queue.enqueue(Lane.GOSSIP, new byte[]{4, 4}));
+  }
+
+
+  @Test
+  public void lanesArePrioritised() {
+    queue.enqueue(Lane.GOSSIP, new byte[]{3});
+    queue.enqueue(Lane.NORMAL, new byte[]{2});
+    queue.enqueue(Lane.CONSENSUS, new byte[]{1});
+    queue.enqueue(Lane.GOSSIP, new byte[]{4});
+
+    assertNull(channel.readOutbound());
+    channel.runPendingTasks();
+
+    assertEquals(1, read());
+    assertEquals(2, read());
+    assertEquals(3, read());
+    assertEquals(4, read());
+    assertNull(channel.readOutbound());
+    assertTrue(queue.isEmpty());
+    assertEquals(0, queue.getQueuedBytes());
+  }
+
+
+  @Test
+  public void overfullPeerIsDisconnected() {
+    assertTrue(queue.enqueue(Lane.CONSENSUS, new byte[]{1, 1, 1, 1}));
+    assertTrue(queue.enqueue(Lane.NORMAL, new byte[]{2, 2, 2, 2}));
+    assertEquals(8, queue.getQueuedBytes());
+    assertTrue(channel.isOpen());
+
+    assertFalse(queue.enqueue(Lane.NORMAL, new byte[]{3}));
+    assertFalse(channel.isOpen());
+  }
+
+}
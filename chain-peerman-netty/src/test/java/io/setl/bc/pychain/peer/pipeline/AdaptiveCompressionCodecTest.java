@@ -0,0 +1,131 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.peer.pipeline;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import org.junit.Test;
+
+import io.setl.bc.pychain.util.MsgPackUtil;
+import io.setl.common.CommonPy.P2PType;
+
+public class AdaptiveCompressionCodecTest {
+
+  private static final byte[] DICTIONARY = "ASSET_TRANSFER namespace classId fromAddress toAddress".getBytes();
+
+
+  private static byte[] message(P2PType type, int repeats) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < repeats; i++) {
+      builder.append("ASSET_TRANSFER from AR").append(i).append(" to AR").append(i + 1).append(" namespace classId;");
+    }
+    return MsgPackUtil.pack(new Object[]{7, type.getId(), builder.toString()});
+  }
+
+
+  private static AdaptiveCompressionCodec newCodec() {
+    Map<P2PType, byte[]> dictionaries = new EnumMap<>(P2PType.class);
+    dictionaries.put(P2PType.TX_PACKAGE_FORWARD, DICTIONARY);
+    return new AdaptiveCompressionCodec(new AdaptiveCompressionCodec.Settings(
+        new CompressionDictionaries(dictionaries), 256, 65536, -1, 1 << 24, new SimpleMeterRegistry()));
+  }
+
+
+  private static byte roundTrip(AdaptiveCompressionCodec sender, byte[] message) {
+    EmbeddedChannel out = new EmbeddedChannel(sender);
+    EmbeddedChannel in = new EmbeddedChannel(newCodec());
+
+    out.writeOutbound(Unpooled.wrappedBuffer(message));
+    ByteBuf frame = out.readOutbound();
+    byte codec = frame.getByte(frame.readerIndex());
+
+    in.writeInbound(frame);
+    ByteBuf received = in.readInbound();
+    assertArrayEquals(message, ByteBufUtil.getBytes(received));
+    received.release();
+    return codec;
+  }
+
+
+  @Test
+  public void baseFramesUntilNegotiated() {
+    // Without a codec byte, the frame starts with the message's array header.
+    byte[] message = message(P2PType.TX_PACKAGE_FORWARD, 100);
+    assertEquals(message[0], roundTrip(newCodec(), message));
+  }
+
+
+  @Test
+  public void consensusIsRaw() {
+    AdaptiveCompressionCodec sender = newCodec();
+    sender.setPeerCapabilities(Arrays.asList(AdaptiveCompressionCodec.CAPABILITY_SNAPPY, AdaptiveCompressionCodec.CAPABILITY_DEFLATE));
+    assertEquals(AdaptiveCompressionCodec.RAW, roundTrip(sender, message(P2PType.VOTE, 100)));
+  }
+
+
+  @Test
+  public void deflateWithDictionary() {
+    AdaptiveCompressionCodec sender = newCodec();
+    sender.setPeerCapabilities(Arrays.asList(
+        AdaptiveCompressionCodec.CAPABILITY_SNAPPY,
+        AdaptiveCompressionCodec.CAPABILITY_DEFLATE,
+        AdaptiveCompressionCodec.DICTIONARY_PREFIX + Integer.toHexString(CompressionDictionaries.id(DICTIONARY))
+    ));
+    assertEquals(AdaptiveCompressionCodec.DEFLATE, roundTrip(sender, message(P2PType.TX_PACKAGE_FORWARD, 100)));
+  }
+
+
+  @Test(expected = CorruptedFrameException.class)
+  public void oversizedSnappyIsRejected() {
+    EmbeddedChannel in = new EmbeddedChannel(newCodec());
+    // Declares an uncompressed length of 2^27, which exceeds the limit of 2^24.
+    in.writeInbound(Unpooled.wrappedBuffer(new byte[]{AdaptiveCompressionCodec.SNAPPY, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x40}));
+  }
+
+
+  @Test
+  public void smallIsRaw() {
+    AdaptiveCompressionCodec sender = newCodec();
+    sender.setPeerCapabilities(Collections.singletonList(AdaptiveCompressionCodec.CAPABILITY_SNAPPY));
+    assertEquals(AdaptiveCompressionCodec.RAW, roundTrip(sender, message(P2PType.TX_PACKAGE_FORWARD, 1)));
+  }
+
+
+  @Test
+  public void snappyWithoutDictionary() {
+    AdaptiveCompressionCodec sender = newCodec();
+    sender.setPeerCapabilities(Arrays.asList(AdaptiveCompressionCodec.CAPABILITY_SNAPPY, AdaptiveCompressionCodec.CAPABILITY_DEFLATE));
+    byte[] message = message(P2PType.TX_PACKAGE_FORWARD, 100);
+    assertTrue(message.length < 65536);
+    assertEquals(AdaptiveCompressionCodec.SNAPPY, roundTrip(sender, message));
+  }
+
+}
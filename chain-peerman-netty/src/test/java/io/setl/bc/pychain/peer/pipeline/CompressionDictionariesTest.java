@@ -0,0 +1,97 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.pychain.peer.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.junit.Test;
+
+import io.setl.common.CommonPy.P2PType;
+
+public class CompressionDictionariesTest {
+
+  private static int deflatedSize(byte[] data, byte[] dictionary) {
+    Deflater deflater = new Deflater();
+    if (dictionary != null) {
+      deflater.setDictionary(dictionary);
+    }
+    deflater.setInput(data);
+    deflater.finish();
+    byte[] buffer = new byte[data.length + 64];
+    int size = deflater.deflate(buffer);
+    deflater.end();
+    return size;
+  }
+
+
+  private static byte[] sample(Random random) {
+    String text = "{\"fromAddress\":\"AR" + random.nextInt(1000) + "\",\"nonce\":" + random.nextInt() + ",\"txType\":\"ASSET_TRANSFER\",\"amount\":"
+        + random.nextInt(1000000) + ",\"namespace\":\"SETL\",\"classId\":\"BOND" + random.nextInt(10) + "\"}";
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+
+  @Test
+  public void load() throws Exception {
+    Path directory = Files.createTempDirectory("dict");
+    try {
+      byte[] dictionary = "dictionary".getBytes(StandardCharsets.US_ASCII);
+      Files.write(directory.resolve("TX_PACKAGE_FORWARD.dict"), dictionary);
+      Files.write(directory.resolve("NOT_A_TYPE.dict"), dictionary);
+
+      CompressionDictionaries dictionaries = CompressionDictionaries.load(directory);
+      assertEquals(1, dictionaries.getIds().size());
+      assertNotNull(dictionaries.forType(P2PType.TX_PACKAGE_FORWARD));
+      assertNull(dictionaries.forType(P2PType.VOTE));
+      assertNotNull(dictionaries.forId(CompressionDictionaries.id(dictionary)));
+    } finally {
+      for (Path path : Files.newDirectoryStream(directory)) {
+        Files.delete(path);
+      }
+      Files.delete(directory);
+    }
+  }
+
+
+  @Test
+  public void train() {
+    Random random = new Random(1);
+    List<byte[]> samples = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      samples.add(sample(random));
+    }
+    byte[] dictionary = CompressionDictionaries.train(samples, 4096);
+    assertTrue(dictionary.length > 0);
+    assertTrue(dictionary.length <= 4096);
+
+    byte[] message = sample(random);
+    assertTrue(deflatedSize(message, dictionary) < deflatedSize(message, null));
+  }
+
+}
@@ -0,0 +1,222 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.store.rocksdb;
+
+import io.setl.bc.store.RawStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.function.BiConsumer;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.CompressionType;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A raw store held in an embedded RocksDB database. Batched writes are atomic, and the durability of writes is guaranteed by calling <code>flush()</code>.
+ */
+public class RocksRawStore implements RawStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(RocksRawStore.class);
+
+  static {
+    RocksDB.loadLibrary();
+  }
+
+
+  private static boolean startsWith(byte[] key, byte[] prefix) {
+    return key.length >= prefix.length && Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length);
+  }
+
+
+  private final LRUCache blockCache;
+
+  private final RocksDB db;
+
+  private final BloomFilter filter;
+
+  private final Options options;
+
+  private final WriteOptions writeOptions;
+
+
+  /**
+   * Open or create a store.
+   *
+   * @param directory the directory holding the database
+   * @param config    tuning parameters
+   *
+   * @throws IOException if the database cannot be opened
+   */
+  public RocksRawStore(Path directory, RocksStoreConfig config) throws IOException {
+    Files.createDirectories(directory);
+
+    blockCache = new LRUCache(config.getBlockCacheSize());
+    filter = new BloomFilter(config.getBloomBitsPerKey(), false);
+    BlockBasedTableConfig tableConfig = new BlockBasedTableConfig()
+        .setBlockCache(blockCache)
+        .setFilterPolicy(filter)
+        .setWholeKeyFiltering(true)
+        .setCacheIndexAndFilterBlocks(true)
+        .setPinL0FilterAndIndexBlocksInCache(true);
+
+    options = new Options()
+        .setCreateIfMissing(true)
+        .setTableFormatConfig(tableConfig)
+        .setCompactionStyle(config.getCompactionStyle())
+        .setLevelCompactionDynamicLevelBytes(true)
+        .setMaxBackgroundJobs(config.getMaxBackgroundJobs())
+        .setWriteBufferSize(config.getWriteBufferSize())
+        .setCompressionType(CompressionType.LZ4_COMPRESSION);
+
+    // Writes are made durable by flush(), not individually.
+    writeOptions = new WriteOptions().setSync(false);
+
+    try {
+      db = RocksDB.open(options, directory.toString());
+    } catch (RocksDBException e) {
+      writeOptions.close();
+      options.close();
+      filter.close();
+      blockCache.close();
+      throw new IOException("Unable to open RocksDB store at " + directory, e);
+    }
+    logger.info("Opened RocksDB store at {}", directory);
+  }
+
+
+  @Override
+  public void delete(byte[] key) {
+    try {
+      db.delete(writeOptions, key);
+    } catch (RocksDBException e) {
+      throw new RuntimeException("RocksDB delete failed", e);
+    }
+  }
+
+
+  @Override
+  public void flush() {
+    try {
+      db.flushWal(true);
+    } catch (RocksDBException e) {
+      throw new RuntimeException("RocksDB flush failed", e);
+    }
+  }
+
+
+  /**
+   * Visit every entry whose key starts with the specified prefix, in key order.
+   *
+   * @param prefix  the key prefix
+   * @param visitor receiver for the keys and values
+   */
+  public void forEachWithPrefix(byte[] prefix, BiConsumer<byte[], byte[]> visitor) {
+    try (RocksIterator iterator = db.newIterator()) {
+      for (iterator.seek(prefix); iterator.isValid(); iterator.next()) {
+        byte[] key = iterator.key();
+        if (!startsWith(key, prefix)) {
+          break;
+        }
+        visitor.accept(key, iterator.value());
+      }
+    }
+  }
+
+
+  @Override
+  public byte[] get(byte[] key) {
+    try {
+      return db.get(key);
+    } catch (RocksDBException e) {
+      throw new RuntimeException("RocksDB get failed", e);
+    }
+  }
+
+
+  @Override
+  public List<byte[]> getAll(List<byte[]> keys) {
+    try {
+      return db.multiGetAsList(keys);
+    } catch (RocksDBException e) {
+      throw new RuntimeException("RocksDB multi-get failed", e);
+    }
+  }
+
+
+  @Override
+  public void put(byte[] key, byte[] data) {
+    try {
+      db.put(writeOptions, key, data);
+    } catch (RocksDBException e) {
+      throw new RuntimeException("RocksDB put failed", e);
+    }
+  }
+
+
+  @Override
+  public void putAll(Collection<Entry<byte[], byte[]>> entries) {
+    try (WriteBatch batch = new WriteBatch()) {
+      for (Entry<byte[], byte[]> e : entries) {
+        batch.put(e.getKey(), e.getValue());
+      }
+      db.write(writeOptions, batch);
+    } catch (RocksDBException e) {
+      throw new RuntimeException("RocksDB batch write failed", e);
+    }
+  }
+
+
+  @Override
+  public void putIfAbsent(byte[] key, byte[] data) {
+    // Keys are content hashes, so a concurrent put of the same key writes the same data.
+    if (get(key) == null) {
+      put(key, data);
+    }
+  }
+
+
+  @Override
+  public void shutdown() throws IOException {
+    try {
+      db.flushWal(true);
+    } catch (RocksDBException e) {
+      throw new IOException("Unable to flush RocksDB store", e);
+    } finally {
+      db.close();
+      writeOptions.close();
+      options.close();
+      filter.close();
+      blockCache.close();
+    }
+  }
+
+}
@@ -0,0 +1,93 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.store.rocksdb;
+
+import org.rocksdb.CompactionStyle;
+
+/**
+ * Tuning parameters for a RocksDB raw store. The defaults suit a store of content-addressed Merkle nodes, which are read by random 32-byte keys.
+ */
+public class RocksStoreConfig {
+
+  /** Size of the shared block cache in bytes. */
+  private long blockCacheSize = 512L * 1024 * 1024;
+
+  /** Bits per key in the bloom filters. Ten bits gives about a 1% false positive rate. */
+  private int bloomBitsPerKey = 10;
+
+  /** The compaction style. */
+  private CompactionStyle compactionStyle = CompactionStyle.LEVEL;
+
+  /** Maximum number of concurrent background flushes and compactions. */
+  private int maxBackgroundJobs = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+  /** Size of each memtable in bytes. */
+  private long writeBufferSize = 64L * 1024 * 1024;
+
+
+  public long getBlockCacheSize() {
+    return blockCacheSize;
+  }
+
+
+  public int getBloomBitsPerKey() {
+    return bloomBitsPerKey;
+  }
+
+
+  public CompactionStyle getCompactionStyle() {
+    return compactionStyle;
+  }
+
+
+  public int getMaxBackgroundJobs() {
+    return maxBackgroundJobs;
+  }
+
+
+  public long getWriteBufferSize() {
+    return writeBufferSize;
+  }
+
+
+  public void setBlockCacheSize(long blockCacheSize) {
+    this.blockCacheSize = blockCacheSize;
+  }
+
+
+  public void setBloomBitsPerKey(int bloomBitsPerKey) {
+    this.bloomBitsPerKey = bloomBitsPerKey;
+  }
+
+
+  public void setCompactionStyle(CompactionStyle compactionStyle) {
+    this.compactionStyle = compactionStyle;
+  }
+
+
+  public void setMaxBackgroundJobs(int maxBackgroundJobs) {
+    this.maxBackgroundJobs = maxBackgroundJobs;
+  }
+
+
+  public void setWriteBufferSize(long writeBufferSize) {
+    this.writeBufferSize = writeBufferSize;
+  }
+
+}
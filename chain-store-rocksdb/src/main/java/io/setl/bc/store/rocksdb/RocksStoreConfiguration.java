@@ -0,0 +1,72 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.store.rocksdb;
+
+import io.setl.bc.pychain.Defaults;
+import io.setl.bc.store.IpfsStore;
+import io.setl.util.PriorityExecutor;
+import java.io.IOException;
+import java.nio.file.Paths;
+import org.rocksdb.CompactionStyle;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Spring configuration which stores IPFS based state in RocksDB. It requires both <code>statemode=ipfs</code> and <code>state-store.type=rocksdb</code>. In
+ * the default monolithic state mode the file state loader and writer are active, and a second state reader and writer would conflict with them.
+ */
+@Configuration
+@ConditionalOnExpression("'${statemode:mono}' == 'ipfs' and '${state-store.type:}' == 'rocksdb'")
+public class RocksStoreConfiguration {
+
+  /**
+   * The IPFS state store, which is both the state reader and state writer.
+   */
+  @Bean
+  public IpfsStore ipfsStore(RocksRawStore rocksRawStore, PriorityExecutor priorityExecutor) {
+    return new IpfsStore(rocksRawStore, priorityExecutor);
+  }
+
+
+  /**
+   * The RocksDB raw store.
+   */
+  @Bean
+  public RocksRawStore rocksRawStore(
+      @Value("${state-store.rocksdb.path:rocksdb}") String path,
+      @Value("${state-store.rocksdb.block-cache-size:536870912}") long blockCacheSize,
+      @Value("${state-store.rocksdb.bloom-bits-per-key:10}") int bloomBitsPerKey,
+      @Value("${state-store.rocksdb.compaction-style:LEVEL}") CompactionStyle compactionStyle,
+      @Value("${state-store.rocksdb.max-background-jobs:0}") int maxBackgroundJobs,
+      @Value("${state-store.rocksdb.write-buffer-size:67108864}") long writeBufferSize
+  ) throws IOException {
+    RocksStoreConfig config = new RocksStoreConfig();
+    config.setBlockCacheSize(blockCacheSize);
+    config.setBloomBitsPerKey(bloomBitsPerKey);
+    config.setCompactionStyle(compactionStyle);
+    if (maxBackgroundJobs > 0) {
+      config.setMaxBackgroundJobs(maxBackgroundJobs);
+    }
+    config.setWriteBufferSize(writeBufferSize);
+    return new RocksRawStore(Paths.get(Defaults.get().getAbsolutePath(path)), config);
+  }
+
+}
@@ -0,0 +1,119 @@
+/* <notice>
+ 
+    SETL Blockchain
+    Copyright (C) 2021 SETL Ltd
+ 
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License, version 3, as
+    published by the Free Software Foundation.
+ 
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+ 
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ 
+</notice> */
+package io.setl.bc.store.rocksdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RocksRawStoreTest {
+
+  private Path directory;
+
+  private RocksRawStore store;
+
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+
+  @Test
+  public void batchAndMultiGet() {
+    List<Entry<byte[], byte[]>> entries = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      entries.add(new SimpleImmutableEntry<>(bytes("key" + i), bytes("value" + i)));
+    }
+    store.putAll(entries);
+
+    List<byte[]> values = store.getAll(Arrays.asList(bytes("key5"), bytes("missing"), bytes("key99")));
+    assertArrayEquals(bytes("value5"), values.get(0));
+    assertNull(values.get(1));
+    assertArrayEquals(bytes("value99"), values.get(2));
+  }
+
+
+  @Test
+  public void prefixIteration() {
+    store.put(bytes("a1"), bytes("1"));
+    store.put(bytes("b1"), bytes("2"));
+    store.put(bytes("b2"), bytes("3"));
+    store.put(bytes("c1"), bytes("4"));
+
+    List<String> found = new ArrayList<>();
+    store.forEachWithPrefix(bytes("b"), (k, v) -> found.add(new String(k, StandardCharsets.UTF_8)));
+    assertEquals(Arrays.asList("b1", "b2"), found);
+  }
+
+
+  @Test
+  public void putGetDelete() {
+    store.put(bytes("key"), bytes("value"));
+    assertArrayEquals(bytes("value"), store.get(bytes("key")));
+
+    store.putIfAbsent(bytes("key"), bytes("other"));
+    assertArrayEquals(bytes("value"), store.get(bytes("key")));
+
+    store.delete(bytes("key"));
+    assertNull(store.get(bytes("key")));
+  }
+
+
+  @Test
+  public void reopen() throws IOException {
+    store.put(bytes("key"), bytes("value"));
+    store.flush();
+    store.shutdown();
+
+    store = new RocksRawStore(directory, new RocksStoreConfig());
+    assertArrayEquals(bytes("value"), store.get(bytes("key")));
+  }
+
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("rocks");
+    store = new RocksRawStore(directory, new RocksStoreConfig());
+  }
+
+
+  @After
+  public void tearDown() throws IOException {
+    store.shutdown();
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+
+}
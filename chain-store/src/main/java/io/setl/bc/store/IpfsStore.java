@@ -36,6 +36,7 @@ import io.setl.bc.pychain.state.NoOpChangeListener;
 import io.setl.bc.pychain.state.StateChangeListener;
 import io.setl.bc.pychain.state.ipfs.IpfsBasedState;
 import io.setl.bc.pychain.state.ipfs.MerkleStore;
+import io.setl.util.PriorityExecutor;
 import io.setl.utils.ByteUtil;
 
 /**
@@ -58,7 +59,18 @@ public class IpfsStore implements StateReader, StateWriter, MerkleStore<Object>
    * @param rawStore the store
    */
   public IpfsStore(RawStore rawStore) {
-    store = new MerkleStoreWrapper(rawStore);
+    this(rawStore, PriorityExecutor.INSTANCE);
+  }
+
+
+  /**
+   * New store with the specified raw store as the persistence engine.
+   *
+   * @param rawStore the store
+   * @param executor the executor used to write data to the store in batches
+   */
+  public IpfsStore(RawStore rawStore, PriorityExecutor executor) {
+    store = new MerkleStoreWrapper(rawStore, executor);
     this.rawStore = rawStore;
   }
 
@@ -123,7 +135,14 @@ public class IpfsStore implements StateReader, StateWriter, MerkleStore<Object>
 
     store.put(stateHash, ipfsWrappedState);
     store.put(encodedState.getConfigHash(), encodedState.getEncodedConfig());
+
+    // Wait for all the state's data to be written before the state is considered stored.
     store.flush();
+
+    // The state is final, so its lists' indices can now be made durable. Speculative copies of them never reach the disk.
+    if (state instanceof IpfsBasedState) {
+      ((IpfsBasedState) state).persistIndices();
+    }
   }
 
 }
@@ -22,7 +22,18 @@ import io.setl.bc.pychain.Hash;
 import io.setl.bc.pychain.state.ipfs.MerkleStore;
 import io.setl.bc.pychain.util.MsgPackUtil;
 import io.setl.common.Hex;
+import io.setl.util.ParallelTask;
+import io.setl.util.Priorities;
+import io.setl.util.PriorityExecutor;
 import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
 import javax.annotation.Nonnull;
 import org.msgpack.core.MessageUnpacker;
 import org.slf4j.Logger;
@@ -30,31 +41,159 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Wrapper around a raw store to provide serialization/deserialization Created by aanten on 01/06/2017.
+ *
+ * <p>Writes are performed behind the caller. Data put into the store is held in memory, and visible to reads, until it has been serialised and written to the
+ * raw store in a batch. A call to <code>flush()</code> waits for all outstanding batches to be written before flushing the raw store.</p>
  */
 public class MerkleStoreWrapper implements MerkleStore<Object> {
 
+  /** Number of entries written to the raw store in each batch. */
+  private static final int BATCH_SIZE = 1024;
+
   private static final Logger logger = LoggerFactory.getLogger(MerkleStoreWrapper.class);
 
+
+
+  /** A batch of entries to be written. The batch can be run by either an executor thread or a thread that is waiting for it to complete. */
+  private class Batch implements Runnable {
+
+    final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    final List<Hash> hashes;
+
+    final AtomicBoolean isStarted = new AtomicBoolean(false);
+
+
+    Batch(List<Hash> hashes) {
+      this.hashes = hashes;
+    }
+
+
+    void await() {
+      // If the batch has not started yet, do it in this thread rather than wait for an executor thread.
+      run();
+      done.join();
+    }
+
+
+    @Override
+    public void run() {
+      if (!isStarted.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        write(hashes);
+        done.complete(null);
+      } catch (RuntimeException | Error e) {
+        done.completeExceptionally(e);
+      }
+    }
+  }
+
+
+
+  private static byte[] pack(Object data) {
+    try {
+      return MsgPackUtil.pack(data);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  private static Object unpack(byte[] bytes) {
+    try {
+      MessageUnpacker unpacker = MsgPackUtil.newUnpacker(bytes);
+      Object obj = MsgPackUtil.unpackObject(unpacker, true);
+
+      // Message pack does not support byte[][] - so kludge
+      if (obj instanceof Object[]) {
+        Object[] arr = (Object[]) obj;
+        if (arr.length >= 1 && (arr[0] instanceof byte[])) {
+          byte[][] oo;
+          oo = new byte[arr.length][];
+          for (int ii = 0; ii < oo.length; ii++) {
+            oo[ii] = (byte[]) arr[ii];
+          }
+          return oo;
+        }
+      }
+
+      return obj;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  private final PriorityExecutor executor;
+
+  private final ConcurrentHashMap<Hash, Object> pending = new ConcurrentHashMap<>();
+
   private final RawStore store;
 
+  private List<Batch> inFlight = new ArrayList<>();
+
   private int readCount = 0;
 
+  private List<Hash> unbatched = new ArrayList<>();
+
   private int writeCount = 0;
 
 
   public MerkleStoreWrapper(RawStore store) {
+    this(store, PriorityExecutor.INSTANCE);
+  }
+
+
+  /**
+   * New instance.
+   *
+   * @param store    the raw store
+   * @param executor executor used to serialise and write batches of data
+   */
+  public MerkleStoreWrapper(RawStore store, PriorityExecutor executor) {
     this.store = store;
+    this.executor = executor;
   }
 
 
   @Override
   public void flush() {
+    List<Batch> toWait;
+    synchronized (this) {
+      if (!unbatched.isEmpty()) {
+        startBatch();
+      }
+      toWait = inFlight;
+      inFlight = new ArrayList<>();
+    }
+
+    RuntimeException failure = null;
+    for (Batch batch : toWait) {
+      try {
+        batch.await();
+      } catch (RuntimeException e) {
+        logger.error("Failed to write batch of {} entries", batch.hashes.size(), e);
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+
     store.flush();
   }
 
 
   @Override
   public Object get(@Nonnull Hash hash) {
+    // Data waiting to be written is round-tripped through its encoding, so callers see the same form before and after it is written.
+    Object data = pending.get(hash);
+    if (data != null) {
+      return unpack(pack(data));
+    }
+
     byte[] bytes;
     try {
       bytes = store.get(hash.get());
@@ -69,40 +208,60 @@ public class MerkleStoreWrapper implements MerkleStore<Object> {
       }
       return null;
     }
+    return unpack(bytes);
+  }
 
-    try {
-      MessageUnpacker unpacker = MsgPackUtil.newUnpacker(bytes);
-      Object obj = MsgPackUtil.unpackObject(unpacker, true);
 
-      // Message pack does not support byte[][] - so kludge
-      if (obj instanceof Object[]) {
-        Object[] arr = (Object[]) obj;
-        if (arr.length >= 1 && (arr[0] instanceof byte[])) {
-          byte[][] oo;
-          oo = new byte[arr.length][];
-          for (int ii = 0; ii < oo.length; ii++) {
-            oo[ii] = (byte[]) arr[ii];
-          }
-          return oo;
-        }
+  @Override
+  public void put(Hash hash, Object data) {
+    pending.put(hash, data);
+    synchronized (this) {
+      unbatched.add(hash);
+      writeCount++;
+      if (unbatched.size() >= BATCH_SIZE) {
+        startBatch();
       }
-
-      return obj;
-    } catch (IOException e) {
-      throw new RuntimeException(e);
     }
   }
 
 
-  @Override
-  public void put(Hash hash, Object data) {
-    try {
-      byte[] bytes = MsgPackUtil.pack(data);
-      store.put(hash.get(), bytes);
-      writeCount++;
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+  /**
+   * Send the unbatched entries to the executor to be written. Must be called while holding this instance's lock.
+   */
+  private void startBatch() {
+    Batch batch = new Batch(unbatched);
+    unbatched = new ArrayList<>();
+    inFlight.add(batch);
+    executor.submit(Priorities.BLOCK_WRITER, batch);
+  }
+
+
+  /**
+   * Serialise a batch of pending entries in parallel and write them to the raw store. The entries are released from memory whether or not the write
+   * succeeds, as a failed batch is reported by <code>flush()</code> and must not be held indefinitely.
+   *
+   * @param hashes the hashes of the entries
+   */
+  private void write(List<Hash> hashes) {
+    int size = hashes.size();
+    Object[] data = new Object[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = pending.get(hashes.get(i));
     }
+    try {
+      byte[][] bytes = new byte[size][];
+      ParallelTask.process(executor.getTaskContext(Priorities.BLOCK_WRITER), size, (IntConsumer) i -> bytes[i] = pack(data[i]));
 
+      List<Entry<byte[], byte[]>> entries = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        entries.add(new SimpleImmutableEntry<>(hashes.get(i).get(), bytes[i]));
+      }
+      store.putAll(entries);
+    } finally {
+      // On success the entries can now be read from the store. If an entry has been put again since, it is the same data as it has the same hash.
+      for (int i = 0; i < size; i++) {
+        pending.remove(hashes.get(i), data[i]);
+      }
+    }
   }
 }
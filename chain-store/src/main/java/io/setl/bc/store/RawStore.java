@@ -19,6 +19,10 @@
 package io.setl.bc.store;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map.Entry;
 
 /**
  * A simple key value store.
@@ -49,6 +53,21 @@ public interface RawStore {
    */
   byte[] get(byte[] key);
 
+  /**
+   * Get the values stored against multiple keys. Stores which support multi-key reads should override this to read the keys in one operation.
+   *
+   * @param keys the keys
+   *
+   * @return the values, in the same order as the keys, with null for any key not present
+   */
+  default List<byte[]> getAll(List<byte[]> keys) {
+    List<byte[]> values = new ArrayList<>(keys.size());
+    for (byte[] key : keys) {
+      values.add(get(key));
+    }
+    return values;
+  }
+
   /**
    * Save or replace data stored against key.
    *
@@ -57,6 +76,17 @@ public interface RawStore {
    */
   void put(byte[] key, byte[] data);
 
+  /**
+   * Save or replace a batch of data. Stores which support batched writes should override this to write the whole batch in one operation.
+   *
+   * @param entries the keys and values to save
+   */
+  default void putAll(Collection<Entry<byte[], byte[]>> entries) {
+    for (Entry<byte[], byte[]> e : entries) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
 
   /**
    * Save data stored against key, provided no such data is already present.